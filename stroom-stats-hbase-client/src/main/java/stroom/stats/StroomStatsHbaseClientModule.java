@@ -33,8 +33,10 @@ import stroom.stats.configuration.StatisticConfigurationService;
 import stroom.stats.hbase.HBaseStatisticsService;
 import stroom.stats.hbase.table.EventStoreTableFactory;
 import stroom.stats.hbase.table.HBaseEventStoreTableFactory;
+import stroom.stats.hbase.table.HBasePurgeCheckpointTable;
 import stroom.stats.hbase.table.HBaseUniqueIdForwardMapTable;
 import stroom.stats.hbase.table.HBaseUniqueIdReverseMapTable;
+import stroom.stats.hbase.table.PurgeCheckpointTable;
 import stroom.stats.hbase.table.UniqueIdForwardMapTable;
 import stroom.stats.hbase.table.UniqueIdReverseMapTable;
 import stroom.stats.hbase.uid.UniqueIdCache;
@@ -59,6 +61,7 @@ public class StroomStatsHbaseClientModule extends AbstractModule {
         bind(CacheConfigurationService.class).to(CacheConfigurationServiceImpl.class);
         bind(CacheFactory.class).to(CacheFactoryImpl.class);
         bind(ClusterLockService.class).to(ClusterLockServiceImpl.class);
+        bind(PurgeCheckpointTable.class).to(HBasePurgeCheckpointTable.class);
         bind(StatisticConfigurationValidator.class).to(StatisticConfigurationValidatorImpl.class);
         bind(StatisticsService.class).to(HBaseStatisticsService.class);
         bind(TaskManager.class).to(TaskManagerImpl.class);
@@ -43,10 +43,12 @@ public class CacheConfigurationServiceImpl implements CacheConfigurationService
 
     private static final String PROP_KEY_PREFIX_CACHE = "stroom.stats.cache.";
     static final String PROP_KEY_SUFFIX_MAX_ENTRIES_HEAP = ".maxEntriesHeap";
+    static final String PROP_KEY_SUFFIX_MAX_MB_HEAP = ".maxMbHeap";
     static final String PROP_KEY_SUFFIX_MAX_MB_OFF_HEAP = ".maxEntriesOffHeap";
     static final String PROP_KEY_SUFFIX_MAX_MB_DISK = ".maxEntriesDisk";
     static final String PROP_KEY_SUFFIX_TIME_TO_LIVE_SECS = ".timeToLiveSecs";
     static final String PROP_KEY_SUFFIX_TIME_TO_IDLE_SECS = ".timeToIdleSecs";
+    static final String PROP_KEY_SUFFIX_MAX_OBJECT_GRAPH_SIZE = ".maxObjectGraphSize";
 
     private final StroomPropertyService stroomPropertyService;
 
@@ -74,6 +76,9 @@ public class CacheConfigurationServiceImpl implements CacheConfigurationService
         //.heap wasn't called first then any existing builds would be lost
         entriesFunctionMap.put(PROP_KEY_SUFFIX_MAX_ENTRIES_HEAP, (builder, value) ->
                 builder.heap(value, EntryUnit.ENTRIES));
+        //sizes the heap by the weight of the entries rather than their number, so only one of the two can be set
+        entriesFunctionMap.put(PROP_KEY_SUFFIX_MAX_MB_HEAP, (builder, value) ->
+                builder.heap(value, MemoryUnit.MB));
         entriesFunctionMap.put(PROP_KEY_SUFFIX_MAX_MB_OFF_HEAP, (builder, value) ->
                 builder.offheap(value, MemoryUnit.MB));
         entriesFunctionMap.put(PROP_KEY_SUFFIX_MAX_MB_DISK, (builder, value) ->
@@ -132,6 +137,15 @@ public class CacheConfigurationServiceImpl implements CacheConfigurationService
                     });
         });
 
+        //when sizing the heap by weight, entries whose object graph is bigger than this are not cached
+        getPropertyValue(cacheName, PROP_KEY_SUFFIX_MAX_OBJECT_GRAPH_SIZE)
+                .ifPresent(propertyValue -> {
+                    LOGGER.info("Applying configuration property {} and value {} to cache {}",
+                            PROP_KEY_SUFFIX_MAX_OBJECT_GRAPH_SIZE, propertyValue, cacheName);
+                    cacheConfigurationBuilderRef.set(
+                            cacheConfigurationBuilderRef.get().withSizeOfMaxObjectGraph(propertyValue));
+                });
+
         //return the builder so the caller can chain more methods on it
         return cacheConfigurationBuilderRef.get();
     }
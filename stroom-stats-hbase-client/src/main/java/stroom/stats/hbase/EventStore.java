@@ -22,11 +22,13 @@
 package stroom.stats.hbase;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
 import org.hibernate.cache.CacheException;
 import stroom.stats.api.StatisticType;
 import stroom.stats.common.FilterTermsTree;
 import stroom.stats.common.SearchStatisticsCriteria;
 import stroom.stats.common.Period;
+import stroom.stats.common.StatisticDataPoint;
 import stroom.stats.common.StatisticDataSet;
 import stroom.stats.common.rollup.RollUpBitMask;
 import stroom.stats.configuration.StatisticConfiguration;
@@ -42,6 +44,8 @@ import stroom.stats.util.DateUtil;
 import stroom.stats.util.logging.LambdaLogger;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
 
 public class EventStore {
@@ -50,6 +54,7 @@ public class EventStore {
     private final EventStoreTimeIntervalEnum timeInterval;
     private final RowKeyBuilder rowKeyBuilder;
     private final StroomPropertyService propertyService;
+    private final EventStoreWriteBuffer writeBuffer;
 
     private final String purgeRetentionPeriodsPropertyKey;
 
@@ -75,6 +80,12 @@ public class EventStore {
         this.eventStoreTable = eventStoreTableFactory.getEventStoreTable(interval);
         this.timeInterval = interval;
         this.propertyService = propertyService;
+        this.writeBuffer = new EventStoreWriteBuffer(
+                eventStoreTable,
+                () -> propertyService.getLongProperty(
+                        HBaseStatisticConstants.DATA_STORE_WRITE_BUFFER_WINDOW_MS_PROPERTY_NAME, 0),
+                () -> propertyService.getIntProperty(
+                        HBaseStatisticConstants.DATA_STORE_WRITE_BUFFER_MAX_SIZE_PROPERTY_NAME, 100_000));
         this.purgeRetentionPeriodsPropertyKey = HBaseStatisticConstants.DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX
                 + interval.name().toLowerCase();
 
@@ -195,16 +206,30 @@ public class EventStore {
     }
 
     /**
-     * Puts a batch of aggregated events into the store
+     * Puts a batch of aggregated events into the store, via the store's write buffer
+     *
+     * @return A future that completes once all the events have been written
      */
-    public void putAggregatedEvents(final StatisticType statisticType,
-                                    final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+    public CompletableFuture<Void> putAggregatedEvents(final StatisticType statisticType,
+                                                       final Map<StatEventKey, StatAggregate> aggregatedEvents) {
 
-        eventStoreTable.addAggregatedEvents(statisticType, aggregatedEvents);
+        return writeBuffer.put(statisticType, aggregatedEvents);
+    }
+
+    /**
+     * Writes any buffered events that have been held for longer than the write buffer window
+     */
+    public void flushExpiredEvents() {
+        writeBuffer.flushExpired(getCurrentTimeMs());
     }
 
     public void flushAllEvents() {
         LOGGER.debug("flushAllEvents called for store: {}", this.timeInterval);
+        try {
+            writeBuffer.flush().join();
+        } catch (CompletionException e) {
+            LOGGER.error("Error flushing buffered events for store {}", timeInterval, e);
+        }
         eventStoreTable.shutdown();
     }
 
@@ -212,6 +237,24 @@ public class EventStore {
         return eventStoreTable.getCellsPutCount(statisticType);
     }
 
+    /**
+     * Moves any value statistic cells in this store into the configured value cell layout
+     *
+     * @return The number of time intervals moved
+     */
+    public long migrateValueCells() {
+        return eventStoreTable.migrateValueCells();
+    }
+
+    /**
+     * Alters the column families of this store's table to match the configured settings
+     *
+     * @return The number of column families altered
+     */
+    public int reconcileColumnFamilies() {
+        return eventStoreTable.reconcileColumnFamilies();
+    }
+
     public StatisticDataSet getStatisticsData(final UniqueIdCache uniqueIdCache,
                                               final StatisticConfiguration statisticConfiguration,
                                               final SearchStatisticsCriteria criteria) {
@@ -221,6 +264,17 @@ public class EventStore {
         return eventStoreTable.getStatisticsData(uniqueIdCache, statisticConfiguration, rollUpBitMask, criteria);
     }
 
+    public long streamStatisticsData(final UniqueIdCache uniqueIdCache,
+                                     final StatisticConfiguration statisticConfiguration,
+                                     final SearchStatisticsCriteria criteria,
+                                     final Consumer<StatisticDataPoint> dataPointConsumer) {
+
+        final RollUpBitMask rollUpBitMask = buildRollUpBitMaskFromCriteria(criteria, statisticConfiguration);
+
+        return eventStoreTable.streamStatisticsData(
+                uniqueIdCache, statisticConfiguration, rollUpBitMask, criteria, dataPointConsumer);
+    }
+
     public EventStoreTimeIntervalEnum getTimeInterval() {
         return timeInterval;
     }
@@ -266,8 +320,10 @@ public class EventStore {
     }
 
     private long calculatePurgeUpToTimeMs(final long startTime) {
-        final int rowKeyIntervalsToRetain = getPurgeRetentionIntervals();
+        return calculatePurgeUpToTimeMs(startTime, getPurgeRetentionIntervals());
+    }
 
+    private long calculatePurgeUpToTimeMs(final long startTime, final int rowKeyIntervalsToRetain) {
         // round start time down to the last row key interval
         final long roundedNow = new Long(startTime / timeInterval.rowKeyInterval()) * timeInterval.rowKeyInterval();
 
@@ -290,43 +346,18 @@ public class EventStore {
                                              final PurgeMode purgeMode) {
         final long startTime = getCurrentTimeMs();
 
-        final Consumer<StatisticConfiguration> consumer;
         if (PurgeMode.OUTSIDE_RETENTION.equals(purgeMode)) {
-            consumer = (statisticStore) -> {
-                final long purgeUpToTimeMs = calculatePurgeUpToTimeMs(startTime);
-                LOGGER.info(
-                        "Purging store [{}] with data source count [{}] and row key interval size [{}].  Purging up to [{}]",
-                        timeInterval.longName(), statisticConfigurations.size(), this.timeInterval.getRowKeyIntervalAsString(),
-                        DateUtil.createNormalDateTimeString(purgeUpToTimeMs));
-
-                // generate roll up masks based on the number of tags on the
-                // stat and whether roll ups are enabled or
-                // not
-                final Set<RollUpBitMask> bitMasks = RollUpBitMask
-                        .getRollUpBitMasks(statisticStore.getRollUpType().equals(StatisticRollUpType.ALL)
-                                ? statisticStore.getFieldNames().size() : 0);
-
-                for (final RollUpBitMask rollUpBitMask : bitMasks) {
-                    eventStoreTable.purgeUntilTime(uniqueIdCache, statisticStore, rollUpBitMask,
-                            purgeUpToTimeMs);
-                }
-
-            };
+            //run the units one after another, see RetentionPurgeEngine for running them concurrently
+            final RateLimiter unlimitedRateLimiter = RateLimiter.create(Double.MAX_VALUE);
+            for (final PurgeUnit purgeUnit : getPurgeUnits(statisticConfigurations, startTime)) {
+                purge(uniqueIdCache, purgeUnit, unlimitedRateLimiter);
+            }
         } else {
-            consumer = (statisticStore) -> {
-                eventStoreTable.purgeAll(uniqueIdCache, statisticStore);
-            };
-        }
-
-        for (final StatisticConfiguration statisticConfiguration : statisticConfigurations) {
-            try {
-                consumer.accept(statisticConfiguration);
-            } catch (final CacheException ce) {
-                if (ce.getMessage().contains(statisticConfiguration.getName())) {
-                    LOGGER.info("Unable to purge statistics for [{}] in store [{}] due to there being no entry in the UID cache for it.  With no entry in the cache there should be no statistics to purge",
-                            statisticConfiguration.getName(), timeInterval.longName());
-                } else {
-                    throw ce;
+            for (final StatisticConfiguration statisticConfiguration : statisticConfigurations) {
+                try {
+                    eventStoreTable.purgeAll(uniqueIdCache, statisticConfiguration);
+                } catch (final CacheException ce) {
+                    handlePurgeCacheException(ce, statisticConfiguration);
                 }
             }
         }
@@ -337,6 +368,77 @@ public class EventStore {
                 new Double(runTime / 1000d / 60d)));
     }
 
+    /**
+     * @return The units of work needed to purge the passed statistics in this store down to their retention
+     * periods, as at startTime. Statistics whose retention is enforced by the column family TTL have no units.
+     */
+    List<PurgeUnit> getPurgeUnits(final List<StatisticConfiguration> statisticConfigurations,
+                                  final long startTime) {
+        final int storeIntervalsToRetain = getPurgeRetentionIntervals();
+        final RetentionMode retentionMode = RetentionMode.fromProperties(propertyService);
+
+        LOGGER.info(
+                "Purging store [{}] with data source count [{}] and row key interval size [{}].  Purging up to [{}]",
+                timeInterval.longName(), statisticConfigurations.size(), this.timeInterval.getRowKeyIntervalAsString(),
+                DateUtil.createNormalDateTimeString(calculatePurgeUpToTimeMs(startTime, storeIntervalsToRetain)));
+
+        final List<PurgeUnit> purgeUnits = new ArrayList<>();
+        for (final StatisticConfiguration statisticConfiguration : statisticConfigurations) {
+            //an override can only shorten the retention as ingest and queries work to that of the store
+            final int intervalsToRetain = getStatisticPurgeRetentionIntervals(statisticConfiguration)
+                    .map(overrideIntervals -> Math.min(overrideIntervals, storeIntervalsToRetain))
+                    .orElse(storeIntervalsToRetain);
+
+            if (RetentionMode.TTL.equals(retentionMode) && intervalsToRetain >= storeIntervalsToRetain) {
+                LOGGER.debug("Skipping purge of [{}] in store [{}] as its retention is enforced by the TTL",
+                        statisticConfiguration.getName(), timeInterval.longName());
+                continue;
+            }
+
+            final long purgeUpToTimeMs = calculatePurgeUpToTimeMs(startTime, intervalsToRetain);
+
+            // generate roll up masks based on the number of tags on the
+            // stat and whether roll ups are enabled or
+            // not
+            final Set<RollUpBitMask> bitMasks = RollUpBitMask
+                    .getRollUpBitMasks(statisticConfiguration.getRollUpType().equals(StatisticRollUpType.ALL)
+                            ? statisticConfiguration.getFieldNames().size() : 0);
+
+            for (final RollUpBitMask rollUpBitMask : bitMasks) {
+                purgeUnits.add(new PurgeUnit(timeInterval, statisticConfiguration, rollUpBitMask, purgeUpToTimeMs));
+            }
+        }
+        return purgeUnits;
+    }
+
+    /**
+     * Deletes the rows of the passed unit, which must be for this store
+     *
+     * @return The number of rows deleted
+     */
+    long purge(final UniqueIdCache uniqueIdCache, final PurgeUnit purgeUnit, final RateLimiter deleteRateLimiter) {
+        Preconditions.checkArgument(purgeUnit.getInterval().equals(timeInterval),
+                "purgeUnit %s doesn't match store interval %s", purgeUnit, timeInterval);
+
+        try {
+            return eventStoreTable.purgeUntilTime(uniqueIdCache, purgeUnit.getStatisticConfiguration(),
+                    purgeUnit.getRollUpBitMask(), purgeUnit.getPurgeUpToTimeMs(), deleteRateLimiter);
+        } catch (final CacheException ce) {
+            handlePurgeCacheException(ce, purgeUnit.getStatisticConfiguration());
+            return 0;
+        }
+    }
+
+    private void handlePurgeCacheException(final CacheException ce,
+                                           final StatisticConfiguration statisticConfiguration) {
+        if (ce.getMessage().contains(statisticConfiguration.getName())) {
+            LOGGER.info("Unable to purge statistics for [{}] in store [{}] due to there being no entry in the UID cache for it.  With no entry in the cache there should be no statistics to purge",
+                    statisticConfiguration.getName(), timeInterval.longName());
+        } else {
+            throw ce;
+        }
+    }
+
     public boolean isTimeInsidePurgeRetention(final long timeMs) {
         final long purgeUpToTimeMs = calculatePurgeUpToTimeMs(getCurrentTimeMs());
 
@@ -360,6 +462,16 @@ public class EventStore {
         return "EventStore [timeInterval=" + timeInterval + "]";
     }
 
+    /**
+     * @return The number of row key intervals to retain for the passed statistic if it has an override set in
+     * {@link HBaseStatisticConstants#DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX}{@code <interval>.<uuid>}
+     */
+    private Optional<Integer> getStatisticPurgeRetentionIntervals(final StatisticConfiguration statisticConfiguration) {
+        return propertyService.getProperty(purgeRetentionPeriodsPropertyKey + "." + statisticConfiguration.getUuid())
+                .map(String::trim)
+                .map(Integer::parseInt);
+    }
+
     private int getPurgeRetentionIntervals() {
         final String newPropValString = propertyService.getPropertyOrThrow(purgeRetentionPeriodsPropertyKey);
 
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import com.google.common.base.Preconditions;
+import stroom.stats.api.StatisticType;
+import stroom.stats.hbase.connection.HBaseAsyncExecutor;
+import stroom.stats.hbase.table.EventStoreTable;
+import stroom.stats.streams.StatEventKey;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.util.logging.LambdaLogger;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * A write-behind buffer in front of an {@link EventStoreTable}. Aggregated events put into the buffer within a
+ * short window of each other are aggregated together by {@link StatEventKey} (and so by cell), so a cell that is
+ * changed by many flushes in quick succession, e.g. a rolled up or coarse interval cell, is written to HBase once
+ * rather than once per flush.
+ * <p>
+ * The buffer is written to the table once its oldest events are windowMs old (see
+ * {@link EventStoreWriteBuffer#flushExpired}, called by the
+ * {@link stroom.stats.hbase.scheduler.HBasePutBufferFlushScheduler}) or once it holds maxSize distinct keys. The
+ * future returned from {@link EventStoreWriteBuffer#put} only completes when the events have been written to
+ * the table, so callers that wait on it before committing their input still never lose events. A windowMs of
+ * zero or less disables the buffer and events go straight to the table.
+ */
+@ThreadSafe
+class EventStoreWriteBuffer {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(EventStoreWriteBuffer.class);
+
+    private final EventStoreTable eventStoreTable;
+    private final LongSupplier windowMsSupplier;
+    private final IntSupplier maxSizeSupplier;
+
+    //guarded by this
+    private Batch currentBatch = new Batch();
+
+    EventStoreWriteBuffer(final EventStoreTable eventStoreTable,
+                          final LongSupplier windowMsSupplier,
+                          final IntSupplier maxSizeSupplier) {
+        this.eventStoreTable = Preconditions.checkNotNull(eventStoreTable);
+        this.windowMsSupplier = Preconditions.checkNotNull(windowMsSupplier);
+        this.maxSizeSupplier = Preconditions.checkNotNull(maxSizeSupplier);
+    }
+
+    /**
+     * Adds the aggregated events to the buffer. The passed map and aggregates are not mutated.
+     *
+     * @return A future that completes once the events have been written to the table
+     */
+    CompletableFuture<Void> put(final StatisticType statisticType,
+                                final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+
+        if (windowMsSupplier.getAsLong() <= 0) {
+            return eventStoreTable.addAggregatedEventsAsync(statisticType, aggregatedEvents);
+        }
+
+        final CompletableFuture<Void> batchFuture;
+        Batch fullBatch = null;
+        synchronized (this) {
+            currentBatch.add(statisticType, aggregatedEvents);
+            batchFuture = currentBatch.future;
+            if (currentBatch.size >= maxSizeSupplier.getAsInt()) {
+                fullBatch = swapBatch();
+            }
+        }
+        if (fullBatch != null) {
+            write(fullBatch);
+        }
+        //a dependent future so callers cannot complete the batch's future
+        return batchFuture.thenApply(aVoid -> null);
+    }
+
+    /**
+     * Writes the buffered events to the table if the oldest of them have been held for at least windowMs
+     */
+    void flushExpired(final long nowMs) {
+        final Batch expiredBatch;
+        synchronized (this) {
+            if (currentBatch.isEmpty() || nowMs - currentBatch.createdTimeMs < windowMsSupplier.getAsLong()) {
+                return;
+            }
+            expiredBatch = swapBatch();
+        }
+        write(expiredBatch);
+    }
+
+    /**
+     * Writes all the buffered events to the table
+     *
+     * @return A future that completes once they have been written
+     */
+    CompletableFuture<Void> flush() {
+        final Batch batch;
+        synchronized (this) {
+            batch = swapBatch();
+        }
+        if (batch.isEmpty()) {
+            batch.future.complete(null);
+        } else {
+            write(batch);
+        }
+        return batch.future;
+    }
+
+    synchronized int size() {
+        return currentBatch.size;
+    }
+
+    private Batch swapBatch() {
+        final Batch batch = currentBatch;
+        currentBatch = new Batch();
+        return batch;
+    }
+
+    private void write(final Batch batch) {
+        LOGGER.debug(() -> String.format("Writing %s cells coalesced from %s aggregates to %s",
+                batch.size, batch.inputCount, eventStoreTable.getInterval()));
+
+        final List<CompletableFuture<Void>> writeFutures = new ArrayList<>();
+        batch.aggregates.forEach((statisticType, aggregatedEvents) -> {
+            try {
+                writeFutures.add(eventStoreTable.addAggregatedEventsAsync(statisticType, aggregatedEvents));
+            } catch (RuntimeException e) {
+                writeFutures.add(HBaseAsyncExecutor.failedFuture(e));
+            }
+        });
+
+        CompletableFuture.allOf(writeFutures.toArray(new CompletableFuture[writeFutures.size()]))
+                .whenComplete((aVoid, throwable) -> {
+                    if (throwable == null) {
+                        batch.future.complete(null);
+                    } else {
+                        LOGGER.error("Error writing {} buffered cells to {}",
+                                batch.size, eventStoreTable.getInterval(), throwable);
+                        batch.future.completeExceptionally(throwable);
+                    }
+                });
+    }
+
+    /**
+     * The events put since the last write, with a future for the write they will be part of
+     */
+    private static class Batch {
+        private final Map<StatisticType, Map<StatEventKey, StatAggregate>> aggregates =
+                new EnumMap<>(StatisticType.class);
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long createdTimeMs = 0;
+        private int size = 0;
+        private int inputCount = 0;
+
+        private void add(final StatisticType statisticType, final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+            if (isEmpty()) {
+                createdTimeMs = System.currentTimeMillis();
+            }
+            final Map<StatEventKey, StatAggregate> typeAggregates =
+                    aggregates.computeIfAbsent(statisticType, k -> new HashMap<>());
+            aggregatedEvents.forEach((statEventKey, statAggregate) -> {
+                final StatAggregate existing = typeAggregates.get(statEventKey);
+                if (existing == null) {
+                    //copy as we will be aggregating into it
+                    typeAggregates.put(statEventKey, statAggregate.copy());
+                    size++;
+                } else {
+                    existing.aggregate(statAggregate);
+                }
+            });
+            inputCount += aggregatedEvents.size();
+        }
+
+        private boolean isEmpty() {
+            return inputCount == 0;
+        }
+    }
+}
@@ -21,13 +21,16 @@
 
 package stroom.stats.hbase;
 
+import com.codahale.metrics.MetricRegistry;
 import stroom.stats.api.StatisticType;
 import stroom.stats.common.Period;
 import stroom.stats.common.SearchStatisticsCriteria;
+import stroom.stats.common.StatisticDataPoint;
 import stroom.stats.common.StatisticDataSet;
 import stroom.stats.common.exception.StatisticsException;
 import stroom.stats.configuration.StatisticConfiguration;
 import stroom.stats.hbase.table.EventStoreTableFactory;
+import stroom.stats.hbase.table.PurgeCheckpointTable;
 import stroom.stats.hbase.uid.UniqueIdCache;
 import stroom.stats.properties.StroomPropertyService;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
@@ -44,6 +47,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 @Singleton
 public class EventStores {
@@ -52,6 +57,8 @@ public class EventStores {
     private final UniqueIdCache uidCache;
     private final EventStoreTableFactory eventStoreTableFactory;
     private final StroomPropertyService propertyService;
+    private final SearchResultCache searchResultCache;
+    private final RetentionPurgeEngine retentionPurgeEngine;
 
     //Map to hold an EventStore per granularity
     private final Map<EventStoreTimeIntervalEnum, EventStore> eventStoreMap = new EnumMap<>(
@@ -60,14 +67,20 @@ public class EventStores {
     @Inject
     public EventStores(final UniqueIdCache uniqueIdCache,
                        final EventStoreTableFactory eventStoreTableFactory,
-                       final StroomPropertyService propertyService) throws IOException {
+                       final StroomPropertyService propertyService,
+                       final PurgeCheckpointTable purgeCheckpointTable,
+                       final SearchResultCache searchResultCache,
+                       final MetricRegistry metricRegistry) throws IOException {
 
         LOGGER.info("Initialising: {}", this.getClass().getCanonicalName());
 
         this.eventStoreTableFactory = eventStoreTableFactory;
         this.propertyService = propertyService;
+        this.searchResultCache = searchResultCache;
 
         this.uidCache = uniqueIdCache;
+        this.retentionPurgeEngine = new RetentionPurgeEngine(
+                uniqueIdCache, purgeCheckpointTable, propertyService, metricRegistry);
 
         // set up an event store and cache a row key builder for each time
         // interval that we use
@@ -102,6 +115,19 @@ public class EventStores {
         }
     }
 
+    /**
+     * Writes any events held in the stores' write buffers for longer than the write buffer window
+     */
+    public void flushExpiredWriteBuffers() {
+        for (final EventStore eventStore : eventStoreMap.values()) {
+            try {
+                eventStore.flushExpiredEvents();
+            } catch (RuntimeException e) {
+                LOGGER.error("Error flushing expired events for store {}", eventStore.getTimeInterval(), e);
+            }
+        }
+    }
+
     private void addStore(final EventStoreTimeIntervalEnum interval) {
         final EventStore eventStore = new EventStore(this.uidCache, interval, eventStoreTableFactory, this.propertyService);
 
@@ -112,12 +138,15 @@ public class EventStores {
     /**
      * Puts a list of aggregated events into the appropriate event stores.
      * All aggregatedEvents must be for the same statisticType and interval.
+     *
+     * @return A future that completes once all the events have been written, or exceptionally if any
+     * could not be
      */
-    public void putAggregatedEvents(final StatisticType statisticType,
-                                    final EventStoreTimeIntervalEnum interval,
-                                    final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+    public CompletableFuture<Void> putAggregatedEvents(final StatisticType statisticType,
+                                                       final EventStoreTimeIntervalEnum interval,
+                                                       final Map<StatEventKey, StatAggregate> aggregatedEvents) {
 
-        eventStoreMap.get(interval)
+        return eventStoreMap.get(interval)
                 .putAggregatedEvents(statisticType, aggregatedEvents);
     }
 
@@ -209,6 +238,67 @@ public class EventStores {
     public StatisticDataSet getStatisticsData(final SearchStatisticsCriteria criteria,
                                               final StatisticConfiguration statisticConfiguration) {
 
+        EventStore bestFit = getStoreToSearch(criteria, statisticConfiguration);
+
+        // object to hold all the data returned
+        final StatisticDataSet statisticDataSet = new StatisticDataSet(
+                statisticConfiguration, bestFit.getTimeInterval());
+
+        // Get results from the selected event store, or the cache if the same search has been done before.
+        streamStatisticsData(bestFit, criteria, statisticConfiguration, statisticDataSet::addDataPoint);
+
+        return statisticDataSet;
+    }
+
+    /**
+     * Passes each data point matching the criteria to the consumer as it is read from the selected store
+     *
+     * @return The number of data points passed to the consumer
+     */
+    public long streamStatisticsData(final SearchStatisticsCriteria criteria,
+                                     final StatisticConfiguration statisticConfiguration,
+                                     final Consumer<StatisticDataPoint> dataPointConsumer) {
+
+        final EventStore bestFit = getStoreToSearch(criteria, statisticConfiguration);
+
+        return streamStatisticsData(bestFit, criteria, statisticConfiguration, dataPointConsumer);
+    }
+
+    private long streamStatisticsData(final EventStore eventStore,
+                                      final SearchStatisticsCriteria criteria,
+                                      final StatisticConfiguration statisticConfiguration,
+                                      final Consumer<StatisticDataPoint> dataPointConsumer) {
+
+        final SearchResultCacheKey cacheKey = SearchResultCacheKey.from(
+                criteria,
+                eventStore.getTimeInterval(),
+                EventStore.buildRollUpBitMaskFromCriteria(criteria, statisticConfiguration));
+
+        // the cache may only need part of the period searching, e.g. the part since the last search
+        return searchResultCache.streamStatisticsData(cacheKey, dataPointConsumer, (fromMs, toMs, consumer) ->
+                eventStore.streamStatisticsData(
+                        uidCache, statisticConfiguration, withPeriod(criteria, fromMs, toMs), consumer));
+    }
+
+    private static SearchStatisticsCriteria withPeriod(final SearchStatisticsCriteria criteria,
+                                                       final long fromMs,
+                                                       final long toMs) {
+        final Period period = criteria.getPeriod();
+        if (period.getFromOrElse(0L) == fromMs && period.getToOrElse(Long.MAX_VALUE) == toMs) {
+            return criteria;
+        }
+        final SearchStatisticsCriteria.SearchStatisticsCriteriaBuilder builder = SearchStatisticsCriteria
+                .builder(new Period(fromMs, toMs == Long.MAX_VALUE ? null : toMs), criteria.getStatisticUuid())
+                .setFilterTermsTree(criteria.getFilterTermsTree())
+                .setRolledUpFieldNames(criteria.getRolledUpFieldNames())
+                .setRequiredDynamicFields(criteria.getRequiredDynamicFields());
+        criteria.getInterval().ifPresent(builder::setInterval);
+        return builder.build();
+    }
+
+    private EventStore getStoreToSearch(final SearchStatisticsCriteria criteria,
+                                        final StatisticConfiguration statisticConfiguration) {
+
         LOGGER.debug("Searching statistics store with criteria: {}", criteria);
         // Make sure a period has been requested.
         if (criteria.getPeriod() == null) {
@@ -224,14 +314,7 @@ public class EventStores {
                 );
 
         LOGGER.debug("Using event store: " + bestFit.getTimeInterval().longName());
-
-        StatisticDataSet statisticDataSet;
-
-
-        // Get results from the selected event store.
-        statisticDataSet = bestFit.getStatisticsData(uidCache, statisticConfiguration,  criteria);
-
-        return statisticDataSet;
+        return bestFit;
     }
 
     //TODO implement alternative shutdown hook
@@ -281,19 +364,26 @@ public class EventStores {
 
     /**
      * Removes all statistics data outside of a retention period that
-     * is configured on a per granularity basis
+     * is configured on a per granularity basis, or per statistic if overridden.
+     * See {@link RetentionMode} for how the work is split between this and HBase.
      *
      * @param statisticConfigurations The statistic configurations to purge from
      */
     public void purgeOldData(final List<StatisticConfiguration> statisticConfigurations) {
         LOGGER.info("HBase statistics purge to retention job started");
 
+        if (RetentionMode.TTL.equals(RetentionMode.fromProperties(propertyService))) {
+            //most of the retention is done by the TTL so make sure it reflects the current retention periods
+            reconcileColumnFamilies();
+        }
+
         final long startTime = System.currentTimeMillis();
 
         //Need to purge from each granularity
-        for (final EventStore eventStore : eventStoreMap.values()) {
-            eventStore.purgeStatisticDataSourceData(uidCache, statisticConfigurations, PurgeMode.OUTSIDE_RETENTION);
-        }
+        retentionPurgeEngine.purge(eventStoreMap.values(), statisticConfigurations);
+
+        //cached results may include the purged data
+        searchResultCache.clear();
 
         final long runTime = System.currentTimeMillis() - startTime;
 
@@ -301,6 +391,40 @@ public class EventStores {
                 String.format("HBase statistics purge to retention job completed in %.2f mins", runTime / 1000d / 60d));
     }
 
+    /**
+     * Moves any value statistic cells in all stores into the configured value cell layout
+     */
+    public void migrateValueCells() {
+        LOGGER.info("HBase value cell migration started");
+
+        final long startTime = System.currentTimeMillis();
+
+        long migratedCount = 0;
+        for (final EventStore eventStore : eventStoreMap.values()) {
+            migratedCount += eventStore.migrateValueCells();
+        }
+
+        final long runTime = System.currentTimeMillis() - startTime;
+        final long finalMigratedCount = migratedCount;
+
+        LOGGER.info(() -> String.format("HBase value cell migration of %s intervals completed in %.2f mins",
+                finalMigratedCount, runTime / 1000d / 60d));
+    }
+
+    /**
+     * Alters the column families of the tables of all stores to match the configured settings
+     */
+    public void reconcileColumnFamilies() {
+        LOGGER.info("HBase column family reconciliation started");
+
+        int alteredCount = 0;
+        for (final EventStore eventStore : eventStoreMap.values()) {
+            alteredCount += eventStore.reconcileColumnFamilies();
+        }
+
+        LOGGER.info("HBase column family reconciliation completed, {} column families altered", alteredCount);
+    }
+
     /**
      * Removes all statistics data for the passed store
      *
@@ -315,6 +439,7 @@ public class EventStores {
         for (final EventStore eventStore : eventStoreMap.values()) {
             eventStore.purgeStatisticDataSourceData(uidCache, statisticConfigurations, PurgeMode.ALL);
         }
+        searchResultCache.clear();
 
         final long runTime = System.currentTimeMillis() - startTime;
 
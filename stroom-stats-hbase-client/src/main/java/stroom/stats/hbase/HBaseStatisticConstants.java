@@ -40,6 +40,31 @@ public interface HBaseStatisticConstants {
 
     String DATA_STORE_MAX_CHECK_AND_PUT_RETRIES_PROPERTY_NAME = "stroom.stats.hbase.dataStore.maxCheckAndPutRetries";
 
+    String DATA_STORE_VALUE_MERGE_USE_COPROCESSOR_PROPERTY_NAME = "stroom.stats.hbase.dataStore.valueMerge.useCoprocessor";
+
+    String DATA_STORE_VALUE_MERGE_BATCH_SIZE_PROPERTY_NAME = "stroom.stats.hbase.dataStore.valueMerge.batchSize";
+
+    String DATA_STORE_VALUE_LAYOUT_PROPERTY_NAME = "stroom.stats.hbase.dataStore.valueLayout";
+
+    String DATA_STORE_VALUE_SUM_SCALE_PROPERTY_NAME = "stroom.stats.hbase.dataStore.valueLayout.sumScale";
+
+    String DATA_STORE_ASYNC_THREADS_PROPERTY_NAME = "stroom.stats.hbase.dataStore.async.threads";
+
+    String DATA_STORE_ASYNC_MAX_IN_FLIGHT_PROPERTY_NAME = "stroom.stats.hbase.dataStore.async.maxInFlight";
+
+    String DATA_STORE_ASYNC_ROWS_PER_REQUEST_PROPERTY_NAME = "stroom.stats.hbase.dataStore.async.rowsPerRequest";
+
+    String DATA_STORE_SALT_BUCKETS_PROPERTY_NAME = "stroom.stats.hbase.dataStore.saltBuckets";
+
+    String DATA_STORE_COLUMN_FAMILY_PROPERTY_NAME_PREFIX = "stroom.stats.hbase.dataStore.columnFamily.";
+
+    String DATA_STORE_RECONCILE_COLUMN_FAMILIES_ON_STARTUP_PROPERTY_NAME =
+            "stroom.stats.hbase.dataStore.reconcileColumnFamiliesOnStartup";
+
+    String DATA_STORE_WRITE_BUFFER_WINDOW_MS_PROPERTY_NAME = "stroom.stats.hbase.dataStore.writeBuffer.windowMs";
+
+    String DATA_STORE_WRITE_BUFFER_MAX_SIZE_PROPERTY_NAME = "stroom.stats.hbase.dataStore.writeBuffer.maxSize";
+
     String DATA_STORE_PUT_BUFFER_MAX_SIZE_PROPERTY_NAME = "stroom.stats.hbase.dataStore.putBuffer.maxSize";
 
     String DATA_STORE_PUT_BUFFER_TAKE_COUNT_PROPERTY_NAME = "stroom.stats.hbase.dataStore.putBuffer.takeCount";
@@ -48,10 +73,32 @@ public interface HBaseStatisticConstants {
 
     String DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX = "stroom.stats.hbase.dataStore.purge.intervalsToRetain.";
 
+    String DATA_STORE_RETENTION_MODE_PROPERTY_NAME = "stroom.stats.hbase.dataStore.purge.retentionMode";
+
+    String DATA_STORE_PURGE_THREADS_PROPERTY_NAME = "stroom.stats.hbase.dataStore.purge.threads";
+
+    String DATA_STORE_PURGE_MAX_DELETES_PER_SECOND_PROPERTY_NAME = "stroom.stats.hbase.dataStore.purge.maxDeletesPerSecond";
+
     // HBase stats search properties
 
     String SEARCH_MAX_INTERVALS_IN_PERIOD_PROPERTY_NAME = "stroom.stats.hbase.search.maxTimeIntervalsInPeriod";
 
+    String SEARCH_THREADS_PROPERTY_NAME = "stroom.stats.hbase.search.threads";
+
+    String SEARCH_MAX_PARTITIONS_PROPERTY_NAME = "stroom.stats.hbase.search.maxPartitions";
+
+    String SEARCH_SERVER_SIDE_AGGREGATION_PROPERTY_NAME = "stroom.stats.hbase.search.serverSideAggregation";
+
+    String SEARCH_RESULT_CACHE_ENABLED_PROPERTY_NAME = "stroom.stats.hbase.search.resultCache.enabled";
+
+    String SEARCH_RESULT_CACHE_MAX_DATA_POINTS_PROPERTY_NAME = "stroom.stats.hbase.search.resultCache.maxDataPoints";
+
+    String SEARCH_RESULT_CACHE_CLOSED_PERIOD_LAG_SECS_PROPERTY_NAME =
+            "stroom.stats.hbase.search.resultCache.closedPeriodLagSecs";
+
+    String SEARCH_RESULT_CACHE_MAX_ROW_KEY_INTERVALS_PROPERTY_NAME =
+            "stroom.stats.hbase.search.resultCache.maxRowKeyIntervals";
+
     // HBase state store properties
 
     String STATE_STORE_PUT_BUFFER_DELAY_PROPERTY_NAME = "stroom.stats.hbase.stateStore.putBuffer.delayMs";
@@ -25,9 +25,12 @@ import stroom.stats.api.StatisticTag;
 import stroom.stats.api.StatisticType;
 import stroom.stats.api.StatisticsService;
 import stroom.stats.common.SearchStatisticsCriteria;
+import stroom.stats.common.StatisticDataPoint;
 import stroom.stats.common.StatisticDataSet;
 import stroom.stats.common.rollup.RollUpBitMask;
 import stroom.stats.configuration.StatisticConfiguration;
+import stroom.stats.hbase.connection.HBaseAsyncExecutor;
+import stroom.stats.hbase.scheduler.HBasePutBufferFlushScheduler;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
 import stroom.stats.streams.StatEventKey;
 import stroom.stats.streams.aggregation.StatAggregate;
@@ -38,6 +41,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * This class is the entry point for all interactions with the HBase backed statistics store, e.g.
@@ -50,13 +55,17 @@ public class HBaseStatisticsService implements StatisticsService {
 
 
     private final EventStores eventStores;
+    private final HBasePutBufferFlushScheduler putBufferFlushScheduler;
 
     @Inject
-    public HBaseStatisticsService(final EventStores eventStores) {
+    public HBaseStatisticsService(final EventStores eventStores,
+                                  final HBasePutBufferFlushScheduler putBufferFlushScheduler) {
 
         LOGGER.debug("Initialising: {}", this.getClass().getCanonicalName());
 
         this.eventStores = eventStores;
+        this.putBufferFlushScheduler = putBufferFlushScheduler;
+        putBufferFlushScheduler.start();
     }
 
     private static List<List<StatisticTag>> generateStatisticTagPerms(final List<StatisticTag> eventTags,
@@ -86,7 +95,15 @@ public class HBaseStatisticsService implements StatisticsService {
                                     final EventStoreTimeIntervalEnum interval,
                                     final Map<StatEventKey, StatAggregate> aggregatedEvents) {
 
-        eventStores.putAggregatedEvents(statisticType, interval, aggregatedEvents);
+        HBaseAsyncExecutor.join(eventStores.putAggregatedEvents(statisticType, interval, aggregatedEvents));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAggregatedEventsAsync(final StatisticType statisticType,
+                                                            final EventStoreTimeIntervalEnum interval,
+                                                            final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+
+        return eventStores.putAggregatedEvents(statisticType, interval, aggregatedEvents);
     }
 
     @Override
@@ -96,6 +113,14 @@ public class HBaseStatisticsService implements StatisticsService {
         return eventStores.getStatisticsData(searchStatisticsCriteria, statisticConfiguration);
     }
 
+    @Override
+    public long streamStatisticsData(final SearchStatisticsCriteria searchStatisticsCriteria,
+                                     final StatisticConfiguration statisticConfiguration,
+                                     final Consumer<StatisticDataPoint> dataPointConsumer) {
+
+        return eventStores.streamStatisticsData(searchStatisticsCriteria, statisticConfiguration, dataPointConsumer);
+    }
+
     @Override
     public List<String> getValuesByTag(final String tagName) {
         // TODO This will be used for providing a dropdown of known values in the UI
@@ -120,6 +145,16 @@ public class HBaseStatisticsService implements StatisticsService {
 
     }
 
+    @Override
+    public void migrateValueCells() {
+        eventStores.migrateValueCells();
+    }
+
+    @Override
+    public void reconcileColumnFamilies() {
+        eventStores.reconcileColumnFamilies();
+    }
+
     @Override
     public void flushAllEvents() {
         eventStores.flushAllEvents();
@@ -132,6 +167,7 @@ public class HBaseStatisticsService implements StatisticsService {
 
     @Override
     public void shutdown() {
+        putBufferFlushScheduler.stop();
         flushAllEvents();
     }
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import com.google.common.base.Preconditions;
+import stroom.stats.common.rollup.RollUpBitMask;
+import stroom.stats.configuration.StatisticConfiguration;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+
+/**
+ * A unit of work for the retention purge, i.e. purging the rows of one roll up mask of one
+ * statistic in one store up to a point in time. Units are independent of each other so can be
+ * run concurrently and in any order.
+ */
+class PurgeUnit {
+
+    private final EventStoreTimeIntervalEnum interval;
+    private final StatisticConfiguration statisticConfiguration;
+    private final RollUpBitMask rollUpBitMask;
+    private final long purgeUpToTimeMs;
+
+    PurgeUnit(final EventStoreTimeIntervalEnum interval,
+              final StatisticConfiguration statisticConfiguration,
+              final RollUpBitMask rollUpBitMask,
+              final long purgeUpToTimeMs) {
+        this.interval = Preconditions.checkNotNull(interval);
+        this.statisticConfiguration = Preconditions.checkNotNull(statisticConfiguration);
+        this.rollUpBitMask = Preconditions.checkNotNull(rollUpBitMask);
+        this.purgeUpToTimeMs = purgeUpToTimeMs;
+    }
+
+    EventStoreTimeIntervalEnum getInterval() {
+        return interval;
+    }
+
+    StatisticConfiguration getStatisticConfiguration() {
+        return statisticConfiguration;
+    }
+
+    RollUpBitMask getRollUpBitMask() {
+        return rollUpBitMask;
+    }
+
+    long getPurgeUpToTimeMs() {
+        return purgeUpToTimeMs;
+    }
+
+    /**
+     * @return A key that identifies the unit across runs of the purge, independent of the purge time
+     */
+    String getCheckpointKey() {
+        return interval.name() + ":" + statisticConfiguration.getUuid() + ":" + rollUpBitMask.asHexString();
+    }
+
+    @Override
+    public String toString() {
+        return "PurgeUnit{" +
+                "interval=" + interval +
+                ", statisticName=" + statisticConfiguration.getName() +
+                ", rollUpBitMask=" + rollUpBitMask.asHexString() +
+                ", purgeUpToTimeMs=" + purgeUpToTimeMs +
+                '}';
+    }
+}
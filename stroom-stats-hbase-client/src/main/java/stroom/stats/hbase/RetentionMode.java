@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import stroom.stats.properties.StroomPropertyService;
+
+/**
+ * How data older than the retention period of each store, as set by
+ * {@link HBaseStatisticConstants#DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX}, is removed
+ */
+public enum RetentionMode {
+    /**
+     * The purge job scans each statistic and deletes the rows outside the retention period
+     */
+    PURGE,
+    /**
+     * The retention period is set as the TTL of the column families of each store so HBase drops the expired
+     * cells at compaction time. The purge job only deletes the data of statistics with a shorter retention
+     * override.
+     */
+    TTL;
+
+    public static RetentionMode fromProperties(final StroomPropertyService propertyService) {
+        return propertyService.getProperty(HBaseStatisticConstants.DATA_STORE_RETENTION_MODE_PROPERTY_NAME)
+                .map(String::trim)
+                .map(String::toUpperCase)
+                .map(RetentionMode::valueOf)
+                .orElse(PURGE);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import stroom.stats.configuration.StatisticConfiguration;
+import stroom.stats.hbase.table.PurgeCheckpointTable;
+import stroom.stats.hbase.uid.UniqueIdCache;
+import stroom.stats.properties.StroomPropertyService;
+import stroom.stats.util.logging.LambdaLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the retention purge of a set of {@link EventStore}s as independent {@link PurgeUnit}s, one per store,
+ * statistic and roll up mask, on a bounded pool of threads. All units share a {@link RateLimiter} on the number
+ * of rows deleted per second so the purge can be kept from swamping HBase.
+ * <p>
+ * The time each unit is purged up to is recorded in the {@link PurgeCheckpointTable} once it completes. A unit
+ * that has already been purged up to its target time is skipped, so a purge that was stopped part way through
+ * resumes where it left off when re-run. As the target time moves on with each row key interval a re-run in a
+ * later interval will purge the newly expired rows of every unit, though that is a much smaller job.
+ * <p>
+ * The duration of each unit, the rows deleted and the units that failed are recorded in the
+ * {@link MetricRegistry} under {@link RetentionPurgeEngine#METRIC_NAME_PREFIX}.
+ */
+class RetentionPurgeEngine {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(RetentionPurgeEngine.class);
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int SLOWEST_UNITS_TO_LOG = 10;
+
+    //the prefix of the names of all metrics registered by the purge
+    static final String METRIC_NAME_PREFIX = "stroom.stats.hbase.purge";
+
+    private final UniqueIdCache uniqueIdCache;
+    private final PurgeCheckpointTable checkpointTable;
+    private final StroomPropertyService propertyService;
+    private final Timer unitTimer;
+    private final Meter rowsDeletedMeter;
+    private final Meter failedUnitsMeter;
+
+    enum UnitStatus {
+        PURGED,
+        //already purged up to the target time by a previous run
+        SKIPPED,
+        FAILED
+    }
+
+    static class UnitResult {
+        private final PurgeUnit purgeUnit;
+        private final UnitStatus status;
+        private final long rowCount;
+        private final long durationMs;
+
+        UnitResult(final PurgeUnit purgeUnit, final UnitStatus status, final long rowCount, final long durationMs) {
+            this.purgeUnit = purgeUnit;
+            this.status = status;
+            this.rowCount = rowCount;
+            this.durationMs = durationMs;
+        }
+
+        PurgeUnit getPurgeUnit() {
+            return purgeUnit;
+        }
+
+        UnitStatus getStatus() {
+            return status;
+        }
+
+        long getRowCount() {
+            return rowCount;
+        }
+
+        long getDurationMs() {
+            return durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return purgeUnit + " " + status + " rows: " + rowCount + " duration: " + durationMs + "ms";
+        }
+    }
+
+    RetentionPurgeEngine(final UniqueIdCache uniqueIdCache,
+                         final PurgeCheckpointTable checkpointTable,
+                         final StroomPropertyService propertyService,
+                         final MetricRegistry metricRegistry) {
+        this.uniqueIdCache = Preconditions.checkNotNull(uniqueIdCache);
+        this.checkpointTable = Preconditions.checkNotNull(checkpointTable);
+        this.propertyService = Preconditions.checkNotNull(propertyService);
+
+        Preconditions.checkNotNull(metricRegistry);
+        this.unitTimer = metricRegistry.timer(MetricRegistry.name(METRIC_NAME_PREFIX, "unit"));
+        this.rowsDeletedMeter = metricRegistry.meter(MetricRegistry.name(METRIC_NAME_PREFIX, "rowsDeleted"));
+        this.failedUnitsMeter = metricRegistry.meter(MetricRegistry.name(METRIC_NAME_PREFIX, "failedUnits"));
+    }
+
+    /**
+     * Purges the passed statistics in the passed stores down to their retention periods, blocking until
+     * all units have run. A failed unit is logged and does not stop the others.
+     *
+     * @return The result of each unit
+     */
+    List<UnitResult> purge(final Collection<EventStore> eventStores,
+                           final List<StatisticConfiguration> statisticConfigurations) {
+        final long startTime = System.currentTimeMillis();
+
+        final int threads = propertyService.getIntProperty(
+                HBaseStatisticConstants.DATA_STORE_PURGE_THREADS_PROPERTY_NAME, DEFAULT_THREADS);
+        final RateLimiter deleteRateLimiter = buildDeleteRateLimiter();
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("hbase-purge-%d")
+                .build());
+
+        final List<CompletableFuture<UnitResult>> futures = new ArrayList<>();
+        try {
+            for (final EventStore eventStore : eventStores) {
+                for (final PurgeUnit purgeUnit : eventStore.getPurgeUnits(statisticConfigurations, startTime)) {
+                    futures.add(CompletableFuture.supplyAsync(
+                            () -> purgeUnit(eventStore, purgeUnit, deleteRateLimiter), executorService));
+                }
+            }
+            LOGGER.info("Running {} purge units on {} threads with a limit of {} deletes/sec",
+                    futures.size(), threads, deleteRateLimiter.getRate());
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+        } finally {
+            executorService.shutdown();
+        }
+
+        final List<UnitResult> results = futures.stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList());
+
+        logSummary(results, System.currentTimeMillis() - startTime);
+        return results;
+    }
+
+    private UnitResult purgeUnit(final EventStore eventStore,
+                                 final PurgeUnit purgeUnit,
+                                 final RateLimiter deleteRateLimiter) {
+        final long startTime = System.currentTimeMillis();
+        try {
+            final String checkpointKey = purgeUnit.getCheckpointKey();
+            final boolean isAlreadyPurged = checkpointTable.getPurgedUpToTime(checkpointKey)
+                    .filter(purgedUpToTimeMs -> purgedUpToTimeMs >= purgeUnit.getPurgeUpToTimeMs())
+                    .isPresent();
+
+            if (isAlreadyPurged) {
+                LOGGER.debug("Skipping {} as it was purged by a previous run", purgeUnit);
+                return new UnitResult(purgeUnit, UnitStatus.SKIPPED, 0, System.currentTimeMillis() - startTime);
+            }
+
+            final long rowCount;
+            try (Timer.Context ignored = unitTimer.time()) {
+                rowCount = eventStore.purge(uniqueIdCache, purgeUnit, deleteRateLimiter);
+            }
+            rowsDeletedMeter.mark(rowCount);
+            checkpointTable.putPurgedUpToTime(checkpointKey, purgeUnit.getPurgeUpToTimeMs());
+
+            final UnitResult result = new UnitResult(
+                    purgeUnit, UnitStatus.PURGED, rowCount, System.currentTimeMillis() - startTime);
+            LOGGER.debug("Purge unit result {}", result);
+            return result;
+        } catch (final RuntimeException e) {
+            LOGGER.error("Purge of {} failed, it will be retried on the next run", purgeUnit, e);
+            failedUnitsMeter.mark();
+            return new UnitResult(purgeUnit, UnitStatus.FAILED, 0, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private RateLimiter buildDeleteRateLimiter() {
+        final double maxDeletesPerSecond = propertyService.getDoubleProperty(
+                HBaseStatisticConstants.DATA_STORE_PURGE_MAX_DELETES_PER_SECOND_PROPERTY_NAME, 0);
+        //0 means no limit
+        return RateLimiter.create(maxDeletesPerSecond > 0 ? maxDeletesPerSecond : Double.MAX_VALUE);
+    }
+
+    private void logSummary(final List<UnitResult> results, final long runTimeMs) {
+        final Map<UnitStatus, Long> statusCounts = results.stream()
+                .collect(Collectors.groupingBy(UnitResult::getStatus, Collectors.counting()));
+        final long rowCount = results.stream()
+                .mapToLong(UnitResult::getRowCount)
+                .sum();
+
+        LOGGER.info(() -> String.format("Purge of %s units completed in %.2f mins, deleting %,d rows, %s",
+                results.size(), runTimeMs / 1000d / 60d, rowCount, statusCounts));
+
+        results.stream()
+                .filter(result -> UnitStatus.PURGED.equals(result.getStatus()))
+                .sorted(Comparator.comparingLong(UnitResult::getDurationMs).reversed())
+                .limit(SLOWEST_UNITS_TO_LOG)
+                .forEach(result -> LOGGER.info("Slowest purge units: {}", result));
+
+        if (statusCounts.containsKey(UnitStatus.FAILED)) {
+            LOGGER.error("{} purge units failed, see earlier errors", statusCounts.get(UnitStatus.FAILED));
+        }
+    }
+}
@@ -77,7 +77,8 @@ public interface RowKeyBuilder {
      * @param rangeStartTime
      *            The time in millis (from the start of the epoch). Range start
      *            time is inclusive
-     * @return A row key object for the start time.
+     * @return A row key object for the start time. Start keys are never salted, so for a salted table
+     *         they need prefixing with each salt in turn.
      */
     RowKey buildStartKey(String eventName, final RollUpBitMask rollUpBitMask, long rangeStartTime);
 
@@ -105,7 +106,7 @@ public interface RowKeyBuilder {
      * @return A row key object for the end time. HBase get/scan operations with
      *         row key ranges require the end key to be exclusive so this method
      *         will return a row key that is one after the row key represented
-     *         by the end range time.
+     *         by the end range time. Like start keys, end keys are never salted.
      */
     RowKey buildEndKey(String eventName, final RollUpBitMask rollUpBitMask, long rangeEndTime);
 
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import org.ehcache.Cache;
+import stroom.stats.cache.CacheFactory;
+import stroom.stats.common.StatisticDataPoint;
+import stroom.stats.properties.StroomPropertyService;
+import stroom.stats.util.logging.LambdaLogger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Cache of the data points returned by searches, so repeated identical searches, e.g. from a dashboard being
+ * refreshed, don't have to scan the event stores again.
+ * <p>
+ * Only data points for closed periods are cached, i.e. periods that ended long enough ago that no more events are
+ * expected for them. The results of a whole search of a closed period are cached as one entry. A search whose
+ * period touches 'now', e.g. a dashboard showing the last 24 hours, is split at the store's row key intervals.
+ * The data points of each closed row key interval are cached as their own entry, so the next refresh of the
+ * search only scans the open row key interval at the leading edge of the period.
+ * <p>
+ * The number of entries, or the memory they use, and their time to live are set by the
+ * stroom.stats.cache.searchResultCache.* properties, see {@link CacheFactory}.
+ */
+@Singleton
+public class SearchResultCache {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(SearchResultCache.class);
+
+    static final String CACHE_NAME = "searchResultCache";
+
+    private static final int DEFAULT_MAX_DATA_POINTS = 100_000;
+    private static final int DEFAULT_CLOSED_PERIOD_LAG_SECS = 600;
+    private static final int DEFAULT_MAX_ROW_KEY_INTERVALS = 1_000;
+
+    private final Cache<SearchResultCacheKey, StatisticDataPoint[]> cache;
+    private final StroomPropertyService propertyService;
+
+    /**
+     * Searches the store for the data points in part of the period of the search being cached
+     */
+    @FunctionalInterface
+    public interface PeriodSearch {
+        /**
+         * Passes each data point in the period to the consumer on the calling thread
+         *
+         * @param toMs Exclusive, {@link Long#MAX_VALUE} if the period has no end
+         * @return The number of data points passed to the consumer
+         */
+        long search(long fromMs, long toMs, Consumer<StatisticDataPoint> dataPointConsumer);
+    }
+
+    @Inject
+    public SearchResultCache(final CacheFactory cacheFactory,
+                             final StroomPropertyService propertyService) {
+        this.cache = cacheFactory.getOrCreateCache(
+                CACHE_NAME, SearchResultCacheKey.class, StatisticDataPoint[].class, Optional.empty());
+        this.propertyService = propertyService;
+    }
+
+    /**
+     * Passes the data points of the search to the consumer, from the cache for any closed parts of its period
+     * that are held and from the search for the rest, caching them if they are closed and there are not too
+     * many of them
+     *
+     * @param search Performs the search for part of the key's period
+     * @return The number of data points passed to the consumer
+     */
+    public long streamStatisticsData(final SearchResultCacheKey key,
+                                     final Consumer<StatisticDataPoint> dataPointConsumer,
+                                     final PeriodSearch search) {
+        return streamStatisticsData(key, dataPointConsumer, search, System.currentTimeMillis());
+    }
+
+    long streamStatisticsData(final SearchResultCacheKey key,
+                              final Consumer<StatisticDataPoint> dataPointConsumer,
+                              final PeriodSearch search,
+                              final long nowMs) {
+
+        if (!propertyService.getBooleanProperty(
+                HBaseStatisticConstants.SEARCH_RESULT_CACHE_ENABLED_PROPERTY_NAME, true)) {
+            return search.search(key.getPeriodFromMs(), key.getPeriodToMs(), dataPointConsumer);
+        }
+
+        final long closedUpToMs = getClosedUpToMs(nowMs);
+        if (key.getPeriodToMs() <= closedUpToMs) {
+            return streamClosedPeriod(key, dataPointConsumer, search);
+        } else {
+            return streamOpenPeriod(key, closedUpToMs, dataPointConsumer, search);
+        }
+    }
+
+    private long streamClosedPeriod(final SearchResultCacheKey key,
+                                    final Consumer<StatisticDataPoint> dataPointConsumer,
+                                    final PeriodSearch search) {
+
+        final StatisticDataPoint[] cachedDataPoints = cache.get(key);
+        if (cachedDataPoints != null) {
+            LOGGER.debug("Serving {} data points from the cache for {}", cachedDataPoints.length, key);
+            for (final StatisticDataPoint dataPoint : cachedDataPoints) {
+                dataPointConsumer.accept(dataPoint);
+            }
+            return cachedDataPoints.length;
+        }
+
+        // collect the data points as they go past, but no more than we would cache
+        final int maxDataPoints = getMaxDataPoints();
+        final List<StatisticDataPoint> dataPoints = new ArrayList<>();
+        final long dataPointCount = search.search(key.getPeriodFromMs(), key.getPeriodToMs(), dataPoint -> {
+            dataPointConsumer.accept(dataPoint);
+            if (dataPoints.size() <= maxDataPoints) {
+                dataPoints.add(dataPoint);
+            }
+        });
+
+        putIfNotTooBig(key, dataPoints, maxDataPoints);
+        return dataPointCount;
+    }
+
+    /**
+     * Serves each closed row key interval in the period from the cache, searching for any not held as one
+     * contiguous range and caching them. Only the part of the period after the last closed row key interval
+     * is searched without caching.
+     */
+    private long streamOpenPeriod(final SearchResultCacheKey key,
+                                  final long closedUpToMs,
+                                  final Consumer<StatisticDataPoint> dataPointConsumer,
+                                  final PeriodSearch search) {
+
+        final long rowKeyIntervalMs = key.getInterval().rowKeyInterval();
+        final long firstIntervalMs = truncate(key.getPeriodFromMs(), rowKeyIntervalMs);
+        final long closedIntervalsEndMs = truncate(Math.min(closedUpToMs, key.getPeriodToMs()), rowKeyIntervalMs);
+
+        if (closedIntervalsEndMs <= firstIntervalMs
+                || (closedIntervalsEndMs - firstIntervalMs) / rowKeyIntervalMs > getMaxRowKeyIntervals()) {
+            // nothing closed to cache, or too many intervals for caching them to be worthwhile
+            return search.search(key.getPeriodFromMs(), key.getPeriodToMs(), dataPointConsumer);
+        }
+
+        // only pass on the data points in the period, as the first cached interval may start before it
+        final long periodFromMs = key.getPeriodFromMs();
+        final long periodToMs = key.getPeriodToMs();
+        final long[] dataPointCount = new long[1];
+        final Consumer<StatisticDataPoint> periodConsumer = dataPoint -> {
+            if (dataPoint.getTimeMs() >= periodFromMs && dataPoint.getTimeMs() < periodToMs) {
+                dataPointConsumer.accept(dataPoint);
+                dataPointCount[0]++;
+            }
+        };
+
+        long uncachedFromMs = -1;
+        int cachedIntervals = 0;
+        for (long intervalMs = firstIntervalMs; intervalMs < closedIntervalsEndMs; intervalMs += rowKeyIntervalMs) {
+            final StatisticDataPoint[] cachedDataPoints = cache.get(
+                    key.forPeriod(intervalMs, intervalMs + rowKeyIntervalMs));
+
+            if (cachedDataPoints == null) {
+                if (uncachedFromMs == -1) {
+                    uncachedFromMs = intervalMs;
+                }
+            } else {
+                if (uncachedFromMs != -1) {
+                    searchIntervals(key, uncachedFromMs, intervalMs, periodConsumer, search);
+                    uncachedFromMs = -1;
+                }
+                for (final StatisticDataPoint dataPoint : cachedDataPoints) {
+                    periodConsumer.accept(dataPoint);
+                }
+                cachedIntervals++;
+            }
+        }
+        if (uncachedFromMs != -1) {
+            searchIntervals(key, uncachedFromMs, closedIntervalsEndMs, periodConsumer, search);
+        }
+
+        final int cachedIntervalCount = cachedIntervals;
+        LOGGER.debug(() -> String.format("Served %s of %s row key intervals from the cache for %s",
+                cachedIntervalCount, (closedIntervalsEndMs - firstIntervalMs) / rowKeyIntervalMs, key));
+
+        // the open leading edge of the period
+        if (closedIntervalsEndMs < periodToMs) {
+            dataPointCount[0] += search.search(closedIntervalsEndMs, periodToMs, dataPointConsumer);
+        }
+        return dataPointCount[0];
+    }
+
+    /**
+     * Searches a range of whole closed row key intervals, caching the data points of each interval
+     */
+    private void searchIntervals(final SearchResultCacheKey key,
+                                 final long fromMs,
+                                 final long toMs,
+                                 final Consumer<StatisticDataPoint> dataPointConsumer,
+                                 final PeriodSearch search) {
+
+        final long rowKeyIntervalMs = key.getInterval().rowKeyInterval();
+        final int maxDataPoints = getMaxDataPoints();
+        final Map<Long, List<StatisticDataPoint>> intervalToDataPointsMap = new HashMap<>();
+
+        search.search(fromMs, toMs, dataPoint -> {
+            dataPointConsumer.accept(dataPoint);
+            final List<StatisticDataPoint> dataPoints = intervalToDataPointsMap.computeIfAbsent(
+                    truncate(dataPoint.getTimeMs(), rowKeyIntervalMs),
+                    intervalMs -> new ArrayList<>());
+            if (dataPoints.size() <= maxDataPoints) {
+                dataPoints.add(dataPoint);
+            }
+        });
+
+        // intervals with no data points are cached too so they are not searched again
+        for (long intervalMs = fromMs; intervalMs < toMs; intervalMs += rowKeyIntervalMs) {
+            putIfNotTooBig(
+                    key.forPeriod(intervalMs, intervalMs + rowKeyIntervalMs),
+                    intervalToDataPointsMap.getOrDefault(intervalMs, new ArrayList<>()),
+                    maxDataPoints);
+        }
+    }
+
+    private void putIfNotTooBig(final SearchResultCacheKey key,
+                                final List<StatisticDataPoint> dataPoints,
+                                final int maxDataPoints) {
+        if (dataPoints.size() <= maxDataPoints) {
+            cache.put(key, dataPoints.toArray(new StatisticDataPoint[dataPoints.size()]));
+        } else {
+            LOGGER.debug("Not caching the results of {} as there are more than {} data points", key, maxDataPoints);
+        }
+    }
+
+    /**
+     * Removes all the cached results, e.g. after data has been purged from the event stores
+     */
+    public void clear() {
+        LOGGER.debug("Clearing the search result cache");
+        cache.clear();
+    }
+
+    /**
+     * @return The time before which periods are closed. Events can arrive a while after the time they are for,
+     * so a period is only treated as closed once all of them should have been written.
+     */
+    private long getClosedUpToMs(final long nowMs) {
+        return nowMs - TimeUnit.SECONDS.toMillis(propertyService.getIntProperty(
+                HBaseStatisticConstants.SEARCH_RESULT_CACHE_CLOSED_PERIOD_LAG_SECS_PROPERTY_NAME,
+                DEFAULT_CLOSED_PERIOD_LAG_SECS));
+    }
+
+    private int getMaxDataPoints() {
+        return propertyService.getIntProperty(
+                HBaseStatisticConstants.SEARCH_RESULT_CACHE_MAX_DATA_POINTS_PROPERTY_NAME, DEFAULT_MAX_DATA_POINTS);
+    }
+
+    private int getMaxRowKeyIntervals() {
+        return propertyService.getIntProperty(
+                HBaseStatisticConstants.SEARCH_RESULT_CACHE_MAX_ROW_KEY_INTERVALS_PROPERTY_NAME,
+                DEFAULT_MAX_ROW_KEY_INTERVALS);
+    }
+
+    private static long truncate(final long timeMs, final long rowKeyIntervalMs) {
+        return timeMs - Math.floorMod(timeMs, rowKeyIntervalMs);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import stroom.stats.common.FilterTermsTree;
+import stroom.stats.common.SearchStatisticsCriteria;
+import stroom.stats.common.rollup.RollUpBitMask;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Canonical form of a search, used as the key of the {@link SearchResultCache}. Searches that would read the
+ * same data points from the same store have equal keys, e.g. the children of AND/OR filter operators and the
+ * required fields are held in a fixed order, however they were ordered in the request.
+ */
+public final class SearchResultCacheKey {
+
+    private final String statisticUuid;
+    private final EventStoreTimeIntervalEnum interval;
+    private final RollUpBitMask rollUpBitMask;
+    private final String filter;
+    private final List<String> requiredDynamicFields;
+    private final long periodFromMs;
+    private final long periodToMs;
+
+    private SearchResultCacheKey(final String statisticUuid,
+                                 final EventStoreTimeIntervalEnum interval,
+                                 final RollUpBitMask rollUpBitMask,
+                                 final String filter,
+                                 final List<String> requiredDynamicFields,
+                                 final long periodFromMs,
+                                 final long periodToMs) {
+        this.statisticUuid = statisticUuid;
+        this.interval = interval;
+        this.rollUpBitMask = rollUpBitMask;
+        this.filter = filter;
+        this.requiredDynamicFields = requiredDynamicFields;
+        this.periodFromMs = periodFromMs;
+        this.periodToMs = periodToMs;
+    }
+
+    /**
+     * @param interval      The interval of the store that will be searched
+     * @param rollUpBitMask The mask that will be searched
+     */
+    public static SearchResultCacheKey from(final SearchStatisticsCriteria criteria,
+                                            final EventStoreTimeIntervalEnum interval,
+                                            final RollUpBitMask rollUpBitMask) {
+        final List<String> requiredDynamicFields = new ArrayList<>(criteria.getRequiredDynamicFields());
+        Collections.sort(requiredDynamicFields);
+
+        return new SearchResultCacheKey(
+                criteria.getStatisticUuid(),
+                interval,
+                rollUpBitMask,
+                toCanonicalForm(criteria.getFilterTermsTree().getRootNode()),
+                Collections.unmodifiableList(requiredDynamicFields),
+                criteria.getPeriod().getFromOrElse(0L),
+                criteria.getPeriod().getToOrElse(Long.MAX_VALUE));
+    }
+
+    /**
+     * Unlike {@link FilterTermsTree#toString()}, includes the condition of each term, sorts the children of
+     * operators and length prefixes the tags and values so no two different trees can have the same form
+     */
+    static String toCanonicalForm(final FilterTermsTree.Node node) {
+        if (node == null) {
+            return "";
+        } else if (node instanceof FilterTermsTree.TermNode) {
+            final FilterTermsTree.TermNode termNode = (FilterTermsTree.TermNode) node;
+            return termNode.getCondition() + "("
+                    + termNode.getTag().length() + ":" + termNode.getTag() + ","
+                    + termNode.getValue().length() + ":" + termNode.getValue() + ")";
+        } else if (node instanceof FilterTermsTree.OperatorNode) {
+            final FilterTermsTree.OperatorNode operatorNode = (FilterTermsTree.OperatorNode) node;
+            final List<FilterTermsTree.Node> children = operatorNode.getChildren();
+
+            //an AND/OR of one child filters the same as the child alone
+            if (children.size() == 1 && !FilterTermsTree.Operator.NOT.equals(operatorNode.getFilterOperationMode())) {
+                return toCanonicalForm(children.get(0));
+            }
+            return operatorNode.getFilterOperationMode() + children.stream()
+                    .map(SearchResultCacheKey::toCanonicalForm)
+                    .sorted()
+                    .collect(Collectors.joining(",", "(", ")"));
+        } else {
+            throw new IllegalArgumentException("Unexpected node type " + node.getClass().getName());
+        }
+    }
+
+    /**
+     * @return A key for the same search but over the passed period
+     */
+    SearchResultCacheKey forPeriod(final long periodFromMs, final long periodToMs) {
+        return new SearchResultCacheKey(statisticUuid, interval, rollUpBitMask, filter, requiredDynamicFields,
+                periodFromMs, periodToMs);
+    }
+
+    public String getStatisticUuid() {
+        return statisticUuid;
+    }
+
+    public EventStoreTimeIntervalEnum getInterval() {
+        return interval;
+    }
+
+    public long getPeriodFromMs() {
+        return periodFromMs;
+    }
+
+    public long getPeriodToMs() {
+        return periodToMs;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final SearchResultCacheKey that = (SearchResultCacheKey) o;
+        return periodFromMs == that.periodFromMs &&
+                periodToMs == that.periodToMs &&
+                statisticUuid.equals(that.statisticUuid) &&
+                interval == that.interval &&
+                rollUpBitMask.equals(that.rollUpBitMask) &&
+                filter.equals(that.filter) &&
+                requiredDynamicFields.equals(that.requiredDynamicFields);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(statisticUuid, interval, rollUpBitMask, filter, requiredDynamicFields,
+                periodFromMs, periodToMs);
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResultCacheKey{" +
+                "statisticUuid='" + statisticUuid + '\'' +
+                ", interval=" + interval +
+                ", rollUpBitMask=" + rollUpBitMask +
+                ", filter='" + filter + '\'' +
+                ", requiredDynamicFields=" + requiredDynamicFields +
+                ", periodFromMs=" + periodFromMs +
+                ", periodToMs=" + periodToMs +
+                '}';
+    }
+}
@@ -31,6 +31,7 @@ import stroom.stats.common.rollup.RollUpBitMask;
 import stroom.stats.hbase.structure.CellQualifier;
 import stroom.stats.hbase.structure.ColumnQualifier;
 import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.structure.RowKeySalt;
 import stroom.stats.hbase.structure.RowKeyTagValue;
 import stroom.stats.hbase.structure.TimeAgnosticRowKey;
 import stroom.stats.hbase.uid.UID;
@@ -49,6 +50,7 @@ public class SimpleRowKeyBuilder implements RowKeyBuilder {
 
     private final UniqueIdCache uniqueIdCache;
     private final EventStoreTimeIntervalEnum timeInterval;
+    private final RowKeySalt rowKeySalt;
 
     /**
      * Constructor.
@@ -59,9 +61,26 @@ public class SimpleRowKeyBuilder implements RowKeyBuilder {
      *                      and column qualifiers.
      */
     public SimpleRowKeyBuilder(final UniqueIdCache uniqueIdCache, final EventStoreTimeIntervalEnum timeInterval) {
+        this(uniqueIdCache, timeInterval, RowKeySalt.NONE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param uniqueIdCache The cache to use for UID->String or String->UID lookups
+     * @param timeInterval  The time interval to use when building or dealing with row
+     *                      keys. This time interval controls the granularity of the rows
+     *                      and column qualifiers.
+     * @param rowKeySalt    The salt to apply to row keys built from a {@link StatEventKey}. Start and end
+     *                      keys for scans are always unsalted.
+     */
+    public SimpleRowKeyBuilder(final UniqueIdCache uniqueIdCache,
+                               final EventStoreTimeIntervalEnum timeInterval,
+                               final RowKeySalt rowKeySalt) {
         LOGGER.trace("Initialising SimpleRowKeyBuilder");
         this.uniqueIdCache = uniqueIdCache;
         this.timeInterval = timeInterval;
+        this.rowKeySalt = Preconditions.checkNotNull(rowKeySalt);
     }
 
     @Override
@@ -94,7 +113,7 @@ public class SimpleRowKeyBuilder implements RowKeyBuilder {
                 rowKeyTagValues);
 
         //timeMs is already rounded to the column interval
-        return new RowKey(timeAgnosticRowKey, partialTimestamp);
+        return new RowKey(timeAgnosticRowKey, partialTimestamp).salted(rowKeySalt);
     }
 
 
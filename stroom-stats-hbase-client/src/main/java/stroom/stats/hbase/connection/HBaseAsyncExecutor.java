@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.connection;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import stroom.stats.hbase.HBaseStatisticConstants;
+import stroom.stats.hbase.exception.HBaseException;
+import stroom.stats.properties.StroomPropertyService;
+import stroom.stats.util.logging.LambdaLogger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Singleton pool of threads for making blocking calls to HBase over the shared {@link HBaseConnection} on behalf
+ * of other threads, e.g. so an aggregation processor can have writes to many regions in flight at once.
+ * <p>
+ * The number of requests queued or running is bounded. Once the bound is reached, {@link HBaseAsyncExecutor#submit}
+ * blocks the calling thread until a request completes, so a producer that is faster than HBase is slowed
+ * down rather than building an unbounded backlog in memory.
+ */
+@Singleton
+public class HBaseAsyncExecutor {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(HBaseAsyncExecutor.class);
+
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    private final ExecutorService executorService;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+
+    @Inject
+    public HBaseAsyncExecutor(final StroomPropertyService propertyService) {
+        this(propertyService.getIntProperty(
+                HBaseStatisticConstants.DATA_STORE_ASYNC_THREADS_PROPERTY_NAME, DEFAULT_THREADS),
+                propertyService.getIntProperty(
+                        HBaseStatisticConstants.DATA_STORE_ASYNC_MAX_IN_FLIGHT_PROPERTY_NAME, DEFAULT_MAX_IN_FLIGHT));
+    }
+
+    public HBaseAsyncExecutor(final int threads, final int maxInFlight) {
+        Preconditions.checkArgument(threads > 0, "threads must be > 0");
+        Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be > 0");
+
+        LOGGER.info("Initialising HBaseAsyncExecutor with {} threads and max in flight requests {}",
+                threads, maxInFlight);
+
+        this.maxInFlight = maxInFlight;
+        this.inFlightPermits = new Semaphore(maxInFlight);
+        this.executorService = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("hbase-io-%d")
+                .build());
+    }
+
+    /**
+     * Runs the request on the pool, blocking the calling thread first if the maximum number of requests are
+     * already in flight. The request should not itself submit to this executor.
+     *
+     * @return A future that completes with the result of the request, or exceptionally if it threw
+     */
+    public <T> CompletableFuture<T> submit(final Supplier<T> request) {
+        Preconditions.checkNotNull(request);
+
+        try {
+            inFlightPermits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failedFuture(new HBaseException("Interrupted waiting to submit HBase request", e));
+        }
+
+        try {
+            return CompletableFuture.supplyAsync(request, executorService)
+                    .whenComplete((result, throwable) -> inFlightPermits.release());
+        } catch (final RejectedExecutionException e) {
+            inFlightPermits.release();
+            return failedFuture(new HBaseException("HBase request rejected, the executor may be shut down", e));
+        }
+    }
+
+    public CompletableFuture<Void> run(final Runnable request) {
+        Preconditions.checkNotNull(request);
+        return submit(() -> {
+            request.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return The number of requests queued or running
+     */
+    public int getInFlightCount() {
+        return maxInFlight - inFlightPermits.availablePermits();
+    }
+
+    /**
+     * Waits for the future to complete, re-throwing any {@link RuntimeException} it completed with as is
+     * so callers of the blocking form of an asynchronous method see the same exceptions as before.
+     */
+    public static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new HBaseException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    public static <T> CompletableFuture<T> failedFuture(final Throwable throwable) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    /**
+     * Lets any requests already submitted finish, waiting up to the passed timeout
+     */
+    public void shutdown(final long timeout, final TimeUnit timeUnit) {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(timeout, timeUnit)) {
+                LOGGER.warn("{} HBase requests still in flight after waiting {} {}",
+                        getInFlightCount(), timeout, timeUnit);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
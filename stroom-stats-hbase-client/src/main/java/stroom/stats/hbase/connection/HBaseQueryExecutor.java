@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.connection;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import stroom.stats.hbase.HBaseStatisticConstants;
+import stroom.stats.hbase.exception.HBaseException;
+import stroom.stats.properties.StroomPropertyService;
+import stroom.stats.util.logging.LambdaLogger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Singleton pool of threads for running the partitions of a search's scan concurrently. It is kept separate from
+ * the {@link HBaseAsyncExecutor} so that heavy searches cannot hold up the writes of the aggregation processors
+ * and vice versa.
+ * <p>
+ * The number of threads is fixed so the number of scanners open against HBase at once is bounded however many
+ * searches are running. Partitions submitted while all threads are busy wait for a free thread.
+ */
+@Singleton
+public class HBaseQueryExecutor {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(HBaseQueryExecutor.class);
+
+    private static final int DEFAULT_THREADS = 8;
+
+    private final ExecutorService executorService;
+
+    @Inject
+    public HBaseQueryExecutor(final StroomPropertyService propertyService) {
+        this(propertyService.getIntProperty(HBaseStatisticConstants.SEARCH_THREADS_PROPERTY_NAME, DEFAULT_THREADS));
+    }
+
+    public HBaseQueryExecutor(final int threads) {
+        Preconditions.checkArgument(threads > 0, "threads must be > 0");
+
+        LOGGER.info("Initialising HBaseQueryExecutor with {} threads", threads);
+
+        this.executorService = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("hbase-query-%d")
+                .build());
+    }
+
+    /**
+     * Runs the request on the pool once a thread is free
+     *
+     * @return A future that completes when the request does, or exceptionally if it threw
+     */
+    public CompletableFuture<Void> run(final Runnable request) {
+        Preconditions.checkNotNull(request);
+        try {
+            return CompletableFuture.runAsync(request, executorService);
+        } catch (final RejectedExecutionException e) {
+            return HBaseAsyncExecutor.failedFuture(
+                    new HBaseException("HBase query request rejected, the executor may be shut down", e));
+        }
+    }
+
+    /**
+     * Lets any requests already submitted finish, waiting up to the passed timeout
+     */
+    public void shutdown(final long timeout, final TimeUnit timeUnit) {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(timeout, timeUnit)) {
+                LOGGER.warn("HBase query requests still running after waiting {} {}", timeout, timeUnit);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -21,48 +21,87 @@
 
 package stroom.stats.hbase.scheduler;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import stroom.stats.hbase.table.HBaseEventStoreTableFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import stroom.stats.hbase.EventStores;
+import stroom.stats.hbase.HBaseStatisticConstants;
 import stroom.stats.properties.StroomPropertyService;
+import stroom.stats.util.logging.LambdaLogger;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Periodically drains the event stores' write buffers of any events that have been held for longer
+ * than the write buffer window, see {@link EventStores#flushExpiredWriteBuffers()}
+ */
+@Singleton
 public class HBasePutBufferFlushScheduler {
-    private final HBaseEventStoreTableFactory hBaseTableFactory;
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(HBasePutBufferFlushScheduler.class);
+
+    private static final long DEFAULT_INTERVAL_MS = 100;
+
+    private final EventStores eventStores;
     private final StroomPropertyService propertyService;
 
-    // semaphore to prevent multiple cron scheduled jobs from running at once
+    // semaphore to prevent multiple scheduled runs from running at once
     private final Semaphore cronSemaphore = new Semaphore(1);
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(HBasePutBufferFlushScheduler.class);
+    private ScheduledExecutorService executorService;
 
     @Inject
-    public HBasePutBufferFlushScheduler(final HBaseEventStoreTableFactory hBaseTableFactory,
+    public HBasePutBufferFlushScheduler(final EventStores eventStores,
                                         final StroomPropertyService propertyService) {
-        this.hBaseTableFactory = hBaseTableFactory;
+        this.eventStores = eventStores;
         this.propertyService = propertyService;
     }
 
-    //TODO need alternative implementation of this scheduling
-    //and question whether this complexity is needed at all, instead let HBase's client code handle it
-//    @StroomSimpleCronSchedule(cron = "0,10,20,30,40,50 * *")
-//    @JobTrackedSchedule(jobName = "HBase Stats Put Buffer Flush", description = "Job to flush the contents of the HBase put buffer")
+    public synchronized void start() {
+        if (executorService == null) {
+            //check at a fraction of the window so buffers are not held much longer than the window
+            final long windowMs = propertyService.getLongProperty(
+                    HBaseStatisticConstants.DATA_STORE_WRITE_BUFFER_WINDOW_MS_PROPERTY_NAME, 0);
+            final long intervalMs = windowMs > 0
+                    ? Math.max(10, Math.min(DEFAULT_INTERVAL_MS, windowMs / 4))
+                    : DEFAULT_INTERVAL_MS;
+
+            LOGGER.info("Starting put buffer flush scheduler with an interval of {}ms", intervalMs);
+            executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("hbase-put-buffer-flush-%d")
+                    .build());
+            executorService.scheduleWithFixedDelay(this::execute, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (executorService != null) {
+            LOGGER.info("Stopping put buffer flush scheduler");
+            executorService.shutdown();
+            try {
+                executorService.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executorService = null;
+        }
+    }
+
     public void execute() {
-        try {
-            // drop out if another cron scheduled job is running
-            // this protection is built in to the cron scheduler but this is
-            // just a double check
-//            if (cronSemaphore.tryAcquire()) {
-//                LOGGER.trace("Cron job firing");
-//
-//                for (final EventStoreTimeIntervalEnum timeInterval : EventStoreTimeIntervalEnum.values()) {
-//                    hBaseTableFactory.getEventStoreTable(timeInterval).flushPutBuffer();
-//                }
-//            }
-        } finally {
-            cronSemaphore.release();
+        // drop out if another scheduled run is still going
+        if (cronSemaphore.tryAcquire()) {
+            try {
+                LOGGER.trace("Flushing expired write buffers");
+                eventStores.flushExpiredWriteBuffers();
+            } catch (RuntimeException e) {
+                //swallow so the scheduled executor does not cancel future runs
+                LOGGER.error("Error flushing expired write buffers", e);
+            } finally {
+                cronSemaphore.release();
+            }
         }
     }
 }
@@ -54,4 +54,11 @@ public class CountStatisticDataPointAdapter implements StatisticDataPointAdapter
 
         return new CountStatisticDataPoint(statisticConfiguration, precision, timeMs, tags, count);
     }
+
+    @Override
+    public StatisticDataPoint convertPartial(final long timeMs,
+                                             final List<StatisticTag> tags,
+                                             final AggregatePartial partial) {
+        return new CountStatisticDataPoint(statisticConfiguration, precision, timeMs, tags, partial.getCount());
+    }
 }
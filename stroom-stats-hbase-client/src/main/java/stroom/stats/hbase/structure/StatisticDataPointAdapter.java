@@ -19,6 +19,8 @@
 
 package stroom.stats.hbase.structure;
 
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.hbase.Cell;
 import stroom.stats.api.StatisticTag;
 import stroom.stats.common.StatisticDataPoint;
 
@@ -31,4 +33,23 @@ public interface StatisticDataPointAdapter {
                                    final byte[] bytes,
                                    final int cellValueOffset,
                                    final int cellValueLength);
+
+    /**
+     * Converts an {@link AggregatePartial} of many cells into a single data point
+     */
+    StatisticDataPoint convertPartial(final long timeMs,
+                                      final List<StatisticTag> tags,
+                                      final AggregatePartial partial);
+
+    /**
+     * Converts all the cells held for one time interval into a single data point. Unless the statistic
+     * type stores an interval in more than one cell, there will only be one cell.
+     */
+    default StatisticDataPoint convertCells(final long timeMs,
+                                            final List<StatisticTag> tags,
+                                            final List<Cell> cells) {
+        Preconditions.checkArgument(cells.size() == 1, "Expecting one cell, got %s", cells.size());
+        final Cell cell = cells.get(0);
+        return convertCell(timeMs, tags, cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+    }
 }
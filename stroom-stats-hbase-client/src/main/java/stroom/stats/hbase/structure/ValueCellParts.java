@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.structure;
+
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Describes the {@link ValueCellLayout#INCREMENT} layout for value statistics and aggregates the cells of
+ * either layout back into one value.
+ *
+ * In the INCREMENT layout, each time interval is held in four cells whose qualifiers are the
+ * {@link ColumnQualifier} followed by a part id:
+ *
+ * <CQ><c> the count as a long, updated by HBase increments
+ *
+ * <CQ><s><scale> the sum of all values as a fixed point long, i.e. sum * 10^scale, updated by HBase increments.
+ * The scale is part of the qualifier so a change of scale starts a new cell rather than corrupting the
+ * existing sum. All sum cells are added together when reading. As the sum is a long the scale trades precision
+ * for range, the largest sum a cell can hold being about 9.2e18 / 10^scale:
+ *
+ *   scale 0 : +/- 9.2e18
+ *   scale 3 : +/- 9.2e15
+ *   scale 6 : +/- 9.2e12
+ *   scale 9 : +/- 9.2e9
+ *
+ * HBase increments wrap silently on overflow so a single delta is limited to {@link #MAX_FIXED_POINT_DELTA}
+ * units (see {@link #isFixedPointDelta(double, int)}), giving the cell headroom for over a thousand deltas of
+ * that size. Deltas outside that range must be written to the COMPOUND cell instead.
+ *
+ * <CQ><n> the minimum value as a double, only written when a new minimum is seen
+ *
+ * <CQ><x> the maximum value as a double, only written when a new maximum is seen
+ *
+ * The {@link ValueCellLayout#COMPOUND} cell for the same interval has the bare column qualifier so sorts
+ * immediately before the parts, meaning all the cells of an interval are adjacent when scanning a row.
+ * Both layouts can co-exist for the same interval and are aggregated together when read.
+ */
+@NotThreadSafe
+public class ValueCellParts {
+
+    public static final byte COUNT_PART = 'c';
+    public static final byte SUM_PART = 's';
+    public static final byte MIN_PART = 'n';
+    public static final byte MAX_PART = 'x';
+
+    public static final int MAX_SCALE = 9;
+
+    /**
+     * The largest magnitude, in fixed point units, of a delta that can be added to a sum cell by an increment.
+     * Beyond 2^53 a double can no longer hold every whole unit so the conversion would also lose precision.
+     */
+    public static final long MAX_FIXED_POINT_DELTA = 1L << 53;
+
+    private static final int PART_QUALIFIER_LENGTH = ColumnQualifier.ARRAY_LENGTH + 1;
+    private static final int SUM_QUALIFIER_LENGTH = ColumnQualifier.ARRAY_LENGTH + 2;
+
+    private long count = 0;
+    private double sum = 0;
+    private double minValue = Double.NaN;
+    private double maxValue = Double.NaN;
+
+    public static byte[] countQualifier(final ColumnQualifier columnQualifier) {
+        return partQualifier(columnQualifier, COUNT_PART);
+    }
+
+    public static byte[] sumQualifier(final ColumnQualifier columnQualifier, final int scale) {
+        checkScale(scale);
+        final byte[] qualifier = new byte[SUM_QUALIFIER_LENGTH];
+        System.arraycopy(columnQualifier.getBytes(), 0, qualifier, 0, ColumnQualifier.ARRAY_LENGTH);
+        qualifier[ColumnQualifier.ARRAY_LENGTH] = SUM_PART;
+        qualifier[ColumnQualifier.ARRAY_LENGTH + 1] = (byte) scale;
+        return qualifier;
+    }
+
+    public static byte[] minQualifier(final ColumnQualifier columnQualifier) {
+        return partQualifier(columnQualifier, MIN_PART);
+    }
+
+    public static byte[] maxQualifier(final ColumnQualifier columnQualifier) {
+        return partQualifier(columnQualifier, MAX_PART);
+    }
+
+    /**
+     * @return The value as a fixed point long with scale decimal places, rounded to the nearest unit
+     * @throws ArithmeticException if the value is not finite or does not fit in a long at this scale
+     */
+    public static long toFixedPoint(final double value, final int scale) {
+        checkScale(scale);
+        final double scaledValue = value * Math.pow(10, scale);
+        //Math.round saturates at Long.MIN_VALUE/MAX_VALUE rather than failing so check the range first
+        if (Double.isNaN(scaledValue) || scaledValue >= 0x1p63 || scaledValue < -0x1p63) {
+            throw new ArithmeticException(String.format(
+                    "value %s does not fit in a fixed point long with scale %s", value, scale));
+        }
+        return Math.round(scaledValue);
+    }
+
+    /**
+     * @return True if the value can be safely added to a sum cell with this scale, i.e. its fixed point
+     * magnitude is no more than {@link #MAX_FIXED_POINT_DELTA}
+     */
+    public static boolean isFixedPointDelta(final double value, final int scale) {
+        checkScale(scale);
+        return Math.abs(value * Math.pow(10, scale)) <= MAX_FIXED_POINT_DELTA;
+    }
+
+    public static double fromFixedPoint(final long value, final int scale) {
+        checkScale(scale);
+        return value / Math.pow(10, scale);
+    }
+
+    /**
+     * @return True if the qualifier is that of a {@link ValueCellLayout#COMPOUND} cell
+     */
+    public static boolean isCompoundQualifier(final int qualifierLength) {
+        return qualifierLength == ColumnQualifier.ARRAY_LENGTH;
+    }
+
+    private static byte[] partQualifier(final ColumnQualifier columnQualifier, final byte part) {
+        final byte[] qualifier = new byte[PART_QUALIFIER_LENGTH];
+        System.arraycopy(columnQualifier.getBytes(), 0, qualifier, 0, ColumnQualifier.ARRAY_LENGTH);
+        qualifier[ColumnQualifier.ARRAY_LENGTH] = part;
+        return qualifier;
+    }
+
+    private static void checkScale(final int scale) {
+        Preconditions.checkArgument(scale >= 0 && scale <= MAX_SCALE,
+                "scale %s must be between 0 and %s", scale, MAX_SCALE);
+    }
+
+    /**
+     * Aggregates a cell of either layout into this. All cells must belong to the same time interval.
+     */
+    public ValueCellParts addCell(final byte[] qualifierArray,
+                                  final int qualifierOffset,
+                                  final int qualifierLength,
+                                  final byte[] valueArray,
+                                  final int valueOffset,
+                                  final int valueLength) {
+
+        if (isCompoundQualifier(qualifierLength)) {
+            final ValueCellValue valueCellValue = new ValueCellValue(valueArray, valueOffset, valueLength);
+            if (valueCellValue.getCount() > 0) {
+                count += valueCellValue.getCount();
+                sum += valueCellValue.getAggregatedValue();
+                addMin(valueCellValue.getMinValue());
+                addMax(valueCellValue.getMaxValue());
+            }
+        } else {
+            Preconditions.checkArgument(qualifierLength >= PART_QUALIFIER_LENGTH,
+                    "Unexpected qualifier length %s", qualifierLength);
+            final byte part = qualifierArray[qualifierOffset + ColumnQualifier.ARRAY_LENGTH];
+            switch (part) {
+                case COUNT_PART:
+                    count += Bytes.toLong(valueArray, valueOffset, valueLength);
+                    break;
+                case SUM_PART:
+                    final int scale = qualifierArray[qualifierOffset + ColumnQualifier.ARRAY_LENGTH + 1];
+                    sum += fromFixedPoint(Bytes.toLong(valueArray, valueOffset, valueLength), scale);
+                    break;
+                case MIN_PART:
+                    addMin(Bytes.toDouble(valueArray, valueOffset));
+                    break;
+                case MAX_PART:
+                    addMax(Bytes.toDouble(valueArray, valueOffset));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected value cell part " + (char) part);
+            }
+        }
+        return this;
+    }
+
+    private void addMin(final double value) {
+        if (Double.isNaN(minValue) || value < minValue) {
+            minValue = value;
+        }
+    }
+
+    private void addMax(final double value) {
+        if (Double.isNaN(maxValue) || value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getAggregatedValue() {
+        return sum;
+    }
+
+    public double getAverageValue() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @return The minimum value, or the average if no minimum has been written yet, e.g. when reading
+     * between the count/sum increment and the min/max update of a write
+     */
+    public double getMinValue() {
+        return Double.isNaN(minValue) ? getAverageValue() : minValue;
+    }
+
+    /**
+     * @return The maximum value, or the average if no maximum has been written yet
+     */
+    public double getMaxValue() {
+        return Double.isNaN(maxValue) ? getAverageValue() : maxValue;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return The aggregated cells as a {@link ValueCellValue}, e.g. for writing back in the
+     * {@link ValueCellLayout#COMPOUND} layout.
+     */
+    public ValueCellValue toValueCellValue() {
+        if (count == 0) {
+            return ValueCellValue.emptyInstance();
+        } else if (count == 1) {
+            //a single value, so use the exact min rather than a fixed point sum that may have been rounded
+            return new ValueCellValue(getMinValue());
+        } else {
+            return new ValueCellValue(
+                    Math.toIntExact(count),
+                    sum,
+                    Math.min(getMinValue(), getMaxValue()),
+                    getMaxValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ValueCellParts{" +
+                "count=" + count +
+                ", sum=" + sum +
+                ", minValue=" + minValue +
+                ", maxValue=" + maxValue +
+                '}';
+    }
+}
@@ -20,6 +20,7 @@
 package stroom.stats.hbase.structure;
 
 import com.google.common.base.Preconditions;
+import org.apache.hadoop.hbase.Cell;
 import stroom.stats.api.StatisticTag;
 import stroom.stats.common.StatisticDataPoint;
 import stroom.stats.common.ValueStatisticDataPoint;
@@ -60,4 +61,44 @@ public class ValueStatisticDataPointAdapter implements StatisticDataPointAdapter
                 cellValue.getMinValue(),
                 cellValue.getMaxValue());
     }
+
+    /**
+     * Converts the cells of one time interval, which may be held in the {@link ValueCellLayout#COMPOUND}
+     * layout, the {@link ValueCellLayout#INCREMENT} layout or both.
+     */
+    @Override
+    public StatisticDataPoint convertCells(final long timeMs,
+                                           final List<StatisticTag> tags,
+                                           final List<Cell> cells) {
+
+        final ValueCellParts valueCellParts = new ValueCellParts();
+        for (final Cell cell : cells) {
+            valueCellParts.addCell(
+                    cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength(),
+                    cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+        }
+
+        return new ValueStatisticDataPoint(statisticConfiguration,
+                precision,
+                timeMs,
+                tags,
+                valueCellParts.getCount(),
+                valueCellParts.getAverageValue(),
+                valueCellParts.getMinValue(),
+                valueCellParts.getMaxValue());
+    }
+
+    @Override
+    public StatisticDataPoint convertPartial(final long timeMs,
+                                             final List<StatisticTag> tags,
+                                             final AggregatePartial partial) {
+        return new ValueStatisticDataPoint(statisticConfiguration,
+                precision,
+                timeMs,
+                tags,
+                partial.getCount(),
+                partial.getAverageValue(),
+                partial.getMinValue(),
+                partial.getMaxValue());
+    }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.regionserver.BloomType;
+import stroom.stats.hbase.HBaseStatisticConstants;
+import stroom.stats.hbase.RetentionMode;
+import stroom.stats.properties.StroomPropertyService;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * The tuning settings of the column families of an event store table, as read from the property service.
+ * Each setting is read from
+ * {@link HBaseStatisticConstants#DATA_STORE_COLUMN_FAMILY_PROPERTY_NAME_PREFIX}{@code <setting>.<interval>}
+ * if set, else {@link HBaseStatisticConstants#DATA_STORE_COLUMN_FAMILY_PROPERTY_NAME_PREFIX}{@code <setting>},
+ * else the HBase default. For example {@code stroom.stats.hbase.dataStore.columnFamily.ttlSeconds.second}.
+ * <p>
+ * The settings are applied to new tables when they are created and to existing tables by
+ * {@link EventStoreTable#reconcileColumnFamilies()}.
+ * <p>
+ * In the {@link RetentionMode#TTL} retention mode the TTL is also capped at the retention period of the store.
+ */
+class ColumnFamilySettings {
+
+    static final String DATA_BLOCK_ENCODING = "dataBlockEncoding";
+    static final String COMPRESSION = "compression";
+    static final String BLOOM_FILTER = "bloomFilter";
+    static final String BLOCK_SIZE = "blockSize";
+    static final String IN_MEMORY = "inMemory";
+    static final String TTL_SECONDS = "ttlSeconds";
+
+    private final DataBlockEncoding dataBlockEncoding;
+    private final Compression.Algorithm compression;
+    private final BloomType bloomType;
+    private final int blockSize;
+    private final boolean inMemory;
+    private final int ttlSeconds;
+
+    ColumnFamilySettings(final DataBlockEncoding dataBlockEncoding,
+                         final Compression.Algorithm compression,
+                         final BloomType bloomType,
+                         final int blockSize,
+                         final boolean inMemory,
+                         final int ttlSeconds) {
+        Preconditions.checkArgument(blockSize > 0, "blockSize %s must be greater than zero", blockSize);
+        Preconditions.checkArgument(ttlSeconds > 0, "ttlSeconds %s must be greater than zero", ttlSeconds);
+        this.dataBlockEncoding = Preconditions.checkNotNull(dataBlockEncoding);
+        this.compression = Preconditions.checkNotNull(compression);
+        this.bloomType = Preconditions.checkNotNull(bloomType);
+        this.blockSize = blockSize;
+        this.inMemory = inMemory;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    static ColumnFamilySettings fromProperties(final StroomPropertyService propertyService,
+                                               final EventStoreTimeIntervalEnum interval) {
+        final int configuredTtlSeconds = getSetting(propertyService, interval, TTL_SECONDS, Integer::parseInt)
+                //0 is the same as no TTL
+                .filter(ttl -> ttl > 0)
+                .orElse(HConstants.FOREVER);
+
+        final int ttlSeconds;
+        if (RetentionMode.TTL.equals(RetentionMode.fromProperties(propertyService))) {
+            final int intervalsToRetain = propertyService.getIntPropertyOrThrow(
+                    HBaseStatisticConstants.DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX
+                            + interval.name().toLowerCase());
+            ttlSeconds = Math.min(configuredTtlSeconds, getRetentionTtlSeconds(interval, intervalsToRetain));
+        } else {
+            ttlSeconds = configuredTtlSeconds;
+        }
+
+        return new ColumnFamilySettings(
+                getSetting(propertyService, interval, DATA_BLOCK_ENCODING, str -> DataBlockEncoding.valueOf(str.toUpperCase()))
+                        .orElse(DataBlockEncoding.NONE),
+                getSetting(propertyService, interval, COMPRESSION, str -> Compression.Algorithm.valueOf(str.toUpperCase()))
+                        .orElse(Compression.Algorithm.NONE),
+                getSetting(propertyService, interval, BLOOM_FILTER, str -> BloomType.valueOf(str.toUpperCase()))
+                        .orElse(BloomType.ROW),
+                getSetting(propertyService, interval, BLOCK_SIZE, Integer::parseInt)
+                        .orElse(HColumnDescriptor.DEFAULT_BLOCKSIZE),
+                getSetting(propertyService, interval, IN_MEMORY, Boolean::parseBoolean)
+                        .orElse(HColumnDescriptor.DEFAULT_IN_MEMORY),
+                ttlSeconds);
+    }
+
+    /**
+     * HBase measures the TTL from the time a cell was last written rather than the time in the row key. A row can
+     * be written to right up to the end of its row key interval so we keep it for one more interval than the
+     * purge would, so no data inside the retention period is lost.
+     *
+     * @return The TTL in seconds that retains intervalsToRetain row key intervals of the passed store
+     */
+    static int getRetentionTtlSeconds(final EventStoreTimeIntervalEnum interval, final int intervalsToRetain) {
+        Preconditions.checkArgument(intervalsToRetain > 0,
+                "intervalsToRetain %s must be greater than zero", intervalsToRetain);
+
+        final long rowKeyIntervalSecs = interval.rowKeyInterval() / 1000;
+        if (rowKeyIntervalSecs >= HConstants.FOREVER / (intervalsToRetain + 1)) {
+            //e.g. the FOREVER store
+            return HConstants.FOREVER;
+        } else {
+            return (int) (rowKeyIntervalSecs * (intervalsToRetain + 1));
+        }
+    }
+
+    private static <T> Optional<T> getSetting(final StroomPropertyService propertyService,
+                                              final EventStoreTimeIntervalEnum interval,
+                                              final String setting,
+                                              final Function<String, T> parser) {
+        final String propertyName = HBaseStatisticConstants.DATA_STORE_COLUMN_FAMILY_PROPERTY_NAME_PREFIX + setting;
+        final Optional<String> intervalValue = propertyService.getProperty(
+                propertyName + "." + interval.name().toLowerCase());
+        final Optional<String> value = intervalValue.isPresent()
+                ? intervalValue
+                : propertyService.getProperty(propertyName);
+
+        return value
+                .map(String::trim)
+                .filter(str -> !str.isEmpty())
+                .map(str -> {
+                    try {
+                        return parser.apply(str);
+                    } catch (RuntimeException e) {
+                        throw new IllegalArgumentException(String.format(
+                                "Invalid value [%s] for column family setting %s of the %s store",
+                                str, setting, interval), e);
+                    }
+                });
+    }
+
+    /**
+     * Applies these settings to the passed descriptor
+     */
+    HColumnDescriptor applyTo(final HColumnDescriptor columnDescriptor) {
+        columnDescriptor.setDataBlockEncoding(dataBlockEncoding);
+        columnDescriptor.setCompressionType(compression);
+        columnDescriptor.setBloomFilterType(bloomType);
+        columnDescriptor.setBlocksize(blockSize);
+        columnDescriptor.setInMemory(inMemory);
+        columnDescriptor.setTimeToLive(ttlSeconds);
+        return columnDescriptor;
+    }
+
+    /**
+     * @return A description of each setting that differs between the passed descriptor and these settings,
+     * empty if the descriptor matches
+     */
+    List<String> getDifferences(final HColumnDescriptor columnDescriptor) {
+        final List<String> differences = new ArrayList<>();
+        addDifference(differences, DATA_BLOCK_ENCODING, columnDescriptor.getDataBlockEncoding(), dataBlockEncoding);
+        addDifference(differences, COMPRESSION, columnDescriptor.getCompressionType(), compression);
+        addDifference(differences, BLOOM_FILTER, columnDescriptor.getBloomFilterType(), bloomType);
+        addDifference(differences, BLOCK_SIZE, columnDescriptor.getBlocksize(), blockSize);
+        addDifference(differences, IN_MEMORY, columnDescriptor.isInMemory(), inMemory);
+        addDifference(differences, TTL_SECONDS, columnDescriptor.getTimeToLive(), ttlSeconds);
+        return differences;
+    }
+
+    private static void addDifference(final List<String> differences,
+                                      final String setting,
+                                      final Object currentValue,
+                                      final Object newValue) {
+        if (!Objects.equals(currentValue, newValue)) {
+            differences.add(String.format("%s: %s -> %s", setting, currentValue, newValue));
+        }
+    }
+
+    DataBlockEncoding getDataBlockEncoding() {
+        return dataBlockEncoding;
+    }
+
+    Compression.Algorithm getCompression() {
+        return compression;
+    }
+
+    BloomType getBloomType() {
+        return bloomType;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    boolean isInMemory() {
+        return inMemory;
+    }
+
+    int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnFamilySettings{" +
+                "dataBlockEncoding=" + dataBlockEncoding +
+                ", compression=" + compression +
+                ", bloomType=" + bloomType +
+                ", blockSize=" + blockSize +
+                ", inMemory=" + inMemory +
+                ", ttlSeconds=" + ttlSeconds +
+                '}';
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos;
+import org.apache.hadoop.hbase.protobuf.generated.RowProcessorProtos.ProcessRequest;
+import org.apache.hadoop.hbase.protobuf.generated.RowProcessorProtos.ProcessResponse;
+import org.apache.hadoop.hbase.protobuf.generated.RowProcessorProtos.RowProcessorService;
+
+import java.io.IOException;
+
+/**
+ * Client side of the event store aggregation coprocessor in the stroom-stats-hbase-coprocessor module. Sends a
+ * scan holding a {@link stroom.stats.hbase.structure.AggregationSpec} to the
+ * {@link org.apache.hadoop.hbase.coprocessor.BaseRowProcessorEndpoint} of the region the scan lies in, which runs
+ * stroom.stats.hbase.coprocessor.EventStoreAggregationRowProcessor and returns the cells of the scan reduced to
+ * {@link stroom.stats.hbase.structure.AggregatePartial}s. The processor is referenced by name as its module is
+ * only deployed on the region servers.
+ */
+final class EventStoreAggregationClient {
+
+    static final String ROW_PROCESSOR_CLASS_NAME = "stroom.stats.hbase.coprocessor.EventStoreAggregationRowProcessor";
+
+    private EventStoreAggregationClient() {
+    }
+
+    static ProcessRequest buildRequest(final Scan scan) throws IOException {
+        return ProcessRequest.newBuilder()
+                .setRowProcessorClassName(ROW_PROCESSOR_CLASS_NAME)
+                .setRowProcessorInitializerMessageName(ClientProtos.Scan.class.getName())
+                .setRowProcessorInitializerMessage(ProtobufUtil.toScan(scan).toByteString())
+                .build();
+    }
+
+    /**
+     * Aggregates the scan on the region holding its start row. The whole scan range must be in that region.
+     *
+     * @return The partials as cells, see {@link stroom.stats.hbase.structure.PartialAggregator#toCells(byte[])}
+     */
+    static Result aggregate(final Table table, final Scan scan) throws Exception {
+        final ProcessRequest request = buildRequest(scan);
+
+        final ProcessResponse response = RowProcessorService.newBlockingStub(
+                table.coprocessorService(scan.getStartRow()))
+                .process(null, request);
+
+        return ProtobufUtil.toResult(ClientProtos.Result.parseFrom(response.getRowProcessorResult()));
+    }
+}
@@ -21,9 +21,11 @@
 
 package stroom.stats.hbase.table;
 
+import com.google.common.util.concurrent.RateLimiter;
 import stroom.stats.api.StatisticType;
 import stroom.stats.common.SearchStatisticsCriteria;
 import stroom.stats.common.Period;
+import stroom.stats.common.StatisticDataPoint;
 import stroom.stats.common.StatisticDataSet;
 import stroom.stats.common.rollup.RollUpBitMask;
 import stroom.stats.configuration.StatisticConfiguration;
@@ -33,6 +35,8 @@ import stroom.stats.streams.StatEventKey;
 import stroom.stats.streams.aggregation.StatAggregate;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface EventStoreTable extends GenericTable {
 
@@ -47,12 +51,44 @@ public interface EventStoreTable extends GenericTable {
     void addAggregatedEvents(final StatisticType statisticType,
                              final Map<StatEventKey, StatAggregate> aggregatedEvents);
 
+    /**
+     * As {@link EventStoreTable#addAggregatedEvents} but returns once the writes have been started. May block
+     * the caller if too many writes are already in flight.
+     * @return A future that completes when all the aggregated events have been written, or exceptionally
+     * if any of them could not be
+     */
+    default CompletableFuture<Void> addAggregatedEventsAsync(final StatisticType statisticType,
+                                                             final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+        try {
+            addAggregatedEvents(statisticType, aggregatedEvents);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
 
     StatisticDataSet getStatisticsData(final UniqueIdCache uniqueIdCache,
                                        final StatisticConfiguration statisticConfiguration,
                                        final RollUpBitMask rollUpBitMask,
                                        final SearchStatisticsCriteria criteria);
 
+    /**
+     * Passes each data point matching the criteria to the consumer as the rows are read from the table,
+     * so the data points do not all have to be held in memory at once. If the cells are aggregated on the
+     * region servers, the data points only hold the tags in the criteria's required dynamic fields and any
+     * data points that differ only by the other tags are aggregated into one.
+     *
+     * @return The number of data points passed to the consumer
+     */
+    long streamStatisticsData(final UniqueIdCache uniqueIdCache,
+                              final StatisticConfiguration statisticConfiguration,
+                              final RollUpBitMask rollUpBitMask,
+                              final SearchStatisticsCriteria criteria,
+                              final Consumer<StatisticDataPoint> dataPointConsumer);
+
     /**
      * Looks in the store to see if the statistic name exists anywhere in the
      * table
@@ -95,13 +131,33 @@ public interface EventStoreTable extends GenericTable {
      *            The object containing the bit mask to apply to the row key
      * @param purgeUpToTimeMs
      *            The time to purge data up to
+     * @param deleteRateLimiter
+     *            Limiter to acquire a permit from for each row deleted, shared
+     *            by all concurrent purges to cap the delete load on HBase
+     * @return The number of rows deleted
      */
-    void purgeUntilTime(final UniqueIdCache uniqueIdCache,
+    long purgeUntilTime(final UniqueIdCache uniqueIdCache,
                         final StatisticConfiguration statisticConfiguration, final RollUpBitMask rollUpBitMask,
-                        final long purgeUpToTimeMs);
+                        final long purgeUpToTimeMs, final RateLimiter deleteRateLimiter);
 
     void purgeAll(final UniqueIdCache uniqueIdCache, final StatisticConfiguration statisticConfiguration);
 
+    /**
+     * Moves any value statistic cells not in the configured
+     * {@link stroom.stats.hbase.structure.ValueCellLayout} into it
+     *
+     * @return The number of time intervals moved
+     */
+    long migrateValueCells();
+
+    /**
+     * Alters any column families of the table whose settings (block encoding, compression, etc.) differ
+     * from those currently configured
+     *
+     * @return The number of column families altered
+     */
+    int reconcileColumnFamilies();
+
 //    void flushPutBuffer();
 
     void shutdown();
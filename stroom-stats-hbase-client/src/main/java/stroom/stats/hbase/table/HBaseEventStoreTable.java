@@ -21,17 +21,19 @@
 
 package stroom.stats.hbase.table;
 
+import com.google.common.util.concurrent.RateLimiter;
 import javaslang.Tuple2;
 import org.apache.hadoop.hbase.Cell;
-import org.apache.hadoop.hbase.CellScanner;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
 import org.apache.hadoop.hbase.client.Delete;
-import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
@@ -54,20 +56,32 @@ import stroom.stats.configuration.StatisticConfiguration;
 import stroom.stats.hbase.HBaseStatisticConstants;
 import stroom.stats.hbase.RowKeyBuilder;
 import stroom.stats.hbase.SimpleRowKeyBuilder;
+import stroom.stats.hbase.TagValueConverter;
+import stroom.stats.hbase.connection.HBaseAsyncExecutor;
 import stroom.stats.hbase.connection.HBaseConnection;
+import stroom.stats.hbase.connection.HBaseQueryExecutor;
 import stroom.stats.hbase.exception.HBaseException;
+import stroom.stats.hbase.structure.AggregatePartial;
+import stroom.stats.hbase.structure.AggregationSpec;
 import stroom.stats.hbase.structure.CellQualifier;
 import stroom.stats.hbase.structure.ColumnQualifier;
 import stroom.stats.hbase.structure.CountCellIncrementHolder;
+import stroom.stats.hbase.structure.PartialAggregator;
 import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.structure.RowKeySalt;
+import stroom.stats.hbase.structure.RowKeyTagValue;
 import stroom.stats.hbase.structure.StatisticDataPointAdapter;
 import stroom.stats.hbase.structure.StatisticDataPointAdapterFactory;
+import stroom.stats.hbase.structure.ValueCellLayout;
 import stroom.stats.hbase.structure.ValueCellValue;
+import stroom.stats.hbase.table.filter.SaltedStatisticsTagValueFilter;
 import stroom.stats.hbase.table.filter.StatisticsTagValueFilter;
+import stroom.stats.hbase.table.filter.TagValueFilterTree;
 import stroom.stats.hbase.table.filter.TagValueFilterTreeBuilder;
 import stroom.stats.hbase.uid.UID;
 import stroom.stats.hbase.uid.UniqueIdCache;
 import stroom.stats.hbase.util.bytes.ByteArrayUtils;
+import stroom.stats.hbase.util.bytes.ByteArrayWrapper;
 import stroom.stats.properties.StroomPropertyService;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
 import stroom.stats.streams.StatEventKey;
@@ -77,12 +91,21 @@ import stroom.stats.streams.aggregation.ValueAggregate;
 import stroom.stats.util.DateUtil;
 import stroom.stats.util.logging.LambdaLogger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable {
@@ -90,16 +113,29 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
     private final TableName tableName;
     private final EventStoreTimeIntervalEnum timeInterval;
     private final StroomPropertyService propertyService;
+    private final RowKeySalt rowKeySalt;
     private final RowKeyBuilder rowKeyBuilder;
     private final StatisticDataPointAdapterFactory statisticDataPointAdapterFactory;
+    private final RegionBatchWriter regionBatchWriter;
+    private final HBaseQueryExecutor queryExecutor;
 
     private static final String DISPLAY_NAME_POSTFIX = " EventStore";
     private static final String TABLE_NAME_POSTFIX = "es";
 
+    // the table descriptor key holding the number of salt buckets the table was created with
+    static final String SALT_BUCKETS_DESC_KEY = "stroom.stats.saltBuckets";
+
+    private static final int DEFAULT_SEARCH_MAX_PARTITIONS = 16;
+    // the number of rows read by the partitions of a search that can be waiting to be consumed
+    private static final int SEARCH_ROW_QUEUE_CAPACITY = 100;
+
 
     // counters to track how many cell puts we do for the
     private final Map<StatisticType, LongAdder> putCounterMap = new EnumMap<>(StatisticType.class);
 
+    // so we only warn once if searches have to fall back to aggregating on the client
+    private final AtomicBoolean hasWarnedOfAggregationFallback = new AtomicBoolean(false);
+
     private static final LambdaLogger LOGGER = LambdaLogger.getLogger(HBaseEventStoreTable.class);
 
 //    private Map<StatEventKey, StatAggregate> putEventsMap = new HashMap<>();
@@ -110,14 +146,17 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
     private HBaseEventStoreTable(final EventStoreTimeIntervalEnum timeInterval,
                                  final StroomPropertyService propertyService,
                                  final HBaseConnection hBaseConnection,
+                                 final HBaseAsyncExecutor asyncExecutor,
+                                 final HBaseQueryExecutor queryExecutor,
                                  final UniqueIdCache uniqueIdCache,
                                  final StatisticDataPointAdapterFactory statisticDataPointAdapterFactory) {
         super(hBaseConnection);
         this.displayName = timeInterval.longName() + DISPLAY_NAME_POSTFIX;
+        this.regionBatchWriter = new RegionBatchWriter(displayName, this::getRegionLocator, asyncExecutor);
+        this.queryExecutor = queryExecutor;
         this.tableName = TableName.valueOf(Bytes.toBytes(timeInterval.shortName() + TABLE_NAME_POSTFIX));
         this.timeInterval = timeInterval;
         this.propertyService = propertyService;
-        this.rowKeyBuilder = new SimpleRowKeyBuilder(uniqueIdCache, timeInterval);
         this.statisticDataPointAdapterFactory = statisticDataPointAdapterFactory;
 
         for (StatisticType statisticType : StatisticType.values()) {
@@ -125,6 +164,22 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
         }
 
         init();
+
+        //altering the column families is an online schema change so only do it at start up if asked to,
+        //otherwise it is left to the reconcileColumnFamilies admin task
+        if (isReconcileColumnFamiliesOnStartup()) {
+            try {
+                reconcileColumnFamilies();
+            } catch (final RuntimeException e) {
+                LOGGER.error("Unable to reconcile the column families of table {}, continuing with the existing schema",
+                        displayName, e);
+            }
+        }
+
+        //the salt is fixed when the table is created so take it from the table rather than the properties
+        this.rowKeySalt = getRowKeySalt(getCurrentDesc());
+        LOGGER.info("Using row key salt {} for table {}", rowKeySalt, displayName);
+        this.rowKeyBuilder = new SimpleRowKeyBuilder(uniqueIdCache, timeInterval, rowKeySalt);
     }
 
 
@@ -134,12 +189,16 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
     public static HBaseEventStoreTable getInstance(final EventStoreTimeIntervalEnum timeInterval,
                                                    final StroomPropertyService propertyService,
                                                    final HBaseConnection hBaseConnection,
+                                                   final HBaseAsyncExecutor asyncExecutor,
+                                                   final HBaseQueryExecutor queryExecutor,
                                                    final UniqueIdCache uniqueIdCache,
                                                    final StatisticDataPointAdapterFactory statisticDataPointAdapterFactory) {
 
         return new HBaseEventStoreTable(timeInterval,
                 propertyService,
                 hBaseConnection,
+                asyncExecutor,
+                queryExecutor,
                 uniqueIdCache,
                 statisticDataPointAdapterFactory);
     }
@@ -154,6 +213,20 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
     public void addAggregatedEvents(final StatisticType statisticType,
                                     final Map<StatEventKey, StatAggregate> aggregatedEvents) {
 
+        HBaseAsyncExecutor.join(addAggregatedEventsAsync(statisticType, aggregatedEvents));
+    }
+
+    /**
+     * Splits the aggregated events by the region holding their rows then into requests of at most
+     * {@link HBaseStatisticConstants#DATA_STORE_ASYNC_ROWS_PER_REQUEST_PROPERTY_NAME} rows, see
+     * {@link RegionBatchWriter}. The requests are written to HBase concurrently by the {@link HBaseAsyncExecutor}.
+     * All the changes to a row are made by the same request. If a request fails the others are still written so the store may be left
+     * partially updated, as was already the case if a single batch call failed part way through.
+     */
+    @Override
+    public CompletableFuture<Void> addAggregatedEventsAsync(final StatisticType statisticType,
+                                                            final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+
 //        LOGGER.ifDebugIsEnabled(() -> {
 //            LOGGER.debug("putEventsMap key count: {}", putEventsMap.size());
 //
@@ -175,25 +248,27 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
         //Could change StatAggregate to be an interface for this purpose with the EventID stuff changed to composition
         //instead.
         //Count stats will need to be handled differently though as they use a different approach, i.e. increments
+        final List<CompletableFuture<Void>> requestFutures;
         switch (statisticType) {
             case COUNT:
-                putAggregatedEventsCount(aggregatedEvents);
+                requestFutures = putAggregatedEventsCount(aggregatedEvents);
                 break;
             case VALUE:
-                putAggregatedEventsValue(aggregatedEvents);
+                requestFutures = putAggregatedEventsValue(aggregatedEvents);
                 break;
             default:
                 throw new IllegalArgumentException("Unexpected statisticType " + statisticType);
         }
 
-
-        //keep a counter of the number of puts by stat type since this instance was last re-started
-        //useful as an indication of how it is functioning.  Could put the count to a stat of its own
-        //for long term tracking of performance
-        putCounterMap.get(statisticType).add(aggregatedEvents.size());
+        return CompletableFuture.allOf(requestFutures.toArray(new CompletableFuture[requestFutures.size()]))
+                .thenRun(() ->
+                        //keep a counter of the number of puts by stat type since this instance was last re-started
+                        //useful as an indication of how it is functioning.  Could put the count to a stat of its own
+                        //for long term tracking of performance
+                        putCounterMap.get(statisticType).add(aggregatedEvents.size()));
     }
 
-    private void putAggregatedEventsCount(final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+    private List<CompletableFuture<Void>> putAggregatedEventsCount(final Map<StatEventKey, StatAggregate> aggregatedEvents) {
 
         LOGGER.trace(() -> String.format("putAggregatedEventsCount called with size %s", aggregatedEvents.size()));
 
@@ -212,14 +287,15 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
                 .collect(Collectors.groupingBy(
                         Tuple2::_1, Collectors.mapping(Tuple2::_2, Collectors.toList())));
 
-        addMultipleCounts(rowData);
+        return regionBatchWriter.submit(rowData, getRowsPerRequest(), this::addMultipleCounts);
     }
 
-    private void putAggregatedEventsValue(final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+    private List<CompletableFuture<Void>> putAggregatedEventsValue(final Map<StatEventKey, StatAggregate> aggregatedEvents) {
 
         LOGGER.trace(() -> String.format("putAggregatedEventsValue called with size %s", aggregatedEvents.size()));
         //TODO ValueCellValue and ValueAggregate are essentially the same thing. Should probably keep Value Aggregate
         //and put any additional code from VCV into it.
+        final Map<CellQualifier, ValueCellValue> cellValues = new HashMap<>();
         aggregatedEvents.forEach((statKey, statAggregate) -> {
             CellQualifier cellQualifier = rowKeyBuilder.buildCellQualifier(statKey);
             ValueAggregate valueAggregate;
@@ -235,10 +311,122 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
                     valueAggregate.getMinValue(),
                     valueAggregate.getMaxValue());
 
-            addValue(cellQualifier, valueCellValue);
+            cellValues.merge(cellQualifier, valueCellValue, ValueCellValue::addAggregatedValues);
+        });
+
+        //read the properties once so all requests for this batch use the same write path
+        final ValueCellLayout valueCellLayout = getValueCellLayout();
+        final boolean isValueMergeCoprocessorEnabled = isValueMergeCoprocessorEnabled();
+
+        final Map<RowKey, List<CellQualifier>> rowCells = cellValues.keySet().stream()
+                .collect(Collectors.groupingBy(CellQualifier::getRowKey));
+
+        return regionBatchWriter.submit(rowCells, getRowsPerRequest(), requestRows -> {
+            final Map<CellQualifier, ValueCellValue> requestCellValues = new HashMap<>();
+            requestRows.values().forEach(cellQualifiers ->
+                    cellQualifiers.forEach(cellQualifier ->
+                            requestCellValues.put(cellQualifier, cellValues.get(cellQualifier))));
+
+            if (ValueCellLayout.INCREMENT.equals(valueCellLayout)) {
+                addValueIncrements(requestCellValues, isValueMergeCoprocessorEnabled);
+            } else if (isValueMergeCoprocessorEnabled) {
+                mergeValuesOnRegionServers(requestCellValues);
+            } else {
+                addValues(requestCellValues);
+            }
         });
     }
 
+    /**
+     * Adds the cell values as increments. Any values whose sum is too large to increment at the configured sum
+     * scale are merged into the COMPOUND cell instead, which is aggregated with the increment cells on read.
+     */
+    private void addValueIncrements(final Map<CellQualifier, ValueCellValue> cellValues,
+                                    final boolean isValueMergeCoprocessorEnabled) {
+        LOGGER.trace(() -> String.format("addValueIncrements called for %s cells", cellValues.size()));
+
+        final Map<CellQualifier, ValueCellValue> rejectedCellValues;
+        final Table tableInterface = getTable();
+        try {
+            rejectedCellValues = ValueCellIncrementWriter.addValues(
+                    tableInterface,
+                    EventStoreColumnFamily.VALUES.asByteArray(),
+                    cellValues,
+                    getValueSumScale(),
+                    getCheckAndPutRetryCount(),
+                    getValueMergeBatchSize());
+        } finally {
+            closeTable(tableInterface);
+        }
+
+        if (!rejectedCellValues.isEmpty()) {
+            if (isValueMergeCoprocessorEnabled) {
+                mergeValuesOnRegionServers(rejectedCellValues);
+            } else {
+                addValues(rejectedCellValues);
+            }
+        }
+    }
+
+    /**
+     * Groups the cell values by the region holding their row and sends each group to the region server
+     * in one call to be merged into the stored cells atomically by the value cell merge coprocessor. If the
+     * coprocessor rejects a group without applying it (e.g. it is not deployed, or the region has split) then
+     * falls back to a check-and-put per cell for that group.
+     */
+    private void mergeValuesOnRegionServers(final Map<CellQualifier, ValueCellValue> cellValues) {
+
+        //group the cells by the region that holds their row, keyed on the region's encoded name
+        final Map<String, List<CellQualifier>> regionCells = new HashMap<>();
+        try (RegionLocator regionLocator = getRegionLocator()) {
+            for (final CellQualifier cellQualifier : cellValues.keySet()) {
+                final String regionName = regionLocator.getRegionLocation(cellQualifier.getRowKey().asByteArray())
+                        .getRegionInfo()
+                        .getEncodedName();
+                regionCells.computeIfAbsent(regionName, k -> new ArrayList<>()).add(cellQualifier);
+            }
+        } catch (final IOException e) {
+            throw new HBaseException(e.getMessage(), e);
+        }
+
+        LOGGER.trace(() -> String.format("Merging %s cells across %s regions", cellValues.size(), regionCells.size()));
+
+        final Table tableInterface = getTable();
+        try {
+            regionCells.forEach((regionName, cellQualifiers) -> {
+                //one Put per row holding the delta for each cell in that row
+                final Map<RowKey, Put> rowDeltas = new HashMap<>();
+                cellQualifiers.forEach(cellQualifier ->
+                        rowDeltas.computeIfAbsent(cellQualifier.getRowKey(), rowKey -> new Put(rowKey.asByteArray()))
+                                .addColumn(
+                                        EventStoreColumnFamily.VALUES.asByteArray(),
+                                        cellQualifier.getColumnQualifier().getBytes(),
+                                        cellValues.get(cellQualifier).asByteArray()));
+                try {
+                    ValueCellMergeClient.merge(tableInterface, new ArrayList<>(rowDeltas.values()));
+                } catch (final Exception e) {
+                    if (ValueCellMergeClient.isRejectedBeforeApply(e)) {
+                        LOGGER.warn("Value cell merge rejected by region {} of {}, falling back to check-and-put: {}",
+                                regionName, getDisplayName(), e.getMessage());
+                        addValues(cellQualifiers.stream()
+                                .collect(Collectors.toMap(Function.identity(), cellValues::get)));
+                    } else {
+                        throw new HBaseException(e.getMessage(), e);
+                    }
+                }
+            });
+        } finally {
+            closeTable(tableInterface);
+        }
+    }
+
+    /**
+     * @return The request timings of each region written to, slowest first
+     */
+    public Map<String, String> getRegionWriteTimings() {
+        return regionBatchWriter.getRegionTimingsSummary();
+    }
+
     @Override
     public long getCellsPutCount(final StatisticType statisticType) {
         //longaddr sum is not a concurrent snapshot but for this purpose is fine
@@ -259,16 +447,40 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
     public HTableDescriptor getDesc() {
         final HTableDescriptor desc = new HTableDescriptor(getName());
 
-        final HColumnDescriptor countsColDesc = new HColumnDescriptor(EventStoreColumnFamily.COUNTS.asByteArray());
-        countsColDesc.setMaxVersions(1);
+        final ColumnFamilySettings columnFamilySettings = getColumnFamilySettings();
 
-        final HColumnDescriptor valuesColDesc = new HColumnDescriptor(EventStoreColumnFamily.VALUES.asByteArray());
-        valuesColDesc.setMaxVersions(1);
-        desc.addFamily(countsColDesc);
-        desc.addFamily(valuesColDesc);
+        for (final EventStoreColumnFamily columnFamily : EventStoreColumnFamily.values()) {
+            final HColumnDescriptor colDesc = new HColumnDescriptor(columnFamily.asByteArray());
+            colDesc.setMaxVersions(1);
+            columnFamilySettings.applyTo(colDesc);
+            desc.addFamily(colDesc);
+        }
+
+        final RowKeySalt configuredSalt = getConfiguredRowKeySalt();
+        if (configuredSalt.isSalted()) {
+            desc.setValue(SALT_BUCKETS_DESC_KEY, Integer.toString(configuredSalt.getBuckets()));
+        }
         return desc;
     }
 
+    /**
+     * A salted table is pre-split so each salt bucket starts in a region of its own
+     */
+    @Override
+    byte[][] getSplitKeys() {
+        return getConfiguredRowKeySalt().getSplitKeys();
+    }
+
+    static RowKeySalt getRowKeySalt(final HTableDescriptor desc) {
+        final String saltBuckets = desc.getValue(SALT_BUCKETS_DESC_KEY);
+        //tables created before salting existed have no value so are unsalted
+        return saltBuckets == null ? RowKeySalt.NONE : RowKeySalt.of(Integer.parseInt(saltBuckets));
+    }
+
+    public RowKeySalt getRowKeySalt() {
+        return rowKeySalt;
+    }
+
     private void addMultipleCounts(final Map<RowKey, List<CountCellIncrementHolder>> rowChanges) {
         LOGGER.trace(() -> String.format("addMultipleCounts called for %s rows", rowChanges.size()));
 
@@ -324,92 +536,26 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
         return increment;
     }
 
-    private void addValue(final CellQualifier cellQualifier, final ValueCellValue valueCellValue) {
+    private void addValues(final Map<CellQualifier, ValueCellValue> cellValues) {
         //TODO need some means of handling the event identifiers, possibly use the HBase append method to keep
         //adding ID into a cell (in another col fam), however this would make it difficult to control the number of ids
         //being put into the cell, though maybe that doesn't matter if we try and limit a bit during streams aggregation.
-        //An alternative is to use a coprocessor to handle the checkAndPut of the ValueCellValue and the identifiers in one go,
-        //thus saving any round trips.
-        LOGGER.trace("addValue called for cellQualifier: {}, valueCellValue: {}", cellQualifier, valueCellValue);
-
-        final int maxAttemptsAtCheckAndPut = getCheckAndPutRetryCount();
-
-        // we cannot buffer the adding of values due to the two step get-and-set
-        // nature of it. This makes value
-        // statistics much more expensive than count statistics
-
-        int retryCounter = maxAttemptsAtCheckAndPut;
-        boolean hasPutSucceeded = false;
+        LOGGER.trace(() -> String.format("addValues called for %s cells", cellValues.size()));
 
+        // we cannot blindly buffer the adding of values due to the two step get-and-set
+        // nature of it, so read all the cells in one go, then check-and-put each one, retrying
+        // only those where another thread/node beat us to it
         final Table tableInterface = getTable();
-
         try {
-            // loop in case another thread beats us to the checkAndPut
-            while (retryCounter-- > 0) {
-                // get the current value of the cell
-                byte[] bColumnFamily = EventStoreColumnFamily.VALUES.asByteArray();
-                ColumnQualifier columnQualifier = cellQualifier.getColumnQualifier();
-                byte[] bColumnQualifier = columnQualifier.getBytes();
-                byte[] bRowKey = cellQualifier.getRowKey().asByteArray();
-                final Get get = new Get(bRowKey);
-                get.addColumn(bColumnFamily, bColumnQualifier);
-
-                final Result result = doGet(tableInterface, get);
-
-                Cell existingCell = result.getColumnLatestCell(bColumnFamily, bColumnQualifier);
-
-                final ValueCellValue currCellValue;
-                final ValueCellValue newCellValue;
-
-                if (existingCell != null) {
-                    currCellValue = new ValueCellValue(existingCell.getValueArray(), existingCell.getValueOffset(), existingCell.getValueLength());
-
-                    // aggregate the new value into the existing cell, incrementing
-                    // the count and working out the max/min
-                    newCellValue = currCellValue.addAggregatedValues(valueCellValue);
-                    LOGGER.trace("Aggregating, currCellValue: {}, newCellValue: {}", currCellValue, newCellValue);
-                } else {
-                    //nothing there for this rowKey/colQual so just use our value as is
-                    currCellValue = null;
-                    newCellValue = valueCellValue;
-                    LOGGER.trace("Cell is empty, newCellValue: {}", newCellValue);
-                }
-
-                // construct the put containing the new aggregated cell value
-                final Put put = new Put(bRowKey).addColumn(
-                        bColumnFamily,
-                        bColumnQualifier,
-                        newCellValue.asByteArray());
-
-                // do a check and put - atomic operation to only do the put if
-                // the cell value still looks like
-                // currCellValue. If it fails go round again for another go
-                hasPutSucceeded = doCheckAndPut(
-                        tableInterface,
-                        bRowKey,
-                        bColumnFamily, bColumnQualifier,
-                        (currCellValue == null ? null : currCellValue.asByteArray()),
-                        put);
-
-                if (hasPutSucceeded) {
-                    // put worked so no need to retry
-                    break;
-                } else {
-                    LOGGER.trace("CheckAndPut failed on retry {}, retrying", retryCounter);
-                }
-            }
-        } catch (final Exception e) {
-            closeTable(tableInterface);
-            throw new HBaseException(e.getMessage(), e);
+            ValueCellBatchWriter.addValues(
+                    tableInterface,
+                    EventStoreColumnFamily.VALUES.asByteArray(),
+                    cellValues,
+                    getCheckAndPutRetryCount(),
+                    getValueMergeBatchSize());
         } finally {
             closeTable(tableInterface);
         }
-
-        if (!hasPutSucceeded) {
-            throw new RuntimeException(
-                    "Put operation failed after [" + maxAttemptsAtCheckAndPut + "] retries for cellQualifier ["
-                            + cellQualifier + "] and valueCellValue [" + valueCellValue + "]");
-        }
     }
 
     @Override
@@ -418,7 +564,23 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
                                               final RollUpBitMask rollUpBitMask,
                                               final SearchStatisticsCriteria criteria) {
 
-        LOGGER.debug(() -> String.format("getStatisticsData called, store: %s, statUuid: %s, statName: %s, type: %s, mask: %s, criteria: %s",
+        // object to hold all the data returned
+        final StatisticDataSet statisticDataSet = new StatisticDataSet(statisticConfiguration, timeInterval);
+
+        streamStatisticsData(uniqueIdCache, statisticConfiguration, rollUpBitMask, criteria,
+                statisticDataSet::addDataPoint);
+
+        return statisticDataSet;
+    }
+
+    @Override
+    public long streamStatisticsData(final UniqueIdCache uniqueIdCache,
+                                     final StatisticConfiguration statisticConfiguration,
+                                     final RollUpBitMask rollUpBitMask,
+                                     final SearchStatisticsCriteria criteria,
+                                     final Consumer<StatisticDataPoint> dataPointConsumer) {
+
+        LOGGER.debug(() -> String.format("streamStatisticsData called, store: %s, statUuid: %s, statName: %s, type: %s, mask: %s, criteria: %s",
                 timeInterval,
                 statisticConfiguration.getUuid(),
                 statisticConfiguration.getName(),
@@ -444,88 +606,404 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
         // because the start/end time may not land exactly on the row key
         // time interval boundaries.
 
-        final Table tableInterface = getTable();
-
         addTagValueFilter(scan, criteria, uniqueIdCache);
 
-        final ResultScanner scanner = getScanner(tableInterface, scan);
-
-        // object to hold all the data returned
-        final StatisticDataSet statisticDataSet = new StatisticDataSet(statisticConfiguration, timeInterval);
+        final StatisticDataPointAdapter adapter = statisticDataPointAdapterFactory.getAdapter(
+                statisticConfiguration,
+                timeInterval);
+
+        final long periodFrom = period.getFromOrElse(0L);
+        final long periodTo = period.getToOrElse(Long.MAX_VALUE);
+
+        // split the key range into partitions that don't overlap, so each row is only read by one partition,
+        // and scan them concurrently. The rows of every partition are passed to the consumer on this thread.
+        final int maxPartitions = getSearchMaxPartitions();
+        final Optional<AggregationSpec> optAggregationSpec = buildAggregationSpec(
+                uniqueIdCache, statisticConfiguration, criteria, periodFrom, periodTo);
+
+        // the coprocessor only aggregates scans that lie within a single region, so when aggregating on the
+        // region servers the partitions must be split on the region boundaries however many there are
+        final Optional<List<byte[]>> optRegionStartKeys = maxPartitions > 1 || optAggregationSpec.isPresent()
+                ? getRegionStartKeys()
+                : Optional.empty();
+        final List<Scan> partitions = partitionScan(scan, rollUpBitMask, period, statUuid, maxPartitions,
+                optRegionStartKeys.orElse(Collections.emptyList()));
+        LOGGER.debug(() -> String.format("Scanning %s partitions", partitions.size()));
+
+        if (optAggregationSpec.isPresent()) {
+            return streamAggregatedStatisticsData(uniqueIdCache, partitions, optAggregationSpec.get(), adapter,
+                    maxPartitions, optRegionStartKeys.isPresent(), dataPointConsumer);
+        }
 
+        final LongAdder dataPointCount = new LongAdder();
+        final Consumer<List<StatisticDataPoint>> rowConsumer = rowDataPoints -> {
+            rowDataPoints.forEach(dataPointConsumer);
+            dataPointCount.add(rowDataPoints.size());
+        };
         try {
-            final long periodFrom = period.getFromOrElse(0L);
-            final long periodTo = period.getToOrElse(Long.MAX_VALUE);
+            if (maxPartitions <= 1) {
+                partitions.forEach(partition ->
+                        scanPartition(partition, adapter, periodFrom, periodTo, rowConsumer));
+            } else {
+                ParallelPartitionReader.read(
+                        queryExecutor,
+                        partitions,
+                        (Scan partition, Consumer<List<StatisticDataPoint>> rowSink) ->
+                                scanPartition(partition, adapter, periodFrom, periodTo, rowSink),
+                        rowConsumer,
+                        SEARCH_ROW_QUEUE_CAPACITY);
+            }
+        } catch (final Throwable t) {
+            throw new HBaseException(t.getMessage(), t);
+        }
 
-            // loop through each row in the result set from the scan, so
-            // this is all rows
-            // for that time period (using partial timestamps) and UID
-            for (final Result result : scanner) {
-                // attempt to build an object from the raw row key bytes
-                final RowKey rowKeyObject = new RowKey(result.getRow());
+        LOGGER.debug(() -> String.format("Found %s data points", dataPointCount.sum()));
 
-                final List<StatisticTag> tags = rowKeyBuilder.getTagValuePairsAsList(rowKeyObject);
+        return dataPointCount.sum();
+    }
 
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("Row key: " + rowKeyBuilder.toPlainTextString(rowKeyObject));
-                    LOGGER.trace("Row key: " + ByteArrayUtils.byteArrayToString(rowKeyObject.asByteArray()));
-                }
+    /**
+     * Builds the spec for aggregating the cells of the search on the region servers, if enabled. Cells are
+     * grouped by the tags required by the criteria, at the precision of the store.
+     *
+     * @return Empty if server side aggregation is disabled or would not reduce the number of data points
+     */
+    private Optional<AggregationSpec> buildAggregationSpec(final UniqueIdCache uniqueIdCache,
+                                                           final StatisticConfiguration statisticConfiguration,
+                                                           final SearchStatisticsCriteria criteria,
+                                                           final long periodFrom,
+                                                           final long periodTo) {
+        final List<String> keptTags = criteria.getRequiredDynamicFields();
+        if (!isServerSideAggregationEnabled() || keptTags.containsAll(statisticConfiguration.getFieldNames())) {
+            // every cell would be its own group so nothing to gain
+            return Optional.empty();
+        }
 
-                final CellScanner cellScanner = result.cellScanner();
-                // loop through each cell in the row each cell has a column qualifier that is the interval
-                // number in the row interval e.g. if the row interval is hourly then the 5s value will
-                // have a column qualifier of 5 and there will be up to 3600 columns
-                while (cellScanner.advance()) {
-                    final Cell cell = cellScanner.current();
+        final ByteArrayOutputStream keptTagUids = new ByteArrayOutputStream();
+        for (final String keptTag : keptTags) {
+            final byte[] uidBytes = uniqueIdCache.getUniqueIdOrDefault(keptTag).getUidBytes();
+            keptTagUids.write(uidBytes, 0, uidBytes.length);
+        }
 
-                    ColumnQualifier columnQualifier = ColumnQualifier.from(cell.getQualifierArray(), cell.getQualifierOffset());
+        final int saltLength = rowKeySalt.getPrefixLength();
+        return Optional.of(new AggregationSpec(
+                saltLength + RowKey.UID_AND_BIT_MASK_LENGTH,
+                saltLength + RowKey.UID_AND_BIT_MASK_AND_TIME_LENGTH,
+                timeInterval.rowKeyInterval(),
+                timeInterval.columnInterval(),
+                timeInterval.columnInterval(),
+                periodFrom,
+                periodTo,
+                StatisticType.VALUE.equals(statisticConfiguration.getStatisticType()),
+                keptTagUids.toByteArray()));
+    }
 
-                    final CellQualifier cellQualifier = rowKeyBuilder.buildCellQualifier(rowKeyObject, columnQualifier);
+    /**
+     * Has each partition reduced to {@link AggregatePartial}s on the region server holding it, merging the
+     * partials of all partitions on this thread before passing them to the consumer as data points. If the
+     * partitions could not be aligned with the regions they are all reduced here instead.
+     *
+     * @return The number of data points passed to the consumer
+     */
+    private long streamAggregatedStatisticsData(final UniqueIdCache uniqueIdCache,
+                                                final List<Scan> partitions,
+                                                final AggregationSpec aggregationSpec,
+                                                final StatisticDataPointAdapter adapter,
+                                                final int maxPartitions,
+                                                final boolean isAlignedToRegions,
+                                                final Consumer<StatisticDataPoint> dataPointConsumer) {
+
+        // the same group can come from many partitions, e.g. one per salt bucket, so merge them all first
+        final Map<ByteArrayWrapper, AggregatePartial> partials = new HashMap<>();
+        final Consumer<Result> partitionResultConsumer = partitionResult -> {
+            for (final Cell cell : partitionResult.rawCells()) {
+                PartialAggregator.mergeCell(partials, cell);
+            }
+        };
+        try {
+            if (maxPartitions <= 1) {
+                partitions.forEach(partition ->
+                        partitionResultConsumer.accept(
+                                aggregatePartition(partition, aggregationSpec, isAlignedToRegions)));
+            } else {
+                ParallelPartitionReader.read(
+                        queryExecutor,
+                        partitions,
+                        (Scan partition, Consumer<Result> resultSink) ->
+                                resultSink.accept(aggregatePartition(partition, aggregationSpec, isAlignedToRegions)),
+                        partitionResultConsumer,
+                        SEARCH_ROW_QUEUE_CAPACITY);
+            }
+        } catch (final Throwable t) {
+            throw new HBaseException(t.getMessage(), t);
+        }
 
-                    final long fullTimestamp = cellQualifier.getFullTimestamp();
+        partials.forEach((groupKey, partial) -> {
+            final byte[] groupKeyBytes = groupKey.getBytes();
+            final List<StatisticTag> tags = TagValueConverter.getTagValuePairsAsList(
+                    RowKeyTagValue.extractTagValuePairs(
+                            groupKeyBytes, PartialAggregator.GROUP_KEY_TAGS_OFFSET, groupKeyBytes.length),
+                    uniqueIdCache);
 
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("ColQualBytes: " + columnQualifier
-                                + " ColQualInt: " + columnQualifier.getValue() + " FullTimestamp: "
-                                + DateUtil.createNormalDateTimeString(fullTimestamp));
-                    }
+            dataPointConsumer.accept(adapter.convertPartial(
+                    PartialAggregator.getBucketTimeMs(groupKeyBytes), tags, partial));
+        });
 
-                    // filter the cell to ensure it is in the period we are after
-                    //periodTo is exclusive
-                    if (fullTimestamp >= periodFrom && fullTimestamp < periodTo) {
+        LOGGER.debug(() -> String.format("Found %s aggregated data points", partials.size()));
 
-                        final StatisticDataPointAdapter adapter = statisticDataPointAdapterFactory.getAdapter(
-                                statisticConfiguration,
-                                timeInterval);
+        return partials.size();
+    }
 
-                        final StatisticDataPoint dataPoint = adapter.convertCell(
-                                fullTimestamp,
-                                tags,
-                                cell.getValueArray(),
-                                cell.getValueOffset(),
-                                cell.getValueLength());
+    /**
+     * Reduces a single partition of a search to partials on the region server. If that fails, e.g. because the
+     * coprocessor is not deployed or the region has split since the partitions were built, the partition is
+     * scanned and reduced here instead. That is safe as nothing has been changed.
+     *
+     * @param isAlignedToRegions False if the partition may span regions, so would be rejected by the region server
+     */
+    private Result aggregatePartition(final Scan partition,
+                                      final AggregationSpec aggregationSpec,
+                                      final boolean isAlignedToRegions) {
+        final Scan scan = aggregationSpec.applyTo(partition);
+        final Table tableInterface = getTable();
+        try {
+            if (isAlignedToRegions) {
+                try {
+                    return EventStoreAggregationClient.aggregate(tableInterface, scan);
+                } catch (final Exception e) {
+                    if (hasWarnedOfAggregationFallback.compareAndSet(false, true)) {
+                        LOGGER.warn("Unable to aggregate on the region server for table {}, aggregating on the " +
+                                "client instead. Is the coprocessor deployed? {}", displayName, e.getMessage());
+                    } else {
+                        LOGGER.debug("Unable to aggregate on the region server for table {}, {}",
+                                displayName, e.getMessage());
+                    }
+                }
+            }
 
-                        statisticDataSet.addDataPoint(dataPoint);
+            final PartialAggregator partialAggregator = new PartialAggregator(aggregationSpec);
+            final ResultScanner scanner = getScanner(tableInterface, scan);
+            try {
+                for (final Result result : scanner) {
+                    partialAggregator.addRow(Arrays.asList(result.rawCells()));
+                }
+            } finally {
+                closeScanner(scanner);
+            }
+            return Result.create(partialAggregator.toCells(scan.getFamilies()[0]));
+        } finally {
+            closeTable(tableInterface);
+        }
+    }
 
-                    } else if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("Ignoring value as it is outside the time period");
+    /**
+     * Scans a single partition of a search, passing the data points of each row to the consumer
+     */
+    private void scanPartition(final Scan partition,
+                               final StatisticDataPointAdapter adapter,
+                               final long periodFrom,
+                               final long periodTo,
+                               final Consumer<List<StatisticDataPoint>> rowConsumer) {
+        final Table tableInterface = getTable();
+        try {
+            final ResultScanner scanner = getScanner(tableInterface, partition);
+            try {
+                // loop through each row in the result set from the scan, so
+                // this is all rows
+                // for that time period (using partial timestamps) and UID
+                for (final Result result : scanner) {
+                    final List<StatisticDataPoint> rowDataPoints = new ArrayList<>();
+                    consumeRow(result, adapter, periodFrom, periodTo, rowDataPoints::add);
+                    if (!rowDataPoints.isEmpty()) {
+                        rowConsumer.accept(rowDataPoints);
                     }
                 }
+            } finally {
+                closeScanner(scanner);
             }
-        } catch (final Throwable t) {
-            closeScanner(scanner);
-            closeTable(tableInterface);
-            throw new HBaseException(t.getMessage(), t);
         } finally {
-            closeScanner(scanner);
             closeTable(tableInterface);
         }
+    }
 
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug(() -> String.format("Found %s data points", statisticDataSet.size()));
+    /**
+     * Splits the scan of a search into scans over key ranges that don't overlap. The scan is split into roughly
+     * maxPartitions partitions across the row key time buckets of the period and the salt buckets, then further
+     * split at each of the region start keys so no partition spans more than one region.
+     */
+    private List<Scan> partitionScan(final Scan scan,
+                                     final RollUpBitMask rollUpBitMask,
+                                     final Period period,
+                                     final String statUuid,
+                                     final int maxPartitions,
+                                     final List<byte[]> regionStartKeys) {
+        final List<byte[]> timeSplitKeys;
+        if (maxPartitions > 1
+                && period.isBounded() && !EventStoreTimeIntervalEnum.FOREVER.equals(timeInterval)) {
+            final int timeBuckets = Math.max(1, maxPartitions / rowKeySalt.getBuckets());
+            timeSplitKeys = getTimeBucketSplitTimes(timeInterval, period.getFrom(), period.getToInclusive(), timeBuckets)
+                    .stream()
+                    .map(time -> rowKeyBuilder.buildStartKey(statUuid, rollUpBitMask, time).asByteArray())
+                    .collect(Collectors.toList());
+        } else {
+            timeSplitKeys = Collections.emptyList();
         }
 
-        return statisticDataSet;
+        return splitScan(scan, timeSplitKeys).stream()
+                .flatMap(timeBucketScan -> fanOutScan(timeBucketScan).stream())
+                .flatMap(bucketScan -> splitScan(bucketScan, regionStartKeys).stream())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return The start keys of the table's regions, or empty if they could not be found
+     */
+    private Optional<List<byte[]>> getRegionStartKeys() {
+        try (RegionLocator regionLocator = getRegionLocator()) {
+            return Optional.of(Arrays.asList(regionLocator.getStartKeys()));
+        } catch (final Exception e) {
+            //not fatal, we just won't align the partitions with the regions or aggregate on the region servers
+            LOGGER.warn("Unable to get the region start keys of table {}, {}", displayName, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Divides the row key intervals in the passed time range as evenly as possible into up to the passed
+     * number of buckets
+     *
+     * @return The start time of each bucket after the first one
+     */
+    static List<Long> getTimeBucketSplitTimes(final EventStoreTimeIntervalEnum timeInterval,
+                                              final long fromMs,
+                                              final long toMsInclusive,
+                                              final int maxBuckets) {
+        final long rowKeyInterval = timeInterval.rowKeyInterval();
+        final long firstRowTime = timeInterval.truncateTimeToRowKeyInterval(fromMs);
+        final long lastRowTime = timeInterval.truncateTimeToRowKeyInterval(toMsInclusive);
+        if (lastRowTime <= firstRowTime) {
+            return Collections.emptyList();
+        }
+        final long rowCount = ((lastRowTime - firstRowTime) / rowKeyInterval) + 1;
+        final int buckets = (int) Math.min(rowCount, maxBuckets);
+
+        final List<Long> splitTimes = new ArrayList<>(Math.max(0, buckets - 1));
+        for (int bucket = 1; bucket < buckets; bucket++) {
+            splitTimes.add(firstRowTime + ((rowCount * bucket / buckets) * rowKeyInterval));
+        }
+        return splitTimes;
+    }
+
+    /**
+     * Splits the scan into consecutive scans at each of the passed keys that fall inside its key range
+     */
+    static List<Scan> splitScan(final Scan scan, final List<byte[]> splitKeys) {
+        final byte[] startRow = scan.getStartRow();
+        final byte[] stopRow = scan.getStopRow();
+
+        final List<byte[]> keysInRange = splitKeys.stream()
+                .filter(key -> Bytes.compareTo(key, startRow) > 0)
+                .filter(key -> stopRow.length == 0 || Bytes.compareTo(key, stopRow) < 0)
+                .sorted(Bytes.BYTES_COMPARATOR)
+                .collect(Collectors.toList());
+
+        if (keysInRange.isEmpty()) {
+            return Collections.singletonList(scan);
+        }
+
+        final List<Scan> scans = new ArrayList<>(keysInRange.size() + 1);
+        byte[] partitionStart = startRow;
+        for (final byte[] key : keysInRange) {
+            if (!Bytes.equals(key, partitionStart)) {
+                scans.add(copyScan(scan, partitionStart, key));
+                partitionStart = key;
+            }
+        }
+        scans.add(copyScan(scan, partitionStart, stopRow));
+        return scans;
+    }
+
+    private static Scan copyScan(final Scan scan, final byte[] startRow, final byte[] stopRow) {
+        final Scan copy;
+        try {
+            copy = new Scan(scan);
+        } catch (final IOException e) {
+            throw new HBaseException(e.getMessage(), e);
+        }
+        copy.setStartRow(startRow);
+        copy.setStopRow(stopRow);
+        return copy;
+    }
+
+    /**
+     * Converts the cells of a row returned by a scan into data points, passing those inside the period
+     * to the consumer
+     *
+     * @return The number of data points passed to the consumer
+     */
+    private int consumeRow(final Result result,
+                           final StatisticDataPointAdapter adapter,
+                           final long periodFrom,
+                           final long periodTo,
+                           final Consumer<StatisticDataPoint> dataPointConsumer) {
+        // attempt to build an object from the raw row key bytes
+        final RowKey rowKeyObject = new RowKey(result.getRow(), rowKeySalt);
+
+        final List<StatisticTag> tags = rowKeyBuilder.getTagValuePairsAsList(rowKeyObject);
+
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Row key: " + rowKeyBuilder.toPlainTextString(rowKeyObject));
+            LOGGER.trace("Row key: " + ByteArrayUtils.byteArrayToString(rowKeyObject.asByteArray()));
+        }
+
+        // loop through each cell in the row each cell has a column qualifier that is the interval
+        // number in the row interval e.g. if the row interval is hourly then the 5s value will
+        // have a column qualifier of 5 and there will be up to 3600 columns. Some stat types hold an
+        // interval in more than one cell, all with the same column qualifier prefix so these are
+        // adjacent and are converted together.
+        final Cell[] cells = result.rawCells();
+        int dataPointCount = 0;
+        int groupStart = 0;
+        while (groupStart < cells.length) {
+            final Cell cell = cells[groupStart];
+
+            ColumnQualifier columnQualifier = ColumnQualifier.from(cell.getQualifierArray(), cell.getQualifierOffset());
+
+            int groupEnd = groupStart + 1;
+            while (groupEnd < cells.length
+                    && columnQualifier.compareTo(cells[groupEnd].getQualifierArray(), cells[groupEnd].getQualifierOffset()) == 0) {
+                groupEnd++;
+            }
+            final List<Cell> intervalCells = Arrays.asList(cells).subList(groupStart, groupEnd);
+            groupStart = groupEnd;
+
+            final CellQualifier cellQualifier = rowKeyBuilder.buildCellQualifier(rowKeyObject, columnQualifier);
+
+            final long fullTimestamp = cellQualifier.getFullTimestamp();
+
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("ColQualBytes: " + columnQualifier
+                        + " ColQualInt: " + columnQualifier.getValue() + " FullTimestamp: "
+                        + DateUtil.createNormalDateTimeString(fullTimestamp));
+            }
+
+            // filter the cell to ensure it is in the period we are after
+            //periodTo is exclusive
+            if (fullTimestamp >= periodFrom && fullTimestamp < periodTo) {
+
+                final StatisticDataPoint dataPoint = adapter.convertCells(
+                        fullTimestamp,
+                        tags,
+                        intervalCells);
+
+                dataPointConsumer.accept(dataPoint);
+                dataPointCount++;
+
+            } else if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Ignoring value as it is outside the time period");
+            }
+        }
+        return dataPointCount;
     }
 
     private Scan buildBasicScan(final RollUpBitMask rollUpBitMask,
@@ -588,6 +1066,42 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
     }
 
 
+    /**
+     * Turns a scan over unsalted row keys into one scan per salt bucket, each with the scan's start and stop
+     * rows prefixed with the bucket's salt. If the table is not salted the passed scan is returned as is.
+     */
+    private List<Scan> fanOutScan(final Scan scan) {
+        return fanOutScan(scan, rowKeySalt);
+    }
+
+    static List<Scan> fanOutScan(final Scan scan, final RowKeySalt rowKeySalt) {
+        if (!rowKeySalt.isSalted()) {
+            return Collections.singletonList(scan);
+        }
+        final byte[] startRow = scan.getStartRow();
+        final byte[] stopRow = scan.getStopRow();
+        final List<Scan> scans = new ArrayList<>(rowKeySalt.getBuckets());
+        for (int bucket = 0; bucket < rowKeySalt.getBuckets(); bucket++) {
+            final Scan bucketScan;
+            try {
+                bucketScan = new Scan(scan);
+            } catch (final IOException e) {
+                throw new HBaseException(e.getMessage(), e);
+            }
+            bucketScan.setStartRow(rowKeySalt.prefix(bucket, startRow));
+            if (stopRow.length > 0) {
+                bucketScan.setStopRow(rowKeySalt.prefix(bucket, stopRow));
+            } else {
+                //open ended so stop at the start of the next bucket
+                bucketScan.setStopRow(bucket + 1 < RowKeySalt.MAX_BUCKETS
+                        ? new byte[]{(byte) (bucket + 1)}
+                        : HConstants.EMPTY_END_ROW);
+            }
+            scans.add(bucketScan);
+        }
+        return scans;
+    }
+
     private void logStartStopKeys(final Optional<RowKey> optStartRowKey,
                                   final Optional<RowKey> optEndRowKeyExclusive) {
         LOGGER.debug("optStartRowKey: " + optStartRowKey
@@ -616,33 +1130,38 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
 
         final UID statUuidUid = uniqueIdCache.getUniqueIdOrDefault(statUuid);
 
-        Scan scan = buildBasicScan(rollUpBitMask, period, statisticConfiguration);
-
-        // filter on rows with a key starting with the UID of our stat name
-        final Filter prefixFilter = new PrefixFilter(statUuidUid.getUidBytes());
-        // filter on the first row found
-        final Filter pageFilter = new PageFilter(1);
-        final Filter keyOnlyFilter = new KeyOnlyFilter();
-        final FilterList filters = new FilterList(prefixFilter, pageFilter, keyOnlyFilter);
-        scan.setFilter(filters);
+        final List<Scan> scans = fanOutScan(buildBasicScan(rollUpBitMask, period, statisticConfiguration));
 
         final Table tableInterface = getTable();
-        final ResultScanner scanner = getScanner(tableInterface, scan);
-
         try {
-            // the page filter may return more than one row as it is run on each
-            // region so you may get one per region. We just want the first one we find
-            final Result result = scanner.next();
-
-            if (result != null && result.getRow() != null) {
-                isFound = true;
+            // check each salt bucket in turn until we find a row
+            for (int bucket = 0; bucket < scans.size() && !isFound; bucket++) {
+                final Scan scan = scans.get(bucket);
+
+                // filter on rows with a key starting with the UID of our stat name
+                final Filter prefixFilter = new PrefixFilter(rowKeySalt.prefix(bucket, statUuidUid.getUidBytes()));
+                // filter on the first row found
+                final Filter pageFilter = new PageFilter(1);
+                final Filter keyOnlyFilter = new KeyOnlyFilter();
+                final FilterList filters = new FilterList(prefixFilter, pageFilter, keyOnlyFilter);
+                scan.setFilter(filters);
+
+                final ResultScanner scanner = getScanner(tableInterface, scan);
+                try {
+                    // the page filter may return more than one row as it is run on each
+                    // region so you may get one per region. We just want the first one we find
+                    final Result result = scanner.next();
+
+                    if (result != null && result.getRow() != null) {
+                        isFound = true;
+                    }
+                } finally {
+                    closeScanner(scanner);
+                }
             }
         } catch (final Throwable t) {
-            closeScanner(scanner);
-            closeTable(tableInterface);
             throw new HBaseException(t.getMessage(), t);
         } finally {
-            closeScanner(scanner);
             closeTable(tableInterface);
         }
 
@@ -670,13 +1189,89 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
         // criteria may not have a filterTree on it
         if (!criteria.getFilterTermsTree().equals(FilterTermsTree.emptyTree())) {
 
-            Filter tagValueFilter = new StatisticsTagValueFilter(
-                    TagValueFilterTreeBuilder.buildTagValueFilterTree(criteria.getFilterTermsTree(), uniqueIdCache));
+            final TagValueFilterTree tagValueFilterTree =
+                    TagValueFilterTreeBuilder.buildTagValueFilterTree(criteria.getFilterTermsTree(), uniqueIdCache);
+
+            // the filter finds the tags by their position in the row key so needs to know about the salt
+            Filter tagValueFilter = rowKeySalt.isSalted()
+                    ? new SaltedStatisticsTagValueFilter(tagValueFilterTree)
+                    : new StatisticsTagValueFilter(tagValueFilterTree);
 
             scan.setFilter(tagValueFilter);
         }
     }
 
+    @Override
+    public int reconcileColumnFamilies() {
+        final ColumnFamilySettings columnFamilySettings = getColumnFamilySettings();
+        final HTableDescriptor currentDesc = getCurrentDesc();
+
+        int alteredCount = 0;
+        try (Admin admin = getTableConfiguration().getConnection().getAdmin()) {
+            for (final EventStoreColumnFamily columnFamily : EventStoreColumnFamily.values()) {
+                final HColumnDescriptor currentColDesc = currentDesc.getFamily(columnFamily.asByteArray());
+                if (currentColDesc == null) {
+                    throw new HBaseException(String.format("Table %s has no column family %s",
+                            getDisplayName(), columnFamily));
+                }
+                final List<String> differences = columnFamilySettings.getDifferences(currentColDesc);
+                if (!differences.isEmpty()) {
+                    LOGGER.info("Altering column family {} of table {}, {}",
+                            columnFamily, getDisplayName(), differences);
+                    //copy the current descriptor so any settings we don't manage are left as they are
+                    final HColumnDescriptor newColDesc = columnFamilySettings.applyTo(
+                            new HColumnDescriptor(currentColDesc));
+                    admin.modifyColumn(getName(), newColDesc);
+                    alteredCount++;
+                }
+            }
+        } catch (final IOException e) {
+            throw new HBaseException(String.format("Unable to alter the column families of table %s",
+                    getDisplayName()), e);
+        }
+        LOGGER.debug("Altered {} column families of table {}", alteredCount, getDisplayName());
+        return alteredCount;
+    }
+
+    private ColumnFamilySettings getColumnFamilySettings() {
+        return ColumnFamilySettings.fromProperties(propertyService, timeInterval);
+    }
+
+    @Override
+    public long migrateValueCells() {
+        final ValueCellLayout targetLayout = getValueCellLayout();
+        final int sumScale = getValueSumScale();
+        final int maxAttempts = getCheckAndPutRetryCount();
+        final byte[] columnFamily = EventStoreColumnFamily.VALUES.asByteArray();
+
+        LOGGER.info("Migrating value cells in {} to the {} layout", getDisplayName(), targetLayout);
+
+        final Scan scan = new Scan();
+        scan.addFamily(columnFamily);
+        scan.setMaxVersions(1);
+        scan.setCaching(1_000);
+
+        long migratedCount = 0;
+        final Table tableInterface = getTable();
+        final ResultScanner scanner = getScanner(tableInterface, scan);
+        try {
+            for (final Result result : scanner) {
+                migratedCount += ValueCellMigrator.migrateRow(
+                        tableInterface, columnFamily, result, rowKeySalt, targetLayout, sumScale, maxAttempts);
+            }
+        } catch (final Throwable t) {
+            throw new HBaseException(t.getMessage(), t);
+        } finally {
+            closeScanner(scanner);
+            closeTable(tableInterface);
+        }
+
+        final long finalMigratedCount = migratedCount;
+        LOGGER.info(() -> String.format("Migrated %s value cell intervals in %s to the %s layout",
+                finalMigratedCount, getDisplayName(), targetLayout));
+        return migratedCount;
+    }
+
     /**
      * Intended to be called by another class as this class is not a spring bean
      * and therefore cannot use the Stroom Lifecycle annotations
@@ -699,14 +1294,57 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
         return propertyService.getIntPropertyOrThrow(HBaseStatisticConstants.DATA_STORE_MAX_CHECK_AND_PUT_RETRIES_PROPERTY_NAME);
     }
 
+    private RowKeySalt getConfiguredRowKeySalt() {
+        return RowKeySalt.of(propertyService.getIntProperty(
+                HBaseStatisticConstants.DATA_STORE_SALT_BUCKETS_PROPERTY_NAME, 0));
+    }
+
+    private int getRowsPerRequest() {
+        return propertyService.getIntProperty(HBaseStatisticConstants.DATA_STORE_ASYNC_ROWS_PER_REQUEST_PROPERTY_NAME, 500);
+    }
+
+    private boolean isServerSideAggregationEnabled() {
+        return propertyService.getBooleanProperty(
+                HBaseStatisticConstants.SEARCH_SERVER_SIDE_AGGREGATION_PROPERTY_NAME, false);
+    }
+
+    private int getSearchMaxPartitions() {
+        return propertyService.getIntProperty(HBaseStatisticConstants.SEARCH_MAX_PARTITIONS_PROPERTY_NAME,
+                DEFAULT_SEARCH_MAX_PARTITIONS);
+    }
+
+    private int getValueMergeBatchSize() {
+        return propertyService.getIntProperty(HBaseStatisticConstants.DATA_STORE_VALUE_MERGE_BATCH_SIZE_PROPERTY_NAME, 1000);
+    }
+
+    private ValueCellLayout getValueCellLayout() {
+        return propertyService.getProperty(HBaseStatisticConstants.DATA_STORE_VALUE_LAYOUT_PROPERTY_NAME)
+                .map(ValueCellLayout::valueOf)
+                .orElse(ValueCellLayout.COMPOUND);
+    }
+
+    private int getValueSumScale() {
+        return propertyService.getIntProperty(HBaseStatisticConstants.DATA_STORE_VALUE_SUM_SCALE_PROPERTY_NAME, 6);
+    }
+
+    private boolean isReconcileColumnFamiliesOnStartup() {
+        return propertyService.getBooleanProperty(
+                HBaseStatisticConstants.DATA_STORE_RECONCILE_COLUMN_FAMILIES_ON_STARTUP_PROPERTY_NAME, false);
+    }
+
+    private boolean isValueMergeCoprocessorEnabled() {
+        return propertyService.getBooleanProperty(
+                HBaseStatisticConstants.DATA_STORE_VALUE_MERGE_USE_COPROCESSOR_PROPERTY_NAME, false);
+    }
+
     private int getMaxConcurrentBatchPutTasks() {
         return propertyService.getIntPropertyOrThrow(HBaseStatisticConstants.DATA_STORE_PURGE_MAX_BATCH_PUT_TASKS);
     }
 
     @Override
-    public void purgeUntilTime(final UniqueIdCache uniqueIdCache,
+    public long purgeUntilTime(final UniqueIdCache uniqueIdCache,
                                final StatisticConfiguration statisticConfiguration, final RollUpBitMask rollUpBitMask,
-                               final long purgeUpToTimeMs) {
+                               final long purgeUpToTimeMs, final RateLimiter deleteRateLimiter) {
         final long startTime = System.currentTimeMillis();
 
         if (purgeUpToTimeMs > System.currentTimeMillis()) {
@@ -744,52 +1382,58 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
         scan.setFilter(filters);
 
         int rowCount = 0;
+        // the min/max are compared on the unsalted row keys so they are in time order
         byte[] minRowKey = null;
         byte[] maxRowKey = null;
 
         final Table tableInterface = getTable();
-        final ResultScanner scanner = getScanner(tableInterface, scan);
 
         try {
-            Result[] results;
-
-            // get a batch of 1000 row keys from the store, add each one to a
-            // list then tell HBase to delete the
-            // rows for each. A row can represent a long period of time, e.g.
-            // for the second store a row represents
-            // a whole hour
-            do {
-                results = scanner.next(1_000);
-
-                if (results != null && results.length > 0) {
-                    final List<Delete> deletes = new ArrayList<>();
-
-                    for (final Result result : results) {
-                        if (result != null) {
-                            if (minRowKey == null || Bytes.compareTo(result.getRow(), minRowKey) < 0) {
-                                minRowKey = result.getRow();
-                            }
-                            if (maxRowKey == null || Bytes.compareTo(result.getRow(), maxRowKey) > 0) {
-                                maxRowKey = result.getRow();
+            for (final Scan bucketScan : fanOutScan(scan)) {
+                final ResultScanner scanner = getScanner(tableInterface, bucketScan);
+                try {
+                    Result[] results;
+
+                    // get a batch of 1000 row keys from the store, add each one to a
+                    // list then tell HBase to delete the
+                    // rows for each. A row can represent a long period of time, e.g.
+                    // for the second store a row represents
+                    // a whole hour
+                    do {
+                        results = scanner.next(1_000);
+
+                        if (results != null && results.length > 0) {
+                            final List<Delete> deletes = new ArrayList<>();
+
+                            for (final Result result : results) {
+                                if (result != null) {
+                                    final byte[] unsaltedRowKey = Arrays.copyOfRange(
+                                            result.getRow(), rowKeySalt.getPrefixLength(), result.getRow().length);
+                                    if (minRowKey == null || Bytes.compareTo(unsaltedRowKey, minRowKey) < 0) {
+                                        minRowKey = unsaltedRowKey;
+                                    }
+                                    if (maxRowKey == null || Bytes.compareTo(unsaltedRowKey, maxRowKey) > 0) {
+                                        maxRowKey = unsaltedRowKey;
+                                    }
+
+                                    deletes.add(new Delete(result.getRow()));
+                                    rowCount++;
+                                }
                             }
 
-                            deletes.add(new Delete(result.getRow()));
-                            rowCount++;
+                            if (deletes.size() > 0) {
+                                deleteRateLimiter.acquire(deletes.size());
+                                tableInterface.delete(deletes);
+                            }
                         }
-                    }
-
-                    if (deletes.size() > 0) {
-                        tableInterface.delete(deletes);
-                    }
+                    } while (results != null && results.length > 0);
+                } finally {
+                    closeScanner(scanner);
                 }
-            } while (results != null && results.length > 0);
-
+            }
         } catch (final Throwable t) {
-            closeScanner(scanner);
-            closeTable(tableInterface);
             throw new HBaseException(t.getMessage(), t);
         } finally {
-            closeScanner(scanner);
             closeTable(tableInterface);
         }
 
@@ -824,7 +1468,7 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
                     finalRowCount, minDate, maxDate, statisticName, rollUpBitMask.asHexString(), timeInterval.longName(),
                     (double) runTime / (double) 1000));
         }
-
+        return rowCount;
     }
 
     @Override
@@ -851,39 +1495,41 @@ public class HBaseEventStoreTable extends HBaseTable implements EventStoreTable
 
         int rowCount = 0;
         final Table tableInterface = getTable();
-        final ResultScanner scanner = getScanner(tableInterface, scan);
 
         try {
-            Result[] results;
-
-            // get a batch of 1000 row keys from the store, add each one to a
-            // list then tell HBase to delete the
-            // rows for each.
-            do {
-                results = scanner.next(1_000);
-
-                if (results != null && results.length > 0) {
-                    final List<Delete> deletes = new ArrayList<>();
+            for (final Scan bucketScan : fanOutScan(scan)) {
+                final ResultScanner scanner = getScanner(tableInterface, bucketScan);
+                try {
+                    Result[] results;
+
+                    // get a batch of 1000 row keys from the store, add each one to a
+                    // list then tell HBase to delete the
+                    // rows for each.
+                    do {
+                        results = scanner.next(1_000);
+
+                        if (results != null && results.length > 0) {
+                            final List<Delete> deletes = new ArrayList<>();
+
+                            for (final Result result : results) {
+                                if (result != null) {
+                                    deletes.add(new Delete(result.getRow()));
+                                    rowCount++;
+                                }
+                            }
 
-                    for (final Result result : results) {
-                        if (result != null) {
-                            deletes.add(new Delete(result.getRow()));
-                            rowCount++;
+                            if (deletes.size() > 0) {
+                                tableInterface.delete(deletes);
+                            }
                         }
-                    }
-
-                    if (deletes.size() > 0) {
-                        tableInterface.delete(deletes);
-                    }
+                    } while (results != null && results.length > 0);
+                } finally {
+                    closeScanner(scanner);
                 }
-            } while (results != null && results.length > 0);
-
+            }
         } catch (final Throwable t) {
-            closeScanner(scanner);
-            closeTable(tableInterface);
             throw new HBaseException(t.getMessage(), t);
         } finally {
-            closeScanner(scanner);
             closeTable(tableInterface);
         }
 
@@ -21,12 +21,16 @@
 
 package stroom.stats.hbase.table;
 
+import com.codahale.metrics.health.HealthCheck;
+import stroom.stats.hbase.connection.HBaseAsyncExecutor;
 import stroom.stats.hbase.connection.HBaseConnection;
+import stroom.stats.hbase.connection.HBaseQueryExecutor;
 import stroom.stats.hbase.structure.StatisticDataPointAdapterFactory;
 import stroom.stats.hbase.uid.UniqueIdCache;
 import stroom.stats.properties.StroomPropertyService;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
 import stroom.stats.task.api.TaskManager;
+import stroom.stats.util.healthchecks.HasHealthCheck;
 import stroom.stats.util.logging.LambdaLogger;
 
 import javax.inject.Inject;
@@ -38,7 +42,7 @@ import java.util.Map;
 import java.util.function.Consumer;
 
 @Singleton
-public class HBaseEventStoreTableFactory implements EventStoreTableFactory {
+public class HBaseEventStoreTableFactory implements EventStoreTableFactory, HasHealthCheck {
 
     private static final LambdaLogger LOGGER = LambdaLogger.getLogger(HBaseEventStoreTableFactory.class);
 
@@ -47,6 +51,8 @@ public class HBaseEventStoreTableFactory implements EventStoreTableFactory {
     private final StroomPropertyService propertyService;
 
     private final HBaseConnection hBaseConnection;
+    private final HBaseAsyncExecutor asyncExecutor;
+    private final HBaseQueryExecutor queryExecutor;
 
     // A list of functions (provided by tables this factory produces) to be
     // called when Stroom shuts down. This is needed as the tables are not spring
@@ -57,6 +63,8 @@ public class HBaseEventStoreTableFactory implements EventStoreTableFactory {
     public HBaseEventStoreTableFactory(final TaskManager taskManager,
                                        final StroomPropertyService propertyService,
                                        final HBaseConnection hBaseConnection,
+                                       final HBaseAsyncExecutor asyncExecutor,
+                                       final HBaseQueryExecutor queryExecutor,
                                        final UniqueIdCache uniqueIdCache,
                                         final StatisticDataPointAdapterFactory statisticDataPointAdapterFactory) {
 
@@ -65,6 +73,8 @@ public class HBaseEventStoreTableFactory implements EventStoreTableFactory {
         this.taskManager = taskManager;
         this.propertyService = propertyService;
         this.hBaseConnection = hBaseConnection;
+        this.asyncExecutor = asyncExecutor;
+        this.queryExecutor = queryExecutor;
 
         eventStoreTables = new EnumMap<>(EventStoreTimeIntervalEnum.class);
 
@@ -88,11 +98,31 @@ public class HBaseEventStoreTableFactory implements EventStoreTableFactory {
                 HBaseEventStoreTable.getInstance(timeInterval,
                         propertyService,
                         hBaseConnection,
+                        asyncExecutor,
+                        queryExecutor,
                         uniqueIdCache,
                         statisticDataPointAdapterFactory));
     }
 
 
+    /**
+     * Reports the write request timings of each region of each event store table
+     */
+    @Override
+    public HealthCheck.Result getHealth() {
+        final HealthCheck.ResultBuilder builder = HealthCheck.Result.builder()
+                .healthy()
+                .withMessage("Write request timings by region");
+        eventStoreTables.values().forEach(eventStoreTable ->
+                builder.withDetail(eventStoreTable.getDisplayName(), eventStoreTable.getRegionWriteTimings()));
+        return builder.build();
+    }
+
+    @Override
+    public String getName() {
+        return "HBaseEventStoreTables";
+    }
+
     public void regsiterShutdownFunction(final Consumer<HBaseConnection> shutdownFunction) {
         this.shutdownFunctions.add(shutdownFunction);
     }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import stroom.stats.hbase.connection.HBaseConnection;
+
+import javax.inject.Inject;
+import java.util.Optional;
+
+/**
+ * DAO for the HBase purge checkpoint table
+ *
+ * Table holds the time each purge unit was last purged up to, keyed on the unit. Only one column family is used
+ *
+ * @formatter:off
+ *
+ * 				RowKey                       p:t
+ *                --------------------------------------------------------
+ *                SECOND:someStatUuid:0000     \x00\x00\x01\x4d\x45\x4f\x80\x00
+ *
+ * @formatter:on
+ */
+public class HBasePurgeCheckpointTable extends HBaseTable implements PurgeCheckpointTable {
+    private static final String DISPLAY_NAME = "PurgeCheckpoint";
+    private static final TableName TABLE_NAME = TableName.valueOf(Bytes.toBytes("purge"));
+    private static final byte[] CHECKPOINT_FAMILY = Bytes.toBytes("p");
+    private static final byte[] TIME_COL_QUALIFIER = Bytes.toBytes("t");
+
+    @Inject
+    public HBasePurgeCheckpointTable(final HBaseConnection hBaseConnection) {
+        super(hBaseConnection);
+        init();
+    }
+
+    @Override
+    public TableName getName() {
+        return TABLE_NAME;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return DISPLAY_NAME;
+    }
+
+    @Override
+    public HTableDescriptor getDesc() {
+        final HTableDescriptor desc = new HTableDescriptor(getName());
+        final HColumnDescriptor colDesc = new HColumnDescriptor(CHECKPOINT_FAMILY);
+        colDesc.setMaxVersions(1);
+        desc.addFamily(colDesc);
+        return desc;
+    }
+
+    @Override
+    public Optional<Long> getPurgedUpToTime(final String unitKey) {
+        final Get get = new Get(Bytes.toBytes(unitKey));
+        get.addColumn(CHECKPOINT_FAMILY, TIME_COL_QUALIFIER);
+        final Result result = doGet(get);
+        return Optional.ofNullable(result.getValue(CHECKPOINT_FAMILY, TIME_COL_QUALIFIER))
+                .map(Bytes::toLong);
+    }
+
+    @Override
+    public void putPurgedUpToTime(final String unitKey, final long purgedUpToTimeMs) {
+        final Put put = new Put(Bytes.toBytes(unitKey));
+        put.addColumn(CHECKPOINT_FAMILY, TIME_COL_QUALIFIER, Bytes.toBytes(purgedUpToTimeMs));
+        doPut(put);
+    }
+}
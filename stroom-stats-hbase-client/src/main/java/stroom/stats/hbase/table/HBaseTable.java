@@ -33,6 +33,7 @@ import org.apache.hadoop.hbase.client.BufferedMutatorParams;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Row;
@@ -97,8 +98,14 @@ public abstract class HBaseTable implements GenericTable {
 
     private void create(final Admin admin) throws TableExistsException {
         try {
-            LOGGER.info("Creating table '{}'", getDisplayName());
-            admin.createTable(getDesc());
+            final byte[][] splitKeys = getSplitKeys();
+            if (splitKeys == null || splitKeys.length == 0) {
+                LOGGER.info("Creating table '{}'", getDisplayName());
+                admin.createTable(getDesc());
+            } else {
+                LOGGER.info("Creating table '{}' pre-split into {} regions", getDisplayName(), splitKeys.length + 1);
+                admin.createTable(getDesc(), splitKeys);
+            }
         } catch (TableExistsException tee) {
             throw tee;
         } catch (final Exception e) {
@@ -258,6 +265,21 @@ public abstract class HBaseTable implements GenericTable {
         return result;
     }
 
+    /**
+     * Does a multi-get on the passed Table and leaves it open. The results are in the same order as the gets.
+     */
+    public static Result[] doGets(final Table tableInterface, final List<Get> gets) {
+        Result[] results;
+
+        try {
+            results = tableInterface.get(gets);
+        } catch (final Exception e) {
+            closeTable(tableInterface);
+            throw new HBaseException(e.getMessage(), e);
+        }
+        return results;
+    }
+
     /**
      * Gets a tableInterface, does the passed delete on this table and then
      * closes the tableInterface
@@ -305,6 +327,18 @@ public abstract class HBaseTable implements GenericTable {
         }
     }
 
+    /**
+     * Does a batch call on the passed Table and leaves it open
+     */
+    public static void doBatch(final Table tableInterface, final List<? extends Row> actions, final Object[] results) {
+        try {
+            tableInterface.batch(actions, results);
+        } catch (final Exception e) {
+            closeTable(tableInterface);
+            throw new HBaseException(e.getMessage(), e);
+        }
+    }
+
     /**
      * Wrapper on the HBase method. Gets a Table for this table, does the
      * increment and closes the table
@@ -357,6 +391,18 @@ public abstract class HBaseTable implements GenericTable {
         return bufferedMutator;
     }
 
+    /**
+     * @return A {@link RegionLocator} for finding which region holds a row key. Like a {@link Table} it is
+     *         lightweight, so get it, use it then close it.
+     */
+    public RegionLocator getRegionLocator() {
+        try {
+            return hBaseConnection.getConnection().getRegionLocator(getName());
+        } catch (final Exception e) {
+            throw new HBaseException("Unable to create region locator for table " + getDisplayName(), e);
+        }
+    }
+
     /**
      * Gets a scanner object and handles any exception
      */
@@ -398,6 +444,26 @@ public abstract class HBaseTable implements GenericTable {
 
     public abstract HTableDescriptor getDesc();
 
+    /**
+     * @return The row keys to split a new table at so it starts with more than one region, or null to
+     *         create it with a single region. Designed to be overridden by sub-classes.
+     */
+    byte[][] getSplitKeys() {
+        return null;
+    }
+
+    /**
+     * @return The descriptor of the table as it currently exists in HBase, as opposed to
+     *         {@link HBaseTable#getDesc()} which is the descriptor to create it with
+     */
+    public HTableDescriptor getCurrentDesc() {
+        try (Admin admin = hBaseConnection.getConnection().getAdmin()) {
+            return admin.getTableDescriptor(getName());
+        } catch (final Exception e) {
+            throw new HBaseException("Unable to get table descriptor for table " + getDisplayName(), e);
+        }
+    }
+
     void tableSpecificCreationProcessing() {
         // Do nothing in here as this is designed to be overridden by
         // sub-classes if they need to run any table specific
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import com.google.common.base.Preconditions;
+import stroom.stats.hbase.connection.HBaseQueryExecutor;
+import stroom.stats.hbase.exception.HBaseException;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Reads the partitions of a query concurrently on the {@link HBaseQueryExecutor}, handing everything they read
+ * to a single consumer on the calling thread. The consumer never sees concurrent calls so can be something that
+ * is not thread safe, e.g. a coprocessor pipeline. Items from different partitions arrive in no particular order.
+ * <p>
+ * Items pass from the partition readers to the calling thread through a bounded queue, so a consumer that is
+ * slower than HBase holds the readers back rather than letting results build up in memory. If a partition fails
+ * or the consumer throws, the remaining readers are abandoned and the exception is thrown to the caller.
+ */
+class ParallelPartitionReader {
+
+    private static final Object END_OF_PARTITION = new Object();
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private ParallelPartitionReader() {
+    }
+
+    /**
+     * @param partitions      The partitions to read, e.g. scans over disjoint key ranges
+     * @param partitionReader Reads a single partition, passing each item it reads to the supplied sink
+     * @param consumer        Called on the calling thread for each item read from any partition
+     * @param queueCapacity   The maximum number of items waiting to be consumed
+     */
+    static <P, T> void read(final HBaseQueryExecutor queryExecutor,
+                            final List<P> partitions,
+                            final BiConsumer<P, Consumer<T>> partitionReader,
+                            final Consumer<T> consumer,
+                            final int queueCapacity) {
+        Preconditions.checkNotNull(queryExecutor);
+        Preconditions.checkNotNull(partitions);
+        Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be > 0");
+
+        if (partitions.size() == 1) {
+            //nothing to gain from another thread
+            partitionReader.accept(partitions.get(0), consumer);
+            return;
+        }
+
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final AtomicBoolean isAbandoned = new AtomicBoolean(false);
+
+        int remainingPartitions = partitions.size();
+        try {
+            for (final P partition : partitions) {
+                final CompletableFuture<Void> future = queryExecutor.run(() -> {
+                    try {
+                        partitionReader.accept(partition, item -> {
+                            if (!put(queue, item, isAbandoned)) {
+                                //stops the partition reader part way through
+                                throw new CancellationException("Read of partition abandoned");
+                            }
+                        });
+                        put(queue, END_OF_PARTITION, isAbandoned);
+                    } catch (final Throwable t) {
+                        if (!isAbandoned.get()) {
+                            put(queue, new PartitionFailure(t), isAbandoned);
+                        }
+                    }
+                });
+                if (future.isCompletedExceptionally()) {
+                    //the reader will never run (e.g. the executor rejected it) so fail now rather than wait forever
+                    //for the partition to end
+                    try {
+                        future.join();
+                    } catch (final CompletionException e) {
+                        throw new PartitionFailure(e.getCause()).toRuntimeException();
+                    }
+                }
+            }
+
+            while (remainingPartitions > 0) {
+                final Object item = queue.take();
+                if (item == END_OF_PARTITION) {
+                    remainingPartitions--;
+                } else if (item instanceof PartitionFailure) {
+                    throw ((PartitionFailure) item).toRuntimeException();
+                } else {
+                    @SuppressWarnings("unchecked")
+                    final T typedItem = (T) item;
+                    consumer.accept(typedItem);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HBaseException("Interrupted waiting for query partitions", e);
+        } finally {
+            //if we finished early, free up any readers blocked on the queue so they see they have been abandoned
+            isAbandoned.set(true);
+            queue.clear();
+        }
+    }
+
+    /**
+     * Blocks until there is space for the item on the queue or the read has been abandoned
+     *
+     * @return False if the read has been abandoned and the item was not queued
+     */
+    private static boolean put(final BlockingQueue<Object> queue, final Object item, final AtomicBoolean isAbandoned) {
+        try {
+            while (!isAbandoned.get()) {
+                if (queue.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private static class PartitionFailure {
+        private final Throwable throwable;
+
+        private PartitionFailure(final Throwable throwable) {
+            this.throwable = throwable;
+        }
+
+        private RuntimeException toRuntimeException() {
+            if (throwable instanceof RuntimeException) {
+                return (RuntimeException) throwable;
+            } else {
+                return new HBaseException(throwable.getMessage(), throwable);
+            }
+        }
+    }
+}
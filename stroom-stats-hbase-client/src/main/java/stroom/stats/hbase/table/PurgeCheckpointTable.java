@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import java.util.Optional;
+
+/**
+ * Table recording how far each unit of the retention purge has got, so a purge that is
+ * stopped part way through can skip the units it has already done when it is re-run
+ */
+public interface PurgeCheckpointTable extends GenericTable {
+
+    /**
+     * @return The time the unit with the passed key was last purged up to, if it has been purged
+     */
+    Optional<Long> getPurgedUpToTime(final String unitKey);
+
+    void putPurgedUpToTime(final String unitKey, final long purgedUpToTimeMs);
+}
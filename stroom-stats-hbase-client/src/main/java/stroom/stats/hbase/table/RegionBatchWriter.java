@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import stroom.stats.hbase.connection.HBaseAsyncExecutor;
+import stroom.stats.hbase.exception.HBaseException;
+import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.util.logging.LambdaLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Splits the rows of a write by the region that holds them and submits each region's rows as one or more
+ * requests to the {@link HBaseAsyncExecutor}. Each request therefore goes to a single region server so a hot or
+ * slow region only holds up its own requests, not those for the rest of the write. The time taken by the
+ * requests for each region is recorded in a {@link Timer} keyed by the region's encoded name. Region names change
+ * as regions split and merge, so the timers of regions that no longer exist are dropped.
+ */
+class RegionBatchWriter {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(RegionBatchWriter.class);
+
+    private final String tableDisplayName;
+    private final Supplier<RegionLocator> regionLocatorSupplier;
+    private final HBaseAsyncExecutor asyncExecutor;
+    private final ConcurrentMap<String, Timer> regionTimers = new ConcurrentHashMap<>();
+
+    RegionBatchWriter(final String tableDisplayName,
+                      final Supplier<RegionLocator> regionLocatorSupplier,
+                      final HBaseAsyncExecutor asyncExecutor) {
+        this.tableDisplayName = Preconditions.checkNotNull(tableDisplayName);
+        this.regionLocatorSupplier = Preconditions.checkNotNull(regionLocatorSupplier);
+        this.asyncExecutor = Preconditions.checkNotNull(asyncExecutor);
+    }
+
+    /**
+     * @param rows           The changes to write keyed by row. All the changes for a row are passed to the
+     *                       writer in the same request.
+     * @param rowsPerRequest The maximum number of rows in each request
+     * @param writer         Called on an I/O thread to write the rows of one request. If the regions have
+     *                       moved since they were located the request will still succeed, HBase routes
+     *                       the mutations to wherever the rows now are.
+     * @return A future for each request submitted
+     */
+    <T> List<CompletableFuture<Void>> submit(final Map<RowKey, T> rows,
+                                             final int rowsPerRequest,
+                                             final Consumer<Map<RowKey, T>> writer) {
+        Preconditions.checkArgument(rowsPerRequest > 0, "rowsPerRequest must be > 0");
+
+        final Map<String, List<RowKey>> regionRows = groupByRegion(rows.keySet());
+
+        LOGGER.trace(() -> String.format("Submitting %s rows across %s regions of %s",
+                rows.size(), regionRows.size(), tableDisplayName));
+
+        final List<CompletableFuture<Void>> requestFutures = new ArrayList<>();
+        regionRows.forEach((regionName, rowKeys) -> {
+            final Timer regionTimer = regionTimers.computeIfAbsent(regionName, k -> new Timer());
+
+            for (final List<RowKey> requestRowKeys : Iterables.partition(rowKeys, rowsPerRequest)) {
+                final Map<RowKey, T> requestRows = new LinkedHashMap<>();
+                requestRowKeys.forEach(rowKey -> requestRows.put(rowKey, rows.get(rowKey)));
+
+                requestFutures.add(asyncExecutor.run(() -> {
+                    //only successful requests are timed
+                    final Timer.Context context = regionTimer.time();
+                    writer.accept(requestRows);
+                    final long durationMs = TimeUnit.NANOSECONDS.toMillis(context.stop());
+                    LOGGER.trace(() -> String.format("Wrote %s rows to region %s of %s in %sms",
+                            requestRows.size(), regionName, tableDisplayName, durationMs));
+                }));
+            }
+        });
+        return requestFutures;
+    }
+
+    /**
+     * @return The row keys grouped by the encoded name of the region holding them, using the locations
+     * cached in the connection where possible
+     */
+    Map<String, List<RowKey>> groupByRegion(final Collection<RowKey> rowKeys) {
+        final Map<String, List<RowKey>> regionRows = new HashMap<>();
+        try (RegionLocator regionLocator = regionLocatorSupplier.get()) {
+            for (final RowKey rowKey : rowKeys) {
+                final String regionName = regionLocator.getRegionLocation(rowKey.asByteArray())
+                        .getRegionInfo()
+                        .getEncodedName();
+                regionRows.computeIfAbsent(regionName, k -> new ArrayList<>()).add(rowKey);
+            }
+
+            //a region we have no timer for may be the result of a split or merge, in which case the regions
+            //it replaced are gone. Listing all the regions is a scan of meta so only do it when this happens.
+            if (!regionTimers.isEmpty() && !regionTimers.keySet().containsAll(regionRows.keySet())) {
+                removeOldRegionTimers(regionLocator);
+            }
+        } catch (final IOException e) {
+            throw new HBaseException(String.format("Unable to locate the regions of %s", tableDisplayName), e);
+        }
+        return regionRows;
+    }
+
+    private void removeOldRegionTimers(final RegionLocator regionLocator) throws IOException {
+        final Set<String> regionNames = regionLocator.getAllRegionLocations().stream()
+                .map(regionLocation -> regionLocation.getRegionInfo().getEncodedName())
+                .collect(Collectors.toSet());
+        final List<String> oldRegionNames = regionTimers.keySet().stream()
+                .filter(regionName -> !regionNames.contains(regionName))
+                .collect(Collectors.toList());
+        if (!oldRegionNames.isEmpty()) {
+            LOGGER.debug("Removing the timers of old regions {} of {}", oldRegionNames, tableDisplayName);
+            regionTimers.keySet().removeAll(oldRegionNames);
+        }
+    }
+
+    Map<String, Timer> getRegionTimers() {
+        return regionTimers;
+    }
+
+    /**
+     * @return A human readable summary of the request timings of each region written to, slowest (by mean)
+     * first, for use in health checks
+     */
+    Map<String, String> getRegionTimingsSummary() {
+        final Map<String, String> summary = new LinkedHashMap<>();
+        new TreeMap<>(regionTimers).entrySet().stream()
+                .sorted((entry1, entry2) -> Double.compare(
+                        entry2.getValue().getSnapshot().getMean(),
+                        entry1.getValue().getSnapshot().getMean()))
+                .forEach(entry -> {
+                    final Timer timer = entry.getValue();
+                    final Snapshot snapshot = timer.getSnapshot();
+                    summary.put(entry.getKey(), String.format("count %,d mean %.1fms max %.1fms",
+                            timer.getCount(),
+                            snapshot.getMean() / TimeUnit.MILLISECONDS.toNanos(1),
+                            (double) snapshot.getMax() / TimeUnit.MILLISECONDS.toNanos(1)));
+                });
+        return summary;
+    }
+}
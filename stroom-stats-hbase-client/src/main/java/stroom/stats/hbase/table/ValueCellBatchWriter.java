@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import stroom.stats.hbase.structure.CellQualifier;
+import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.structure.ValueCellValue;
+import stroom.stats.util.logging.LambdaLogger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates a batch of {@link ValueCellValue} deltas into the value cells of a table using one
+ * {@link Table} for the whole batch. The current values of the cells are read with a multi-get per batch of
+ * rows, the merged values are computed locally and then written with a check-and-put so a cell is only
+ * written if nobody else has changed it since it was read. Only the cells whose check fails are re-read and
+ * retried.
+ */
+final class ValueCellBatchWriter {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(ValueCellBatchWriter.class);
+
+    private ValueCellBatchWriter() {
+    }
+
+    /**
+     * @param tableInterface The table to write to, left open for the caller to close
+     * @param columnFamily   The column family holding the value cells
+     * @param cellValues     The delta to aggregate into each cell
+     * @param maxAttempts    The number of times a cell will be read and check-and-put before giving up
+     * @param maxRowsPerGet  The maximum number of rows to read in one multi-get
+     */
+    static void addValues(final Table tableInterface,
+                          final byte[] columnFamily,
+                          final Map<CellQualifier, ValueCellValue> cellValues,
+                          final int maxAttempts,
+                          final int maxRowsPerGet) {
+
+        Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be > 0");
+        Preconditions.checkArgument(maxRowsPerGet > 0, "maxRowsPerGet must be > 0");
+
+        //the cells still to be written, grouped by row so we can read all the cells of a row with one get
+        Map<RowKey, List<CellQualifier>> pendingRows = groupByRow(cellValues.keySet());
+        int attempt = 0;
+
+        while (!pendingRows.isEmpty() && attempt++ < maxAttempts) {
+            final List<CellQualifier> conflictedCells = new ArrayList<>();
+
+            for (final List<RowKey> rowKeys : Iterables.partition(pendingRows.keySet(), maxRowsPerGet)) {
+                final Result[] results = getRows(tableInterface, columnFamily, rowKeys, pendingRows);
+
+                for (int i = 0; i < rowKeys.size(); i++) {
+                    for (final CellQualifier cellQualifier : pendingRows.get(rowKeys.get(i))) {
+                        final boolean hasPutSucceeded = checkAndPut(
+                                tableInterface,
+                                columnFamily,
+                                cellQualifier,
+                                results[i],
+                                cellValues.get(cellQualifier));
+
+                        if (!hasPutSucceeded) {
+                            conflictedCells.add(cellQualifier);
+                        }
+                    }
+                }
+            }
+
+            final int finalAttempt = attempt;
+            LOGGER.trace(() -> String.format("Attempt %s, %s of %s cells failed their check",
+                    finalAttempt, conflictedCells.size(), cellValues.size()));
+
+            pendingRows = groupByRow(conflictedCells);
+        }
+
+        if (!pendingRows.isEmpty()) {
+            throw new RuntimeException(
+                    "Put operation failed after [" + maxAttempts + "] retries for [" +
+                            pendingRows.values().stream().mapToInt(List::size).sum() +
+                            "] cells, e.g. cellQualifier [" + pendingRows.values().iterator().next().get(0) + "]");
+        }
+    }
+
+    private static Map<RowKey, List<CellQualifier>> groupByRow(final Iterable<CellQualifier> cellQualifiers) {
+        final Map<RowKey, List<CellQualifier>> rows = new LinkedHashMap<>();
+        for (final CellQualifier cellQualifier : cellQualifiers) {
+            rows.computeIfAbsent(cellQualifier.getRowKey(), k -> new ArrayList<>()).add(cellQualifier);
+        }
+        return rows;
+    }
+
+    private static Result[] getRows(final Table tableInterface,
+                                    final byte[] columnFamily,
+                                    final List<RowKey> rowKeys,
+                                    final Map<RowKey, List<CellQualifier>> rowCells) {
+        final List<Get> gets = new ArrayList<>(rowKeys.size());
+        for (final RowKey rowKey : rowKeys) {
+            final Get get = new Get(rowKey.asByteArray());
+            for (final CellQualifier cellQualifier : rowCells.get(rowKey)) {
+                get.addColumn(columnFamily, cellQualifier.getColumnQualifier().getBytes());
+            }
+            gets.add(get);
+        }
+        return HBaseTable.doGets(tableInterface, gets);
+    }
+
+    private static boolean checkAndPut(final Table tableInterface,
+                                       final byte[] columnFamily,
+                                       final CellQualifier cellQualifier,
+                                       final Result currentRow,
+                                       final ValueCellValue valueCellValue) {
+        final byte[] bRowKey = cellQualifier.getRowKey().asByteArray();
+        final byte[] bColumnQualifier = cellQualifier.getColumnQualifier().getBytes();
+
+        final Cell existingCell = currentRow.getColumnLatestCell(columnFamily, bColumnQualifier);
+
+        final byte[] currCellValueBytes;
+        final ValueCellValue newCellValue;
+        if (existingCell != null) {
+            final ValueCellValue currCellValue = new ValueCellValue(
+                    existingCell.getValueArray(), existingCell.getValueOffset(), existingCell.getValueLength());
+            currCellValueBytes = currCellValue.asByteArray();
+            // aggregate the new value into the existing cell, incrementing
+            // the count and working out the max/min
+            newCellValue = currCellValue.addAggregatedValues(valueCellValue);
+        } else {
+            //nothing there for this rowKey/colQual so just use our value as is
+            currCellValueBytes = null;
+            newCellValue = valueCellValue;
+        }
+
+        final Put put = new Put(bRowKey).addColumn(columnFamily, bColumnQualifier, newCellValue.asByteArray());
+
+        // atomic operation to only do the put if the cell value still looks like what we read
+        return HBaseTable.doCheckAndPut(
+                tableInterface, bRowKey, columnFamily, bColumnQualifier, currCellValueBytes, put);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import stroom.stats.hbase.structure.CellQualifier;
+import stroom.stats.hbase.structure.ColumnQualifier;
+import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.structure.ValueCellParts;
+import stroom.stats.hbase.structure.ValueCellValue;
+import stroom.stats.util.logging.LambdaLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates a batch of {@link ValueCellValue} deltas into value cells held in the
+ * {@link stroom.stats.hbase.structure.ValueCellLayout#INCREMENT} layout, see {@link ValueCellParts}.
+ * The min and max cells are first read with a multi-get and only those cells where the delta extends the bound
+ * are written, using check-and-put so a concurrent wider bound is never overwritten. The count and sum of all
+ * cells in a row are then added with a single {@link Increment} and the increments for all rows are sent as one
+ * batch, in the same way as count statistics. The bounds go first as they can safely be written again if the
+ * batch is retried, whereas the increments can't.
+ *
+ * A delta whose sum is too large to be safely incremented at the sum scale (see
+ * {@link ValueCellParts#isFixedPointDelta(double, int)}) is not written and is handed back to the caller to
+ * aggregate into the {@link stroom.stats.hbase.structure.ValueCellLayout#COMPOUND} cell instead.
+ */
+final class ValueCellIncrementWriter {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(ValueCellIncrementWriter.class);
+
+    private ValueCellIncrementWriter() {
+    }
+
+    /**
+     * @param tableInterface The table to write to, left open for the caller to close
+     * @param columnFamily   The column family holding the value cells
+     * @param cellValues     The delta to aggregate into each cell
+     * @param sumScale       The number of decimal places to hold the sum to
+     * @param maxAttempts    The number of times a bound will be read and check-and-put before giving up
+     * @param maxRowsPerGet  The maximum number of rows to read in one multi-get
+     * @return The deltas that were not written as their sum does not fit the INCREMENT layout at this scale
+     */
+    static Map<CellQualifier, ValueCellValue> addValues(final Table tableInterface,
+                          final byte[] columnFamily,
+                          final Map<CellQualifier, ValueCellValue> cellValues,
+                          final int sumScale,
+                          final int maxAttempts,
+                          final int maxRowsPerGet) {
+
+        final Map<CellQualifier, ValueCellValue> incrementCellValues = new HashMap<>(cellValues.size());
+        final Map<CellQualifier, ValueCellValue> rejectedCellValues = new HashMap<>();
+        cellValues.forEach((cellQualifier, valueCellValue) -> {
+            if (ValueCellParts.isFixedPointDelta(valueCellValue.getAggregatedValue(), sumScale)) {
+                incrementCellValues.put(cellQualifier, valueCellValue);
+            } else {
+                rejectedCellValues.put(cellQualifier, valueCellValue);
+            }
+        });
+        if (!rejectedCellValues.isEmpty()) {
+            LOGGER.debug(() -> String.format("%s value deltas are too large to increment with sum scale %s",
+                    rejectedCellValues.size(), sumScale));
+        }
+
+        //if the bounds can't be updated we fail before incrementing anything, so the batch can be retried without
+        //counting it twice
+        updateBounds(tableInterface, columnFamily, incrementCellValues, maxAttempts, maxRowsPerGet);
+
+        final Map<RowKey, List<CellQualifier>> rows = groupByRow(incrementCellValues);
+
+        final List<Increment> increments = new ArrayList<>(rows.size());
+        rows.forEach((rowKey, cellQualifiers) -> {
+            final Increment increment = new Increment(rowKey.asByteArray());
+            for (final CellQualifier cellQualifier : cellQualifiers) {
+                final ValueCellValue valueCellValue = incrementCellValues.get(cellQualifier);
+                final ColumnQualifier columnQualifier = cellQualifier.getColumnQualifier();
+                increment.addColumn(
+                        columnFamily,
+                        ValueCellParts.countQualifier(columnQualifier),
+                        valueCellValue.getCount());
+                increment.addColumn(
+                        columnFamily,
+                        ValueCellParts.sumQualifier(columnQualifier, sumScale),
+                        ValueCellParts.toFixedPoint(valueCellValue.getAggregatedValue(), sumScale));
+            }
+            increments.add(increment);
+        });
+
+        HBaseTable.doBatch(tableInterface, increments, new Object[increments.size()]);
+        LOGGER.trace(() -> String.format("%s value increments sent to HBase", increments.size()));
+
+        return rejectedCellValues;
+    }
+
+    /**
+     * Merges the min and max of each delta into the min and max cells of the
+     * {@link stroom.stats.hbase.structure.ValueCellLayout#INCREMENT} layout. As min and max are idempotent this
+     * can safely be repeated for the same deltas.
+     */
+    static void updateBounds(final Table tableInterface,
+                             final byte[] columnFamily,
+                             final Map<CellQualifier, ValueCellValue> cellValues,
+                             final int maxAttempts,
+                             final int maxRowsPerGet) {
+
+        Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be > 0");
+        Preconditions.checkArgument(maxRowsPerGet > 0, "maxRowsPerGet must be > 0");
+
+        Map<RowKey, List<CellQualifier>> pendingRows = groupByRow(cellValues);
+        int attempt = 0;
+
+        while (!pendingRows.isEmpty() && attempt++ < maxAttempts) {
+            final List<CellQualifier> conflictedCells = new ArrayList<>();
+
+            for (final List<RowKey> rowKeys : Iterables.partition(pendingRows.keySet(), maxRowsPerGet)) {
+                final List<Get> gets = new ArrayList<>(rowKeys.size());
+                for (final RowKey rowKey : rowKeys) {
+                    final Get get = new Get(rowKey.asByteArray());
+                    for (final CellQualifier cellQualifier : pendingRows.get(rowKey)) {
+                        get.addColumn(columnFamily, ValueCellParts.minQualifier(cellQualifier.getColumnQualifier()));
+                        get.addColumn(columnFamily, ValueCellParts.maxQualifier(cellQualifier.getColumnQualifier()));
+                    }
+                    gets.add(get);
+                }
+                final Result[] results = HBaseTable.doGets(tableInterface, gets);
+
+                for (int i = 0; i < rowKeys.size(); i++) {
+                    for (final CellQualifier cellQualifier : pendingRows.get(rowKeys.get(i))) {
+                        final ValueCellValue valueCellValue = cellValues.get(cellQualifier);
+                        final ColumnQualifier columnQualifier = cellQualifier.getColumnQualifier();
+
+                        final boolean isMinDone = checkAndPutBound(
+                                tableInterface,
+                                columnFamily,
+                                cellQualifier.getRowKey().asByteArray(),
+                                ValueCellParts.minQualifier(columnQualifier),
+                                results[i],
+                                valueCellValue.getMinValue(),
+                                true);
+                        final boolean isMaxDone = checkAndPutBound(
+                                tableInterface,
+                                columnFamily,
+                                cellQualifier.getRowKey().asByteArray(),
+                                ValueCellParts.maxQualifier(columnQualifier),
+                                results[i],
+                                valueCellValue.getMaxValue(),
+                                false);
+
+                        if (!isMinDone || !isMaxDone) {
+                            conflictedCells.add(cellQualifier);
+                        }
+                    }
+                }
+            }
+
+            final int finalAttempt = attempt;
+            LOGGER.trace(() -> String.format("Attempt %s, %s of %s bounds failed their check",
+                    finalAttempt, conflictedCells.size(), cellValues.size()));
+
+            final Map<RowKey, List<CellQualifier>> conflictedRows = new LinkedHashMap<>();
+            for (final CellQualifier cellQualifier : conflictedCells) {
+                conflictedRows.computeIfAbsent(cellQualifier.getRowKey(), k -> new ArrayList<>()).add(cellQualifier);
+            }
+            pendingRows = conflictedRows;
+        }
+
+        if (!pendingRows.isEmpty()) {
+            throw new RuntimeException(
+                    "Min/max update failed after [" + maxAttempts + "] retries for [" +
+                            pendingRows.values().stream().mapToInt(List::size).sum() +
+                            "] cells, e.g. cellQualifier [" + pendingRows.values().iterator().next().get(0) + "]");
+        }
+    }
+
+    /**
+     * @return True if the bound cell already covers the value or was successfully updated, false if another
+     * writer changed it since it was read
+     */
+    private static boolean checkAndPutBound(final Table tableInterface,
+                                            final byte[] columnFamily,
+                                            final byte[] bRowKey,
+                                            final byte[] bQualifier,
+                                            final Result currentRow,
+                                            final double value,
+                                            final boolean isMin) {
+
+        final Cell existingCell = currentRow.getColumnLatestCell(columnFamily, bQualifier);
+        final byte[] existingBytes;
+        if (existingCell != null) {
+            final double existingValue = Bytes.toDouble(existingCell.getValueArray(), existingCell.getValueOffset());
+            if (isMin ? value >= existingValue : value <= existingValue) {
+                //bound unchanged so nothing to write
+                return true;
+            }
+            existingBytes = Bytes.copy(
+                    existingCell.getValueArray(), existingCell.getValueOffset(), existingCell.getValueLength());
+        } else {
+            existingBytes = null;
+        }
+
+        final Put put = new Put(bRowKey).addColumn(columnFamily, bQualifier, Bytes.toBytes(value));
+        return HBaseTable.doCheckAndPut(tableInterface, bRowKey, columnFamily, bQualifier, existingBytes, put);
+    }
+
+    private static Map<RowKey, List<CellQualifier>> groupByRow(final Map<CellQualifier, ValueCellValue> cellValues) {
+        final Map<RowKey, List<CellQualifier>> rows = new LinkedHashMap<>();
+        cellValues.forEach((cellQualifier, valueCellValue) -> {
+            //an empty delta has nothing to add
+            if (!valueCellValue.isEmpty()) {
+                rows.computeIfAbsent(cellQualifier.getRowKey(), k -> new ArrayList<>()).add(cellQualifier);
+            }
+        });
+        return rows;
+    }
+}
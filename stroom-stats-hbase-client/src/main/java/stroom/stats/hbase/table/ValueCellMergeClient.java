@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import com.google.common.base.Preconditions;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.exceptions.UnknownProtocolException;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos.MutationProto.MutationType;
+import org.apache.hadoop.hbase.protobuf.generated.MultiRowMutationProtos.MutateRowsRequest;
+import org.apache.hadoop.hbase.protobuf.generated.RowProcessorProtos.ProcessRequest;
+import org.apache.hadoop.hbase.protobuf.generated.RowProcessorProtos.RowProcessorService;
+import org.apache.hadoop.hbase.regionserver.WrongRegionException;
+import org.apache.hadoop.ipc.RemoteException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Client side of the value cell merge coprocessor in the stroom-stats-hbase-coprocessor module. Sends a batch
+ * of value cell deltas for rows in a single region to the region server's
+ * {@link org.apache.hadoop.hbase.coprocessor.BaseRowProcessorEndpoint} which runs
+ * stroom.stats.hbase.coprocessor.ValueCellMergeRowProcessor to merge them into the stored cells atomically.
+ * The processor is referenced by name as its module is only deployed on the region servers.
+ */
+final class ValueCellMergeClient {
+
+    static final String ROW_PROCESSOR_CLASS_NAME = "stroom.stats.hbase.coprocessor.ValueCellMergeRowProcessor";
+
+    private ValueCellMergeClient() {
+    }
+
+    /**
+     * @param deltas One {@link Put} per row, each holding the delta {@link stroom.stats.hbase.structure.ValueCellValue}
+     *               bytes for the cells in that row. All rows must be in the same region.
+     */
+    static ProcessRequest buildRequest(final List<Put> deltas) throws IOException {
+        Preconditions.checkArgument(!deltas.isEmpty(), "deltas is empty");
+
+        final MutateRowsRequest.Builder mutateRowsRequestBuilder = MutateRowsRequest.newBuilder();
+        for (final Put delta : deltas) {
+            mutateRowsRequestBuilder.addMutationRequest(ProtobufUtil.toMutation(MutationType.PUT, delta));
+        }
+
+        return ProcessRequest.newBuilder()
+                .setRowProcessorClassName(ROW_PROCESSOR_CLASS_NAME)
+                .setRowProcessorInitializerMessageName(MutateRowsRequest.class.getName())
+                .setRowProcessorInitializerMessage(mutateRowsRequestBuilder.build().toByteString())
+                .build();
+    }
+
+    /**
+     * Merges the deltas into the stored cells in one RPC to the region holding the first row.
+     * All rows must be in the same region.
+     */
+    static void merge(final Table table, final List<Put> deltas) throws Exception {
+        final ProcessRequest request = buildRequest(deltas);
+
+        RowProcessorService.newBlockingStub(table.coprocessorService(deltas.get(0).getRow()))
+                .process(null, request);
+    }
+
+    /**
+     * @return True if the exception shows the region server rejected the request before applying any of it,
+     * i.e. the endpoint is not deployed or the rows no longer all belong to the region (e.g. after a split), so
+     * it is safe to re-apply the same deltas another way. Any other failure (e.g. a timeout) may have happened
+     * after the merge was applied.
+     */
+    static boolean isRejectedBeforeApply(final Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause != null) {
+            if (cause instanceof UnknownProtocolException || cause instanceof WrongRegionException) {
+                return true;
+            } else if (cause instanceof RemoteException) {
+                final String className = ((RemoteException) cause).getClassName();
+                if (UnknownProtocolException.class.getName().equals(className)
+                        || WrongRegionException.class.getName().equals(className)) {
+                    return true;
+                }
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.util.Bytes;
+import stroom.stats.hbase.exception.HBaseException;
+import stroom.stats.hbase.structure.CellQualifier;
+import stroom.stats.hbase.structure.ColumnQualifier;
+import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.structure.RowKeySalt;
+import stroom.stats.hbase.structure.ValueCellLayout;
+import stroom.stats.hbase.structure.ValueCellParts;
+import stroom.stats.hbase.structure.ValueCellValue;
+import stroom.stats.util.logging.LambdaLogger;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Moves value statistic cells between the {@link ValueCellLayout#COMPOUND} and {@link ValueCellLayout#INCREMENT}
+ * layouts one time interval at a time. Each interval is moved with a single check-and-mutate on the cell that
+ * the writers of the target layout change, so it is safe to run while values are being written, provided all
+ * writers have already been switched to the target layout. Intervals already in the target layout are left
+ * untouched so a migration can be re-run or resumed.
+ */
+final class ValueCellMigrator {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(ValueCellMigrator.class);
+
+    private ValueCellMigrator() {
+    }
+
+    /**
+     * Migrates every time interval in the passed row that has cells in a layout other than the target
+     *
+     * @return The number of time intervals migrated
+     */
+    static int migrateRow(final Table tableInterface,
+                          final byte[] columnFamily,
+                          final Result row,
+                          final RowKeySalt rowKeySalt,
+                          final ValueCellLayout targetLayout,
+                          final int sumScale,
+                          final int maxAttempts) {
+
+        //the column qualifiers of the intervals that need moving, in row order
+        final Set<ColumnQualifier> columnQualifiers = new TreeSet<>();
+        for (final Cell cell : row.rawCells()) {
+            final boolean isCompound = ValueCellParts.isCompoundQualifier(cell.getQualifierLength());
+            if (isCompound != ValueCellLayout.COMPOUND.equals(targetLayout)) {
+                columnQualifiers.add(ColumnQualifier.from(CellUtil.cloneQualifier(cell)));
+            }
+        }
+
+        int migratedCount = 0;
+        for (final ColumnQualifier columnQualifier : columnQualifiers) {
+            final boolean isMigrated;
+            if (ValueCellLayout.INCREMENT.equals(targetLayout)) {
+                isMigrated = migrateToIncrement(
+                        tableInterface, columnFamily, row.getRow(), rowKeySalt, columnQualifier, sumScale, maxAttempts);
+            } else {
+                isMigrated = migrateToCompound(
+                        tableInterface, columnFamily, row.getRow(), columnQualifier, maxAttempts);
+            }
+            if (isMigrated) {
+                migratedCount++;
+            }
+        }
+        return migratedCount;
+    }
+
+    /**
+     * Adds the compound cell into the count/sum/min/max cells and deletes it. The min/max are merged first as
+     * that is idempotent, then the count/sum are set and the compound cell deleted atomically, conditional
+     * on the count cell being unchanged, as that is incremented by every write in the INCREMENT layout.
+     * The compound cell is left in place if the combined sum does not fit in a fixed point long at sumScale.
+     */
+    static boolean migrateToIncrement(final Table tableInterface,
+                                      final byte[] columnFamily,
+                                      final byte[] bRowKey,
+                                      final RowKeySalt rowKeySalt,
+                                      final ColumnQualifier columnQualifier,
+                                      final int sumScale,
+                                      final int maxAttempts) {
+
+        final byte[] compoundQualifier = columnQualifier.getBytes();
+        final byte[] countQualifier = ValueCellParts.countQualifier(columnQualifier);
+        final byte[] sumQualifier = ValueCellParts.sumQualifier(columnQualifier, sumScale);
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            final Get get = new Get(bRowKey)
+                    .addColumn(columnFamily, compoundQualifier)
+                    .addColumn(columnFamily, countQualifier)
+                    .addColumn(columnFamily, sumQualifier);
+            final Result result = HBaseTable.doGet(tableInterface, get);
+
+            final Cell compoundCell = result.getColumnLatestCell(columnFamily, compoundQualifier);
+            if (compoundCell == null) {
+                return false;
+            }
+            final ValueCellValue compoundValue = new ValueCellValue(CellUtil.cloneValue(compoundCell));
+
+            final Cell countCell = result.getColumnLatestCell(columnFamily, countQualifier);
+            final Cell sumCell = result.getColumnLatestCell(columnFamily, sumQualifier);
+            final byte[] currentCountBytes = countCell == null ? null : CellUtil.cloneValue(countCell);
+            final long currentCount = currentCountBytes == null ? 0 : Bytes.toLong(currentCountBytes);
+            final long currentSum = sumCell == null ? 0 : Bytes.toLong(CellUtil.cloneValue(sumCell));
+
+            final long newSum;
+            try {
+                newSum = Math.addExact(currentSum, ValueCellParts.toFixedPoint(
+                        compoundValue.getAggregatedValue(), sumScale));
+            } catch (final ArithmeticException e) {
+                //the sum is too large for the INCREMENT layout at this scale so leave it in the COMPOUND cell
+                LOGGER.debug("Not migrating {} to INCREMENT as its sum does not fit at scale {}",
+                        columnQualifier, sumScale);
+                return false;
+            }
+
+            if (!compoundValue.isEmpty()) {
+                ValueCellIncrementWriter.updateBounds(
+                        tableInterface,
+                        columnFamily,
+                        Collections.singletonMap(
+                                new CellQualifier(new RowKey(bRowKey, rowKeySalt), columnQualifier, 0),
+                                compoundValue),
+                        maxAttempts,
+                        1);
+            }
+
+            final RowMutations rowMutations = new RowMutations(bRowKey);
+            try {
+                rowMutations.add(new Put(bRowKey)
+                        .addColumn(columnFamily, countQualifier,
+                                Bytes.toBytes(currentCount + compoundValue.getCount()))
+                        .addColumn(columnFamily, sumQualifier,
+                                Bytes.toBytes(newSum)));
+                rowMutations.add(new Delete(bRowKey)
+                        .addColumn(columnFamily, compoundQualifier, compoundCell.getTimestamp()));
+
+                if (tableInterface.checkAndMutate(
+                        bRowKey, columnFamily, countQualifier, CompareOp.EQUAL, currentCountBytes, rowMutations)) {
+                    return true;
+                }
+            } catch (final Exception e) {
+                throw new HBaseException(e.getMessage(), e);
+            }
+            LOGGER.trace("Migration of {} to INCREMENT failed its check on attempt {}", columnQualifier, attempt);
+        }
+        throw new RuntimeException("Migration to INCREMENT failed after [" + maxAttempts + "] retries for row ["
+                + Bytes.toStringBinary(bRowKey) + "] columnQualifier [" + columnQualifier + "]");
+    }
+
+    /**
+     * Aggregates the count/sum/min/max cells into the compound cell and deletes them atomically, conditional on
+     * the compound cell being unchanged, as that is what every write in the COMPOUND layout changes.
+     */
+    static boolean migrateToCompound(final Table tableInterface,
+                                     final byte[] columnFamily,
+                                     final byte[] bRowKey,
+                                     final ColumnQualifier columnQualifier,
+                                     final int maxAttempts) {
+
+        final byte[] compoundQualifier = columnQualifier.getBytes();
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            //all the cells of the interval share the column qualifier as a prefix, including sums of any scale
+            final Get get = new Get(bRowKey)
+                    .addFamily(columnFamily)
+                    .setFilter(new ColumnPrefixFilter(compoundQualifier));
+            final Result result = HBaseTable.doGet(tableInterface, get);
+            if (result.isEmpty()) {
+                return false;
+            }
+
+            final ValueCellParts valueCellParts = new ValueCellParts();
+            final Delete delete = new Delete(bRowKey);
+            byte[] currentCompoundBytes = null;
+            boolean hasParts = false;
+
+            for (final Cell cell : result.rawCells()) {
+                valueCellParts.addCell(
+                        cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength(),
+                        cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+
+                if (ValueCellParts.isCompoundQualifier(cell.getQualifierLength())) {
+                    currentCompoundBytes = CellUtil.cloneValue(cell);
+                } else {
+                    delete.addColumn(columnFamily, CellUtil.cloneQualifier(cell), cell.getTimestamp());
+                    hasParts = true;
+                }
+            }
+
+            if (!hasParts) {
+                return false;
+            }
+
+            final RowMutations rowMutations = new RowMutations(bRowKey);
+            try {
+                rowMutations.add(new Put(bRowKey)
+                        .addColumn(columnFamily, compoundQualifier, valueCellParts.toValueCellValue().asByteArray()));
+                rowMutations.add(delete);
+
+                if (tableInterface.checkAndMutate(
+                        bRowKey, columnFamily, compoundQualifier, CompareOp.EQUAL, currentCompoundBytes, rowMutations)) {
+                    return true;
+                }
+            } catch (final Exception e) {
+                throw new HBaseException(e.getMessage(), e);
+            }
+            LOGGER.trace("Migration of {} to COMPOUND failed its check on attempt {}", columnQualifier, attempt);
+        }
+        throw new RuntimeException("Migration to COMPOUND failed after [" + maxAttempts + "] retries for row ["
+                + Bytes.toStringBinary(bRowKey) + "] columnQualifier [" + columnQualifier + "]");
+    }
+}
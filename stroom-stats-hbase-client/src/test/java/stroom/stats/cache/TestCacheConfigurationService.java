@@ -20,7 +20,10 @@
 package stroom.stats.cache;
 
 import org.ehcache.config.CacheConfiguration;
+import org.ehcache.config.ResourceType;
+import org.ehcache.config.SizedResourcePool;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.units.MemoryUnit;
 import org.ehcache.expiry.Duration;
 import org.ehcache.expiry.Expirations;
 import org.junit.Test;
@@ -59,6 +62,24 @@ public class TestCacheConfigurationService {
 
     }
 
+    @Test
+    public void newCacheConfigurationBuilder_heapByWeight() throws Exception {
+
+        //given
+        addProp(CacheConfigurationServiceImpl.PROP_KEY_SUFFIX_MAX_MB_HEAP,10);
+        addProp(CacheConfigurationServiceImpl.PROP_KEY_SUFFIX_MAX_OBJECT_GRAPH_SIZE,5000);
+
+        //when
+
+        CacheConfigurationBuilder<String,String> builder = cacheConfigurationService.newCacheConfigurationBuilder(CACHE_NAME, String.class, String.class);
+        CacheConfiguration<String, String> cacheConfiguration = builder.build();
+
+        //then
+        SizedResourcePool heapPool = cacheConfiguration.getResourcePools().getPoolForResource(ResourceType.Core.HEAP);
+        assertThat(heapPool.getSize()).isEqualTo(10);
+        assertThat(heapPool.getUnit()).isEqualTo(MemoryUnit.MB);
+    }
+
     @Test(expected = RuntimeException.class)
     public void newCacheConfigurationBuilder_twoExpiries() throws Exception {
 
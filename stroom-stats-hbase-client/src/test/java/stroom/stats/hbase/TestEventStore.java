@@ -21,6 +21,7 @@
 
 package stroom.stats.hbase;
 
+import com.google.common.util.concurrent.RateLimiter;
 import org.assertj.core.api.Assertions;
 import org.junit.Assert;
 import org.junit.Test;
@@ -29,6 +30,7 @@ import stroom.stats.common.FilterTermsTree;
 import stroom.stats.common.FilterTermsTree.OperatorNode;
 import stroom.stats.common.SearchStatisticsCriteria;
 import stroom.stats.common.Period;
+import stroom.stats.common.StatisticDataPoint;
 import stroom.stats.common.StatisticDataSet;
 import stroom.stats.common.rollup.RollUpBitMask;
 import stroom.stats.configuration.*;
@@ -44,11 +46,13 @@ import stroom.stats.streams.aggregation.StatAggregate;
 import stroom.stats.util.DateUtil;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 public class TestEventStore {
     EventStoreForTesting eventStore;
     MockEventStoreTable mockEventStoreTable;
     MockEventStoreTableFactory mockTableFactory;
+    MockStroomPropertyService propertyService;
 
     private static final String STAT_NAME = "MyStatName";
     private static final String TAG0 = "tag0";
@@ -330,6 +334,42 @@ public class TestEventStore {
                 DateUtil.createNormalDateTimeString(purgeArgs2.purgeUpToTimeMs));
     }
 
+    @Test
+    public void testPurgeStatisticDataSourceTtlRetentionMode() {
+        buildEventStore(EventStoreTimeIntervalEnum.MINUTE, "2015-05-12T14:01:01.000Z", 2);
+        propertyService.setProperty(HBaseStatisticConstants.DATA_STORE_RETENTION_MODE_PROPERTY_NAME,
+                RetentionMode.TTL.name());
+
+        final List<StatisticConfiguration> statisticConfigurations = new ArrayList<>();
+
+        final MockStatisticConfiguration statisticConfiguration = new MockStatisticConfiguration();
+        statisticConfiguration.setName("MyStat1");
+        statisticConfiguration.setUuid("uuid1");
+        statisticConfiguration.setEngineName(HBaseStatisticsService.ENGINE_NAME);
+        statisticConfiguration.setRollUpType(StatisticRollUpType.ALL);
+        statisticConfigurations.add(statisticConfiguration);
+
+        final MockStatisticConfiguration statisticConfiguration2 = new MockStatisticConfiguration();
+        statisticConfiguration2.setName("MyStat2");
+        statisticConfiguration2.setUuid("uuid2");
+        statisticConfiguration2.setEngineName(HBaseStatisticsService.ENGINE_NAME);
+        statisticConfiguration2.setRollUpType(StatisticRollUpType.ALL);
+        statisticConfigurations.add(statisticConfiguration2);
+
+        //only MyStat2 has a shorter retention than the store so only it needs purging
+        propertyService.setProperty(HBaseStatisticConstants.DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX
+                + "minute.uuid2", "1");
+
+        eventStore.purgeStatisticDataSourceData(null, statisticConfigurations, PurgeMode.OUTSIDE_RETENTION);
+
+        Assert.assertEquals(1, mockEventStoreTable.getPurgeArgs().size());
+
+        final PurgeArgsObject purgeArgs = mockEventStoreTable.getPurgeArgs().get(0);
+
+        Assert.assertEquals(statisticConfiguration2.getName(), purgeArgs.getStatisticName());
+        Assert.assertEquals("2015-05-11T00:00:00.000Z", DateUtil.createNormalDateTimeString(purgeArgs.purgeUpToTimeMs));
+    }
+
     @Test
     public void testPurgeStatisticDataSourceTwoDataSourcesTwoTagsRollUpDisabledOnOne() {
         buildEventStore(EventStoreTimeIntervalEnum.MINUTE, "2015-05-12T14:01:01.000Z", 2);
@@ -398,7 +438,7 @@ public class TestEventStore {
         mockEventStoreTable = new MockEventStoreTable();
         mockTableFactory = new MockEventStoreTableFactory(mockEventStoreTable);
 
-        final MockStroomPropertyService propertyService = new MockStroomPropertyService();
+        propertyService = new MockStroomPropertyService();
         propertyService.setProperty(HBaseStatisticConstants.DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX
                 + interval.longName().toLowerCase(), Integer.toString(retainedIntervalCount));
 
@@ -541,6 +581,13 @@ public class TestEventStore {
             throw new UnsupportedOperationException("Not used by this mock");
         }
 
+        @Override
+        public long streamStatisticsData(final UniqueIdCache uniqueIdCache,
+                final StatisticConfiguration statisticConfiguration, final RollUpBitMask rollUpBitMask,
+                final SearchStatisticsCriteria criteria, final Consumer<StatisticDataPoint> dataPointConsumer) {
+            throw new UnsupportedOperationException("Not used by this mock");
+        }
+
         @Override
         public boolean doesStatisticExist(final UniqueIdCache uniqueIdCache,
                 final StatisticConfiguration statisticConfiguration) {
@@ -555,13 +602,13 @@ public class TestEventStore {
         }
 
         @Override
-        public void purgeUntilTime(final UniqueIdCache uniqueIdCache, final StatisticConfiguration statisticConfiguration, final RollUpBitMask rollUpBitMask, final long purgeUpToTimeMs) {
+        public long purgeUntilTime(final UniqueIdCache uniqueIdCache, final StatisticConfiguration statisticConfiguration, final RollUpBitMask rollUpBitMask, final long purgeUpToTimeMs, final RateLimiter deleteRateLimiter) {
             final String statisticName = statisticConfiguration.getName();
             purgeArgs.add(new PurgeArgsObject(statisticName, rollUpBitMask, purgeUpToTimeMs));
             names.add(statisticName);
             masks.add(rollUpBitMask);
             times.add(purgeUpToTimeMs);
-
+            return 0;
         }
 
         @Override
@@ -595,5 +642,15 @@ public class TestEventStore {
             throw new UnsupportedOperationException("Not used by this mock");
         }
 
+        @Override
+        public long migrateValueCells() {
+            throw new UnsupportedOperationException("Not used by this mock");
+        }
+
+        @Override
+        public int reconcileColumnFamilies() {
+            throw new UnsupportedOperationException("Not used by this mock");
+        }
+
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import org.junit.Before;
+import org.junit.Test;
+import stroom.stats.api.StatisticType;
+import stroom.stats.common.rollup.RollUpBitMask;
+import stroom.stats.hbase.table.EventStoreTable;
+import stroom.stats.hbase.uid.UID;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.StatEventKey;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestEventStoreWriteBuffer {
+
+    private static final UID STAT_UUID = UID.from(new byte[]{0, 0, 0, 1});
+    private static final long TIME_MS = 1_500_000_000_000L;
+
+    private final EventStoreTable eventStoreTable = mock(EventStoreTable.class);
+    private final List<Map<StatEventKey, StatAggregate>> writes = new ArrayList<>();
+    private final List<CompletableFuture<Void>> writeFutures = new ArrayList<>();
+
+    private long windowMs = 1_000;
+    private int maxSize = 100;
+
+    private EventStoreWriteBuffer writeBuffer;
+
+    @Before
+    public void setup() {
+        when(eventStoreTable.getInterval()).thenReturn(EventStoreTimeIntervalEnum.DAY);
+        doAnswer(invocation -> {
+            writes.add(new HashMap<>(invocation.getArgument(1)));
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            writeFutures.add(future);
+            return future;
+        }).when(eventStoreTable).addAggregatedEventsAsync(any(StatisticType.class), anyMap());
+
+        writeBuffer = new EventStoreWriteBuffer(eventStoreTable, () -> windowMs, () -> maxSize);
+    }
+
+    @Test
+    public void put_coalescesSameKeyAcrossPuts() {
+        final CompletableFuture<Void> future1 = writeBuffer.put(StatisticType.COUNT, events(key(1), 1L, key(2), 10L));
+        final CompletableFuture<Void> future2 = writeBuffer.put(StatisticType.COUNT, events(key(1), 5L));
+
+        assertThat(writes).isEmpty();
+        assertThat(writeBuffer.size()).isEqualTo(2);
+
+        writeBuffer.flush();
+
+        assertThat(writes).hasSize(1);
+        assertThat(writes.get(0)).containsOnlyKeys(key(1), key(2));
+        assertThat(count(writes.get(0), key(1))).isEqualTo(6L);
+        assertThat(count(writes.get(0), key(2))).isEqualTo(10L);
+
+        //futures only complete once the table write has
+        assertThat(future1).isNotDone();
+        assertThat(future2).isNotDone();
+        writeFutures.get(0).complete(null);
+        assertThat(future1).isCompleted();
+        assertThat(future2).isCompleted();
+    }
+
+    @Test
+    public void put_doesNotMutatePassedAggregates() {
+        final Map<StatEventKey, StatAggregate> events1 = events(key(1), 1L);
+        writeBuffer.put(StatisticType.COUNT, events1);
+        writeBuffer.put(StatisticType.COUNT, events(key(1), 5L));
+
+        assertThat(count(events1, key(1))).isEqualTo(1L);
+    }
+
+    @Test
+    public void put_writesWhenMaxSizeReached() {
+        maxSize = 2;
+
+        final CompletableFuture<Void> future1 = writeBuffer.put(StatisticType.COUNT, events(key(1), 1L));
+        assertThat(writes).isEmpty();
+
+        final CompletableFuture<Void> future2 = writeBuffer.put(StatisticType.COUNT, events(key(2), 1L));
+        assertThat(writes).hasSize(1);
+        assertThat(writeBuffer.size()).isEqualTo(0);
+
+        //a new batch with its own future
+        final CompletableFuture<Void> future3 = writeBuffer.put(StatisticType.COUNT, events(key(3), 1L));
+        writeFutures.get(0).complete(null);
+
+        assertThat(future1).isCompleted();
+        assertThat(future2).isCompleted();
+        assertThat(future3).isNotDone();
+    }
+
+    @Test
+    public void flushExpired() {
+        final long startMs = System.currentTimeMillis();
+        writeBuffer.put(StatisticType.COUNT, events(key(1), 1L));
+
+        writeBuffer.flushExpired(startMs - 1);
+        assertThat(writes).isEmpty();
+
+        writeBuffer.flushExpired(System.currentTimeMillis() + windowMs);
+        assertThat(writes).hasSize(1);
+
+        //nothing left to write
+        writeBuffer.flushExpired(System.currentTimeMillis() + windowMs);
+        assertThat(writes).hasSize(1);
+    }
+
+    @Test
+    public void put_windowDisabled() {
+        windowMs = 0;
+
+        final CompletableFuture<Void> future = writeBuffer.put(StatisticType.COUNT, events(key(1), 1L));
+
+        assertThat(writes).hasSize(1);
+        assertThat(writeBuffer.size()).isEqualTo(0);
+        assertThat(future).isSameAs(writeFutures.get(0));
+    }
+
+    @Test
+    public void flush_writeFails() {
+        final CompletableFuture<Void> future = writeBuffer.put(StatisticType.COUNT, events(key(1), 1L));
+
+        writeBuffer.flush();
+        writeFutures.get(0).completeExceptionally(new RuntimeException("HBase is down"));
+
+        assertThat(future).isCompletedExceptionally();
+        assertThatThrownBy(future::join)
+                .isInstanceOf(CompletionException.class)
+                .hasRootCauseInstanceOf(RuntimeException.class);
+    }
+
+    @Test
+    public void flush_empty() {
+        final CompletableFuture<Void> future = writeBuffer.flush();
+
+        assertThat(future).isCompleted();
+        assertThat(writes).isEmpty();
+    }
+
+    private static StatEventKey key(final int offset) {
+        return new StatEventKey(STAT_UUID, RollUpBitMask.ZERO_MASK, EventStoreTimeIntervalEnum.DAY,
+                TIME_MS + (offset * EventStoreTimeIntervalEnum.DAY.columnInterval()));
+    }
+
+    private static Map<StatEventKey, StatAggregate> events(final Object... keysAndCounts) {
+        final Map<StatEventKey, StatAggregate> events = new HashMap<>();
+        for (int i = 0; i < keysAndCounts.length; i += 2) {
+            events.put((StatEventKey) keysAndCounts[i], new CountAggregate((Long) keysAndCounts[i + 1]));
+        }
+        return events;
+    }
+
+    private static long count(final Map<StatEventKey, StatAggregate> events, final StatEventKey key) {
+        return ((CountAggregate) events.get(key)).getAggregatedCount();
+    }
+}
@@ -21,17 +21,20 @@
 
 package stroom.stats.hbase;
 
+import com.codahale.metrics.MetricRegistry;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.junit.MockitoJUnitRunner;
 import stroom.stats.api.StatisticType;
 import stroom.stats.common.CommonStatisticConstants;
 import stroom.stats.hbase.table.EventStoreTable;
 import stroom.stats.hbase.table.EventStoreTableFactory;
+import stroom.stats.hbase.table.PurgeCheckpointTable;
 import stroom.stats.hbase.uid.MockUniqueIdCache;
 import stroom.stats.properties.MockStroomPropertyService;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
@@ -72,7 +75,8 @@ public class TestEventStores {
         // mockTableFactory, mockPropertyService, null,
         // mockEventStoreScheduler);
 
-        eventStores = new EventStores(new MockUniqueIdCache(), mockTableFactory, mockPropertyService);
+        eventStores = new EventStores(new MockUniqueIdCache(), mockTableFactory, mockPropertyService,
+                Mockito.mock(PurgeCheckpointTable.class), Mockito.mock(SearchResultCache.class), new MetricRegistry());
     }
 
     @Test
@@ -162,7 +166,7 @@ public class TestEventStores {
     public static class MockEventStoreTableFactory implements EventStoreTableFactory {
         @Override
         public EventStoreTable getEventStoreTable(final EventStoreTimeIntervalEnum timeinterval) {
-            return null;
+            return Mockito.mock(EventStoreTable.class);
         }
     }
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.RateLimiter;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import stroom.stats.common.rollup.RollUpBitMask;
+import stroom.stats.configuration.MockStatisticConfiguration;
+import stroom.stats.configuration.StatisticConfiguration;
+import stroom.stats.hbase.table.PurgeCheckpointTable;
+import stroom.stats.hbase.uid.MockUniqueIdCache;
+import stroom.stats.hbase.uid.UniqueIdCache;
+import stroom.stats.properties.MockStroomPropertyService;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+
+public class TestRetentionPurgeEngine {
+
+    private static final long PURGE_UP_TO_TIME_MS = 1_000_000L;
+
+    private final UniqueIdCache uniqueIdCache = new MockUniqueIdCache();
+    private final MockStroomPropertyService propertyService = new MockStroomPropertyService();
+    private final PurgeCheckpointTable checkpointTable = Mockito.mock(PurgeCheckpointTable.class);
+    private final EventStore eventStore = Mockito.mock(EventStore.class);
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    private RetentionPurgeEngine retentionPurgeEngine;
+    private PurgeUnit unit1;
+    private PurgeUnit unit2;
+    private List<StatisticConfiguration> statisticConfigurations;
+
+    @Before
+    public void setup() {
+        propertyService.setProperty(HBaseStatisticConstants.DATA_STORE_PURGE_THREADS_PROPERTY_NAME, "2");
+
+        final MockStatisticConfiguration statisticConfiguration = new MockStatisticConfiguration();
+        statisticConfiguration.setName("MyStat");
+        statisticConfiguration.setUuid("uuid1");
+        statisticConfigurations = Collections.singletonList(statisticConfiguration);
+
+        unit1 = new PurgeUnit(EventStoreTimeIntervalEnum.MINUTE, statisticConfiguration,
+                RollUpBitMask.ZERO_MASK, PURGE_UP_TO_TIME_MS);
+        unit2 = new PurgeUnit(EventStoreTimeIntervalEnum.MINUTE, statisticConfiguration,
+                RollUpBitMask.fromTagPositions(Collections.singletonList(0)), PURGE_UP_TO_TIME_MS);
+
+        Mockito.when(eventStore.getPurgeUnits(eq(statisticConfigurations), anyLong()))
+                .thenReturn(Arrays.asList(unit1, unit2));
+        Mockito.when(checkpointTable.getPurgedUpToTime(anyString()))
+                .thenReturn(Optional.empty());
+
+        retentionPurgeEngine = new RetentionPurgeEngine(
+                uniqueIdCache, checkpointTable, propertyService, metricRegistry);
+    }
+
+    @Test
+    public void purge() {
+        Mockito.when(eventStore.purge(eq(uniqueIdCache), any(PurgeUnit.class), any(RateLimiter.class)))
+                .thenReturn(5L);
+
+        final List<RetentionPurgeEngine.UnitResult> results = retentionPurgeEngine.purge(
+                Collections.singletonList(eventStore), statisticConfigurations);
+
+        assertThat(results)
+                .extracting(RetentionPurgeEngine.UnitResult::getStatus)
+                .containsExactly(RetentionPurgeEngine.UnitStatus.PURGED, RetentionPurgeEngine.UnitStatus.PURGED);
+        assertThat(results)
+                .extracting(RetentionPurgeEngine.UnitResult::getRowCount)
+                .containsExactly(5L, 5L);
+        assertThat(metricRegistry.getTimers().get(RetentionPurgeEngine.METRIC_NAME_PREFIX + ".unit").getCount())
+                .isEqualTo(2);
+        assertThat(metricRegistry.getMeters().get(RetentionPurgeEngine.METRIC_NAME_PREFIX + ".rowsDeleted").getCount())
+                .isEqualTo(10);
+        assertThat(metricRegistry.getMeters().get(RetentionPurgeEngine.METRIC_NAME_PREFIX + ".failedUnits").getCount())
+                .isEqualTo(0);
+
+        Mockito.verify(checkpointTable).putPurgedUpToTime(unit1.getCheckpointKey(), PURGE_UP_TO_TIME_MS);
+        Mockito.verify(checkpointTable).putPurgedUpToTime(unit2.getCheckpointKey(), PURGE_UP_TO_TIME_MS);
+    }
+
+    @Test
+    public void purge_resumesFromCheckpoint() {
+        //unit1 was done by a previous run that was stopped before it got to unit2
+        Mockito.when(checkpointTable.getPurgedUpToTime(unit1.getCheckpointKey()))
+                .thenReturn(Optional.of(PURGE_UP_TO_TIME_MS));
+        Mockito.when(eventStore.purge(eq(uniqueIdCache), any(PurgeUnit.class), any(RateLimiter.class)))
+                .thenReturn(5L);
+
+        final List<RetentionPurgeEngine.UnitResult> results = retentionPurgeEngine.purge(
+                Collections.singletonList(eventStore), statisticConfigurations);
+
+        assertThat(results)
+                .extracting(RetentionPurgeEngine.UnitResult::getStatus)
+                .containsExactly(RetentionPurgeEngine.UnitStatus.SKIPPED, RetentionPurgeEngine.UnitStatus.PURGED);
+
+        Mockito.verify(eventStore, Mockito.never()).purge(any(), eq(unit1), any());
+        Mockito.verify(eventStore).purge(any(), eq(unit2), any());
+    }
+
+    @Test
+    public void purge_oldCheckpoint() {
+        //unit1 was purged by an earlier run but only up to an older time
+        Mockito.when(checkpointTable.getPurgedUpToTime(unit1.getCheckpointKey()))
+                .thenReturn(Optional.of(PURGE_UP_TO_TIME_MS - 1));
+
+        final List<RetentionPurgeEngine.UnitResult> results = retentionPurgeEngine.purge(
+                Collections.singletonList(eventStore), statisticConfigurations);
+
+        assertThat(results)
+                .extracting(RetentionPurgeEngine.UnitResult::getStatus)
+                .containsExactly(RetentionPurgeEngine.UnitStatus.PURGED, RetentionPurgeEngine.UnitStatus.PURGED);
+    }
+
+    @Test
+    public void purge_failedUnit() {
+        Mockito.when(eventStore.purge(eq(uniqueIdCache), eq(unit1), any(RateLimiter.class)))
+                .thenThrow(new RuntimeException("Region server down"));
+        Mockito.when(eventStore.purge(eq(uniqueIdCache), eq(unit2), any(RateLimiter.class)))
+                .thenReturn(5L);
+
+        final List<RetentionPurgeEngine.UnitResult> results = retentionPurgeEngine.purge(
+                Collections.singletonList(eventStore), statisticConfigurations);
+
+        assertThat(results)
+                .extracting(RetentionPurgeEngine.UnitResult::getStatus)
+                .containsExactly(RetentionPurgeEngine.UnitStatus.FAILED, RetentionPurgeEngine.UnitStatus.PURGED);
+
+        assertThat(metricRegistry.getMeters().get(RetentionPurgeEngine.METRIC_NAME_PREFIX + ".failedUnits").getCount())
+                .isEqualTo(1);
+
+        //the failed unit is not checkpointed so is retried next time
+        Mockito.verify(checkpointTable, Mockito.never()).putPurgedUpToTime(eq(unit1.getCheckpointKey()), anyLong());
+        Mockito.verify(checkpointTable).putPurgedUpToTime(unit2.getCheckpointKey(), PURGE_UP_TO_TIME_MS);
+    }
+}
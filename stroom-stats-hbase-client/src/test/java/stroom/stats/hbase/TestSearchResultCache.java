@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import stroom.stats.cache.CacheFactory;
+import stroom.stats.common.FilterTermsTree;
+import stroom.stats.common.Period;
+import stroom.stats.common.SearchStatisticsCriteria;
+import stroom.stats.common.StatisticDataPoint;
+import stroom.stats.common.rollup.RollUpBitMask;
+import stroom.stats.properties.MockStroomPropertyService;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.when;
+
+public class TestSearchResultCache {
+
+    private static final String STAT_UUID = "myStatUuid";
+    private static final EventStoreTimeIntervalEnum INTERVAL = EventStoreTimeIntervalEnum.MINUTE;
+    private static final long MINUTE_MS = 60 * 1000L;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+
+    private final MockStroomPropertyService mockPropertyService = new MockStroomPropertyService();
+    private final AtomicInteger searchCount = new AtomicInteger();
+    private final List<List<Long>> searches = new ArrayList<>();
+
+    private CacheManager cacheManager;
+    private SearchResultCache searchResultCache;
+
+    @Before
+    public void setup() {
+        cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+                .withCache(SearchResultCache.CACHE_NAME,
+                        CacheConfigurationBuilder.newCacheConfigurationBuilder(
+                                SearchResultCacheKey.class, StatisticDataPoint[].class, ResourcePoolsBuilder.heap(100))
+                                .build())
+                .build(true);
+        final Cache<SearchResultCacheKey, StatisticDataPoint[]> cache = cacheManager.getCache(
+                SearchResultCache.CACHE_NAME, SearchResultCacheKey.class, StatisticDataPoint[].class);
+
+        final CacheFactory mockCacheFactory = Mockito.mock(CacheFactory.class);
+        when(mockCacheFactory.getOrCreateCache(
+                eq(SearchResultCache.CACHE_NAME),
+                eq(SearchResultCacheKey.class),
+                eq(StatisticDataPoint[].class),
+                any())
+        ).thenReturn(cache);
+
+        mockPropertyService.setProperty(
+                HBaseStatisticConstants.SEARCH_RESULT_CACHE_CLOSED_PERIOD_LAG_SECS_PROPERTY_NAME, "600");
+        mockPropertyService.setProperty(
+                HBaseStatisticConstants.SEARCH_RESULT_CACHE_MAX_DATA_POINTS_PROPERTY_NAME, "10");
+
+        searchResultCache = new SearchResultCache(mockCacheFactory, mockPropertyService);
+    }
+
+    @After
+    public void teardown() {
+        cacheManager.close();
+    }
+
+    @Test
+    public void streamStatisticsData_closedPeriod() {
+        final long now = System.currentTimeMillis();
+        final SearchResultCacheKey key = buildKey(now - (2 * HOUR_MS), now - HOUR_MS);
+
+        final List<StatisticDataPoint> dataPoints1 = new ArrayList<>();
+        final long count1 = searchResultCache.streamStatisticsData(key, dataPoints1::add, search(3));
+        final List<StatisticDataPoint> dataPoints2 = new ArrayList<>();
+        final long count2 = searchResultCache.streamStatisticsData(key, dataPoints2::add, search(3));
+
+        assertThat(count1).isEqualTo(3);
+        assertThat(count2).isEqualTo(3);
+        assertThat(dataPoints2).isEqualTo(dataPoints1);
+        // second one served from the cache
+        assertThat(searchCount.get()).isEqualTo(1);
+
+        searchResultCache.clear();
+        searchResultCache.streamStatisticsData(key, dataPoints2::add, search(3));
+        assertThat(searchCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void streamStatisticsData_openPeriod_onlyLeadingEdgeSearchedOnRefresh() {
+        // a dashboard showing the last 24hrs of a store with hour long row key intervals, refreshed after 5mins
+        final long nowMs = (100 * HOUR_MS) + (30 * MINUTE_MS);
+        final SearchResultCacheKey key = buildKey(EventStoreTimeIntervalEnum.SECOND, nowMs - (24 * HOUR_MS), nowMs);
+        final long laterMs = nowMs + (5 * MINUTE_MS);
+        final SearchResultCacheKey laterKey = buildKey(
+                EventStoreTimeIntervalEnum.SECOND, laterMs - (24 * HOUR_MS), laterMs);
+
+        // a data point every 15mins
+        final List<Long> storedTimes = new ArrayList<>();
+        for (long timeMs = 70 * HOUR_MS; timeMs < 101 * HOUR_MS; timeMs += 15 * MINUTE_MS) {
+            storedTimes.add(timeMs);
+        }
+
+        final List<StatisticDataPoint> dataPoints = new ArrayList<>();
+        final long count = searchResultCache.streamStatisticsData(
+                key, dataPoints::add, searchStore(storedTimes), nowMs);
+
+        assertThat(count).isEqualTo(96);
+        assertThat(dataPoints).hasSize(96);
+        assertThat(dataPoints.stream().mapToLong(StatisticDataPoint::getTimeMs).min().getAsLong())
+                .isEqualTo(nowMs - (24 * HOUR_MS));
+        // the closed row key intervals, including all of the first, then the open one
+        assertThat(searches).containsExactly(
+                Arrays.asList(76 * HOUR_MS, 100 * HOUR_MS),
+                Arrays.asList(100 * HOUR_MS, nowMs));
+
+        searches.clear();
+        final List<StatisticDataPoint> laterDataPoints = new ArrayList<>();
+        final long laterCount = searchResultCache.streamStatisticsData(
+                laterKey, laterDataPoints::add, searchStore(storedTimes), laterMs);
+
+        // 76:30 is no longer in the period but 100:30 now is
+        assertThat(laterCount).isEqualTo(96);
+        assertThat(laterDataPoints).hasSize(96);
+        assertThat(searches).containsExactly(
+                Arrays.asList(100 * HOUR_MS, laterMs));
+    }
+
+    @Test
+    public void streamStatisticsData_openPeriod_noClosedIntervals() {
+        final long nowMs = (100 * HOUR_MS) + (30 * MINUTE_MS);
+        final SearchResultCacheKey key = buildKey(EventStoreTimeIntervalEnum.SECOND, nowMs - (20 * MINUTE_MS), nowMs);
+
+        searchResultCache.streamStatisticsData(key, dataPoint -> {}, searchStore(new ArrayList<>()), nowMs);
+        searchResultCache.streamStatisticsData(key, dataPoint -> {}, searchStore(new ArrayList<>()), nowMs);
+
+        assertThat(searches).containsExactly(
+                Arrays.asList(nowMs - (20 * MINUTE_MS), nowMs),
+                Arrays.asList(nowMs - (20 * MINUTE_MS), nowMs));
+    }
+
+    @Test
+    public void streamStatisticsData_tooManyDataPoints() {
+        final long now = System.currentTimeMillis();
+        final SearchResultCacheKey key = buildKey(now - (2 * HOUR_MS), now - HOUR_MS);
+
+        final List<StatisticDataPoint> dataPoints = new ArrayList<>();
+        assertThat(searchResultCache.streamStatisticsData(key, dataPoints::add, search(11))).isEqualTo(11);
+        searchResultCache.streamStatisticsData(key, dataPoint -> {}, search(11));
+
+        // every data point still passed on, but not cached
+        assertThat(dataPoints).hasSize(11);
+        assertThat(searchCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void streamStatisticsData_disabled() {
+        mockPropertyService.setProperty(HBaseStatisticConstants.SEARCH_RESULT_CACHE_ENABLED_PROPERTY_NAME, "false");
+        final long now = System.currentTimeMillis();
+        final SearchResultCacheKey key = buildKey(now - (2 * HOUR_MS), now - HOUR_MS);
+
+        searchResultCache.streamStatisticsData(key, dataPoint -> {}, search(3));
+        searchResultCache.streamStatisticsData(key, dataPoint -> {}, search(3));
+
+        assertThat(searchCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void key_equalForEquivalentSearches() {
+        final Period period = new Period(1000L, 2000L);
+        final SearchStatisticsCriteria criteria1 = SearchStatisticsCriteria.builder(period, STAT_UUID)
+                .setFilterTermsTree(new FilterTermsTree(new FilterTermsTree.OperatorNode(FilterTermsTree.Operator.AND,
+                        new FilterTermsTree.TermNode("tag1", "val1"),
+                        new FilterTermsTree.OperatorNode(FilterTermsTree.Operator.OR,
+                                new FilterTermsTree.TermNode("tag2", "val2")))))
+                .setRequiredDynamicFields(Arrays.asList("tag1", "tag2"))
+                .build();
+        final SearchStatisticsCriteria criteria2 = SearchStatisticsCriteria.builder(period, STAT_UUID)
+                .setFilterTermsTree(new FilterTermsTree(new FilterTermsTree.OperatorNode(FilterTermsTree.Operator.AND,
+                        new FilterTermsTree.TermNode("tag2", "val2"),
+                        new FilterTermsTree.TermNode("tag1", "val1"))))
+                .setRequiredDynamicFields(Arrays.asList("tag2", "tag1"))
+                .build();
+        final SearchStatisticsCriteria criteria3 = SearchStatisticsCriteria.builder(period, STAT_UUID)
+                .setFilterTermsTree(new FilterTermsTree(new FilterTermsTree.OperatorNode(FilterTermsTree.Operator.OR,
+                        new FilterTermsTree.TermNode("tag2", "val2"),
+                        new FilterTermsTree.TermNode("tag1", "val1"))))
+                .setRequiredDynamicFields(Arrays.asList("tag2", "tag1"))
+                .build();
+
+        final SearchResultCacheKey key1 = SearchResultCacheKey.from(criteria1, INTERVAL, RollUpBitMask.ZERO_MASK);
+        final SearchResultCacheKey key2 = SearchResultCacheKey.from(criteria2, INTERVAL, RollUpBitMask.ZERO_MASK);
+
+        assertThat(key1).isEqualTo(key2);
+        assertThat(key1.hashCode()).isEqualTo(key2.hashCode());
+        assertThat(SearchResultCacheKey.from(criteria3, INTERVAL, RollUpBitMask.ZERO_MASK)).isNotEqualTo(key1);
+        assertThat(SearchResultCacheKey.from(criteria1, EventStoreTimeIntervalEnum.HOUR, RollUpBitMask.ZERO_MASK))
+                .isNotEqualTo(key1);
+    }
+
+    @Test
+    public void toCanonicalForm_noAmbiguity() {
+        // a tag containing the delimiters must not look like a different pair of tag and value
+        assertThat(SearchResultCacheKey.toCanonicalForm(new FilterTermsTree.TermNode("a,1:b", "c")))
+                .isNotEqualTo(SearchResultCacheKey.toCanonicalForm(new FilterTermsTree.TermNode("a", "b,1:c")));
+        assertThat(SearchResultCacheKey.toCanonicalForm(null)).isEmpty();
+    }
+
+    private SearchResultCacheKey buildKey(final long fromMs, final long toMs) {
+        return buildKey(INTERVAL, fromMs, toMs);
+    }
+
+    private SearchResultCacheKey buildKey(final EventStoreTimeIntervalEnum interval,
+                                          final long fromMs,
+                                          final long toMs) {
+        final SearchStatisticsCriteria criteria = SearchStatisticsCriteria.builder(new Period(fromMs, toMs), STAT_UUID)
+                .build();
+        return SearchResultCacheKey.from(criteria, interval, RollUpBitMask.ZERO_MASK);
+    }
+
+    /**
+     * @return A search of a store holding a data point at each of the passed times
+     */
+    private SearchResultCache.PeriodSearch searchStore(final List<Long> storedTimes) {
+        return (fromMs, toMs, consumer) -> {
+            searches.add(Arrays.asList(fromMs, toMs));
+            long count = 0;
+            for (final long timeMs : storedTimes) {
+                if (timeMs >= fromMs && timeMs < toMs) {
+                    final StatisticDataPoint dataPoint = Mockito.mock(StatisticDataPoint.class);
+                    when(dataPoint.getTimeMs()).thenReturn(timeMs);
+                    consumer.accept(dataPoint);
+                    count++;
+                }
+            }
+            return count;
+        };
+    }
+
+    private SearchResultCache.PeriodSearch search(final int dataPointCount) {
+        return (fromMs, toMs, consumer) -> {
+            searchCount.incrementAndGet();
+            for (int i = 0; i < dataPointCount; i++) {
+                consumer.accept(Mockito.mock(StatisticDataPoint.class));
+            }
+            return dataPointCount;
+        };
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.connection;
+
+import org.junit.After;
+import org.junit.Test;
+import stroom.stats.hbase.exception.HBaseException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestHBaseAsyncExecutor {
+
+    private final HBaseAsyncExecutor asyncExecutor = new HBaseAsyncExecutor(2, 1);
+    private final ExecutorService submitterExecutor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        submitterExecutor.shutdownNow();
+        asyncExecutor.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void submit() {
+        CompletableFuture<String> future = asyncExecutor.submit(() -> Thread.currentThread().getName());
+
+        assertThat(future.join()).startsWith("hbase-io-");
+        assertThat(asyncExecutor.getInFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void submit_blocksWhenMaxInFlight() throws Exception {
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        CompletableFuture<Void> firstFuture = asyncExecutor.run(() -> await(releaseLatch));
+        assertThat(asyncExecutor.getInFlightCount()).isEqualTo(1);
+
+        //only one request is allowed in flight so the second submitter has to wait for the first to finish
+        Future<CompletableFuture<Void>> secondSubmission = submitterExecutor.submit(() ->
+                asyncExecutor.run(() -> {
+                }));
+        assertThatThrownBy(() -> secondSubmission.get(200, TimeUnit.MILLISECONDS))
+                .isInstanceOf(TimeoutException.class);
+
+        releaseLatch.countDown();
+        firstFuture.join();
+        secondSubmission.get(5, TimeUnit.SECONDS).join();
+    }
+
+    @Test
+    public void join_rethrowsRuntimeException() {
+        CompletableFuture<Void> future = asyncExecutor.run(() -> {
+            throw new IllegalStateException("Bad region");
+        });
+
+        assertThatThrownBy(() -> HBaseAsyncExecutor.join(future))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Bad region");
+        assertThat(asyncExecutor.getInFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void join_wrapsCheckedException() {
+        CompletableFuture<Void> future = HBaseAsyncExecutor.failedFuture(new IOException("Connection reset"));
+
+        assertThatThrownBy(() -> HBaseAsyncExecutor.join(future))
+                .isInstanceOf(HBaseException.class)
+                .hasCauseInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void submit_afterShutdown() {
+        asyncExecutor.shutdown(1, TimeUnit.SECONDS);
+
+        assertThatThrownBy(() -> HBaseAsyncExecutor.join(asyncExecutor.run(() -> {
+        }))).isInstanceOf(HBaseException.class);
+        assertThat(asyncExecutor.getInFlightCount()).isEqualTo(0);
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.structure;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import stroom.stats.hbase.util.bytes.ByteArrayWrapper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestPartialAggregator {
+
+    private static final byte[] FAMILY = Bytes.toBytes("f");
+    private static final byte[] STAT_UID = new byte[]{0, 0, 0, 1};
+    private static final byte[] MASK = new byte[]{0, 0};
+    private static final byte[] TAG_1 = new byte[]{0, 0, 0, 2};
+    private static final byte[] TAG_2 = new byte[]{0, 0, 0, 3};
+    private static final long ROW_KEY_INTERVAL_MS = 1_000L;
+    private static final long COLUMN_INTERVAL_MS = 10L;
+
+    @Test
+    public void addRow_count_dropsTagsNotKept() {
+        final PartialAggregator partialAggregator = new PartialAggregator(buildSpec(false, 0L, Long.MAX_VALUE));
+
+        partialAggregator.addRow(Arrays.asList(
+                countCell(buildRow(5, 1, 1), 3, 10L),
+                countCell(buildRow(5, 1, 1), 4, 1L)));
+        partialAggregator.addRow(Arrays.asList(
+                countCell(buildRow(5, 1, 2), 3, 5L)));
+        partialAggregator.addRow(Arrays.asList(
+                countCell(buildRow(5, 2, 1), 3, 7L)));
+
+        final Map<ByteArrayWrapper, AggregatePartial> partials = partialAggregator.getPartials();
+        assertThat(partials).hasSize(3);
+
+        final long timeMs = 5 * ROW_KEY_INTERVAL_MS + 3 * COLUMN_INTERVAL_MS;
+        assertThat(partials.get(groupKey(timeMs, 1)).getCount()).isEqualTo(15L);
+        assertThat(partials.get(groupKey(timeMs + COLUMN_INTERVAL_MS, 1)).getCount()).isEqualTo(1L);
+        assertThat(partials.get(groupKey(timeMs, 2)).getCount()).isEqualTo(7L);
+    }
+
+    @Test
+    public void addRow_outsidePeriod() {
+        final long periodFrom = 5 * ROW_KEY_INTERVAL_MS + 4 * COLUMN_INTERVAL_MS;
+        final PartialAggregator partialAggregator = new PartialAggregator(
+                buildSpec(false, periodFrom, periodFrom + COLUMN_INTERVAL_MS));
+
+        partialAggregator.addRow(Arrays.asList(
+                countCell(buildRow(5, 1, 1), 3, 10L),
+                countCell(buildRow(5, 1, 1), 4, 1L),
+                countCell(buildRow(5, 1, 1), 5, 100L)));
+
+        assertThat(partialAggregator.getPartials()).hasSize(1);
+        assertThat(partialAggregator.getPartials().get(groupKey(periodFrom, 1)).getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void addRow_value_mixedLayouts() {
+        final PartialAggregator partialAggregator = new PartialAggregator(buildSpec(true, 0L, Long.MAX_VALUE));
+        final ColumnQualifier columnQualifier = ColumnQualifier.from(3);
+
+        partialAggregator.addRow(Arrays.asList(
+                cell(buildRow(5, 1, 1), columnQualifier.getBytes(),
+                        new ValueCellValue(2, 3.0, 1.0, 2.0).asByteArray())));
+        partialAggregator.addRow(Arrays.asList(
+                cell(buildRow(5, 1, 2), ValueCellParts.countQualifier(columnQualifier), Bytes.toBytes(2L)),
+                cell(buildRow(5, 1, 2), ValueCellParts.sumQualifier(columnQualifier, 1), Bytes.toBytes(90L)),
+                cell(buildRow(5, 1, 2), ValueCellParts.minQualifier(columnQualifier), Bytes.toBytes(4.0)),
+                cell(buildRow(5, 1, 2), ValueCellParts.maxQualifier(columnQualifier), Bytes.toBytes(5.0))));
+
+        final AggregatePartial partial = partialAggregator.getPartials()
+                .get(groupKey(5 * ROW_KEY_INTERVAL_MS + 3 * COLUMN_INTERVAL_MS, 1));
+        assertThat(partial.getCount()).isEqualTo(4L);
+        assertThat(partial.getSum()).isEqualTo(12.0);
+        assertThat(partial.getAverageValue()).isEqualTo(3.0);
+        assertThat(partial.getMinValue()).isEqualTo(1.0);
+        assertThat(partial.getMaxValue()).isEqualTo(5.0);
+    }
+
+    @Test
+    public void toCells_mergeCell() {
+        final PartialAggregator partialAggregator1 = new PartialAggregator(buildSpec(false, 0L, Long.MAX_VALUE));
+        partialAggregator1.addRow(Arrays.asList(countCell(buildRow(5, 1, 1), 3, 10L)));
+        final PartialAggregator partialAggregator2 = new PartialAggregator(buildSpec(false, 0L, Long.MAX_VALUE));
+        partialAggregator2.addRow(Arrays.asList(countCell(buildRow(5, 1, 2), 3, 5L)));
+
+        final Map<ByteArrayWrapper, AggregatePartial> merged = new HashMap<>();
+        partialAggregator1.toCells(FAMILY).forEach(cell -> PartialAggregator.mergeCell(merged, cell));
+        partialAggregator2.toCells(FAMILY).forEach(cell -> PartialAggregator.mergeCell(merged, cell));
+
+        final long timeMs = 5 * ROW_KEY_INTERVAL_MS + 3 * COLUMN_INTERVAL_MS;
+        assertThat(merged).hasSize(1);
+        assertThat(merged.get(groupKey(timeMs, 1)).getCount()).isEqualTo(15L);
+        assertThat(PartialAggregator.getBucketTimeMs(groupKey(timeMs, 1).getBytes())).isEqualTo(timeMs);
+    }
+
+    @Test
+    public void aggregationSpec_scanRoundTrip() {
+        final AggregationSpec spec = buildSpec(true, 100L, 200L);
+        final AggregationSpec copy = AggregationSpec.fromScan(spec.applyTo(new Scan()));
+
+        assertThat(copy.getTimeOffset()).isEqualTo(spec.getTimeOffset());
+        assertThat(copy.getTagsOffset()).isEqualTo(spec.getTagsOffset());
+        assertThat(copy.getBucketMs()).isEqualTo(spec.getBucketMs());
+        assertThat(copy.getPeriodFromMs()).isEqualTo(100L);
+        assertThat(copy.getPeriodToMs()).isEqualTo(200L);
+        assertThat(copy.isValueStatistic()).isTrue();
+        assertThat(copy.isKeptTag(TAG_1, 0)).isTrue();
+        assertThat(copy.isKeptTag(TAG_2, 0)).isFalse();
+
+        assertThat(AggregationSpec.fromScan(new Scan())).isNull();
+    }
+
+    @Test
+    public void aggregatePartial_bytesRoundTrip() {
+        final AggregatePartial partial = new AggregatePartial().add(3, 7.5).addMin(1.5).addMax(4.0);
+        final byte[] bytes = partial.toBytes();
+        final AggregatePartial copy = AggregatePartial.fromBytes(bytes, 0, bytes.length);
+
+        assertThat(copy.getCount()).isEqualTo(3L);
+        assertThat(copy.getSum()).isEqualTo(7.5);
+        assertThat(copy.getMinValue()).isEqualTo(1.5);
+        assertThat(copy.getMaxValue()).isEqualTo(4.0);
+
+        // no min/max seen so fall back to the average
+        final AggregatePartial countOnly = new AggregatePartial().add(2, 5.0);
+        assertThat(countOnly.getMinValue()).isEqualTo(2.5);
+        assertThat(countOnly.getMaxValue()).isEqualTo(2.5);
+    }
+
+    private static AggregationSpec buildSpec(final boolean isValueStatistic,
+                                             final long periodFromMs,
+                                             final long periodToMs) {
+        return new AggregationSpec(
+                RowKey.UID_AND_BIT_MASK_LENGTH,
+                RowKey.UID_AND_BIT_MASK_AND_TIME_LENGTH,
+                ROW_KEY_INTERVAL_MS,
+                COLUMN_INTERVAL_MS,
+                COLUMN_INTERVAL_MS,
+                periodFromMs,
+                periodToMs,
+                isValueStatistic,
+                TAG_1);
+    }
+
+    private static byte[] buildRow(final int partialTimestamp, final int tag1Value, final int tag2Value) {
+        return Bytes.add(
+                Bytes.add(STAT_UID, MASK, Bytes.toBytes(partialTimestamp)),
+                Bytes.add(TAG_1, Bytes.toBytes(tag1Value)),
+                Bytes.add(TAG_2, Bytes.toBytes(tag2Value)));
+    }
+
+    private static ByteArrayWrapper groupKey(final long timeMs, final int tag1Value) {
+        return ByteArrayWrapper.of(Bytes.add(Bytes.toBytes(timeMs), TAG_1, Bytes.toBytes(tag1Value)));
+    }
+
+    private static Cell countCell(final byte[] row, final int columnIntervalNo, final long count) {
+        return cell(row, ColumnQualifier.from(columnIntervalNo).getBytes(), Bytes.toBytes(count));
+    }
+
+    private static Cell cell(final byte[] row, final byte[] qualifier, final byte[] value) {
+        return new KeyValue(row, FAMILY, qualifier, value);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.structure;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class TestValueCellParts {
+
+    private static final ColumnQualifier COLUMN_QUALIFIER = ColumnQualifier.from(42);
+
+    @Test
+    public void qualifiers() {
+        assertThat(ValueCellParts.countQualifier(COLUMN_QUALIFIER))
+                .startsWith(COLUMN_QUALIFIER.getBytes())
+                .endsWith(ValueCellParts.COUNT_PART)
+                .hasSize(ColumnQualifier.ARRAY_LENGTH + 1);
+        assertThat(ValueCellParts.sumQualifier(COLUMN_QUALIFIER, 6))
+                .startsWith(COLUMN_QUALIFIER.getBytes())
+                .endsWith(ValueCellParts.SUM_PART, (byte) 6);
+
+        assertThat(ValueCellParts.isCompoundQualifier(COLUMN_QUALIFIER.getBytes().length)).isTrue();
+        assertThat(ValueCellParts.isCompoundQualifier(ValueCellParts.minQualifier(COLUMN_QUALIFIER).length)).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sumQualifier_badScale() {
+        ValueCellParts.sumQualifier(COLUMN_QUALIFIER, ValueCellParts.MAX_SCALE + 1);
+    }
+
+    @Test
+    public void fixedPoint() {
+        assertThat(ValueCellParts.toFixedPoint(1.2345678, 3)).isEqualTo(1235L);
+        assertThat(ValueCellParts.toFixedPoint(-1.5, 0)).isEqualTo(-1L);
+        assertThat(ValueCellParts.fromFixedPoint(1235L, 3)).isEqualTo(1.235);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void toFixedPoint_overflow() {
+        ValueCellParts.toFixedPoint(1e13, 6);
+    }
+
+    @Test
+    public void isFixedPointDelta() {
+        assertThat(ValueCellParts.isFixedPointDelta(9e9, 6)).isTrue();
+        assertThat(ValueCellParts.isFixedPointDelta(-9e9, 6)).isTrue();
+        assertThat(ValueCellParts.isFixedPointDelta(1e10, 6)).isFalse();
+        assertThat(ValueCellParts.isFixedPointDelta(Double.NaN, 6)).isFalse();
+    }
+
+    @Test
+    public void addCell_incrementLayout() {
+        final ValueCellParts parts = new ValueCellParts();
+        addPart(parts, ValueCellParts.countQualifier(COLUMN_QUALIFIER), Bytes.toBytes(4L));
+        addPart(parts, ValueCellParts.sumQualifier(COLUMN_QUALIFIER, 2), Bytes.toBytes(1000L));
+        addPart(parts, ValueCellParts.minQualifier(COLUMN_QUALIFIER), Bytes.toBytes(0.5));
+        addPart(parts, ValueCellParts.maxQualifier(COLUMN_QUALIFIER), Bytes.toBytes(5.5));
+
+        assertThat(parts.getCount()).isEqualTo(4);
+        assertThat(parts.getAggregatedValue()).isEqualTo(10.0);
+        assertThat(parts.getAverageValue()).isEqualTo(2.5);
+        assertThat(parts.getMinValue()).isEqualTo(0.5);
+        assertThat(parts.getMaxValue()).isEqualTo(5.5);
+        assertThat(parts.toValueCellValue()).isEqualTo(new ValueCellValue(4, 10.0, 0.5, 5.5));
+    }
+
+    @Test
+    public void addCell_mixedLayouts() {
+        final ValueCellParts parts = new ValueCellParts();
+        addPart(parts, COLUMN_QUALIFIER.getBytes(), new ValueCellValue(2, 3.0, 1.0, 2.0).asByteArray());
+        addPart(parts, ValueCellParts.countQualifier(COLUMN_QUALIFIER), Bytes.toBytes(1L));
+        addPart(parts, ValueCellParts.sumQualifier(COLUMN_QUALIFIER, 0), Bytes.toBytes(3L));
+        addPart(parts, ValueCellParts.maxQualifier(COLUMN_QUALIFIER), Bytes.toBytes(3.0));
+
+        assertThat(parts.getCount()).isEqualTo(3);
+        assertThat(parts.getAggregatedValue()).isEqualTo(6.0);
+        assertThat(parts.getMinValue()).isEqualTo(1.0);
+        assertThat(parts.getMaxValue()).isEqualTo(3.0);
+    }
+
+    @Test
+    public void missingBounds_fallBackToAverage() {
+        final ValueCellParts parts = new ValueCellParts();
+        addPart(parts, ValueCellParts.countQualifier(COLUMN_QUALIFIER), Bytes.toBytes(2L));
+        addPart(parts, ValueCellParts.sumQualifier(COLUMN_QUALIFIER, 1), Bytes.toBytes(50L));
+
+        assertThat(parts.getMinValue()).isEqualTo(2.5);
+        assertThat(parts.getMaxValue()).isEqualTo(2.5);
+    }
+
+    @Test
+    public void toValueCellValue_singleValueKeepsExactValue() {
+        final ValueCellParts parts = new ValueCellParts();
+        addPart(parts, ValueCellParts.countQualifier(COLUMN_QUALIFIER), Bytes.toBytes(1L));
+        addPart(parts, ValueCellParts.sumQualifier(COLUMN_QUALIFIER, 2), Bytes.toBytes(
+                ValueCellParts.toFixedPoint(1.23456, 2)));
+        addPart(parts, ValueCellParts.minQualifier(COLUMN_QUALIFIER), Bytes.toBytes(1.23456));
+        addPart(parts, ValueCellParts.maxQualifier(COLUMN_QUALIFIER), Bytes.toBytes(1.23456));
+
+        assertThat(parts.getAggregatedValue()).isCloseTo(1.23, within(1e-9));
+        assertThat(parts.toValueCellValue()).isEqualTo(new ValueCellValue(1.23456));
+    }
+
+    @Test
+    public void toValueCellValue_empty() {
+        final ValueCellParts parts = new ValueCellParts();
+        assertThat(parts.isEmpty()).isTrue();
+        assertThat(parts.toValueCellValue().isEmpty()).isTrue();
+    }
+
+    private static void addPart(final ValueCellParts parts, final byte[] qualifier, final byte[] value) {
+        parts.addCell(qualifier, 0, qualifier.length, value, 0, value.length);
+    }
+}
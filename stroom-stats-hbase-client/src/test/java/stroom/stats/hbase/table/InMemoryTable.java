@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A mocked {@link Table} backed by an in memory map of a single column family, supporting the subset of
+ * operations used to read and write value cells. Only one version of each cell is held.
+ */
+class InMemoryTable {
+
+    private final byte[] family;
+    private final NavigableMap<byte[], NavigableMap<byte[], byte[]>> rows = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    private final Table table = mock(Table.class);
+    private final List<Integer> multiGetSizes = new ArrayList<>();
+    private int checkAndMutateCount = 0;
+    private Runnable beforeNextCheck = null;
+
+    InMemoryTable(final byte[] family) throws IOException, InterruptedException {
+        this.family = family;
+
+        when(table.get(any(Get.class))).thenAnswer(invocation -> get(invocation.getArgument(0)));
+
+        when(table.get(anyList())).thenAnswer(invocation -> {
+            final List<Get> gets = invocation.getArgument(0);
+            multiGetSizes.add(gets.size());
+            return gets.stream().map(this::get).toArray(Result[]::new);
+        });
+
+        when(table.checkAndPut(any(), any(), any(), any(), any(Put.class))).thenAnswer(invocation -> {
+            final RowMutations rowMutations = new RowMutations(invocation.getArgument(0));
+            rowMutations.add((Put) invocation.getArgument(4));
+            return checkAndMutate(invocation.getArgument(0), invocation.getArgument(2),
+                    invocation.getArgument(3), rowMutations);
+        });
+
+        when(table.checkAndMutate(any(), any(), any(), eq(CompareOp.EQUAL), any(), any(RowMutations.class)))
+                .thenAnswer(invocation -> checkAndMutate(invocation.getArgument(0), invocation.getArgument(2),
+                        invocation.getArgument(4), invocation.getArgument(5)));
+
+        doAnswer(invocation -> {
+            final List<Row> actions = invocation.getArgument(0);
+            for (final Row action : actions) {
+                for (final List<Cell> cells : ((Increment) action).getFamilyCellMap().values()) {
+                    for (final Cell cell : cells) {
+                        final byte[] qualifier = CellUtil.cloneQualifier(cell);
+                        final byte[] current = getValue(action.getRow(), qualifier);
+                        final long amount = Bytes.toLong(CellUtil.cloneValue(cell));
+                        putValue(action.getRow(), qualifier,
+                                Bytes.toBytes((current == null ? 0 : Bytes.toLong(current)) + amount));
+                    }
+                }
+            }
+            return null;
+        }).when(table).batch(anyList(), any());
+    }
+
+    Table getTable() {
+        return table;
+    }
+
+    byte[] getValue(final byte[] row, final byte[] qualifier) {
+        final Map<byte[], byte[]> columns = rows.get(row);
+        return columns == null ? null : columns.get(qualifier);
+    }
+
+    void putValue(final byte[] row, final byte[] qualifier, final byte[] value) {
+        rows.computeIfAbsent(row, k -> new TreeMap<>(Bytes.BYTES_COMPARATOR)).put(qualifier, value);
+    }
+
+    Result getRow(final byte[] row) {
+        return get(new Get(row).addFamily(family));
+    }
+
+    List<Integer> getMultiGetSizes() {
+        return multiGetSizes;
+    }
+
+    int getCheckAndMutateCount() {
+        return checkAndMutateCount;
+    }
+
+    /**
+     * @param action Run once just before the next check, to simulate a concurrent writer
+     */
+    void beforeNextCheck(final Runnable action) {
+        this.beforeNextCheck = action;
+    }
+
+    private Result get(final Get get) {
+        final NavigableMap<byte[], byte[]> columns = rows.getOrDefault(get.getRow(), new TreeMap<>());
+        final List<Cell> cells = new ArrayList<>();
+        columns.forEach((qualifier, value) -> {
+            if (isSelected(get, qualifier)) {
+                cells.add(new KeyValue(get.getRow(), family, qualifier, 1L, value));
+            }
+        });
+        return Result.create(cells);
+    }
+
+    private boolean isSelected(final Get get, final byte[] qualifier) {
+        if (get.getFilter() instanceof ColumnPrefixFilter
+                && !Bytes.startsWith(qualifier, ((ColumnPrefixFilter) get.getFilter()).getPrefix())) {
+            return false;
+        }
+        final NavigableSet<byte[]> qualifiers = get.getFamilyMap().get(family);
+        return qualifiers == null || qualifiers.contains(qualifier);
+    }
+
+    private boolean checkAndMutate(final byte[] row,
+                                   final byte[] qualifier,
+                                   final byte[] expectedValue,
+                                   final RowMutations rowMutations) {
+        checkAndMutateCount++;
+        if (beforeNextCheck != null) {
+            final Runnable action = beforeNextCheck;
+            beforeNextCheck = null;
+            action.run();
+        }
+
+        if (!Arrays.equals(getValue(row, qualifier), expectedValue)) {
+            return false;
+        }
+        for (final Mutation mutation : rowMutations.getMutations()) {
+            for (final List<Cell> cells : mutation.getFamilyCellMap().values()) {
+                for (final Cell cell : cells) {
+                    if (mutation instanceof Delete) {
+                        rows.get(row).remove(CellUtil.cloneQualifier(cell));
+                    } else {
+                        putValue(row, CellUtil.cloneQualifier(cell), CellUtil.cloneValue(cell));
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
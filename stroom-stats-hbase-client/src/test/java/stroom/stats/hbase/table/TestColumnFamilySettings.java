@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.regionserver.BloomType;
+import org.junit.Test;
+import stroom.stats.hbase.HBaseStatisticConstants;
+import stroom.stats.properties.MockStroomPropertyService;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestColumnFamilySettings {
+
+    private static final String PREFIX = HBaseStatisticConstants.DATA_STORE_COLUMN_FAMILY_PROPERTY_NAME_PREFIX;
+
+    private final MockStroomPropertyService propertyService = new MockStroomPropertyService();
+
+    @Test
+    public void fromProperties_defaults() {
+        final ColumnFamilySettings settings = ColumnFamilySettings.fromProperties(
+                propertyService, EventStoreTimeIntervalEnum.HOUR);
+
+        //nothing configured so a new descriptor should already match
+        assertThat(settings.getDifferences(new HColumnDescriptor("C"))).isEmpty();
+        assertThat(settings.getTtlSeconds()).isEqualTo(HConstants.FOREVER);
+    }
+
+    @Test
+    public void fromProperties_intervalOverride() {
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.DATA_BLOCK_ENCODING, "FAST_DIFF");
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.COMPRESSION, "GZ");
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.BLOOM_FILTER, "NONE");
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.BLOCK_SIZE, "32768");
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.IN_MEMORY, "true");
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.TTL_SECONDS, "0");
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.TTL_SECONDS + ".second", "3600");
+
+        final ColumnFamilySettings hourSettings = ColumnFamilySettings.fromProperties(
+                propertyService, EventStoreTimeIntervalEnum.HOUR);
+        final ColumnFamilySettings secondSettings = ColumnFamilySettings.fromProperties(
+                propertyService, EventStoreTimeIntervalEnum.SECOND);
+
+        assertThat(hourSettings.getDataBlockEncoding()).isEqualTo(DataBlockEncoding.FAST_DIFF);
+        assertThat(hourSettings.getCompression()).isEqualTo(Compression.Algorithm.GZ);
+        assertThat(hourSettings.getBloomType()).isEqualTo(BloomType.NONE);
+        assertThat(hourSettings.getBlockSize()).isEqualTo(32768);
+        assertThat(hourSettings.isInMemory()).isTrue();
+        assertThat(hourSettings.getTtlSeconds()).isEqualTo(HConstants.FOREVER);
+
+        assertThat(secondSettings.getDataBlockEncoding()).isEqualTo(DataBlockEncoding.FAST_DIFF);
+        assertThat(secondSettings.getTtlSeconds()).isEqualTo(3600);
+    }
+
+    @Test
+    public void fromProperties_ttlRetentionMode() {
+        propertyService.setProperty(HBaseStatisticConstants.DATA_STORE_RETENTION_MODE_PROPERTY_NAME, "TTL");
+        propertyService.setProperty(
+                HBaseStatisticConstants.DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX + "hour", "10");
+        propertyService.setProperty(
+                HBaseStatisticConstants.DATA_STORE_PURGE_INTERVALS_TO_RETAIN_PROPERTY_NAME_PREFIX + "day", "10");
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.TTL_SECONDS + ".day", "3600");
+
+        //the retained row key intervals plus one for rows still being written to
+        assertThat(ColumnFamilySettings.fromProperties(propertyService, EventStoreTimeIntervalEnum.HOUR)
+                .getTtlSeconds())
+                .isEqualTo((int) (11 * EventStoreTimeIntervalEnum.HOUR.rowKeyInterval() / 1000));
+
+        //an explicit TTL shorter than the retention wins
+        assertThat(ColumnFamilySettings.fromProperties(propertyService, EventStoreTimeIntervalEnum.DAY)
+                .getTtlSeconds())
+                .isEqualTo(3600);
+
+        assertThat(ColumnFamilySettings.fromProperties(propertyService, EventStoreTimeIntervalEnum.FOREVER)
+                .getTtlSeconds())
+                .isEqualTo(HConstants.FOREVER);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromProperties_invalid() {
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.DATA_BLOCK_ENCODING, "NOT_AN_ENCODING");
+
+        ColumnFamilySettings.fromProperties(propertyService, EventStoreTimeIntervalEnum.HOUR);
+    }
+
+    @Test
+    public void applyTo_getDifferences() {
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.DATA_BLOCK_ENCODING, "FAST_DIFF");
+        propertyService.setProperty(PREFIX + ColumnFamilySettings.TTL_SECONDS, "86400");
+        final ColumnFamilySettings settings = ColumnFamilySettings.fromProperties(
+                propertyService, EventStoreTimeIntervalEnum.DAY);
+
+        final HColumnDescriptor colDesc = new HColumnDescriptor("V");
+        colDesc.setMaxVersions(1);
+
+        assertThat(settings.getDifferences(colDesc)).hasSize(2);
+
+        settings.applyTo(colDesc);
+
+        assertThat(settings.getDifferences(colDesc)).isEmpty();
+        assertThat(colDesc.getDataBlockEncoding()).isEqualTo(DataBlockEncoding.FAST_DIFF);
+        assertThat(colDesc.getTimeToLive()).isEqualTo(86400);
+        //settings we don't manage are untouched
+        assertThat(colDesc.getMaxVersions()).isEqualTo(1);
+    }
+}
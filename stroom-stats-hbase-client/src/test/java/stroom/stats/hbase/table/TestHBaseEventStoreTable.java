@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.junit.Test;
+import stroom.stats.hbase.structure.RowKeySalt;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestHBaseEventStoreTable {
+
+    @Test
+    public void fanOutScan_notSalted() {
+        final Scan scan = new Scan(new byte[]{0, 0, 0, 1}, new byte[]{0, 0, 0, 2});
+
+        assertThat(HBaseEventStoreTable.fanOutScan(scan, RowKeySalt.NONE)).containsExactly(scan);
+    }
+
+    @Test
+    public void fanOutScan_bounded() {
+        final Scan scan = new Scan(new byte[]{0, 0, 0, 1}, new byte[]{0, 0, 0, 2});
+        scan.setFilter(new KeyOnlyFilter());
+        scan.setCaching(1_000);
+
+        final List<Scan> scans = HBaseEventStoreTable.fanOutScan(scan, RowKeySalt.of(3));
+
+        assertThat(scans).hasSize(3);
+        for (int bucket = 0; bucket < 3; bucket++) {
+            final Scan bucketScan = scans.get(bucket);
+            assertThat(bucketScan.getStartRow()).containsExactly(bucket, 0, 0, 0, 1);
+            assertThat(bucketScan.getStopRow()).containsExactly(bucket, 0, 0, 0, 2);
+            assertThat(bucketScan.getFilter()).isInstanceOf(KeyOnlyFilter.class);
+            assertThat(bucketScan.getCaching()).isEqualTo(1_000);
+        }
+    }
+
+    @Test
+    public void fanOutScan_rowPrefix() {
+        final Scan scan = new Scan().setRowPrefixFilter(new byte[]{0, 0, 0, 1});
+
+        final List<Scan> scans = HBaseEventStoreTable.fanOutScan(scan, RowKeySalt.of(2));
+
+        assertThat(scans.get(1).getStartRow()).containsExactly(1, 0, 0, 0, 1);
+        assertThat(scans.get(1).getStopRow()).containsExactly(1, 0, 0, 0, 2);
+    }
+
+    @Test
+    public void fanOutScan_openEnded() {
+        final Scan scan = new Scan();
+
+        final List<Scan> scans = HBaseEventStoreTable.fanOutScan(scan, RowKeySalt.of(RowKeySalt.MAX_BUCKETS));
+
+        assertThat(scans).hasSize(RowKeySalt.MAX_BUCKETS);
+        assertThat(scans.get(0).getStartRow()).containsExactly(0);
+        assertThat(scans.get(0).getStopRow()).containsExactly(1);
+        //the last bucket runs to the end of the table
+        assertThat(scans.get(255).getStartRow()).containsExactly(255);
+        assertThat(scans.get(255).getStopRow()).isEmpty();
+    }
+
+    @Test
+    public void splitScan_noKeysInRange() {
+        final Scan scan = new Scan(new byte[]{0, 5}, new byte[]{0, 9});
+
+        final List<Scan> scans = HBaseEventStoreTable.splitScan(scan, Arrays.asList(
+                new byte[0], new byte[]{0, 5}, new byte[]{0, 9}, new byte[]{1}));
+
+        assertThat(scans).containsExactly(scan);
+    }
+
+    @Test
+    public void splitScan() {
+        final Scan scan = new Scan(new byte[]{0, 1}, new byte[]{0, 9});
+        scan.setFilter(new KeyOnlyFilter());
+
+        //keys out of order, duplicated and outside the range
+        final List<Scan> scans = HBaseEventStoreTable.splitScan(scan, Arrays.asList(
+                new byte[]{0, 6}, new byte[0], new byte[]{0, 3}, new byte[]{0, 6}, new byte[]{2}));
+
+        assertThat(scans).hasSize(3);
+        assertThat(scans.get(0).getStartRow()).containsExactly(0, 1);
+        assertThat(scans.get(0).getStopRow()).containsExactly(0, 3);
+        assertThat(scans.get(1).getStartRow()).containsExactly(0, 3);
+        assertThat(scans.get(1).getStopRow()).containsExactly(0, 6);
+        assertThat(scans.get(2).getStartRow()).containsExactly(0, 6);
+        assertThat(scans.get(2).getStopRow()).containsExactly(0, 9);
+        scans.forEach(subScan -> assertThat(subScan.getFilter()).isInstanceOf(KeyOnlyFilter.class));
+    }
+
+    @Test
+    public void splitScan_openEnded() {
+        final Scan scan = new Scan(new byte[]{1});
+
+        final List<Scan> scans = HBaseEventStoreTable.splitScan(scan, Collections.singletonList(new byte[]{2}));
+
+        assertThat(scans).hasSize(2);
+        assertThat(scans.get(1).getStartRow()).containsExactly(2);
+        assertThat(scans.get(1).getStopRow()).isEmpty();
+    }
+
+    @Test
+    public void getTimeBucketSplitTimes() {
+        final Instant from = Instant.parse("2017-01-01T00:30:00Z");
+        //ten hour rows
+        final Instant to = Instant.parse("2017-01-01T09:59:59Z");
+
+        final List<Long> splitTimes = HBaseEventStoreTable.getTimeBucketSplitTimes(
+                EventStoreTimeIntervalEnum.SECOND, from.toEpochMilli(), to.toEpochMilli(), 4);
+
+        assertThat(splitTimes).containsExactly(
+                Instant.parse("2017-01-01T02:00:00Z").toEpochMilli(),
+                Instant.parse("2017-01-01T05:00:00Z").toEpochMilli(),
+                Instant.parse("2017-01-01T07:00:00Z").toEpochMilli());
+    }
+
+    @Test
+    public void getTimeBucketSplitTimes_fewerRowsThanBuckets() {
+        final Instant from = Instant.parse("2017-01-01T00:00:00Z");
+
+        final List<Long> splitTimes = HBaseEventStoreTable.getTimeBucketSplitTimes(
+                EventStoreTimeIntervalEnum.SECOND,
+                from.toEpochMilli(),
+                from.plus(Duration.ofHours(2)).toEpochMilli(),
+                16);
+
+        //one split between each of the 3 hour rows
+        assertThat(splitTimes).containsExactly(
+                Instant.parse("2017-01-01T01:00:00Z").toEpochMilli(),
+                Instant.parse("2017-01-01T02:00:00Z").toEpochMilli());
+    }
+
+    @Test
+    public void getTimeBucketSplitTimes_singleRow() {
+        final long from = Instant.parse("2017-01-01T00:10:00Z").toEpochMilli();
+
+        assertThat(HBaseEventStoreTable.getTimeBucketSplitTimes(
+                EventStoreTimeIntervalEnum.SECOND, from, from + 1_000, 16)).isEmpty();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.junit.After;
+import org.junit.Test;
+import stroom.stats.hbase.connection.HBaseQueryExecutor;
+import stroom.stats.hbase.exception.HBaseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestParallelPartitionReader {
+
+    private final HBaseQueryExecutor queryExecutor = new HBaseQueryExecutor(3);
+
+    @After
+    public void tearDown() {
+        queryExecutor.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void read() {
+        final List<Integer> partitions = Arrays.asList(0, 1, 2, 3, 4);
+        final List<String> consumerThreads = new ArrayList<>();
+        final List<Integer> items = new ArrayList<>();
+
+        //small queue so the readers have to wait for the consumer
+        ParallelPartitionReader.read(
+                queryExecutor,
+                partitions,
+                (Integer partition, Consumer<Integer> sink) ->
+                        IntStream.range(partition * 100, (partition + 1) * 100).forEach(sink::accept),
+                item -> {
+                    consumerThreads.add(Thread.currentThread().getName());
+                    items.add(item);
+                },
+                2);
+
+        Collections.sort(items);
+        assertThat(items).isEqualTo(IntStream.range(0, 500).boxed().collect(Collectors.toList()));
+        //the consumer is only ever called on the calling thread
+        assertThat(consumerThreads).containsOnly(Thread.currentThread().getName());
+    }
+
+    @Test
+    public void read_singlePartition() {
+        final List<String> readerThreads = new ArrayList<>();
+
+        ParallelPartitionReader.read(
+                queryExecutor,
+                Collections.singletonList(0),
+                (Integer partition, Consumer<String> sink) -> readerThreads.add(Thread.currentThread().getName()),
+                item -> {
+                },
+                10);
+
+        //no point handing a single partition to another thread
+        assertThat(readerThreads).containsExactly(Thread.currentThread().getName());
+    }
+
+    @Test
+    public void read_partitionFails() throws InterruptedException {
+        final CountDownLatch abandonedLatch = new CountDownLatch(1);
+
+        assertThatThrownBy(() ->
+                ParallelPartitionReader.read(
+                        queryExecutor,
+                        Arrays.asList(0, 1),
+                        (Integer partition, Consumer<Integer> sink) -> {
+                            if (partition == 0) {
+                                throw new IllegalStateException("Scan failed");
+                            } else {
+                                //would fill the queue and block forever if not abandoned
+                                try {
+                                    IntStream.range(0, Integer.MAX_VALUE).forEach(sink::accept);
+                                } finally {
+                                    abandonedLatch.countDown();
+                                }
+                            }
+                        },
+                        item -> {
+                        },
+                        1))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Scan failed");
+
+        //the other reader gives up once the read has failed
+        assertThat(abandonedLatch.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test(timeout = 5_000)
+    public void read_executorShutDown() {
+        final HBaseQueryExecutor shutDownExecutor = new HBaseQueryExecutor(1);
+        shutDownExecutor.shutdown(1, TimeUnit.SECONDS);
+
+        //the partitions are rejected so must fail the read rather than leave it waiting for them
+        assertThatThrownBy(() ->
+                ParallelPartitionReader.read(
+                        shutDownExecutor,
+                        Arrays.asList(0, 1, 2, 3),
+                        (Integer partition, Consumer<Integer> sink) -> sink.accept(partition),
+                        item -> {
+                        },
+                        1))
+                .isInstanceOf(HBaseException.class)
+                .hasMessageContaining("rejected");
+    }
+
+    @Test
+    public void read_consumerFails() {
+        assertThatThrownBy(() ->
+                ParallelPartitionReader.read(
+                        queryExecutor,
+                        Arrays.asList(0, 1, 2),
+                        (Integer partition, Consumer<Integer> sink) -> sink.accept(partition),
+                        item -> {
+                            throw new IllegalArgumentException("Bad item " + item);
+                        },
+                        10))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
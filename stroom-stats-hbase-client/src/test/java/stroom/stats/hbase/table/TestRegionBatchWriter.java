@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import stroom.stats.hbase.connection.HBaseAsyncExecutor;
+import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.uid.UID;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestRegionBatchWriter {
+
+    private static final TableName TABLE_NAME = TableName.valueOf("test");
+    private static final byte[] SPLIT_ROW = rowKey(3).asByteArray();
+    private static final HRegionInfo REGION_1 = new HRegionInfo(TABLE_NAME, new byte[0], SPLIT_ROW);
+    private static final HRegionInfo REGION_2 = new HRegionInfo(TABLE_NAME, SPLIT_ROW, new byte[0]);
+    private static final ServerName SERVER_NAME = ServerName.valueOf("host", 16020, 1L);
+
+    private final HBaseAsyncExecutor asyncExecutor = new HBaseAsyncExecutor(4, 8);
+    private final RegionLocator mockRegionLocator = Mockito.mock(RegionLocator.class);
+    private final RegionBatchWriter regionBatchWriter = new RegionBatchWriter(
+            "test", () -> mockRegionLocator, asyncExecutor);
+    private volatile List<HRegionInfo> regions = Arrays.asList(REGION_1, REGION_2);
+
+    @Before
+    public void setup() throws IOException {
+        Mockito.when(mockRegionLocator.getRegionLocation(Mockito.any(byte[].class))).thenAnswer(invocation ->
+                new HRegionLocation(regionOf((byte[]) invocation.getArgument(0)), SERVER_NAME));
+        Mockito.when(mockRegionLocator.getAllRegionLocations()).thenAnswer(invocation -> regions.stream()
+                .map(regionInfo -> new HRegionLocation(regionInfo, SERVER_NAME))
+                .collect(Collectors.toList()));
+    }
+
+    @After
+    public void tearDown() {
+        asyncExecutor.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void submit_splitsByRegionAndRequestSize() {
+        Map<RowKey, String> rows = Stream.of(1, 2, 3, 4, 5)
+                .map(TestRegionBatchWriter::rowKey)
+                .collect(Collectors.toMap(Function.identity(), RowKey::toString));
+        List<Map<RowKey, String>> requests = new CopyOnWriteArrayList<>();
+
+        List<CompletableFuture<Void>> futures = regionBatchWriter.submit(rows, 2, requests::add);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+
+        //region 1 holds rows 1 & 2, region 2 holds 3, 4 & 5 which is split over two requests
+        assertThat(futures).hasSize(3);
+        assertThat(requests).hasSize(3);
+        assertThat(requests).allSatisfy(request -> {
+            assertThat(request.size()).isLessThanOrEqualTo(2);
+            assertThat(request.keySet().stream().map(this::regionOf).distinct()).hasSize(1);
+            request.forEach((rowKey, value) -> assertThat(value).isEqualTo(rowKey.toString()));
+        });
+        Set<RowKey> writtenRows = new HashSet<>();
+        requests.forEach(request -> writtenRows.addAll(request.keySet()));
+        assertThat(writtenRows).isEqualTo(rows.keySet());
+
+        assertThat(regionBatchWriter.getRegionTimers().get(REGION_1.getEncodedName()).getCount()).isEqualTo(1);
+        assertThat(regionBatchWriter.getRegionTimers().get(REGION_2.getEncodedName()).getCount()).isEqualTo(2);
+        assertThat(regionBatchWriter.getRegionTimingsSummary()).containsOnlyKeys(
+                REGION_1.getEncodedName(), REGION_2.getEncodedName());
+    }
+
+    @Test
+    public void submit_slowRegionDoesNotHoldUpOthers() throws Exception {
+        Map<RowKey, String> rows = Stream.of(1, 4)
+                .map(TestRegionBatchWriter::rowKey)
+                .collect(Collectors.toMap(Function.identity(), RowKey::toString));
+        CountDownLatch slowRegionLatch = new CountDownLatch(1);
+        List<RowKey> completedRows = new CopyOnWriteArrayList<>();
+
+        List<CompletableFuture<Void>> futures = regionBatchWriter.submit(rows, 10, request -> {
+            if (regionOf(request.keySet().iterator().next()).equals(REGION_1)) {
+                try {
+                    slowRegionLatch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            completedRows.addAll(request.keySet());
+        });
+
+        CompletableFuture.anyOf(futures.toArray(new CompletableFuture[futures.size()])).get(5, TimeUnit.SECONDS);
+        assertThat(completedRows).containsExactly(rowKey(4));
+
+        slowRegionLatch.countDown();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get(5, TimeUnit.SECONDS);
+        assertThat(completedRows).containsExactlyInAnyOrder(rowKey(1), rowKey(4));
+    }
+
+    @Test
+    public void submit_removesTimersOfOldRegions() {
+        submitAndWait(rowKey(1), rowKey(4));
+        assertThat(regionBatchWriter.getRegionTimers()).containsOnlyKeys(
+                REGION_1.getEncodedName(), REGION_2.getEncodedName());
+
+        //region 2 is split in two
+        byte[] splitRow2 = rowKey(5).asByteArray();
+        HRegionInfo region2a = new HRegionInfo(TABLE_NAME, SPLIT_ROW, splitRow2);
+        HRegionInfo region2b = new HRegionInfo(TABLE_NAME, splitRow2, new byte[0]);
+        regions = Arrays.asList(REGION_1, region2a, region2b);
+
+        submitAndWait(rowKey(4));
+        assertThat(regionBatchWriter.getRegionTimers()).containsOnlyKeys(
+                REGION_1.getEncodedName(), region2a.getEncodedName());
+    }
+
+    @Test
+    public void groupByRegion() {
+        Map<String, List<RowKey>> regionRows = regionBatchWriter.groupByRegion(
+                new ArrayList<>(Stream.of(1, 2, 3).map(TestRegionBatchWriter::rowKey).collect(Collectors.toList())));
+
+        assertThat(regionRows).containsOnlyKeys(REGION_1.getEncodedName(), REGION_2.getEncodedName());
+        assertThat(regionRows.get(REGION_1.getEncodedName())).containsExactly(rowKey(1), rowKey(2));
+        assertThat(regionRows.get(REGION_2.getEncodedName())).containsExactly(rowKey(3));
+    }
+
+    private void submitAndWait(final RowKey... rowKeys) {
+        Map<RowKey, String> rows = Stream.of(rowKeys)
+                .collect(Collectors.toMap(Function.identity(), RowKey::toString));
+        List<CompletableFuture<Void>> futures = regionBatchWriter.submit(rows, 10, request -> {
+        });
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+    }
+
+    private HRegionInfo regionOf(final RowKey rowKey) {
+        return regionOf(rowKey.asByteArray());
+    }
+
+    private HRegionInfo regionOf(final byte[] row) {
+        return regions.stream()
+                .filter(regionInfo -> regionInfo.containsRow(row))
+                .findFirst()
+                .orElseThrow(() -> new RuntimeException("No region for row " + Bytes.toStringBinary(row)));
+    }
+
+    private static RowKey rowKey(final int partialTimestamp) {
+        return new RowKey(
+                UID.from(new byte[]{0, 0, 0, 1}),
+                new byte[]{0, 0},
+                Bytes.toBytes(partialTimestamp),
+                Collections.emptyList());
+    }
+}
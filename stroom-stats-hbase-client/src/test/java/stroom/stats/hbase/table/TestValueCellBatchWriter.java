@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import stroom.stats.hbase.structure.CellQualifier;
+import stroom.stats.hbase.structure.ColumnQualifier;
+import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.structure.ValueCellValue;
+import stroom.stats.hbase.uid.UID;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestValueCellBatchWriter {
+
+    private static final byte[] FAMILY = EventStoreColumnFamily.VALUES.asByteArray();
+
+    private final Table table = mock(Table.class);
+
+    //in memory table contents keyed on row+qualifier
+    private final Map<String, byte[]> store = new HashMap<>();
+    private final List<Integer> getBatchSizes = new ArrayList<>();
+    private final AtomicInteger checkAndPutCount = new AtomicInteger();
+
+    //a cell whose first check-and-put will be beaten by another writer adding this value
+    private CellQualifier contendedCell = null;
+    private ValueCellValue competingValue = null;
+
+    @Before
+    public void setup() throws IOException {
+        when(table.get(anyList())).thenAnswer(invocation -> {
+            final List<Get> gets = invocation.getArgument(0);
+            getBatchSizes.add(gets.size());
+            return gets.stream()
+                    .map(get -> {
+                        final List<Cell> cells = new ArrayList<>();
+                        get.getFamilyMap().get(FAMILY).forEach(qualifier -> {
+                            final byte[] value = store.get(key(get.getRow(), qualifier));
+                            if (value != null) {
+                                cells.add(new KeyValue(get.getRow(), FAMILY, qualifier, value));
+                            }
+                        });
+                        return Result.create(cells);
+                    })
+                    .toArray(Result[]::new);
+        });
+
+        when(table.checkAndPut(any(), any(), any(), any(), any(Put.class))).thenAnswer(invocation -> {
+            checkAndPutCount.incrementAndGet();
+            final byte[] row = invocation.getArgument(0);
+            final byte[] qualifier = invocation.getArgument(2);
+            final byte[] expected = invocation.getArgument(3);
+            final Put put = invocation.getArgument(4);
+            final String key = key(row, qualifier);
+
+            if (contendedCell != null && key.equals(key(contendedCell))) {
+                //another writer gets in between our get and checkAndPut
+                store.put(key, addTo(store.get(key), competingValue));
+                contendedCell = null;
+            }
+
+            if (Arrays.equals(store.get(key), expected)) {
+                store.put(key, cloneValue(put.get(FAMILY, qualifier).get(0)));
+                return true;
+            } else {
+                return false;
+            }
+        });
+    }
+
+    @Test
+    public void addValues_emptyCells() {
+        final Map<CellQualifier, ValueCellValue> cellValues = new HashMap<>();
+        cellValues.put(cell(1, 1), new ValueCellValue(1));
+        cellValues.put(cell(1, 2), new ValueCellValue(2));
+        cellValues.put(cell(2, 1), new ValueCellValue(3));
+
+        ValueCellBatchWriter.addValues(table, FAMILY, cellValues, 3, 1000);
+
+        //one multi-get for all rows
+        assertThat(getBatchSizes).containsExactly(2);
+        assertThat(checkAndPutCount.get()).isEqualTo(3);
+        cellValues.forEach((cell, value) -> assertThat(getStored(cell)).isEqualTo(value));
+    }
+
+    @Test
+    public void addValues_existingCells() {
+        final ValueCellValue existing = new ValueCellValue(2, 10, 4, 6);
+        store.put(key(cell(1, 1)), existing.asByteArray());
+
+        final Map<CellQualifier, ValueCellValue> cellValues = new HashMap<>();
+        cellValues.put(cell(1, 1), new ValueCellValue(20));
+
+        ValueCellBatchWriter.addValues(table, FAMILY, cellValues, 3, 1000);
+
+        assertThat(getStored(cell(1, 1))).isEqualTo(existing.addAggregatedValues(new ValueCellValue(20)));
+    }
+
+    @Test
+    public void addValues_batching() {
+        final Map<CellQualifier, ValueCellValue> cellValues = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            cellValues.put(cell(i, 1), new ValueCellValue(i));
+        }
+
+        ValueCellBatchWriter.addValues(table, FAMILY, cellValues, 3, 2);
+
+        assertThat(getBatchSizes).containsExactly(2, 2, 1);
+        cellValues.forEach((cell, value) -> assertThat(getStored(cell)).isEqualTo(value));
+    }
+
+    @Test
+    public void addValues_conflictOnlyRetried() {
+        final Map<CellQualifier, ValueCellValue> cellValues = new HashMap<>();
+        cellValues.put(cell(1, 1), new ValueCellValue(1));
+        cellValues.put(cell(1, 2), new ValueCellValue(2));
+        cellValues.put(cell(2, 1), new ValueCellValue(3));
+
+        contendedCell = cell(1, 2);
+        competingValue = new ValueCellValue(100);
+
+        ValueCellBatchWriter.addValues(table, FAMILY, cellValues, 3, 1000);
+
+        //second multi-get only reads the row with the conflicted cell
+        assertThat(getBatchSizes).containsExactly(2, 1);
+        assertThat(checkAndPutCount.get()).isEqualTo(4);
+        assertThat(getStored(cell(1, 1))).isEqualTo(new ValueCellValue(1));
+        assertThat(getStored(cell(1, 2))).isEqualTo(
+                new ValueCellValue(100).addAggregatedValues(new ValueCellValue(2)));
+        assertThat(getStored(cell(2, 1))).isEqualTo(new ValueCellValue(3));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void addValues_retriesExhausted() {
+        final Map<CellQualifier, ValueCellValue> cellValues = new HashMap<>();
+        cellValues.put(cell(1, 1), new ValueCellValue(1));
+
+        contendedCell = cell(1, 1);
+        competingValue = new ValueCellValue(100);
+
+        ValueCellBatchWriter.addValues(table, FAMILY, cellValues, 1, 1000);
+    }
+
+    private static CellQualifier cell(final int partialTimestamp, final int qualifier) {
+        final RowKey rowKey = new RowKey(
+                UID.from(new byte[]{0, 0, 0, 1}),
+                new byte[]{0, 0},
+                Bytes.toBytes(partialTimestamp),
+                Collections.emptyList());
+        return new CellQualifier(rowKey, ColumnQualifier.from(qualifier), 0);
+    }
+
+    private static String key(final CellQualifier cellQualifier) {
+        return key(cellQualifier.getRowKey().asByteArray(), cellQualifier.getColumnQualifier().getBytes());
+    }
+
+    private static String key(final byte[] row, final byte[] qualifier) {
+        return Bytes.toStringBinary(row) + "|" + Bytes.toStringBinary(qualifier);
+    }
+
+    private static byte[] cloneValue(final Cell cell) {
+        return Arrays.copyOfRange(cell.getValueArray(), cell.getValueOffset(),
+                cell.getValueOffset() + cell.getValueLength());
+    }
+
+    private static byte[] addTo(final byte[] current, final ValueCellValue value) {
+        return new ValueCellValue(current).addAggregatedValues(value).asByteArray();
+    }
+
+    private ValueCellValue getStored(final CellQualifier cellQualifier) {
+        return new ValueCellValue(store.get(key(cellQualifier)));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import stroom.stats.hbase.structure.CellQualifier;
+import stroom.stats.hbase.structure.ColumnQualifier;
+import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.structure.RowKeySalt;
+import stroom.stats.hbase.structure.ValueCellLayout;
+import stroom.stats.hbase.structure.ValueCellParts;
+import stroom.stats.hbase.structure.ValueCellValue;
+import stroom.stats.hbase.uid.UID;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestValueCellIncrementWriter {
+
+    private static final byte[] FAMILY = Bytes.toBytes("v");
+    private static final int SCALE = 3;
+
+    private InMemoryTable table;
+
+    @Before
+    public void setup() throws IOException, InterruptedException {
+        table = new InMemoryTable(FAMILY);
+    }
+
+    @Test
+    public void addValues() {
+        final CellQualifier cell1 = cell(1, 1);
+        final CellQualifier cell2 = cell(1, 2);
+        final CellQualifier cell3 = cell(2, 1);
+
+        final Map<CellQualifier, ValueCellValue> cellValues = new HashMap<>();
+        cellValues.put(cell1, new ValueCellValue(1.5));
+        cellValues.put(cell2, new ValueCellValue(2, 3.0, 1.0, 2.0));
+        cellValues.put(cell3, new ValueCellValue(10));
+        ValueCellIncrementWriter.addValues(table.getTable(), FAMILY, cellValues, SCALE, 3, 1000);
+
+        final Map<CellQualifier, ValueCellValue> moreCellValues = new HashMap<>();
+        moreCellValues.put(cell1, new ValueCellValue(2, 1.25, 0.25, 1.0));
+        ValueCellIncrementWriter.addValues(table.getTable(), FAMILY, moreCellValues, SCALE, 3, 1000);
+
+        assertThat(read(cell1)).isEqualTo(new ValueCellValue(3, 2.75, 0.25, 1.5));
+        assertThat(read(cell2)).isEqualTo(new ValueCellValue(2, 3.0, 1.0, 2.0));
+        assertThat(read(cell3)).isEqualTo(new ValueCellValue(10));
+    }
+
+    @Test
+    public void addValues_rejectsOversizedDelta() {
+        final CellQualifier cell1 = cell(1, 1);
+        final CellQualifier cell2 = cell(1, 2);
+        final ValueCellValue oversizedValue = new ValueCellValue(1e14);
+
+        final Map<CellQualifier, ValueCellValue> cellValues = new HashMap<>();
+        cellValues.put(cell1, new ValueCellValue(1.5));
+        cellValues.put(cell2, oversizedValue);
+        final Map<CellQualifier, ValueCellValue> rejectedCellValues =
+                ValueCellIncrementWriter.addValues(table.getTable(), FAMILY, cellValues, SCALE, 3, 1000);
+
+        assertThat(rejectedCellValues).isEqualTo(Collections.singletonMap(cell2, oversizedValue));
+        assertThat(read(cell1)).isEqualTo(new ValueCellValue(1.5));
+        assertThat(table.getValue(cell2.getRowKey().asByteArray(),
+                ValueCellParts.countQualifier(cell2.getColumnQualifier()))).isNull();
+    }
+
+    @Test
+    public void addValues_boundsFail() {
+        final CellQualifier cell = cell(1, 1);
+        final byte[] row = cell.getRowKey().asByteArray();
+        final byte[] maxQualifier = ValueCellParts.maxQualifier(cell.getColumnQualifier());
+        final Map<CellQualifier, ValueCellValue> cellValues = Collections.singletonMap(cell, new ValueCellValue(10));
+
+        //a competing writer changes the max between our read and our check, with no attempts left to retry
+        table.beforeNextCheck(() -> table.putValue(row, maxQualifier, Bytes.toBytes(5.0)));
+
+        assertThatThrownBy(() ->
+                ValueCellIncrementWriter.addValues(table.getTable(), FAMILY, cellValues, SCALE, 1, 1000))
+                .isInstanceOf(RuntimeException.class)
+                .hasMessageContaining("Min/max update failed");
+        assertThat(table.getValue(row, ValueCellParts.countQualifier(cell.getColumnQualifier()))).isNull();
+
+        //the batch is consumed again and only counted once
+        ValueCellIncrementWriter.addValues(table.getTable(), FAMILY, cellValues, SCALE, 1, 1000);
+
+        assertThat(read(cell)).isEqualTo(new ValueCellValue(10));
+    }
+
+    @Test
+    public void migrateRow_leavesOversizedSumCompound() {
+        final CellQualifier cell = cell(1, 1);
+        final byte[] row = cell.getRowKey().asByteArray();
+        final ValueCellValue value = new ValueCellValue(1e17);
+        table.putValue(row, cell.getColumnQualifier().getBytes(), value.asByteArray());
+
+        assertThat(ValueCellMigrator.migrateRow(
+                table.getTable(), FAMILY, table.getRow(row), RowKeySalt.NONE, ValueCellLayout.INCREMENT, SCALE, 3))
+                .isEqualTo(0);
+        assertThat(new ValueCellValue(table.getValue(row, cell.getColumnQualifier().getBytes()))).isEqualTo(value);
+    }
+
+    @Test
+    public void updateBounds_onlyWritesExtendedBounds() {
+        final CellQualifier cell = cell(1, 1);
+        ValueCellIncrementWriter.updateBounds(table.getTable(), FAMILY,
+                Collections.singletonMap(cell, new ValueCellValue(2, 3.0, 1.0, 2.0)), 3, 1000);
+        final int checks = table.getCheckAndMutateCount();
+
+        //inside the existing bounds so nothing to write
+        ValueCellIncrementWriter.updateBounds(table.getTable(), FAMILY,
+                Collections.singletonMap(cell, new ValueCellValue(2, 3.0, 1.25, 1.75)), 3, 1000);
+
+        assertThat(table.getCheckAndMutateCount()).isEqualTo(checks);
+    }
+
+    @Test
+    public void updateBounds_retriesConflict() {
+        final CellQualifier cell = cell(1, 1);
+        final byte[] row = cell.getRowKey().asByteArray();
+        final byte[] maxQualifier = ValueCellParts.maxQualifier(cell.getColumnQualifier());
+
+        //a competing writer sets a higher max between our read and our check
+        table.beforeNextCheck(() -> table.putValue(row, maxQualifier, Bytes.toBytes(50.0)));
+
+        ValueCellIncrementWriter.updateBounds(table.getTable(), FAMILY,
+                Collections.singletonMap(cell, new ValueCellValue(10)), 3, 1000);
+
+        assertThat(Bytes.toDouble(table.getValue(row, maxQualifier))).isEqualTo(50.0);
+        assertThat(Bytes.toDouble(table.getValue(row, ValueCellParts.minQualifier(cell.getColumnQualifier()))))
+                .isEqualTo(10.0);
+    }
+
+    @Test
+    public void migrateRow_roundTrip() {
+        final CellQualifier cell1 = cell(1, 1);
+        final CellQualifier cell2 = cell(1, 2);
+        final byte[] row = cell1.getRowKey().asByteArray();
+        final ValueCellValue value1 = new ValueCellValue(3, 6.5, 1.0, 3.5);
+        final ValueCellValue value2 = new ValueCellValue(7.25);
+        table.putValue(row, cell1.getColumnQualifier().getBytes(), value1.asByteArray());
+        table.putValue(row, cell2.getColumnQualifier().getBytes(), value2.asByteArray());
+
+        assertThat(ValueCellMigrator.migrateRow(
+                table.getTable(), FAMILY, table.getRow(row), RowKeySalt.NONE, ValueCellLayout.INCREMENT, SCALE, 3))
+                .isEqualTo(2);
+        assertThat(table.getValue(row, cell1.getColumnQualifier().getBytes())).isNull();
+        assertThat(read(cell1)).isEqualTo(value1);
+        assertThat(read(cell2)).isEqualTo(value2);
+
+        //already in the target layout so nothing to do
+        assertThat(ValueCellMigrator.migrateRow(
+                table.getTable(), FAMILY, table.getRow(row), RowKeySalt.NONE, ValueCellLayout.INCREMENT, SCALE, 3))
+                .isEqualTo(0);
+
+        assertThat(ValueCellMigrator.migrateRow(
+                table.getTable(), FAMILY, table.getRow(row), RowKeySalt.NONE, ValueCellLayout.COMPOUND, SCALE, 3))
+                .isEqualTo(2);
+        assertThat(table.getValue(row, ValueCellParts.countQualifier(cell1.getColumnQualifier()))).isNull();
+        assertThat(new ValueCellValue(table.getValue(row, cell1.getColumnQualifier().getBytes()))).isEqualTo(value1);
+        assertThat(new ValueCellValue(table.getValue(row, cell2.getColumnQualifier().getBytes()))).isEqualTo(value2);
+    }
+
+    private ValueCellValue read(final CellQualifier cellQualifier) {
+        final ColumnQualifier columnQualifier = cellQualifier.getColumnQualifier();
+        final ValueCellParts parts = new ValueCellParts();
+        table.getRow(cellQualifier.getRowKey().asByteArray()).listCells().stream()
+                .filter(cell -> columnQualifier.compareTo(cell.getQualifierArray(), cell.getQualifierOffset()) == 0)
+                .forEach(cell -> parts.addCell(
+                        cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength(),
+                        cell.getValueArray(), cell.getValueOffset(), cell.getValueLength()));
+        return parts.toValueCellValue();
+    }
+
+    private static CellQualifier cell(final int partialTimestamp, final int qualifier) {
+        final RowKey rowKey = new RowKey(
+                UID.from(new byte[]{0, 0, 0, 1}),
+                new byte[]{0, 0},
+                Bytes.toBytes(partialTimestamp),
+                Collections.emptyList());
+        return new CellQualifier(rowKey, ColumnQualifier.from(qualifier), 0);
+    }
+}
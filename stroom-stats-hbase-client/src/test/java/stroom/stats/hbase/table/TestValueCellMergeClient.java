@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.exceptions.UnknownProtocolException;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.MultiRowMutationProtos.MutateRowsRequest;
+import org.apache.hadoop.hbase.protobuf.generated.RowProcessorProtos.ProcessRequest;
+import org.apache.hadoop.hbase.regionserver.WrongRegionException;
+import org.apache.hadoop.hbase.shaded.com.google.protobuf.ServiceException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.ipc.RemoteException;
+import org.junit.Test;
+import stroom.stats.hbase.structure.ValueCellValue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestValueCellMergeClient {
+
+    private static final byte[] FAMILY = EventStoreColumnFamily.VALUES.asByteArray();
+
+    @Test
+    public void buildRequest() throws IOException {
+        final ValueCellValue value1 = new ValueCellValue(3, 30, 5, 15);
+        final ValueCellValue value2 = new ValueCellValue(1.5);
+        final ValueCellValue value3 = new ValueCellValue(2, 4, 1, 3);
+
+        final List<Put> deltas = Arrays.asList(
+                new Put(Bytes.toBytes("row1"))
+                        .addColumn(FAMILY, Bytes.toBytes(1), value1.asByteArray())
+                        .addColumn(FAMILY, Bytes.toBytes(2), value2.asByteArray()),
+                new Put(Bytes.toBytes("row2"))
+                        .addColumn(FAMILY, Bytes.toBytes(1), value3.asByteArray()));
+
+        final ProcessRequest request = ValueCellMergeClient.buildRequest(deltas);
+
+        assertThat(request.getRowProcessorClassName())
+                .isEqualTo(ValueCellMergeClient.ROW_PROCESSOR_CLASS_NAME);
+        assertThat(request.getRowProcessorInitializerMessageName())
+                .isEqualTo(MutateRowsRequest.class.getName());
+
+        //decode the request as the region server would
+        final MutateRowsRequest mutateRowsRequest = MutateRowsRequest.parseFrom(
+                request.getRowProcessorInitializerMessage());
+        assertThat(mutateRowsRequest.getMutationRequestCount()).isEqualTo(2);
+
+        final Put put1 = ProtobufUtil.toPut(mutateRowsRequest.getMutationRequest(0));
+        final Put put2 = ProtobufUtil.toPut(mutateRowsRequest.getMutationRequest(1));
+
+        assertThat(put1.getRow()).isEqualTo(Bytes.toBytes("row1"));
+        assertThat(getValue(put1, Bytes.toBytes(1))).isEqualTo(value1);
+        assertThat(getValue(put1, Bytes.toBytes(2))).isEqualTo(value2);
+        assertThat(put2.getRow()).isEqualTo(Bytes.toBytes("row2"));
+        assertThat(getValue(put2, Bytes.toBytes(1))).isEqualTo(value3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void buildRequest_empty() throws IOException {
+        ValueCellMergeClient.buildRequest(Arrays.asList());
+    }
+
+    @Test
+    public void isRejectedBeforeApply() {
+        assertThat(ValueCellMergeClient.isRejectedBeforeApply(
+                new ServiceException(new UnknownProtocolException("no endpoint")))).isTrue();
+        assertThat(ValueCellMergeClient.isRejectedBeforeApply(
+                new ServiceException(new WrongRegionException("split")))).isTrue();
+        assertThat(ValueCellMergeClient.isRejectedBeforeApply(
+                new IOException(new RemoteException(UnknownProtocolException.class.getName(), "no endpoint"))))
+                .isTrue();
+
+        assertThat(ValueCellMergeClient.isRejectedBeforeApply(
+                new ServiceException(new SocketTimeoutException("timed out")))).isFalse();
+        assertThat(ValueCellMergeClient.isRejectedBeforeApply(
+                new IOException(new RemoteException(IOException.class.getName(), "failed")))).isFalse();
+    }
+
+    private ValueCellValue getValue(final Put put, final byte[] qualifier) {
+        final List<Cell> cells = put.get(FAMILY, qualifier);
+        assertThat(cells).hasSize(1);
+        return new ValueCellValue(CellUtil.cloneValue(cells.get(0)));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.coprocessor;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos;
+import org.apache.hadoop.hbase.regionserver.BaseRowProcessor;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.regionserver.WrongRegionException;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.util.Bytes;
+import stroom.stats.hbase.structure.AggregationSpec;
+import stroom.stats.hbase.structure.PartialAggregator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read only {@link org.apache.hadoop.hbase.regionserver.RowProcessor} that runs on the HBase region server,
+ * scans part of an event store region and reduces the cells to {@link stroom.stats.hbase.structure.AggregatePartial}s
+ * grouped as described by the {@link AggregationSpec} held on the scan, see {@link PartialAggregator}. Only the
+ * partials are returned to the client, rather than every cell in the scan range.
+ *
+ * Like {@link ValueCellMergeRowProcessor} it is invoked via the stock
+ * {@link org.apache.hadoop.hbase.coprocessor.BaseRowProcessorEndpoint}, so needs the same deployment. The scan
+ * must lie within the region the request is sent to, otherwise the request is rejected with a
+ * {@link WrongRegionException} before anything is scanned. The scan must also complete within the region
+ * server's row processor timeout (hbase.hregion.row.processor.timeout).
+ *
+ * The request is a standard {@link ClientProtos.Scan} and the partials are returned as the cells of a standard
+ * {@link ClientProtos.Result} so no custom protobuf messages are needed.
+ */
+public class EventStoreAggregationRowProcessor extends BaseRowProcessor<ClientProtos.Scan, ClientProtos.Result> {
+
+    private ClientProtos.Scan request;
+    private Scan scan;
+    private AggregationSpec aggregationSpec;
+    private ClientProtos.Result result;
+
+    /**
+     * Needed by the endpoint which creates the processor by reflection and then calls
+     * {@link EventStoreAggregationRowProcessor#initialize(ClientProtos.Scan)}
+     */
+    @SuppressWarnings("unused")
+    public EventStoreAggregationRowProcessor() {
+    }
+
+    EventStoreAggregationRowProcessor(final ClientProtos.Scan request) throws IOException {
+        initialize(request);
+    }
+
+    @Override
+    public void initialize(final ClientProtos.Scan request) throws IOException {
+        this.request = request;
+        this.scan = ProtobufUtil.toScan(request);
+        this.aggregationSpec = AggregationSpec.fromScan(scan);
+        if (aggregationSpec == null) {
+            throw new IOException("Scan has no aggregation spec");
+        }
+    }
+
+    @Override
+    public ClientProtos.Scan getRequestData() throws IOException {
+        return request;
+    }
+
+    @Override
+    public Collection<byte[]> getRowsToLock() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean readOnly() {
+        return true;
+    }
+
+    @Override
+    public void process(final long now,
+                        final HRegion region,
+                        final List<Mutation> mutations,
+                        final WALEdit walEdit) throws IOException {
+
+        checkScanInRegion(region.getRegionInfo());
+
+        final PartialAggregator partialAggregator = new PartialAggregator(aggregationSpec);
+        final List<Cell> rowCells = new ArrayList<>();
+        try (RegionScanner scanner = region.getScanner(scan)) {
+            boolean hasMoreRows;
+            do {
+                rowCells.clear();
+                hasMoreRows = scanner.next(rowCells);
+                partialAggregator.addRow(rowCells);
+            } while (hasMoreRows);
+        }
+
+        final byte[] family = scan.getFamilies().length > 0
+                ? scan.getFamilies()[0]
+                : new byte[0];
+        result = ProtobufUtil.toResult(Result.create(partialAggregator.toCells(family)));
+    }
+
+    private void checkScanInRegion(final HRegionInfo regionInfo) throws WrongRegionException {
+        final byte[] startRow = scan.getStartRow();
+        final byte[] stopRow = scan.getStopRow();
+        final byte[] regionStartKey = regionInfo.getStartKey();
+        final byte[] regionEndKey = regionInfo.getEndKey();
+
+        final boolean isStartInRegion = Bytes.compareTo(startRow, regionStartKey) >= 0;
+        final boolean isStopInRegion = regionEndKey.length == 0
+                || (stopRow.length > 0 && Bytes.compareTo(stopRow, regionEndKey) <= 0);
+
+        if (!isStartInRegion || !isStopInRegion) {
+            throw new WrongRegionException(String.format("Scan range [%s, %s) is not within region %s",
+                    Bytes.toStringBinary(startRow), Bytes.toStringBinary(stopRow), regionInfo.getRegionNameAsString()));
+        }
+    }
+
+    @Override
+    public ClientProtos.Result getResult() {
+        return result;
+    }
+
+    @Override
+    public String getName() {
+        return EventStoreAggregationRowProcessor.class.getSimpleName();
+    }
+}
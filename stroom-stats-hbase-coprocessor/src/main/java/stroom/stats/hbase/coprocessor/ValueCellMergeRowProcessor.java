@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.coprocessor;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos.MutationProto;
+import org.apache.hadoop.hbase.protobuf.generated.MultiRowMutationProtos.MutateRowsRequest;
+import org.apache.hadoop.hbase.protobuf.generated.MultiRowMutationProtos.MutateRowsResponse;
+import org.apache.hadoop.hbase.regionserver.BaseRowProcessor;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.util.Bytes;
+import stroom.stats.hbase.structure.ValueCellValue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A {@link org.apache.hadoop.hbase.regionserver.RowProcessor} that runs on the HBase region server and merges
+ * a batch of value statistic deltas into the stored value cells. Each delta is a {@link ValueCellValue}
+ * (count/sum/min/max) held in a {@link Put}. All rows in the batch are locked by the region, the current cells
+ * are read, the deltas are aggregated into them and the merged cells are written, all as one atomic
+ * operation, so the client needs no get/checkAndPut round trips and no retries.
+ *
+ * It is invoked via the stock {@link org.apache.hadoop.hbase.coprocessor.BaseRowProcessorEndpoint} which must be
+ * registered as a region coprocessor (hbase.coprocessor.region.classes) with the jar built by the
+ * stroom-stats-hbase-coprocessor module in /hbase/lib on each region server. All the rows in a batch must
+ * belong to the same region.
+ *
+ * The request is a standard {@link MutateRowsRequest} so no custom protobuf messages are needed.
+ */
+public class ValueCellMergeRowProcessor extends BaseRowProcessor<MutateRowsRequest, MutateRowsResponse> {
+
+    private MutateRowsRequest request;
+    private List<Put> deltas;
+
+    /**
+     * Needed by the endpoint which creates the processor by reflection and then calls
+     * {@link ValueCellMergeRowProcessor#initialize(MutateRowsRequest)}
+     */
+    @SuppressWarnings("unused")
+    public ValueCellMergeRowProcessor() {
+    }
+
+    ValueCellMergeRowProcessor(final MutateRowsRequest request) throws IOException {
+        initialize(request);
+    }
+
+    @Override
+    public void initialize(final MutateRowsRequest request) throws IOException {
+        this.request = request;
+        this.deltas = new ArrayList<>(request.getMutationRequestCount());
+        for (final MutationProto mutationProto : request.getMutationRequestList()) {
+            deltas.add(ProtobufUtil.toPut(mutationProto));
+        }
+    }
+
+    @Override
+    public MutateRowsRequest getRequestData() throws IOException {
+        return request;
+    }
+
+    @Override
+    public Collection<byte[]> getRowsToLock() {
+        final SortedSet<byte[]> rows = new TreeSet<>(Bytes.BYTES_COMPARATOR);
+        for (final Put delta : deltas) {
+            rows.add(delta.getRow());
+        }
+        return rows;
+    }
+
+    @Override
+    public boolean readOnly() {
+        return false;
+    }
+
+    @Override
+    public void process(final long now,
+                        final HRegion region,
+                        final List<Mutation> mutations,
+                        final WALEdit walEdit) throws IOException {
+
+        for (final Put delta : deltas) {
+            final byte[] row = delta.getRow();
+
+            final Get get = new Get(row);
+            for (final List<Cell> cells : delta.getFamilyCellMap().values()) {
+                for (final Cell cell : cells) {
+                    get.addColumn(CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell));
+                }
+            }
+            final Result current = region.get(get);
+
+            final Put merged = new Put(row, now);
+            for (final List<Cell> cells : delta.getFamilyCellMap().values()) {
+                for (final Cell cell : cells) {
+                    final byte[] family = CellUtil.cloneFamily(cell);
+                    final byte[] qualifier = CellUtil.cloneQualifier(cell);
+                    final ValueCellValue deltaValue = new ValueCellValue(
+                            cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+
+                    final Cell existingCell = current.getColumnLatestCell(family, qualifier);
+                    final ValueCellValue newValue;
+                    if (existingCell != null) {
+                        newValue = new ValueCellValue(
+                                existingCell.getValueArray(),
+                                existingCell.getValueOffset(),
+                                existingCell.getValueLength())
+                                .addAggregatedValues(deltaValue);
+                    } else {
+                        newValue = deltaValue;
+                    }
+
+                    final KeyValue keyValue = new KeyValue(row, family, qualifier, now, newValue.asByteArray());
+                    merged.add(keyValue);
+                    walEdit.add(keyValue);
+                }
+            }
+            mutations.add(merged);
+        }
+    }
+
+    @Override
+    public MutateRowsResponse getResult() {
+        //the endpoint serialises the result so it must not be null, though the client has no use for it
+        return MutateRowsResponse.getDefaultInstance();
+    }
+
+    @Override
+    public String getName() {
+        return ValueCellMergeRowProcessor.class.getSimpleName();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.coprocessor;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.regionserver.WrongRegionException;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import stroom.stats.hbase.structure.AggregatePartial;
+import stroom.stats.hbase.structure.AggregationSpec;
+import stroom.stats.hbase.structure.PartialAggregator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestEventStoreAggregationRowProcessor {
+
+    private static final byte[] FAMILY = Bytes.toBytes("c");
+    private static final byte[] STAT_UID = {0, 0, 0, 1};
+    private static final byte[] MASK = {0, 0};
+    private static final byte[] TAG_1 = {0, 0, 0, 2};
+    private static final byte[] TAG_2 = {0, 0, 0, 3};
+    private static final long ROW_INTERVAL_MS = 3_600_000L;
+    private static final long COLUMN_INTERVAL_MS = 1_000L;
+
+    @Test
+    public void process() throws IOException {
+        //keep tag 1 only so the two rows with different tag 2 values are aggregated together
+        final Scan scan = buildScan(new byte[]{0}, new byte[]{1});
+        final EventStoreAggregationRowProcessor processor = new EventStoreAggregationRowProcessor(
+                ProtobufUtil.toScan(scan));
+
+        final byte[] row1 = buildRowKey(10, new byte[]{0, 0, 0, 9});
+        final byte[] row2 = buildRowKey(10, new byte[]{0, 0, 0, 8});
+        final HRegion region = mockRegion(new byte[0], new byte[0],
+                Arrays.asList(
+                        Arrays.asList(countCell(row1, 5, 3), countCell(row1, 6, 4)),
+                        Arrays.asList(countCell(row2, 5, 10))));
+
+        assertThat(processor.readOnly()).isTrue();
+        assertThat(processor.getRowsToLock()).isEmpty();
+
+        processor.process(1_000L, region, new ArrayList<>(), null);
+
+        final Result result = ProtobufUtil.toResult(processor.getResult());
+        assertThat(result.rawCells()).hasSize(2);
+        for (final Cell cell : result.rawCells()) {
+            final byte[] groupKey = Bytes.copy(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
+            final AggregatePartial partial = AggregatePartial.fromBytes(
+                    cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+            final long bucketTimeMs = PartialAggregator.getBucketTimeMs(groupKey);
+
+            //only tag 1 is in the group key
+            assertThat(groupKey).hasSize(PartialAggregator.GROUP_KEY_TAGS_OFFSET + 8);
+            if (bucketTimeMs == (10 * ROW_INTERVAL_MS) + 5_000L) {
+                assertThat(partial.getCount()).isEqualTo(13);
+            } else {
+                assertThat(bucketTimeMs).isEqualTo((10 * ROW_INTERVAL_MS) + 6_000L);
+                assertThat(partial.getCount()).isEqualTo(4);
+            }
+        }
+    }
+
+    @Test
+    public void process_scanOutsideRegion() throws IOException {
+        final Scan scan = buildScan(new byte[]{0}, new byte[]{5});
+        final EventStoreAggregationRowProcessor processor = new EventStoreAggregationRowProcessor(
+                ProtobufUtil.toScan(scan));
+
+        //region ends before the scan does
+        final HRegion region = mockRegion(new byte[0], new byte[]{3}, new ArrayList<>());
+
+        assertThatThrownBy(() -> processor.process(1_000L, region, new ArrayList<>(), null))
+                .isInstanceOf(WrongRegionException.class);
+    }
+
+    private Scan buildScan(final byte[] startRow, final byte[] stopRow) {
+        final Scan scan = new Scan(startRow, stopRow);
+        scan.addFamily(FAMILY);
+        return new AggregationSpec(
+                STAT_UID.length + MASK.length,
+                STAT_UID.length + MASK.length + Integer.BYTES,
+                ROW_INTERVAL_MS,
+                COLUMN_INTERVAL_MS,
+                COLUMN_INTERVAL_MS,
+                0,
+                Long.MAX_VALUE,
+                false,
+                TAG_1).applyTo(scan);
+    }
+
+    private HRegion mockRegion(final byte[] startKey,
+                               final byte[] endKey,
+                               final List<List<Cell>> rows) throws IOException {
+        final HRegion region = mock(HRegion.class);
+        when(region.getRegionInfo()).thenReturn(new HRegionInfo(TableName.valueOf("test"), startKey, endKey));
+
+        final RegionScanner scanner = mock(RegionScanner.class);
+        final Iterator<List<Cell>> rowIterator = rows.iterator();
+        doAnswer(invocation -> {
+            if (rowIterator.hasNext()) {
+                final List<Cell> cells = invocation.getArgument(0);
+                cells.addAll(rowIterator.next());
+            }
+            return rowIterator.hasNext();
+        }).when(scanner).next(anyList());
+        when(region.getScanner(any(Scan.class))).thenReturn(scanner);
+        return region;
+    }
+
+    private static byte[] buildRowKey(final int rowIntervalNo, final byte[] tag2Value) {
+        return Bytes.add(
+                Bytes.add(STAT_UID, MASK, Bytes.toBytes(rowIntervalNo)),
+                Bytes.add(TAG_1, new byte[]{0, 0, 0, 7}),
+                Bytes.add(TAG_2, tag2Value));
+    }
+
+    private static Cell countCell(final byte[] row, final int columnIntervalNo, final long count) {
+        return new KeyValue(row, FAMILY, Bytes.toBytes(columnIntervalNo), Bytes.toBytes(count));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.coprocessor;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.protobuf.ProtobufUtil;
+import org.apache.hadoop.hbase.protobuf.generated.ClientProtos.MutationProto.MutationType;
+import org.apache.hadoop.hbase.protobuf.generated.MultiRowMutationProtos.MutateRowsRequest;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import stroom.stats.hbase.structure.ValueCellValue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestValueCellMergeRowProcessor {
+
+    private static final byte[] FAMILY = Bytes.toBytes("v");
+    private static final byte[] ROW_1 = Bytes.toBytes("row1");
+    private static final byte[] ROW_2 = Bytes.toBytes("row2");
+    private static final byte[] QUALIFIER_1 = Bytes.toBytes(1);
+    private static final byte[] QUALIFIER_2 = Bytes.toBytes(2);
+
+    @Test
+    public void getRowsToLock() throws IOException {
+        final ValueCellMergeRowProcessor processor = new ValueCellMergeRowProcessor(buildRequest(
+                new Put(ROW_2).addColumn(FAMILY, QUALIFIER_1, new ValueCellValue(1).asByteArray()),
+                new Put(ROW_1).addColumn(FAMILY, QUALIFIER_1, new ValueCellValue(2).asByteArray())));
+
+        assertThat(processor.getRowsToLock()).containsExactly(ROW_1, ROW_2);
+        assertThat(processor.readOnly()).isFalse();
+    }
+
+    @Test
+    public void process() throws IOException {
+        final long now = 1_000L;
+        final ValueCellValue existing = new ValueCellValue(2, 10, 4, 6);
+        final ValueCellValue delta1 = new ValueCellValue(1, 20, 20, 20);
+        final ValueCellValue delta2 = new ValueCellValue(3, 3, 0.5, 1.5);
+
+        final ValueCellMergeRowProcessor processor = new ValueCellMergeRowProcessor(buildRequest(
+                new Put(ROW_1)
+                        .addColumn(FAMILY, QUALIFIER_1, delta1.asByteArray())
+                        .addColumn(FAMILY, QUALIFIER_2, delta2.asByteArray())));
+
+        //row1/qualifier1 already has a value, row1/qualifier2 is empty
+        final HRegion region = mock(HRegion.class);
+        when(region.get(any(Get.class))).thenReturn(Result.create(Collections.singletonList(
+                new KeyValue(ROW_1, FAMILY, QUALIFIER_1, 1L, existing.asByteArray()))));
+
+        final List<Mutation> mutations = new ArrayList<>();
+        final WALEdit walEdit = new WALEdit();
+        processor.process(now, region, mutations, walEdit);
+
+        assertThat(mutations).hasSize(1);
+        final Put put = (Put) mutations.get(0);
+        assertThat(put.getRow()).isEqualTo(ROW_1);
+        assertThat(getValue(put, QUALIFIER_1)).isEqualTo(existing.addAggregatedValues(delta1));
+        assertThat(getValue(put, QUALIFIER_2)).isEqualTo(delta2);
+        assertThat(put.get(FAMILY, QUALIFIER_1).get(0).getTimestamp()).isEqualTo(now);
+
+        //every merged cell must also go in the WAL
+        assertThat(walEdit.getCells()).hasSize(2);
+    }
+
+    private MutateRowsRequest buildRequest(final Put... puts) throws IOException {
+        final MutateRowsRequest.Builder builder = MutateRowsRequest.newBuilder();
+        for (final Put put : Arrays.asList(puts)) {
+            builder.addMutationRequest(ProtobufUtil.toMutation(MutationType.PUT, put));
+        }
+        return builder.build();
+    }
+
+    private ValueCellValue getValue(final Put put, final byte[] qualifier) {
+        final List<Cell> cells = put.get(FAMILY, qualifier);
+        assertThat(cells).hasSize(1);
+        return new ValueCellValue(CellUtil.cloneValue(cells.get(0)));
+    }
+}
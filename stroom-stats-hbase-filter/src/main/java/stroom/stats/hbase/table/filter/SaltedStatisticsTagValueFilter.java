@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.table.filter;
+
+import org.apache.hadoop.hbase.exceptions.DeserializationException;
+import stroom.stats.hbase.structure.RowKey;
+import stroom.stats.hbase.structure.RowKeySalt;
+
+/**
+ * A {@link StatisticsTagValueFilter} for the row keys of a salted event store table, i.e. ones with a salt
+ * byte before the stat name UID, see {@link RowKeySalt}. Like {@link StatisticsTagValueFilter} it runs
+ * server-side so the filter jar must be re-deployed to the region servers before salted tables are queried.
+ */
+public class SaltedStatisticsTagValueFilter extends AbstractTagValueFilter {
+
+    private static final int START_OF_TAG_VALUE_PAIRS_POSITION =
+            RowKeySalt.SALT_LENGTH + RowKey.UID_AND_BIT_MASK_AND_TIME_LENGTH;
+
+    public SaltedStatisticsTagValueFilter(final TagValueFilterTree tagValueFilterTree) {
+        super(tagValueFilterTree);
+    }
+
+    @Override
+    TagValueSection findTagValueSectionOfRowKey(final byte[] buffer, final int offset, final int length) {
+        final int from = offset + START_OF_TAG_VALUE_PAIRS_POSITION;
+        final int to = offset + length;
+
+        return new TagValueSection(from, to);
+    }
+
+    /**
+     * Rebuild an instance of this class from a byte array. This will be called by the Hbase server
+     * to de-serialize the class from bytes
+     *
+     * @throws DeserializationException
+     */
+    @SuppressWarnings("unused")
+    public static SaltedStatisticsTagValueFilter parseFrom(final byte[] value) throws DeserializationException {
+        final TagValueFilterTree tagValueFilterTree = TagValueFilterTreeSerialiser.instance().deserialize(value);
+
+        return new SaltedStatisticsTagValueFilter(tagValueFilterTree);
+    }
+}
@@ -22,6 +22,7 @@
 package stroom.stats.api;
 
 import stroom.stats.common.SearchStatisticsCriteria;
+import stroom.stats.common.StatisticDataPoint;
 import stroom.stats.common.StatisticDataSet;
 import stroom.stats.configuration.StatisticConfiguration;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
@@ -30,6 +31,8 @@ import stroom.stats.streams.aggregation.StatAggregate;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface StatisticsService {
 
@@ -44,6 +47,27 @@ public interface StatisticsService {
                              final EventStoreTimeIntervalEnum interval,
                              final Map<StatEventKey, StatAggregate> aggregatedEvents);
 
+    /**
+     * As {@link StatisticsService#putAggregatedEvents} but returns once the writes have been started, so the
+     * caller can get on with other work while they complete. Implementations may block the caller if too many
+     * writes are already in flight.
+     *
+     * @return A future that completes once all the aggregatedEvents have been persisted, or exceptionally if
+     * any of them could not be
+     */
+    default CompletableFuture<Void> putAggregatedEventsAsync(final StatisticType statisticType,
+                                                             final EventStoreTimeIntervalEnum interval,
+                                                             final Map<StatEventKey, StatAggregate> aggregatedEvents) {
+        try {
+            putAggregatedEvents(statisticType, interval, aggregatedEvents);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
     //TODO if we take a SearchRequest then we probably ought to return a SearchResponse object and
     //do the work that is currentlt done in HBclient in here
 
@@ -59,6 +83,18 @@ public interface StatisticsService {
     StatisticDataSet searchStatisticsData(final SearchStatisticsCriteria searchStatisticsCriteria,
                                           final StatisticConfiguration statisticConfiguration);
 
+    /**
+     * As {@link StatisticsService#searchStatisticsData(SearchStatisticsCriteria, StatisticConfiguration)} but
+     * each data point is passed to the consumer as it is read from the store rather than being collected
+     * into a {@link StatisticDataSet}, so memory use does not grow with the size of the result.
+     *
+     * @param dataPointConsumer Called on the searching thread for each data point found
+     * @return The number of data points passed to the consumer
+     */
+    long streamStatisticsData(final SearchStatisticsCriteria searchStatisticsCriteria,
+                              final StatisticConfiguration statisticConfiguration,
+                              final Consumer<StatisticDataPoint> dataPointConsumer);
+
 //    /**
 //     * Perform a search of the statistic store. No rolling up of data will be performed.
 //     *
@@ -99,6 +135,18 @@ public interface StatisticsService {
 
     void purgeAllData(final List<StatisticConfiguration> statisticConfigurations);
 
+    /**
+     * Re-writes any value statistics held in a different storage layout to the one currently
+     * configured, so the old layout can be retired
+     */
+    void migrateValueCells();
+
+    /**
+     * Alters the storage settings of the underlying tables, e.g. compression, to match the current
+     * configuration
+     */
+    void reconcileColumnFamilies();
+
     /**
      * Flushes all events currently held in memory down to the persistent event
      * store
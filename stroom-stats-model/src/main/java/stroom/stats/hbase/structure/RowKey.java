@@ -37,16 +37,21 @@ import java.util.List;
  * and the widths in bytes look like this
  *
  * <4><2><4><4><4>...<4><4>
+ *
+ * If the table is salted (see {@link RowKeySalt}) the row key is prefixed with a one byte salt.
  */
 public class RowKey {
     private final TimeAgnosticRowKey timeAgnosticRowKey;
     private final byte[] partialTimestamp;
+    private final byte[] salt;
 
     // cache of the hashcode as this object is immutable
     private final int hashCodeValue;
 
     public static final int PARTIAL_TIMESTAMP_ARRAY_LENGTH = 4;
 
+    private static final byte[] EMPTY_SALT = new byte[0];
+
     // helper variables that add various permutations of the above statics
     public static final int UID_ARRAY_LENGTH = UID.UID_ARRAY_LENGTH;
     public static final int UID_AND_BIT_MASK_LENGTH = UID.UID_ARRAY_LENGTH
@@ -57,14 +62,20 @@ public class RowKey {
                   final List<RowKeyTagValue> sortedTagValuePairs) {
         this.timeAgnosticRowKey = new TimeAgnosticRowKey(typeId, rollUpBitMask, sortedTagValuePairs);
         this.partialTimestamp = partialTimestamp;
+        this.salt = EMPTY_SALT;
 
         // cache the hascode to save it being calculated each time
         hashCodeValue = buildHashCode();
     }
 
     public RowKey(final TimeAgnosticRowKey timeAgnosticRowKey, final byte[] partialTimestamp) {
+        this(timeAgnosticRowKey, partialTimestamp, EMPTY_SALT);
+    }
+
+    private RowKey(final TimeAgnosticRowKey timeAgnosticRowKey, final byte[] partialTimestamp, final byte[] salt) {
         this.timeAgnosticRowKey = timeAgnosticRowKey;
         this.partialTimestamp = partialTimestamp;
+        this.salt = salt;
 
         // cache the hascode to save it being calculated each time
         hashCodeValue = buildHashCode();
@@ -79,10 +90,27 @@ public class RowKey {
      *            EventStore table
      */
     public RowKey(final byte[] rowKey) {
-        final UID typeId =UID.from(rowKey, 0);
+        this(rowKey, RowKeySalt.NONE);
+    }
 
-        int startPosition = UID_ARRAY_LENGTH;
-        int positionOfNextSection = UID_ARRAY_LENGTH + TimeAgnosticRowKey.ROLL_UP_BIT_MASK_LENGTH;
+    /**
+     * Constructor to build a RowKey object from the row key byte array as
+     * pulled from HBase, for a table salted with the passed salt
+     *
+     * @param rowKey
+     *            row key byte array as taken from a HBase row key in the
+     *            EventStore table
+     * @param rowKeySalt
+     *            The salt of the table the row key came from
+     */
+    public RowKey(final byte[] rowKey, final RowKeySalt rowKeySalt) {
+        final int saltLength = rowKeySalt.getPrefixLength();
+        this.salt = Arrays.copyOfRange(rowKey, 0, saltLength);
+
+        final UID typeId =UID.from(rowKey, saltLength);
+
+        int startPosition = saltLength + UID_ARRAY_LENGTH;
+        int positionOfNextSection = startPosition + TimeAgnosticRowKey.ROLL_UP_BIT_MASK_LENGTH;
 
         final byte[] rollUpBitMask = Arrays.copyOfRange(rowKey, startPosition, positionOfNextSection);
 
@@ -99,17 +127,40 @@ public class RowKey {
         hashCodeValue = buildHashCode();
     }
 
+    /**
+     * @return This row key with the salt it gets in a table salted with the passed salt
+     */
+    public RowKey salted(final RowKeySalt rowKeySalt) {
+        final byte[] newSalt = rowKeySalt.saltFor(asUnsaltedByteArray());
+        return Arrays.equals(salt, newSalt) ? this : new RowKey(timeAgnosticRowKey, partialTimestamp, newSalt);
+    }
+
+    /**
+     * @return The row key as stored in HBase, including any salt
+     */
     public byte[] asByteArray() {
+        return toByteArray(salt);
+    }
+
+    /**
+     * @return The row key without any salt
+     */
+    public byte[] asUnsaltedByteArray() {
+        return toByteArray(EMPTY_SALT);
+    }
+
+    private byte[] toByteArray(final byte[] salt) {
         int tagValueTotalLength = 0;
 
         for (final RowKeyTagValue pair : timeAgnosticRowKey.getTagValuePairs()) {
             tagValueTotalLength += pair.asByteArray().length;
         }
 
-        final byte[] rowKey = new byte[timeAgnosticRowKey.getTypeId().length()
+        final byte[] rowKey = new byte[salt.length + timeAgnosticRowKey.getTypeId().length()
                 + timeAgnosticRowKey.getRollUpBitMask().length + partialTimestamp.length + tagValueTotalLength];
 
         final ByteBuffer buffer = ByteBuffer.wrap(rowKey);
+        buffer.put(salt);
         buffer.put(timeAgnosticRowKey.getTypeId().getUidBytes());
         buffer.put(timeAgnosticRowKey.getRollUpBitMask());
         buffer.put(partialTimestamp);
@@ -128,6 +179,10 @@ public class RowKey {
         return timeAgnosticRowKey.getRollUpBitMask();
     }
 
+    public byte[] getSalt() {
+        return salt;
+    }
+
     public byte[] getPartialTimestamp() {
         return partialTimestamp;
     }
@@ -143,6 +198,11 @@ public class RowKey {
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
+        if (salt.length > 0) {
+            sb.append("[");
+            sb.append(ByteArrayUtils.byteArrayToHex(salt));
+            sb.append("] ");
+        }
         sb.append("[");
         sb.append(ByteArrayUtils.byteArrayToHex(partialTimestamp));
         sb.append("] [");
@@ -156,6 +216,7 @@ public class RowKey {
     public int buildHashCode() {
         final int prime = 31;
         int result = 1;
+        result = prime * result + Arrays.hashCode(salt);
         result = prime * result + Arrays.hashCode(partialTimestamp);
         result = prime * result + ((timeAgnosticRowKey == null) ? 0 : timeAgnosticRowKey.hashCode());
         return result;
@@ -170,6 +231,8 @@ public class RowKey {
         if (getClass() != obj.getClass())
             return false;
         final RowKey other = (RowKey) obj;
+        if (!Arrays.equals(salt, other.salt))
+            return false;
         if (!Arrays.equals(partialTimestamp, other.partialTimestamp))
             return false;
         if (timeAgnosticRowKey == null) {
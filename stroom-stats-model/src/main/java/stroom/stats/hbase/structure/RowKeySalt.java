@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.structure;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how the row keys of an event store table are salted. A salted row key is prefixed with a single
+ * byte bucket number derived from a hash of the rest of the row key, so the rows of a busy statistic are spread
+ * over saltBuckets key ranges (and so regions) rather than all sitting together in one.
+ * <p>
+ * The row key then looks like this:
+ * <p>
+ * <salt><stat name UID><roll up bit mask><partial timestamp><tag1nameUID><tag1valUID>...
+ * <p>
+ * The cost is that a range scan over the rows of a statistic has to be done once per bucket, see
+ * {@link RowKeySalt#getPrefixes()}. The salt of a table can't change once it holds data so it is fixed when
+ * the table is created. A bucket count of 0 or 1 means no salt, i.e. the original row key layout.
+ */
+public class RowKeySalt {
+
+    public static final int SALT_LENGTH = 1;
+    public static final int MAX_BUCKETS = 256;
+
+    public static final RowKeySalt NONE = new RowKeySalt(0);
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int buckets;
+
+    private RowKeySalt(final int buckets) {
+        this.buckets = buckets;
+    }
+
+    public static RowKeySalt of(final int buckets) {
+        Preconditions.checkArgument(buckets >= 0 && buckets <= MAX_BUCKETS,
+                "Salt buckets %s must be between 0 and %s", buckets, MAX_BUCKETS);
+        return buckets <= 1 ? NONE : new RowKeySalt(buckets);
+    }
+
+    public boolean isSalted() {
+        return buckets > 1;
+    }
+
+    public int getBuckets() {
+        return isSalted() ? buckets : 1;
+    }
+
+    /**
+     * @return The number of bytes the salt adds to the start of each row key
+     */
+    public int getPrefixLength() {
+        return isSalted() ? SALT_LENGTH : 0;
+    }
+
+    /**
+     * @return The salt to prefix the passed unsalted row key with, empty if not salted. The same unsalted key
+     * always gets the same salt.
+     */
+    public byte[] saltFor(final byte[] unsaltedRowKey) {
+        if (!isSalted()) {
+            return EMPTY;
+        }
+        //spread the bits of the hash so keys that only differ in their last few bytes, e.g. sequential
+        //partial timestamps, still get different buckets
+        int hash = Arrays.hashCode(unsaltedRowKey);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return new byte[]{(byte) ((hash & Integer.MAX_VALUE) % buckets)};
+    }
+
+    /**
+     * @return The passed unsalted key part prefixed with the salt of the passed bucket
+     */
+    public byte[] prefix(final int bucket, final byte[] unsaltedKeyPart) {
+        if (!isSalted()) {
+            return unsaltedKeyPart;
+        }
+        final byte[] saltedKeyPart = new byte[SALT_LENGTH + unsaltedKeyPart.length];
+        saltedKeyPart[0] = (byte) bucket;
+        System.arraycopy(unsaltedKeyPart, 0, saltedKeyPart, SALT_LENGTH, unsaltedKeyPart.length);
+        return saltedKeyPart;
+    }
+
+    /**
+     * @return The salt prefix of each bucket, in bucket (and so row key) order. A single empty prefix if
+     * not salted.
+     */
+    public List<byte[]> getPrefixes() {
+        if (!isSalted()) {
+            return Collections.singletonList(EMPTY);
+        }
+        final List<byte[]> prefixes = new ArrayList<>(buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            prefixes.add(new byte[]{(byte) bucket});
+        }
+        return prefixes;
+    }
+
+    /**
+     * @return The keys to pre-split a new table at so each bucket starts in a region of its own, or null if
+     * not salted
+     */
+    public byte[][] getSplitKeys() {
+        if (!isSalted()) {
+            return null;
+        }
+        final byte[][] splitKeys = new byte[buckets - 1][];
+        for (int bucket = 1; bucket < buckets; bucket++) {
+            splitKeys[bucket - 1] = new byte[]{(byte) bucket};
+        }
+        return splitKeys;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return getBuckets() == ((RowKeySalt) o).getBuckets();
+    }
+
+    @Override
+    public int hashCode() {
+        return getBuckets();
+    }
+
+    @Override
+    public String toString() {
+        return "RowKeySalt{" +
+                "buckets=" + getBuckets() +
+                '}';
+    }
+}
@@ -123,7 +123,7 @@ public interface StroomPropertyService {
     default boolean getBooleanProperty(String name, boolean defaultValue) {
         Optional<String> optValue = getProperty(name);
         if (optValue.isPresent()) {
-            return Boolean.getBoolean(optValue.get());
+            return Boolean.parseBoolean(optValue.get());
         } else {
             return defaultValue;
         }
@@ -30,6 +30,7 @@ import stroom.stats.util.logging.LambdaLogger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -40,7 +41,12 @@ import java.util.List;
  * <statUuid>[rollUp][interval][truncTime]<t1><v1>...<tN><vN>
  * Where each <...> is a UID
  *
- * The underlying UIDs are built on top of existing byte[]s. These byte[]s should not be mutated as StatEventKey is treated
+ * An instance is always backed by its serialized byte[] form, which is the basis of its hashcode and equality.
+ * When de-serialized using {@link StatEventKey#fromBytes(byte[])} the passed byte[] is wrapped without copying
+ * and the various parts of the key are only decoded into objects if/when they are asked for, so a key that is
+ * only used for hashing/equality (e.g. in an aggregation map) costs a single small object.
+ *
+ * The backing byte[] and the byte[]s underlying the UIDs should not be mutated as StatEventKey is treated
  * as effectively immutable and caches its hashcode
  *
  * The time element in a {@link StatEventKey} will ALWAYS be truncated down to the nearest {@link EventStoreTimeIntervalEnum}.
@@ -71,14 +77,15 @@ public class StatEventKey implements Comparable<StatEventKey> {
             .thenComparingLong(StatEventKey::getTimeMs)
             .thenComparing(StatEventKey::getTagValues, TagValue.TAG_VALUES_COMPARATOR);
 
+    private final byte[] bytes;
+    private final int hashCode;
 
-    private final UID statUuid;
-    private final RollUpBitMask rollupMask;
+    //The following are lazily decoded from bytes. Decoding is idempotent so a race between threads
+    //will at worst result in the same part being decoded twice
+    private UID statUuid;
+    private RollUpBitMask rollupMask;
     private EventStoreTimeIntervalEnum interval;
-    private long timeMs;
-    private final List<TagValue> tagValues;
-
-    private int hashCode;
+    private List<TagValue> tagValues;
 
 
     private enum TimeTruncation {
@@ -98,24 +105,52 @@ public class StatEventKey implements Comparable<StatEventKey> {
         Preconditions.checkNotNull(interval);
         Preconditions.checkNotNull(tagValues);
 
-        this.statUuid = statUuid;
-        this.rollupMask = rollupMask;
-        this.interval = interval;
-        this.tagValues = tagValues;
+        final long truncatedTimeMs;
         switch (timeTruncation) {
             case TRUNCATE:
-                this.timeMs = interval.truncateTimeToColumnInterval(timeMs);
+                truncatedTimeMs = interval.truncateTimeToColumnInterval(timeMs);
                 break;
             case DONT_TRUNCATE:
-                this.timeMs = timeMs;
+                truncatedTimeMs = timeMs;
                 break;
             default:
                 throw new IllegalArgumentException(String.format("Unexpected value for timeTruncation: %s", timeTruncation));
         }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(STATIC_PART_LENGTH + (tagValues.size() * TAG_VALUE_PAIR_LENGTH));
+        byteBuffer.put(statUuid.getBackingArray(), statUuid.getOffset(), UID_ARRAY_LENGTH);
+        byteBuffer.put(rollupMask.asBytes());
+        byteBuffer.put(interval.getByteVal());
+        byteBuffer.putLong(truncatedTimeMs);
+        tagValues.forEach(tagValue -> {
+            byteBuffer.put(tagValue.getTag().getBackingArray(), tagValue.getTag().getOffset(), UID_ARRAY_LENGTH);
+            byteBuffer.put(tagValue.getValue().getBackingArray(), tagValue.getValue().getOffset(), UID_ARRAY_LENGTH);
+        });
+        this.bytes = byteBuffer.array();
+
+        //we already have the decoded parts so hold on to them
+        this.statUuid = statUuid;
+        this.rollupMask = rollupMask;
+        this.interval = interval;
+        this.tagValues = Collections.unmodifiableList(tagValues);
+
         //cache the hashcode to save repeated calculation
         this.hashCode = buildHashCode();
     }
 
+    /**
+     * Wraps the passed bytes without copying them
+     */
+    private StatEventKey(final byte[] bytes) {
+        Preconditions.checkNotNull(bytes);
+        Preconditions.checkArgument(bytes.length >= STATIC_PART_LENGTH
+                        && (bytes.length - STATIC_PART_LENGTH) % TAG_VALUE_PAIR_LENGTH == 0,
+                "Invalid length %s for a StatEventKey", bytes.length);
+
+        this.bytes = bytes;
+        this.hashCode = buildHashCode();
+    }
+
     public StatEventKey(final UID statUuid,
                         final RollUpBitMask rollupMask,
                         final EventStoreTimeIntervalEnum interval,
@@ -142,8 +177,8 @@ public class StatEventKey implements Comparable<StatEventKey> {
      * the tag values rolled up and a new {@link RollUpBitMask}. The new tag values
      * are defined by the new RollUpBitMask.
      *
-     * This is a shallow clone, so has references to the sames underlying objects as
-     * the original instance.
+     * The new instance is built from a copy of this instance's bytes with the rollup mask and
+     * rolled up values overwritten.
      *
      * Care should be taken to only call this on an instance that has no tags rolled up
      * else the roll up behaviour will be cumulative rather than absolute.
@@ -151,54 +186,58 @@ public class StatEventKey implements Comparable<StatEventKey> {
     public StatEventKey cloneAndRollUpTags(final RollUpBitMask newRollUpBitMask, final UID rolledUpValue) {
         Preconditions.checkNotNull(newRollUpBitMask);
         Preconditions.checkNotNull(rolledUpValue);
-        int tagCount = tagValues.size();
+        int tagCount = getTagCount();
 
         List<Boolean> rolledUpTags = newRollUpBitMask.getBooleanMask(tagCount);
 
-        List<TagValue> newTagValues = new ArrayList<>(tagCount);
+        byte[] newBytes = Arrays.copyOf(bytes, bytes.length);
+        System.arraycopy(newRollUpBitMask.asBytes(), 0, newBytes, ROLLUP_MASK_PART_OFFSET, ROLLUP_MASK_PART_LENGTH);
 
         for (int i = 0; i < tagCount; i++) {
-            if (rolledUpTags.get(i)){
-                newTagValues.add(tagValues.get(i).cloneAndRollUp(rolledUpValue));
-            } else {
-                newTagValues.add(tagValues.get(i));
+            if (rolledUpTags.get(i)) {
+                int valueOffset = TAG_VALUE_PAIRS_OFFSET + (i * TAG_VALUE_PAIR_LENGTH) + UID_ARRAY_LENGTH;
+                System.arraycopy(rolledUpValue.getBackingArray(), rolledUpValue.getOffset(),
+                        newBytes, valueOffset, UID_ARRAY_LENGTH);
             }
         }
-        //time of the new key is unchanged from this so don't truncate
-        return new StatEventKey(statUuid, newRollUpBitMask, interval, timeMs, newTagValues, TimeTruncation.DONT_TRUNCATE);
+        StatEventKey statEventKey = new StatEventKey(newBytes);
+        statEventKey.rollupMask = newRollUpBitMask;
+        return statEventKey;
     }
 
     /**
-     * Shallow copy of this except the interval is changed for the next biggest. Will throw a {@link RuntimeException}
-     * if it is already the biggest.
+     * Copy of this except the interval is changed for the passed interval and the time is truncated
+     * down to that new interval. Only the interval and time segments of the copied bytes are re-written.
      */
     public StatEventKey cloneAndChangeInterval(EventStoreTimeIntervalEnum newInterval) {
         Preconditions.checkNotNull(newInterval);
+
+        byte[] newBytes = Arrays.copyOf(bytes, bytes.length);
+        System.arraycopy(newInterval.getByteVal(), 0, newBytes, INTERVAL_PART_OFFSET, INTERVAL_PART_LENGTH);
         //truncate the time in the new statKey down to the new interval
-        return new StatEventKey(statUuid, rollupMask, newInterval, timeMs, tagValues, TimeTruncation.TRUNCATE);
+        Bytes.putLong(newBytes, TIME_PART_OFFSET, newInterval.truncateTimeToColumnInterval(getTimeMs()));
+
+        StatEventKey statEventKey = new StatEventKey(newBytes);
+        statEventKey.interval = newInterval;
+        return statEventKey;
     }
 
+    /**
+     * @return The backing byte[] of this instance, NOT a copy. The returned byte[] must not be mutated.
+     */
     public byte[] getBytes() {
-        int length = STATIC_PART_LENGTH + (tagValues.size() * TAG_VALUE_PAIR_LENGTH);
-        ByteBuffer byteBuffer = ByteBuffer.allocate(length);
-        byteBuffer.put(statUuid.getUidBytes());
-        byteBuffer.put(rollupMask.asBytes());
-        byteBuffer.put(interval.getByteVal());
-        byteBuffer.put(Bytes.toBytes(timeMs));
-        tagValues.forEach(tagValue -> byteBuffer.put(tagValue.getBytes()));
-        return byteBuffer.array();
+        return bytes;
     }
 
+    /**
+     * Builds a {@link StatEventKey} that wraps the passed bytes. The passed bytes are NOT copied
+     * so must not be mutated after this call.
+     */
     public static StatEventKey fromBytes(final byte[] bytes) {
-        UID statName = UID.from(bytes, STAT_NAME_PART_OFFSET);
-        RollUpBitMask rollUpBitMask = RollUpBitMask.fromBytes(bytes, ROLLUP_MASK_PART_OFFSET);
-        EventStoreTimeIntervalEnum interval = EventStoreTimeIntervalEnum.fromBytes(bytes, INTERVAL_PART_OFFSET);
-        long timeMs = Bytes.toLong(bytes, TIME_PART_OFFSET);
-        List<TagValue> tagValues = getTagValues(bytes);
-
         try {
-            //de-serializing so leave time as in its byte form
-            StatEventKey statEventKey = new StatEventKey(statName, rollUpBitMask, interval, timeMs, tagValues, TimeTruncation.DONT_TRUNCATE);
+            StatEventKey statEventKey = new StatEventKey(bytes);
+            //de-serializing so leave time as in its byte form, but decode the interval to ensure it is valid
+            statEventKey.getInterval();
             LOGGER.trace(() -> String.format("De-serializing bytes %s to StatEventKey %s", ByteArrayUtils.byteArrayToHex(bytes), statEventKey));
             return statEventKey;
         } catch (Exception e) {
@@ -208,27 +247,44 @@ public class StatEventKey implements Comparable<StatEventKey> {
     }
 
     public UID getStatUuid() {
+        if (statUuid == null) {
+            statUuid = UID.from(bytes, STAT_NAME_PART_OFFSET);
+        }
         return statUuid;
     }
 
     public RollUpBitMask getRollupMask() {
+        if (rollupMask == null) {
+            rollupMask = RollUpBitMask.fromBytes(bytes, ROLLUP_MASK_PART_OFFSET);
+        }
         return rollupMask;
     }
 
     public EventStoreTimeIntervalEnum getInterval() {
+        if (interval == null) {
+            interval = EventStoreTimeIntervalEnum.fromBytes(bytes, INTERVAL_PART_OFFSET);
+        }
         return interval;
     }
 
     public long getTimeMs() {
-        return timeMs;
+        return Bytes.toLong(bytes, TIME_PART_OFFSET);
     }
 
     public List<TagValue> getTagValues() {
+        if (tagValues == null) {
+            tagValues = Collections.unmodifiableList(getTagValues(bytes));
+        }
         return tagValues;
     }
 
     public boolean equalsIntervalPart(EventStoreTimeIntervalEnum other) {
-        return interval.equals(other);
+        return Bytes.equals(bytes, INTERVAL_PART_OFFSET, INTERVAL_PART_LENGTH,
+                other.getByteVal(), 0, INTERVAL_PART_LENGTH);
+    }
+
+    private int getTagCount() {
+        return (bytes.length - STATIC_PART_LENGTH) / TAG_VALUE_PAIR_LENGTH;
     }
 
     public static List<TagValue> getTagValues(final byte[] bytes) {
@@ -252,11 +308,9 @@ public class StatEventKey implements Comparable<StatEventKey> {
 
         final StatEventKey statEventKey = (StatEventKey) o;
 
-        if (timeMs != statEventKey.timeMs) return false;
-        if (!statUuid.equals(statEventKey.statUuid)) return false;
-        if (!rollupMask.equals(statEventKey.rollupMask)) return false;
-        if (interval != statEventKey.interval) return false;
-        return tagValues.equals(statEventKey.tagValues);
+        //the byte form is canonical so compare that rather than decoding the parts
+        if (hashCode != statEventKey.hashCode) return false;
+        return Arrays.equals(bytes, statEventKey.bytes);
     }
 
     @Override
@@ -264,23 +318,19 @@ public class StatEventKey implements Comparable<StatEventKey> {
         //instance is immutable so cache the hashcode for speed
         return hashCode;
     }
+
     public int buildHashCode() {
-        int result = statUuid.hashCode();
-        result = 31 * result + rollupMask.hashCode();
-        result = 31 * result + interval.hashCode();
-        result = 31 * result + Long.hashCode(timeMs);
-        result = 31 * result + tagValues.hashCode();
-        return result;
+        return Arrays.hashCode(bytes);
     }
 
     @Override
     public String toString() {
         return "StatEventKey{" +
-                "statUuid=" + statUuid +
-                ", rollupMask=" + rollupMask +
-                ", interval=" + interval +
-                ", timeMs=" + timeMs +
-                ", tagValues=" + tagValues +
+                "statUuid=" + getStatUuid() +
+                ", rollupMask=" + getRollupMask() +
+                ", interval=" + getInterval() +
+                ", timeMs=" + getTimeMs() +
+                ", tagValues=" + getTagValues() +
                 '}';
     }
 
@@ -49,6 +49,11 @@ public class CountAggregate extends StatAggregate {
         return this;
     }
 
+    @Override
+    public CountAggregate copy() {
+        return new CountAggregate(getEventIds(), getMaxEventIds(), aggregatedCount);
+    }
+
     public long getAggregatedCount() {
         return aggregatedCount;
     }
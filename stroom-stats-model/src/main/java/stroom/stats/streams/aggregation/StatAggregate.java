@@ -43,6 +43,12 @@ public abstract class StatAggregate {
      */
     public abstract <T extends StatAggregate> T aggregate(final T other);
 
+    /**
+     * @return A new instance with the same content as this, for use when an aggregate needs to be
+     * aggregated into without mutating the original
+     */
+    public abstract StatAggregate copy();
+
     /**
      * @return Aggregates the content of aggregate2 into aggregate1, returning the mutated aggregate1
      */
@@ -94,6 +100,10 @@ public abstract class StatAggregate {
         return eventIds;
     }
 
+    public int getMaxEventIds() {
+        return maxEventIds;
+    }
+
 
     @Override
     public boolean equals(Object o) {
@@ -60,6 +60,23 @@ public class ValueAggregate extends StatAggregate {
         this.count = 1;
     }
 
+    /**
+     * Constructor for a value that HAS already been aggregated, e.g. when re-building an aggregate
+     * from its constituent parts
+     */
+    public ValueAggregate(final List<MultiPartIdentifier> eventIds,
+                          final int maxEventIds,
+                          final int count,
+                          final double aggregatedValue,
+                          final double minValue,
+                          final double maxValue) {
+        super(eventIds, maxEventIds);
+        this.count = count;
+        this.aggregatedValue = aggregatedValue;
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+    }
+
     @Override
     public StatAggregate aggregate(final StatAggregate other) {
         aggregateEventIds(other);
@@ -75,6 +92,11 @@ public class ValueAggregate extends StatAggregate {
         return this;
     }
 
+    @Override
+    public ValueAggregate copy() {
+        return new ValueAggregate(getEventIds(), getMaxEventIds(), count, aggregatedValue, minValue, maxValue);
+    }
+
     private double min(final double val1, final double val2) {
         return val2 > val1 ? val1 : val2;
     }
@@ -75,6 +75,33 @@ public class TestRowKey {
         assertEquals(VALUE_3, tagValuePairs.get(2).getValue());
     }
 
+    @Test
+    public void testSaltedRoundTrip() {
+        final RowKeySalt rowKeySalt = RowKeySalt.of(16);
+        final RowKey rowKey = new RowKey(buildRowKeyArray()).salted(rowKeySalt);
+
+        final byte[] saltedBytes = rowKey.asByteArray();
+        assertEquals(RowKeySalt.SALT_LENGTH + RowKey.calculateRowKeyLength(3), saltedBytes.length);
+        Assertions.assertThat(Arrays.copyOfRange(saltedBytes, RowKeySalt.SALT_LENGTH, saltedBytes.length))
+                .isEqualTo(buildRowKeyArray());
+        Assertions.assertThat(rowKey.asUnsaltedByteArray()).isEqualTo(buildRowKeyArray());
+
+        final RowKey parsedRowKey = new RowKey(saltedBytes, rowKeySalt);
+        assertEquals(rowKey, parsedRowKey);
+        assertEquals(STAT_TYPE_ID, parsedRowKey.getTypeId());
+        Assertions.assertThat(parsedRowKey.getPartialTimestamp()).isEqualTo(PARTIAL_TIMESTAMP);
+        assertEquals(3, parsedRowKey.getTagValuePairs().size());
+        Assertions.assertThat(parsedRowKey.asByteArray()).isEqualTo(saltedBytes);
+    }
+
+    @Test
+    public void testSaltedWithNoSalt() {
+        final RowKey rowKey = new RowKey(buildRowKeyArray());
+
+        Assertions.assertThat(rowKey.salted(RowKeySalt.NONE)).isSameAs(rowKey);
+        Assertions.assertThat(rowKey.asByteArray()).isEqualTo(buildRowKeyArray());
+    }
+
     private int compareBytes(final byte[] a, final byte[] b) {
         int result = 0;
         final int maxLength = (a.length > b.length) ? a.length : b.length;
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.structure;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestRowKeySalt {
+
+    @Test
+    public void noSalt() {
+        assertThat(RowKeySalt.of(0)).isSameAs(RowKeySalt.NONE);
+        assertThat(RowKeySalt.of(1)).isSameAs(RowKeySalt.NONE);
+        assertThat(RowKeySalt.NONE.isSalted()).isFalse();
+        assertThat(RowKeySalt.NONE.getPrefixLength()).isEqualTo(0);
+        assertThat(RowKeySalt.NONE.saltFor(new byte[]{1, 2, 3})).isEmpty();
+        assertThat(RowKeySalt.NONE.prefix(0, new byte[]{1, 2})).containsExactly(1, 2);
+        assertThat(RowKeySalt.NONE.getSplitKeys()).isNull();
+        assertThat(RowKeySalt.NONE.getPrefixes()).hasSize(1);
+    }
+
+    @Test
+    public void saltFor_spreadsKeysOverAllBuckets() {
+        final RowKeySalt rowKeySalt = RowKeySalt.of(8);
+        final Set<Byte> salts = new HashSet<>();
+        for (int i = 0; i < 1_000; i++) {
+            //sequential partial timestamps for the same stat
+            final byte[] unsaltedRowKey = new byte[]{0, 0, 0, 1, 0, 0, 0, 0, (byte) (i >> 8), (byte) i};
+            final byte[] salt = rowKeySalt.saltFor(unsaltedRowKey);
+
+            assertThat(salt).hasSize(RowKeySalt.SALT_LENGTH);
+            assertThat(salt[0]).isBetween((byte) 0, (byte) 7);
+            //always the same salt for the same key
+            assertThat(rowKeySalt.saltFor(unsaltedRowKey)).isEqualTo(salt);
+            salts.add(salt[0]);
+        }
+        assertThat(salts).hasSize(8);
+    }
+
+    @Test
+    public void prefixesAndSplitKeys() {
+        final RowKeySalt rowKeySalt = RowKeySalt.of(4);
+
+        final List<byte[]> prefixes = rowKeySalt.getPrefixes();
+        assertThat(prefixes).hasSize(4);
+        assertThat(prefixes.get(3)).containsExactly(3);
+
+        final byte[][] splitKeys = rowKeySalt.getSplitKeys();
+        assertThat(splitKeys).hasSize(3);
+        assertThat(splitKeys[0]).containsExactly(1);
+        assertThat(splitKeys[2]).containsExactly(3);
+
+        assertThat(rowKeySalt.prefix(2, new byte[]{9, 9})).containsExactly(2, 9, 9);
+    }
+
+    @Test
+    public void of_tooManyBuckets() {
+        assertThatThrownBy(() -> RowKeySalt.of(RowKeySalt.MAX_BUCKETS + 1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -19,6 +19,7 @@
 
 package stroom.stats;
 
+import com.codahale.metrics.MetricRegistry;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
@@ -103,9 +104,13 @@ public class StatisticsAggregationServiceIT {
 
         setProperties();
 
+        Mockito.when(mockStatisticsService.putAggregatedEventsAsync(Mockito.any(), Mockito.any(), Mockito.anyMap()))
+                .thenCallRealMethod();
+
         StatisticsAggregationService statisticsAggregationService = new StatisticsAggregationService(
                 mockStroomPropertyService,
-                mockStatisticsService);
+                mockStatisticsService,
+                new MetricRegistry());
 
         statisticsAggregationService.start();
 
@@ -49,6 +49,9 @@ public class StroomStatsEmbeddedOverrideModule extends AbstractModule {
     public StroomStatsEmbeddedOverrideModule(final MockStroomPropertyService mockStroomPropertyService, final Optional<StatisticsService> mockStatisticsService) {
         this.mockStroomPropertyService = mockStroomPropertyService;
         this.mockStatisticsService = mockStatisticsService.orElseGet(() -> Mockito.mock(StatisticsService.class));
+        //the flush path uses the async put, so have it delegate to the blocking put for tests capturing calls to that
+        Mockito.when(this.mockStatisticsService.putAggregatedEventsAsync(Mockito.any(), Mockito.any(), Mockito.anyMap()))
+                .thenCallRealMethod();
 
 
     }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams.serde;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import stroom.stats.api.MultiPartIdentifier;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.streams.aggregation.ValueAggregate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the {@link StatAggregateCodec} against the legacy Kryo serialisation
+ * for the {@link StatAggregate} values that go over the aggregation topics. The encoded sizes of each
+ * form are printed in the setup as JMH has no notion of bytes on the wire.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatAggregateSerdeBenchmark {
+
+    @Param({"COUNT", "VALUE"})
+    private String aggregateType;
+
+    @Param({"0", "10", "100"})
+    private int eventIdCount;
+
+    private StatAggregateSerde serde;
+    private StatAggregate statAggregate;
+    private byte[] codecBytes;
+    private byte[] kryoBytes;
+
+    @Setup
+    public void setup() {
+        serde = StatAggregateSerde.instance();
+
+        List<MultiPartIdentifier> eventIds = new ArrayList<>();
+        for (int i = 0; i < eventIdCount; i++) {
+            eventIds.add(new MultiPartIdentifier(1_000_000L + i, (long) i));
+        }
+        if (aggregateType.equals("COUNT")) {
+            statAggregate = new CountAggregate(eventIds, 100, 12_345L);
+        } else {
+            statAggregate = new ValueAggregate(eventIds, 100, 10, 1234.5, 1.5, 99.9);
+        }
+
+        codecBytes = serde.serialize("topic", statAggregate);
+        kryoBytes = serde.serializeLegacy(statAggregate);
+        System.out.println(String.format("%n%s with %s event IDs, codec bytes: %s, kryo bytes: %s",
+                aggregateType, eventIdCount, codecBytes.length, kryoBytes.length));
+    }
+
+    @Benchmark
+    public byte[] serializeCodec() {
+        return serde.serialize("topic", statAggregate);
+    }
+
+    @Benchmark
+    public byte[] serializeKryo() {
+        return serde.serializeLegacy(statAggregate);
+    }
+
+    @Benchmark
+    public StatAggregate deserializeCodec() {
+        return serde.deserialize("topic", codecBytes);
+    }
+
+    @Benchmark
+    public StatAggregate deserializeKryo() {
+        return serde.deserialize("topic", kryoBytes);
+    }
+}
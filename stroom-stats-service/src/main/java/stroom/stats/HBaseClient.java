@@ -46,8 +46,6 @@ import stroom.stats.common.FilterTermsTreeBuilder;
 import stroom.stats.common.Period;
 import stroom.stats.common.Range;
 import stroom.stats.common.SearchStatisticsCriteria;
-import stroom.stats.common.StatisticDataPoint;
-import stroom.stats.common.StatisticDataSet;
 import stroom.stats.common.rollup.RollUpBitMask;
 import stroom.stats.configuration.StatisticConfiguration;
 import stroom.stats.configuration.StatisticConfigurationService;
@@ -201,29 +199,32 @@ public class HBaseClient implements Managed {
         //the way stats can be queried.
         SearchStatisticsCriteria criteria = buildCriteria(searchRequest, requiredDynamicFields, statisticConfiguration);
 
-        StatisticDataSet statisticDataSet = statisticsService.searchStatisticsData(criteria, statisticConfiguration);
-
-        if (!statisticDataSet.isEmpty()) {
-
-            //TODO TableCoprocessor is doing a lot of work to pre-process and aggregate the data
-
-            for (StatisticDataPoint statisticDataPoint : statisticDataSet) {
-                Val[] dataArray = new Val[fieldIndexMap.size()];
+        //TODO TableCoprocessor is doing a lot of work to pre-process and aggregate the data
+
+        //each data point is pushed into the coprocessors as it comes off the scanner so the raw data points
+        //are never all held in memory, only the coprocessors' grouped output
+        final long dataPointCount = statisticsService.streamStatisticsData(
+                criteria,
+                statisticConfiguration,
+                statisticDataPoint -> {
+                    Val[] dataArray = new Val[fieldIndexMap.size()];
+
+                    //TODO should probably drive this off a new fieldIndexMap.getEntries() method or similar
+                    //then we only loop round fields we car about
+                    statisticConfiguration.getAllFieldNames().forEach(fieldName -> {
+                        int posInDataArray = fieldIndexMap.get(fieldName);
+                        //if the fieldIndexMap returns -1 the field has not been requested
+                        if (posInDataArray != -1) {
+                            dataArray[posInDataArray] = statisticDataPoint.getFieldValue(fieldName);
+                        }
+                    });
 
-                //TODO should probably drive this off a new fieldIndexMap.getEntries() method or similar
-                //then we only loop round fields we car about
-                statisticConfiguration.getAllFieldNames().forEach(fieldName -> {
-                    int posInDataArray = fieldIndexMap.get(fieldName);
-                    //if the fieldIndexMap returns -1 the field has not been requested
-                    if (posInDataArray != -1) {
-                        dataArray[posInDataArray] = statisticDataPoint.getFieldValue(fieldName);
-                    }
+                    coprocessorMap.entrySet().forEach(coprocessor -> {
+                        coprocessor.getValue().receive(dataArray);
+                    });
                 });
 
-                coprocessorMap.entrySet().forEach(coprocessor -> {
-                    coprocessor.getValue().receive(dataArray);
-                });
-            }
+        if (dataPointCount > 0) {
 
             // TODO putting things into a payload and taking them out again is a waste of time in this case. We could use a queue instead and that'd be fine.
             //TODO: 'Payload' is a cluster specific name - what lucene ships back from a node.
@@ -19,6 +19,7 @@
 
 package stroom.stats;
 
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.health.HealthCheck;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -32,6 +33,7 @@ import stroom.stats.api.StatisticsService;
 import stroom.stats.partitions.StatEventKeyPartitioner;
 import stroom.stats.properties.StroomPropertyService;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.AggregationMemoryBudget;
 import stroom.stats.streams.StatEventKey;
 import stroom.stats.streams.StatisticsAggregationProcessor;
 import stroom.stats.streams.StatisticsIngestService;
@@ -66,11 +68,14 @@ public class StatisticsAggregationService implements Startable, Stoppable, HasRu
     private static final Logger LOGGER = LoggerFactory.getLogger(StatisticsAggregationService.class);
 
     public static final String PROP_KEY_THREADS_PER_INTERVAL_AND_TYPE = "stroom.stats.aggregation.threadsPerIntervalAndType";
+    public static final String PROP_KEY_FLUSH_THREADS = "stroom.stats.aggregation.flushThreads";
+    public static final String PROP_KEY_MEMORY_BUDGET_BYTES = "stroom.stats.aggregation.memoryBudgetBytes";
 
     public static final long TIMEOUT_SECS = 120;
 
     private final StroomPropertyService stroomPropertyService;
     private final StatisticsService statisticsService;
+    private final MetricRegistry metricRegistry;
 
     private final List<StatisticsAggregationProcessor> processors = Collections.synchronizedList(new ArrayList<>());
 
@@ -78,6 +83,10 @@ public class StatisticsAggregationService implements Startable, Stoppable, HasRu
     //this assumes all processor instances have the same producer config
     private volatile KafkaProducer<StatEventKey, StatAggregate> kafkaProducer;
     private volatile ExecutorService executorService;
+    //used by processors doing pipelined flushes, each processor has at most one flush queued/running at once
+    private volatile ExecutorService flushExecutorService;
+    //used by processors to write to the next interval topic while the stat store write happens on the flushing thread
+    private volatile ExecutorService sinkExecutorService;
 
     private HasRunState.RunState runState = HasRunState.RunState.STOPPED;
 
@@ -86,12 +95,14 @@ public class StatisticsAggregationService implements Startable, Stoppable, HasRu
 
     @Inject
     public StatisticsAggregationService(final StroomPropertyService stroomPropertyService,
-                                        final StatisticsService statisticsService) {
+                                        final StatisticsService statisticsService,
+                                        final MetricRegistry metricRegistry) {
 
         LOGGER.debug("Initialising {}", this.getClass().getName());
 
         this.stroomPropertyService = stroomPropertyService;
         this.statisticsService = statisticsService;
+        this.metricRegistry = metricRegistry;
     }
 
     @Override
@@ -103,6 +114,7 @@ public class StatisticsAggregationService implements Startable, Stoppable, HasRu
 
             //shared by all processors
             kafkaProducer = buildProducer();
+            flushExecutorService = buildFlushExecutor();
 
             //hold an instance of the executorService in case we want to query it for a health check
             //build processors on start so we can start/stop to later the processor counts if we need to
@@ -124,6 +136,19 @@ public class StatisticsAggregationService implements Startable, Stoppable, HasRu
             runOnAllProcessorsAsyncThenWait("stop", StatisticsAggregationProcessor::stop);
             //dereference all the processors
             processors.clear();
+            //the processors are rebuilt on start so their metrics would only be left reporting stale values
+            metricRegistry.removeMatching((name, metric) ->
+                    name.startsWith(StatisticsAggregationProcessor.METRIC_NAME_PREFIX + "."));
+
+            //processors wait for their in flight flushes when stopping so nothing should be left on the executor
+            if (flushExecutorService != null) {
+                flushExecutorService.shutdown();
+                flushExecutorService = null;
+            }
+            if (sinkExecutorService != null) {
+                sinkExecutorService.shutdown();
+                sinkExecutorService = null;
+            }
 
             //have to shut this down second as the processor shutdown will probably flush more items to the producer
             if (kafkaProducer != null) {
@@ -174,6 +199,15 @@ public class StatisticsAggregationService implements Startable, Stoppable, HasRu
                 .build();
         ExecutorService executorService = Executors.newFixedThreadPool(processorCount, namedThreadFactory);
 
+        //each processor has at most one flush happening at once so will only ever need one sink thread
+        sinkExecutorService = Executors.newFixedThreadPool(processorCount, new ThreadFactoryBuilder()
+                .setNameFormat("agg-sink-thread-%d")
+                .build());
+
+        //shared by all processors to bound the memory used by all their aggregation buffers
+        AggregationMemoryBudget memoryBudget = new AggregationMemoryBudget(
+                stroomPropertyService.getLongProperty(PROP_KEY_MEMORY_BUDGET_BYTES, Long.MAX_VALUE));
+
         //create all the processor instances and hold their references
         for (StatisticType statisticType : StatisticType.values()) {
             for (EventStoreTimeIntervalEnum interval : EventStoreTimeIntervalEnum.values()) {
@@ -186,6 +220,10 @@ public class StatisticsAggregationService implements Startable, Stoppable, HasRu
                             interval,
                             kafkaProducer,
                             executorService,
+                            flushExecutorService,
+                            sinkExecutorService,
+                            memoryBudget,
+                            metricRegistry,
                             instanceId);
 
                     processors.add(processor);
@@ -195,6 +233,15 @@ public class StatisticsAggregationService implements Startable, Stoppable, HasRu
         return executorService;
     }
 
+    private ExecutorService buildFlushExecutor() {
+        int flushThreads = stroomPropertyService.getIntProperty(PROP_KEY_FLUSH_THREADS, 4);
+
+        ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("agg-flush-thread-%d")
+                .build();
+        return Executors.newFixedThreadPool(flushThreads, namedThreadFactory);
+    }
+
     private KafkaProducer<StatEventKey, StatAggregate> buildProducer() {
 
         //Configure the producers
@@ -19,6 +19,7 @@
 
 package stroom.stats;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import org.apache.curator.framework.CuratorFramework;
@@ -50,10 +51,16 @@ public class StroomStatsServiceModule extends AbstractModule {
 
     private Config config;
     private SessionFactory sessionFactory;
+    private MetricRegistry metricRegistry;
 
     public StroomStatsServiceModule(Config config, SessionFactory sessionFactory){
+        this(config, sessionFactory, new MetricRegistry());
+    }
+
+    public StroomStatsServiceModule(Config config, SessionFactory sessionFactory, MetricRegistry metricRegistry){
         this.config = config;
         this.sessionFactory = sessionFactory;
+        this.metricRegistry = metricRegistry;
     }
 
     @Override
@@ -76,6 +83,8 @@ public class StroomStatsServiceModule extends AbstractModule {
 //        bind(ServiceDiscoverer.class).to(ServiceDiscovererImpl.class);
         bind(ServiceDiscoveryManager.class);
         bind(SessionFactory.class).toInstance(sessionFactory);
+        //the dropwizard environment's registry so metrics are reported on the admin port
+        bind(MetricRegistry.class).toInstance(metricRegistry);
         bind(StroomStatsStoreEntityDAO.class).to(StroomStatsStoreEntityDAOImpl.class);
         bind(StatisticConfigurationService.class).to(StatisticConfigurationServiceImpl.class);
         //singleton to avoid cost of repeatedly creating JAXBContext
@@ -47,6 +47,8 @@ import stroom.stats.service.auth.User;
 import stroom.stats.service.config.Config;
 import stroom.stats.service.resources.query.v2.QueryResource;
 import stroom.stats.streams.StatisticsIngestService;
+import stroom.stats.tasks.MigrateValueCellsTask;
+import stroom.stats.tasks.ReconcileColumnFamiliesTask;
 import stroom.stats.tasks.StartProcessingTask;
 import stroom.stats.tasks.StopProcessingTask;
 
@@ -81,7 +83,8 @@ public class App extends Application<Config> {
 
     @Override
     public void run(Config config, Environment environment) throws UnsupportedEncodingException {
-        injector = Guice.createInjector(new StroomStatsServiceModule(config, hibernateBundle.getSessionFactory()));
+        injector = Guice.createInjector(new StroomStatsServiceModule(
+                config, hibernateBundle.getSessionFactory(), environment.metrics()));
         injector.getInstance(ServiceDiscoveryManager.class);
 
         if(config.isLogRequestsAndResponses()) {
@@ -120,6 +123,8 @@ public class App extends Application<Config> {
     private void registerTasks(final Environment environment) {
         registerTask(environment, StartProcessingTask.class);
         registerTask(environment, StopProcessingTask.class);
+        registerTask(environment, MigrateValueCellsTask.class);
+        registerTask(environment, ReconcileColumnFamiliesTask.class);
     }
 
     private <T extends Task> void registerTask(final Environment environment, Class<T> type) {
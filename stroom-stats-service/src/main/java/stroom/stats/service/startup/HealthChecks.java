@@ -7,6 +7,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import stroom.stats.StatisticsAggregationService;
 import stroom.stats.hbase.connection.HBaseConnection;
+import stroom.stats.hbase.table.EventStoreTableFactory;
 import stroom.stats.logging.LogLevelInspector;
 import stroom.stats.properties.StroomPropertyServiceHealthCheck;
 import stroom.stats.service.ServiceDiscoveryRegistrar;
@@ -38,6 +39,11 @@ public class HealthChecks {
         register(environment, LogLevelInspector.INSTANCE);
         register(environment, injector.getInstance(StroomPropertyServiceHealthCheck.class));
         register(environment, injector.getInstance(HBaseConnection.class));
+
+        EventStoreTableFactory eventStoreTableFactory = injector.getInstance(EventStoreTableFactory.class);
+        if (eventStoreTableFactory instanceof HasHealthCheck) {
+            register(environment, (HasHealthCheck) eventStoreTableFactory);
+        }
     }
 
     /**
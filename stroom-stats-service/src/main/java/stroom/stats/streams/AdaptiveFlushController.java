@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Adjusts the minBatchSize and flush interval used by a single aggregation processor's {@link StatAggregator}s
+ * based on what was observed for each flush. A single static setting suits neither the finer intervals, where
+ * there is high cardinality and little reduction, nor the coarser ones, where buffering for longer gives a large
+ * reduction in what is written to the stat store.
+ * <p>
+ * The rules applied after each flush, in priority order, are:
+ * <ol>
+ * <li>Stat store write latency above target: shrink the batch size, HBase is struggling with the size of the writes</li>
+ * <li>Consumer lag growing with worthwhile aggregation: grow the batch size so fewer flushes hold up the consumer
+ * and each write covers more input</li>
+ * <li>High aggregation: grow the batch size and flush interval as buffering for longer is paying off</li>
+ * <li>Low aggregation: shrink the batch size and flush interval as buffering is mostly just costing heap</li>
+ * </ol>
+ * All values are clamped to their configured bounds.
+ */
+@ThreadSafe
+class AdaptiveFlushController {
+
+    static final double GROWTH_FACTOR = 1.25;
+    static final double SHRINK_FACTOR = 0.8;
+    //aggregation percentages, 0% = no compression, 100% = total compression
+    static final double HIGH_AGGREGATION_PERCENTAGE = 50;
+    static final double LOW_AGGREGATION_PERCENTAGE = 10;
+
+    private final int minBatchSizeLowerBound;
+    private final int minBatchSizeUpperBound;
+    private final long flushIntervalMsLowerBound;
+    private final long flushIntervalMsUpperBound;
+    private final long targetStoreLatencyMs;
+
+    private int minBatchSize;
+    private long flushIntervalMs;
+    private double lastConsumerLag = 0;
+
+    AdaptiveFlushController(final int minBatchSizeLowerBound,
+                            final int minBatchSizeUpperBound,
+                            final long flushIntervalMsLowerBound,
+                            final long flushIntervalMsUpperBound,
+                            final long targetStoreLatencyMs,
+                            final int initialMinBatchSize,
+                            final long initialFlushIntervalMs) {
+
+        Preconditions.checkArgument(minBatchSizeLowerBound > 0 && minBatchSizeLowerBound <= minBatchSizeUpperBound,
+                "Invalid minBatchSize bounds %s - %s", minBatchSizeLowerBound, minBatchSizeUpperBound);
+        Preconditions.checkArgument(flushIntervalMsLowerBound > 0 && flushIntervalMsLowerBound <= flushIntervalMsUpperBound,
+                "Invalid flush interval bounds %s - %s", flushIntervalMsLowerBound, flushIntervalMsUpperBound);
+        Preconditions.checkArgument(targetStoreLatencyMs > 0);
+
+        this.minBatchSizeLowerBound = minBatchSizeLowerBound;
+        this.minBatchSizeUpperBound = minBatchSizeUpperBound;
+        this.flushIntervalMsLowerBound = flushIntervalMsLowerBound;
+        this.flushIntervalMsUpperBound = flushIntervalMsUpperBound;
+        this.targetStoreLatencyMs = targetStoreLatencyMs;
+        this.minBatchSize = clampBatchSize(initialMinBatchSize);
+        this.flushIntervalMs = clampFlushInterval(initialFlushIntervalMs);
+    }
+
+    /**
+     * Adjust the batch size and flush interval based on the outcome of a flush
+     *
+     * @param aggregationPercentage The aggregation achieved by the flushed {@link StatAggregator}
+     * @param storeLatencyMs        The (smoothed) time taken to write a flush to the stat store
+     * @param consumerLag           The number of records the consumer is behind the head of its partitions
+     */
+    synchronized void observe(final double aggregationPercentage,
+                              final double storeLatencyMs,
+                              final double consumerLag) {
+
+        final boolean isLagGrowing = consumerLag > lastConsumerLag;
+        lastConsumerLag = consumerLag;
+
+        if (storeLatencyMs > targetStoreLatencyMs) {
+            minBatchSize = clampBatchSize(minBatchSize * SHRINK_FACTOR);
+        } else if (isLagGrowing && aggregationPercentage >= LOW_AGGREGATION_PERCENTAGE) {
+            minBatchSize = clampBatchSize(minBatchSize * GROWTH_FACTOR);
+        } else if (aggregationPercentage >= HIGH_AGGREGATION_PERCENTAGE) {
+            minBatchSize = clampBatchSize(minBatchSize * GROWTH_FACTOR);
+            flushIntervalMs = clampFlushInterval(flushIntervalMs * GROWTH_FACTOR);
+        } else if (aggregationPercentage < LOW_AGGREGATION_PERCENTAGE) {
+            minBatchSize = clampBatchSize(minBatchSize * SHRINK_FACTOR);
+            flushIntervalMs = clampFlushInterval(flushIntervalMs * SHRINK_FACTOR);
+        }
+    }
+
+    synchronized int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    synchronized long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    private int clampBatchSize(final double batchSize) {
+        return (int) Math.max(minBatchSizeLowerBound, Math.min(minBatchSizeUpperBound, batchSize));
+    }
+
+    private long clampFlushInterval(final double flushIntervalMs) {
+        return (long) Math.max(flushIntervalMsLowerBound, Math.min(flushIntervalMsUpperBound, flushIntervalMs));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveFlushController{" +
+                "minBatchSize=" + minBatchSize +
+                ", flushIntervalMs=" + flushIntervalMs +
+                ", lastConsumerLag=" + lastConsumerLag +
+                '}';
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory budget shared by all the {@link StatisticsAggregationProcessor} instances in the JVM. Each processor
+ * opens an {@link Account} and reports the retained bytes of its aggregation buffers into it. When the total
+ * across all accounts goes over the budget, the accounts holding at least their fair share (the total divided
+ * by the number of open accounts) are told to flush early. This means the biggest buffers are drained first
+ * rather than every processor flushing at once.
+ */
+@ThreadSafe
+public class AggregationMemoryBudget {
+
+    private final long budgetBytes;
+    private final AtomicLong usedBytes = new AtomicLong(0);
+    private final AtomicInteger openAccountCount = new AtomicInteger(0);
+
+    /**
+     * @param budgetBytes The total number of bytes all aggregation buffers may retain before early flushes
+     *                    are triggered
+     */
+    public AggregationMemoryBudget(final long budgetBytes) {
+        Preconditions.checkArgument(budgetBytes > 0, "budgetBytes must be greater than zero");
+        this.budgetBytes = budgetBytes;
+    }
+
+    Account openAccount() {
+        openAccountCount.incrementAndGet();
+        return new Account();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public boolean isOverBudget() {
+        return usedBytes.get() > budgetBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d/%,d bytes", usedBytes.get(), budgetBytes);
+    }
+
+    /**
+     * One processor's share of the budget. An account should only be updated by a single thread.
+     */
+    class Account {
+
+        private volatile long bytes = 0;
+        private boolean isClosed = false;
+
+        private Account() {
+        }
+
+        /**
+         * Set the number of bytes currently retained by the owner of this account
+         */
+        void update(final long currentBytes) {
+            Preconditions.checkState(!isClosed, "Account is closed");
+            long delta = currentBytes - bytes;
+            bytes = currentBytes;
+            if (delta != 0) {
+                usedBytes.addAndGet(delta);
+            }
+        }
+
+        /**
+         * @return True if the budget has been exceeded and this account holds at least its fair share of it
+         */
+        boolean shouldFlushEarly() {
+            long totalBytes = usedBytes.get();
+            return totalBytes > budgetBytes
+                    && bytes > 0
+                    && bytes >= totalBytes / Math.max(1, openAccountCount.get());
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Release all bytes held by this account, it cannot be used after this
+         */
+        void close() {
+            if (!isClosed) {
+                update(0);
+                isClosed = true;
+                openAccountCount.decrementAndGet();
+            }
+        }
+    }
+}
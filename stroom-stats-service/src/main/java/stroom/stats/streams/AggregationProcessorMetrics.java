@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package stroom.stats.streams;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import stroom.stats.api.StatisticType;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The Dropwizard metrics for a single {@link StatisticsAggregationProcessor}. Dropwizard metrics have no tags
+ * so the stat type, interval and instance id of the processor form part of the metric names, e.g.
+ * <pre>stroom.stats.aggregation.COUNT.MINUTE.instance-0.recordsConsumed</pre>
+ * All metrics are registered on construction, replacing any left behind by a previous processor with the same
+ * identity, and removed by {@link AggregationProcessorMetrics#remove()}.
+ */
+class AggregationProcessorMetrics {
+
+    private final MetricRegistry metricRegistry;
+    private final String prefix;
+
+    private final Meter recordsConsumedMeter;
+    private final Meter recordsFlushedMeter;
+    private final Meter aggregatesFlushedMeter;
+    private final Histogram bufferSizeHistogram;
+    private final Histogram bufferBytesHistogram;
+    private final Timer commitTimer;
+
+    //only touched by the consumer thread
+    private final Set<Integer> registeredPartitions = new HashSet<>();
+
+    AggregationProcessorMetrics(final MetricRegistry metricRegistry,
+                                final StatisticType statisticType,
+                                final EventStoreTimeIntervalEnum aggregationInterval,
+                                final int instanceId,
+                                final FlushCoordinator flushCoordinator,
+                                final DoubleSupplier consumerLagSupplier) {
+
+        this.metricRegistry = Preconditions.checkNotNull(metricRegistry);
+        this.prefix = MetricRegistry.name(
+                StatisticsAggregationProcessor.METRIC_NAME_PREFIX, statisticType.name(), aggregationInterval.name(), "instance-" + instanceId);
+
+        remove();
+
+        recordsConsumedMeter = metricRegistry.meter(name("recordsConsumed"));
+        recordsFlushedMeter = metricRegistry.meter(name("recordsFlushed"));
+        aggregatesFlushedMeter = metricRegistry.meter(name("aggregatesFlushed"));
+        bufferSizeHistogram = metricRegistry.histogram(name("bufferSizeAtFlush"));
+        bufferBytesHistogram = metricRegistry.histogram(name("bufferBytesAtFlush"));
+        commitTimer = metricRegistry.timer(name("commit"));
+
+        //the number of input records that went into each flushed aggregate
+        metricRegistry.register(name("aggregationRatio"), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(recordsFlushedMeter.getCount(), aggregatesFlushedMeter.getCount());
+            }
+        });
+        metricRegistry.register(name("consumerLagMax"), (Gauge<Double>) consumerLagSupplier::getAsDouble);
+
+        metricRegistry.register(name("flush"), flushCoordinator.getFlushTimer());
+        metricRegistry.register(name("flush", "statStore"), flushCoordinator.getStatStoreTimer());
+        metricRegistry.register(name("flush", "topic"), flushCoordinator.getTopicTimer());
+    }
+
+    void markRecordsConsumed(final int recordCount) {
+        recordsConsumedMeter.mark(recordCount);
+    }
+
+    /**
+     * Record the sizes of an aggregator that has just been successfully flushed
+     */
+    void markFlushed(final FlushableAggregates statAggregator) {
+        int size = statAggregator.size();
+        recordsFlushedMeter.mark(statAggregator.getInputCount());
+        aggregatesFlushedMeter.mark(size);
+        bufferSizeHistogram.update(size);
+        bufferBytesHistogram.update(statAggregator.getRetainedBytes());
+    }
+
+    Timer getCommitTimer() {
+        return commitTimer;
+    }
+
+    long getRecordsConsumedCount() {
+        return recordsConsumedMeter.getCount();
+    }
+
+    /**
+     * Replace the per partition gauges with ones for the passed partitions. The gauges report the latest
+     * offset consumed from each partition and its lag, as held in latestPartitionOffsets and partitionLags.
+     */
+    void setAssignedPartitions(final Collection<Integer> partitions,
+                               final Map<Integer, Long> latestPartitionOffsets,
+                               final Map<Integer, Long> partitionLags) {
+
+        registeredPartitions.forEach(partition -> {
+            metricRegistry.remove(partitionName(partition, "latestConsumedOffset"));
+            metricRegistry.remove(partitionName(partition, "lag"));
+        });
+        registeredPartitions.clear();
+
+        partitions.forEach(partition -> {
+            metricRegistry.register(partitionName(partition, "latestConsumedOffset"),
+                    (Gauge<Long>) () -> latestPartitionOffsets.getOrDefault(partition, -1L));
+            metricRegistry.register(partitionName(partition, "lag"),
+                    (Gauge<Long>) () -> partitionLags.getOrDefault(partition, -1L));
+            registeredPartitions.add(partition);
+        });
+    }
+
+    /**
+     * Remove all metrics for this processor from the registry
+     */
+    void remove() {
+        metricRegistry.removeMatching((name, metric) -> name.startsWith(prefix + "."));
+    }
+
+    String getPrefix() {
+        return prefix;
+    }
+
+    private String name(final String... names) {
+        return MetricRegistry.name(prefix, names);
+    }
+
+    private String partitionName(final int partition, final String metricName) {
+        return name("partition-" + partition, metricName);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import stroom.stats.api.MultiPartIdentifier;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.streams.aggregation.ValueAggregate;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * Estimates of the heap retained by the objects held in a {@link StatAggregator}. The figures assume a 64 bit
+ * JVM with compressed oops (12 byte object headers, 4 byte references, 8 byte alignment) so are approximate, but
+ * they scale with the things that actually vary, i.e. key length and the number and type of event IDs.
+ */
+final class AggregatorMemoryEstimator {
+
+    private static final int OBJECT_HEADER_BYTES = 12;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+
+    //HashMap.Node: hash, key, value, next
+    static final long HASH_MAP_NODE_BYTES = align(OBJECT_HEADER_BYTES + Integer.BYTES + 3 * REFERENCE_BYTES);
+    //StatEventKey: bytes, hashCode and lazily decoded statUuid, rollupMask, interval, tagValues
+    private static final long STAT_EVENT_KEY_BYTES = align(OBJECT_HEADER_BYTES + Integer.BYTES + 5 * REFERENCE_BYTES);
+    //ArrayList: size, modCount, elementData
+    private static final long ARRAY_LIST_BYTES = align(OBJECT_HEADER_BYTES + 2 * Integer.BYTES + REFERENCE_BYTES);
+    //StatAggregate: maxEventIds, eventIds
+    private static final int STAT_AGGREGATE_FIELDS_BYTES = Integer.BYTES + REFERENCE_BYTES;
+    private static final long COUNT_AGGREGATE_BYTES = align(
+            OBJECT_HEADER_BYTES + STAT_AGGREGATE_FIELDS_BYTES + Long.BYTES);
+    private static final long VALUE_AGGREGATE_BYTES = align(
+            OBJECT_HEADER_BYTES + STAT_AGGREGATE_FIELDS_BYTES + Integer.BYTES + 3 * Double.BYTES);
+    //MultiPartIdentifier: values, bValues
+    private static final long MULTI_PART_IDENTIFIER_BYTES = align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES);
+    private static final long BOXED_PRIMITIVE_BYTES = align(OBJECT_HEADER_BYTES + Long.BYTES);
+    static final long BOXED_INTEGER_BYTES = align(OBJECT_HEADER_BYTES + Integer.BYTES);
+    //String: value, hash
+    private static final long STRING_BYTES = align(OBJECT_HEADER_BYTES + REFERENCE_BYTES + Integer.BYTES);
+    //BigDecimal: intVal, scale, precision, stringCache, intCompact plus its BigInteger
+    private static final long BIG_DECIMAL_BYTES = align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES + 2 * Integer.BYTES + Long.BYTES)
+            + align(OBJECT_HEADER_BYTES + 4 * Integer.BYTES + REFERENCE_BYTES);
+
+    private AggregatorMemoryEstimator() {
+    }
+
+    static long estimateKeyBytes(final StatEventKey statEventKey) {
+        return STAT_EVENT_KEY_BYTES + arrayBytes(statEventKey.getBytes().length, Byte.BYTES);
+    }
+
+    /**
+     * @return The estimated size of statAggregate including its list of event IDs
+     */
+    static long estimateAggregateBytes(final StatAggregate statAggregate) {
+        long aggregateBytes = statAggregate instanceof ValueAggregate ? VALUE_AGGREGATE_BYTES : COUNT_AGGREGATE_BYTES;
+        return aggregateBytes + estimateEventIdListBytes(statAggregate.getEventIds());
+    }
+
+    /**
+     * @return The estimated size of an {@link java.util.ArrayList} holding eventIds, including the eventIds
+     */
+    static long estimateEventIdListBytes(final List<MultiPartIdentifier> eventIds) {
+        //the references in the backing array are included in estimateEventIdsBytes
+        return ARRAY_LIST_BYTES + arrayBytes(0, REFERENCE_BYTES) + estimateEventIdsBytes(eventIds);
+    }
+
+    /**
+     * @return The estimated size of just the eventIds themselves, e.g. for working out the increase when
+     * event IDs are added to an existing list
+     */
+    static long estimateEventIdsBytes(final List<MultiPartIdentifier> eventIds) {
+        long bytes = 0;
+        for (MultiPartIdentifier eventId : eventIds) {
+            //the list will also have grown its backing array by a reference
+            bytes += REFERENCE_BYTES + estimateEventIdBytes(eventId);
+        }
+        return bytes;
+    }
+
+    static long estimateEventIdBytes(final MultiPartIdentifier eventId) {
+        Object[] parts = eventId.getValue();
+        long bytes = MULTI_PART_IDENTIFIER_BYTES + arrayBytes(parts.length, REFERENCE_BYTES);
+        for (Object part : parts) {
+            bytes += estimatePartBytes(part);
+        }
+        return bytes;
+    }
+
+    static long estimateHashMapTableBytes(final int capacity) {
+        return arrayBytes(capacity, REFERENCE_BYTES);
+    }
+
+    private static long estimatePartBytes(final Object part) {
+        if (part instanceof String) {
+            //assume a java 8 char[] backed string
+            return STRING_BYTES + arrayBytes(((String) part).length(), Character.BYTES);
+        } else if (part instanceof BigDecimal) {
+            return BIG_DECIMAL_BYTES + arrayBytes(((BigDecimal) part).unscaledValue().bitLength() / 32 + 1, Integer.BYTES);
+        } else {
+            return BOXED_PRIMITIVE_BYTES;
+        }
+    }
+
+    private static long arrayBytes(final int length, final int elementBytes) {
+        return align(ARRAY_HEADER_BYTES + (long) length * elementBytes);
+    }
+
+    private static long align(final long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
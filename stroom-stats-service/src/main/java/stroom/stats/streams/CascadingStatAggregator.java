@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import com.google.common.base.Preconditions;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.util.logging.LambdaLogger;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates into its own interval and every coarser interval at the same time, e.g. a MINUTE cascade also
+ * aggregates into HOUR, DAY and FOREVER. Each level is a separate {@link StatAggregator} (of whichever
+ * {@link StatAggregator.BufferType}), with each added key uplifted to the level's interval before it is added.
+ * This means a single pass over the input yields the aggregates for all levels, so they can be written
+ * straight to their stat stores rather than being forwarded to the next interval's topic.
+ */
+@NotThreadSafe
+class CascadingStatAggregator extends StatAggregator {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(CascadingStatAggregator.class);
+
+    private final List<StatAggregator> levels;
+
+    //built on demand, reset whenever something is added
+    private Map<StatEventKey, StatAggregate> aggregates = null;
+
+    /**
+     * @param minSize      The minimum number of reduced aggregates across all levels before it is deemed ready
+     *                     to be flushed
+     * @param timeToLiveMs
+     * @param levels       One {@link StatAggregator} per interval, from the finest (the interval of this
+     *                     aggregator) to the coarsest with no gaps. The minSize and timeToLiveMs of the levels
+     *                     are not used.
+     */
+    CascadingStatAggregator(final int minSize,
+                            final long timeToLiveMs,
+                            final List<StatAggregator> levels) {
+        super(minSize, Preconditions.checkNotNull(levels).get(0).getAggregationInterval(), timeToLiveMs);
+
+        for (int i = 1; i < levels.size(); i++) {
+            EventStoreTimeIntervalEnum previousInterval = levels.get(i - 1).getAggregationInterval();
+            EventStoreTimeIntervalEnum interval = levels.get(i).getAggregationInterval();
+            Preconditions.checkArgument(
+                    EventStoreTimeIntervalEnum.getNextBiggest(previousInterval).filter(interval::equals).isPresent(),
+                    "Level %s with interval %s does not follow %s", i, interval, previousInterval);
+        }
+        this.levels = new ArrayList<>(levels);
+    }
+
+    @Override
+    void merge(final StatEventKey statEventKey, final StatAggregate statAggregate) {
+        aggregates = null;
+
+        //aggregators may hold on to and mutate the aggregates passed to them so each coarser
+        //level needs its own copy
+        levels.get(0).add(statEventKey, statAggregate);
+        for (int i = 1; i < levels.size(); i++) {
+            StatAggregator level = levels.get(i);
+            level.add(
+                    statEventKey.cloneAndChangeInterval(level.getAggregationInterval()),
+                    copyOf(statAggregate));
+        }
+    }
+
+    /**
+     * @return The number of distinct keys across all levels
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (StatAggregator level : levels) {
+            size += level.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return The aggregation achieved by the finest level, as the coarser levels can only ever
+     * be smaller than it
+     */
+    @Override
+    public double getAggregationPercentage() {
+        return levels.get(0).getAggregationPercentage();
+    }
+
+    /**
+     * @return The aggregates of all levels in a single map. As the interval is part of the key the keys from
+     * different levels never clash. This map must not be mutated.
+     */
+    @Override
+    public Map<StatEventKey, StatAggregate> getAggregates() {
+        if (aggregates == null) {
+            Map<StatEventKey, StatAggregate> map = new HashMap<>((int) Math.ceil(size() / 0.75));
+            levels.forEach(level -> map.putAll(level.getAggregates()));
+            aggregates = Collections.unmodifiableMap(map);
+            LOGGER.trace(() -> String.format("Built %s aggregates across %s levels", map.size(), levels.size()));
+        }
+        return aggregates;
+    }
+
+    @Override
+    public Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> getAggregatesByInterval() {
+        Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> map =
+                new EnumMap<>(EventStoreTimeIntervalEnum.class);
+        levels.forEach(level -> map.put(level.getAggregationInterval(), level.getAggregates()));
+        return map;
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (StatAggregator level : levels) {
+            bytes += level.getRetainedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    void release() {
+        levels.forEach(StatAggregator::release);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import stroom.stats.api.StatisticType;
+import stroom.stats.api.StatisticsService;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.util.logging.LambdaLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes the aggregates of a {@link StatAggregator} (or any other {@link FlushableAggregates}) to its two
+ * independent sinks, the stat store and the topic for the next biggest interval (if there is one). The aggregates
+ * are taken from the {@link FlushableAggregates} once and the same snapshot is written to both sinks concurrently,
+ * the stat store asynchronously via {@link StatisticsService#putAggregatedEventsAsync} and the topic on the sink
+ * executor.
+ * {@link FlushCoordinator#flush} only returns once both sinks have completed so it is safe to commit the
+ * consumer offsets afterwards.
+ * <p>
+ * If the {@link StatAggregator} holds aggregates for more than one interval (i.e. a {@link CascadingStatAggregator})
+ * then each interval is written to its own stat store, all at the same time. Only the aggregates for the aggregator's own interval are
+ * ever put on the next interval topic.
+ * <p>
+ * The time taken by each sink and by the flush as a whole is recorded in a {@link Timer}.
+ */
+class FlushCoordinator {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(FlushCoordinator.class);
+
+    private final StatisticsService statisticsService;
+    private final StatisticType statisticType;
+    private final Producer<StatEventKey, StatAggregate> kafkaProducer;
+    private final Optional<EventStoreTimeIntervalEnum> optNextInterval;
+    private final Optional<String> optNextIntervalTopic;
+    private final Executor sinkExecutor;
+
+    private final Timer statStoreTimer = new Timer();
+    private final Timer topicTimer = new Timer();
+    private final Timer flushTimer = new Timer();
+
+    FlushCoordinator(final StatisticsService statisticsService,
+                     final StatisticType statisticType,
+                     final Producer<StatEventKey, StatAggregate> kafkaProducer,
+                     final Optional<EventStoreTimeIntervalEnum> optNextInterval,
+                     final Optional<String> optNextIntervalTopic,
+                     final Executor sinkExecutor) {
+
+        Preconditions.checkArgument(optNextInterval.isPresent() == optNextIntervalTopic.isPresent(),
+                "Must have both or neither of nextInterval and nextIntervalTopic");
+        this.statisticsService = Preconditions.checkNotNull(statisticsService);
+        this.statisticType = Preconditions.checkNotNull(statisticType);
+        this.kafkaProducer = Preconditions.checkNotNull(kafkaProducer);
+        this.optNextInterval = optNextInterval;
+        this.optNextIntervalTopic = optNextIntervalTopic;
+        this.sinkExecutor = Preconditions.checkNotNull(sinkExecutor);
+    }
+
+    /**
+     * Write all the aggregates in statAggregator to the stat store and the next interval topic, blocking
+     * until both are complete.
+     *
+     * @return The elapsed time in nanoseconds of this flush's stat store writes, from the first starting to the
+     * last completing, or empty if statAggregator was empty so nothing was flushed
+     */
+    OptionalLong flush(final FlushableAggregates statAggregator) {
+        Preconditions.checkNotNull(statAggregator);
+
+        if (statAggregator.isEmpty()) {
+            return OptionalLong.empty();
+        }
+        LOGGER.trace("Flushing aggregator {}", statAggregator);
+
+        final Timer.Context flushContext = flushTimer.time();
+
+        //take the snapshot once on this thread as getAggregates may not be safe to call concurrently
+        final Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> aggregatesByInterval =
+                statAggregator.getAggregatesByInterval();
+
+        final CompletableFuture<Void> topicFuture = optNextInterval
+                .map(nextInterval -> CompletableFuture.runAsync(
+                        () -> flushToTopic(
+                                aggregatesByInterval.getOrDefault(
+                                        statAggregator.getAggregationInterval(), Collections.emptyMap()),
+                                statAggregator.getAggregationInterval(),
+                                optNextIntervalTopic.get(),
+                                nextInterval),
+                        sinkExecutor))
+                .orElseGet(() -> CompletableFuture.completedFuture(null));
+
+        final List<CompletableFuture<Void>> statStoreFutures = new ArrayList<>();
+        final long statStoreStartNanos = System.nanoTime();
+        final long statStoreNanos;
+        try {
+            aggregatesByInterval.forEach((interval, aggregatedEvents) ->
+                    statStoreFutures.add(flushToStatStore(aggregatedEvents, interval, statAggregator)));
+
+            //wait for every stat store write to finish, even if one has failed, so none are still in flight
+            //when the offsets are committed or the flush is retried
+            CompletableFuture.allOf(statStoreFutures.toArray(new CompletableFuture[statStoreFutures.size()]))
+                    .join();
+            statStoreNanos = System.nanoTime() - statStoreStartNanos;
+        } catch (RuntimeException e) {
+            //let the topic sink finish before giving up so it is not still using the producer after we return
+            topicFuture.handle((aVoid, throwable) -> null).join();
+            if (e instanceof CompletionException && e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e instanceof CompletionException) {
+                throw new RuntimeException(String.format("Error flushing %s aggregates to the stat store",
+                        statisticType), e.getCause());
+            }
+            throw e;
+        }
+
+        try {
+            topicFuture.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(String.format("Error flushing %s aggregates to topic %s",
+                    statisticType, optNextIntervalTopic.orElse("None")), e.getCause());
+        }
+        flushContext.stop();
+        return OptionalLong.of(statStoreNanos);
+    }
+
+    private CompletableFuture<Void> flushToStatStore(final Map<StatEventKey, StatAggregate> aggregatedEvents,
+                                                     final EventStoreTimeIntervalEnum interval,
+                                                     final FlushableAggregates statAggregator) {
+
+        if (aggregatedEvents.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        //the write may complete on another thread so take what we need from the aggregator now
+        final int inputCount = statAggregator.getInputCount();
+        final double aggregationPercentage = statAggregator.getAggregationPercentage();
+
+        //only successful writes are timed
+        final Timer.Context context = statStoreTimer.time();
+        return statisticsService.putAggregatedEventsAsync(statisticType, interval, aggregatedEvents)
+                .thenRun(() -> {
+                    final long durationMs = TimeUnit.NANOSECONDS.toMillis(context.stop());
+
+                    LOGGER.debug(() -> String.format("Flushed %s %s/%s events (from %s input events %.2f %%) to the StatisticsService in %sms",
+                            aggregatedEvents.size(), statisticType, interval,
+                            inputCount, aggregationPercentage, durationMs));
+                });
+    }
+
+    private void flushToTopic(final Map<StatEventKey, StatAggregate> aggregatedEvents,
+                              final EventStoreTimeIntervalEnum interval,
+                              final String topic,
+                              final EventStoreTimeIntervalEnum newInterval) {
+
+        final Timer.Context context = topicTimer.time();
+
+        //Uplift the statkey to the new aggregationInterval and put it on the topic
+        //We will not be trying to uplift the statKey if we are already at the highest aggregationInterval
+        //so the RTE that cloneAndChangeInterval can throw should never happen
+        aggregatedEvents.entrySet().stream()
+                .map(entry -> new ProducerRecord<>(
+                        topic,
+                        entry.getKey().cloneAndChangeInterval(newInterval),
+                        entry.getValue()))
+                .peek(producerRecord -> LOGGER.trace("Putting record {} on topic {}", producerRecord, topic))
+                .forEach(kafkaProducer::send);
+
+        kafkaProducer.flush();
+        final long durationMs = TimeUnit.NANOSECONDS.toMillis(context.stop());
+
+        LOGGER.debug(() -> String.format("Flushed %s records from interval %s with new interval %s to topic %s in %sms",
+                aggregatedEvents.size(), interval, newInterval, topic, durationMs));
+    }
+
+    Timer getStatStoreTimer() {
+        return statStoreTimer;
+    }
+
+    Timer getTopicTimer() {
+        return topicTimer;
+    }
+
+    Timer getFlushTimer() {
+        return flushTimer;
+    }
+
+    /**
+     * @return A human readable summary of the timings of each sink, for use in health checks
+     */
+    String getTimingsSummary() {
+        return String.format("flush: %s, statStore: %s, topic: %s",
+                summariseTimer(flushTimer), summariseTimer(statStoreTimer), summariseTimer(topicTimer));
+    }
+
+    private static String summariseTimer(final Timer timer) {
+        Snapshot snapshot = timer.getSnapshot();
+        return String.format("count %,d mean %.1fms max %.1fms",
+                timer.getCount(),
+                snapshot.getMean() / TimeUnit.MILLISECONDS.toNanos(1),
+                (double) snapshot.getMax() / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.streams;
+
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.StatAggregate;
+
+import java.util.Map;
+
+/**
+ * A read only view of a buffer of aggregates, as needed to flush them to the stat store and the next interval's
+ * topic, see {@link FlushCoordinator}.
+ */
+interface FlushableAggregates {
+
+    /**
+     * @return The interval of the keys added to the buffer, i.e. the finest interval it holds
+     */
+    EventStoreTimeIntervalEnum getAggregationInterval();
+
+    /**
+     * @return The aggregates in the buffer grouped by the interval of their {@link StatEventKey}s.
+     * The returned maps must not be mutated.
+     */
+    Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> getAggregatesByInterval();
+
+    /**
+     * @return The number of distinct keys in the buffer
+     */
+    int size();
+
+    /**
+     * @return The number of aggregates added to the buffer
+     */
+    int getInputCount();
+
+    /**
+     * @return The compression savings expressed as a percentage. 0% = no compression, 100% = total compression
+     */
+    double getAggregationPercentage();
+
+    /**
+     * @return The approximate number of bytes of memory (heap and direct) retained by the buffered aggregates,
+     * see {@link AggregatorMemoryEstimator}
+     */
+    long getRetainedBytes();
+
+    boolean isEmpty();
+}
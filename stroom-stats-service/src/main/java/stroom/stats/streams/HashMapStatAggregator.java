@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import stroom.stats.api.MultiPartIdentifier;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.util.logging.LambdaLogger;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Essentially a wrapper for a {@link HashMap} of {@link StatEventKey} & {@link StatAggregate} with logic to merge
+ * new {@link StatAggregate} instances in. The aggregator is intended to aggregate lots of kv pairs where the
+ * key has been truncated down to a time interval, e.g. truncated down to the hour. When an aggregate is
+ * added whose key is already in the {@link StatAggregator} then the two {@link StatAggregate} instances will
+ * be merged into the {@link HashMap}. The degree of 'compression' that the aggregator provides depends on
+ * the nature of data been fed to it, e.g. for an HOUR interval, if there are lots of events in that hour
+ * with all other parts of the key the same then the 'compression' will be high.
+ */
+@NotThreadSafe
+class HashMapStatAggregator extends StatAggregator {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(HashMapStatAggregator.class);
+
+    private Map<StatEventKey, StatAggregate> buffer;
+    private final int initialCapacity;
+    //retained bytes of the keys, values and map nodes, excluding the map's table
+    private long entriesBytes = 0;
+
+    /**
+     * @param minSize The minimum number of reduced aggregates in the aggregator before it is deemed ready to be flushed
+     * @param aggregationInterval
+     * @param timeToLiveMs
+     */
+    public HashMapStatAggregator(final int minSize,
+                                 final EventStoreTimeIntervalEnum aggregationInterval,
+                                 final long timeToLiveMs) {
+        super(minSize, aggregationInterval, timeToLiveMs);
+        //initial size to avoid it rehashing. x1.2 to allow for it going a bit over the min value
+        this.initialCapacity = (int) Math.ceil((minSize * 1.2) / 0.75);
+        this.buffer = new HashMap<>(initialCapacity);
+    }
+
+    @Override
+    void merge(final StatEventKey statEventKey, final StatAggregate statAggregate) {
+
+        LOGGER.trace("Adding statEventKey {} and statAggregate {} to aggregator {}",
+                statEventKey, statAggregate, getAggregationInterval());
+
+        StatAggregate existingAggregate = buffer.get(statEventKey);
+        if (existingAggregate == null) {
+            buffer.put(statEventKey, statAggregate);
+            entriesBytes += AggregatorMemoryEstimator.HASH_MAP_NODE_BYTES
+                    + AggregatorMemoryEstimator.estimateKeyBytes(statEventKey)
+                    + AggregatorMemoryEstimator.estimateAggregateBytes(statAggregate);
+        } else {
+            int eventIdCountBefore = existingAggregate.getEventIds().size();
+            existingAggregate.aggregate(statAggregate);
+            //only the event IDs can grow an existing aggregate
+            List<MultiPartIdentifier> eventIds = existingAggregate.getEventIds();
+            if (eventIds.size() > eventIdCountBefore) {
+                entriesBytes += AggregatorMemoryEstimator.estimateEventIdsBytes(
+                        eventIds.subList(eventIdCountBefore, eventIds.size()));
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        if (buffer.isEmpty()) {
+            //the table is not allocated until the first put
+            return 0;
+        }
+        //the table starts at the initial capacity (rounded up to a power of 2) and doubles as the map grows
+        int tableCapacity = Integer.highestOneBit(Math.max(initialCapacity - 1, 1)) << 1;
+        while (buffer.size() > tableCapacity * 0.75) {
+            tableCapacity <<= 1;
+        }
+        return AggregatorMemoryEstimator.estimateHashMapTableBytes(tableCapacity) + entriesBytes;
+    }
+
+    /**
+     * @return The underlying {@link HashMap} instance used by the Aggregator. This map must not be mutated.
+     */
+    @Override
+    public Map<StatEventKey, StatAggregate> getAggregates() {
+        LOGGER.trace(() -> String.format("getAggregates called, return %s events", buffer.size()));
+
+        return buffer;
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import com.google.common.base.Preconditions;
+import stroom.stats.api.MultiPartIdentifier;
+import stroom.stats.api.StatisticType;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.streams.aggregation.ValueAggregate;
+import stroom.stats.util.logging.LambdaLogger;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link StatAggregator} that holds its aggregates outside of the java heap in an open addressing
+ * hash table. Each distinct key is held once as its serialized byte form (see {@link StatEventKey#getBytes()})
+ * alongside primitive count/sum/min/max values, so adding an aggregate for an existing key creates no long lived
+ * objects. The {@link StatEventKey} and {@link StatAggregate} objects are only re-built when the aggregates
+ * are requested at flush time.
+ * <p>
+ * The table is made up of two direct buffers:
+ * <p>
+ * index - fixed length slots of [hash][entry offset + 1], linearly probed, an entry offset of 0 denotes an empty slot
+ * <p>
+ * arena - variable length entries appended in insertion order, [key length][key bytes][count][sum][min][max]
+ * <p>
+ * For COUNT stats only the count value is used. Event IDs are variable length objects and relatively rare
+ * so are held on heap, keyed by the offset of the entry they belong to.
+ * <p>
+ * The direct memory of a buffer is normally only returned once the GC collects the small heap object that owns
+ * it, which could be long after the aggregator has been flushed, so the buffers are freed explicitly by
+ * {@link #release()} and as they are outgrown.
+ */
+@NotThreadSafe
+class OffHeapStatAggregator extends StatAggregator {
+
+    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(OffHeapStatAggregator.class);
+
+    private static final int SLOT_HASH_OFFSET = 0;
+    private static final int SLOT_ENTRY_OFFSET = SLOT_HASH_OFFSET + Integer.BYTES;
+    private static final int SLOT_LENGTH = SLOT_ENTRY_OFFSET + Integer.BYTES;
+
+    private static final int KEY_LENGTH_LENGTH = Integer.BYTES;
+    //offsets relative to the end of the key bytes
+    private static final int COUNT_OFFSET = 0;
+    private static final int SUM_OFFSET = COUNT_OFFSET + Long.BYTES;
+    private static final int MIN_OFFSET = SUM_OFFSET + Double.BYTES;
+    private static final int MAX_OFFSET = MIN_OFFSET + Double.BYTES;
+    private static final int VALUES_LENGTH = MAX_OFFSET + Double.BYTES;
+
+    private static final double MAX_LOAD_FACTOR = 0.5;
+    //cap the up front allocation as most aggregators will be flushed on time long before they reach minSize
+    private static final int MAX_INITIAL_ENTRIES = 1 << 15;
+    private static final int ESTIMATED_KEY_LENGTH = 64;
+
+    private static final DirectBufferFreer DIRECT_BUFFER_FREER = new DirectBufferFreer();
+
+    private final StatisticType statisticType;
+    private final int maxEventIds;
+
+    private ByteBuffer index;
+    private ByteBuffer arena;
+    private int slotMask;
+    private int size = 0;
+
+    private final Map<Integer, List<MultiPartIdentifier>> entryOffsetToEventIdsMap = new HashMap<>();
+    //estimated heap retained by entryOffsetToEventIdsMap
+    private long eventIdsBytes = 0;
+
+    //the re-built aggregates, cached as getAggregates is called once per flush destination
+    private Map<StatEventKey, StatAggregate> aggregates = null;
+
+    /**
+     * @param statisticType The type of the aggregates that will be added to the aggregator
+     * @param minSize The minimum number of reduced aggregates in the aggregator before it is deemed ready to be flushed
+     * @param aggregationInterval
+     * @param timeToLiveMs
+     * @param maxEventIds The maximum number of event IDs to hold for each key
+     */
+    public OffHeapStatAggregator(final StatisticType statisticType,
+                                 final int minSize,
+                                 final EventStoreTimeIntervalEnum aggregationInterval,
+                                 final long timeToLiveMs,
+                                 final int maxEventIds) {
+        super(minSize, aggregationInterval, timeToLiveMs);
+        Preconditions.checkNotNull(statisticType);
+        Preconditions.checkArgument(maxEventIds >= 0);
+
+        this.statisticType = statisticType;
+        this.maxEventIds = maxEventIds;
+
+        //x1.2 to allow for it going a bit over the min value
+        int initialEntries = (int) Math.min(Math.ceil(minSize * 1.2), MAX_INITIAL_ENTRIES);
+        int slotCount = Integer.highestOneBit((int) Math.ceil(Math.max(initialEntries, 1) / MAX_LOAD_FACTOR) - 1) << 1;
+        this.index = ByteBuffer.allocateDirect(slotCount * SLOT_LENGTH);
+        this.slotMask = slotCount - 1;
+        this.arena = ByteBuffer.allocateDirect(
+                initialEntries * (KEY_LENGTH_LENGTH + ESTIMATED_KEY_LENGTH + VALUES_LENGTH));
+    }
+
+    @Override
+    void merge(final StatEventKey statEventKey, final StatAggregate statAggregate) {
+
+        LOGGER.trace("Adding statEventKey {} and statAggregate {} to aggregator {}",
+                statEventKey, statAggregate, getAggregationInterval());
+
+        checkNotReleased();
+
+        //any previously built aggregates are now stale
+        aggregates = null;
+
+        final byte[] keyBytes = statEventKey.getBytes();
+        final int hash = hash(keyBytes);
+
+        int slot = hash & slotMask;
+        while (true) {
+            int slotPosition = slot * SLOT_LENGTH;
+            int entryOffsetPlusOne = index.getInt(slotPosition + SLOT_ENTRY_OFFSET);
+
+            if (entryOffsetPlusOne == 0) {
+                //empty slot so this is a new key
+                int entryOffset = appendEntry(keyBytes, statAggregate);
+                index.putInt(slotPosition + SLOT_HASH_OFFSET, hash);
+                index.putInt(slotPosition + SLOT_ENTRY_OFFSET, entryOffset + 1);
+                size++;
+                if (size > (slotMask + 1) * MAX_LOAD_FACTOR) {
+                    growIndex();
+                }
+                return;
+            } else if (index.getInt(slotPosition + SLOT_HASH_OFFSET) == hash
+                    && keyEquals(entryOffsetPlusOne - 1, keyBytes)) {
+                aggregateEntry(entryOffsetPlusOne - 1, keyBytes.length, statAggregate);
+                return;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A new {@link HashMap} of {@link StatEventKey} & {@link StatAggregate} re-built from the off heap
+     * table. The map is cached until the next call to add. This map must not be mutated.
+     */
+    @Override
+    public Map<StatEventKey, StatAggregate> getAggregates() {
+        if (aggregates == null) {
+            checkNotReleased();
+            LOGGER.trace(() -> String.format("Building aggregates from %s off heap entries (%s bytes)",
+                    size, arena.position()));
+
+            Map<StatEventKey, StatAggregate> map = new HashMap<>((int) Math.ceil(size / 0.75));
+            int entryOffset = 0;
+            while (entryOffset < arena.position()) {
+                int keyLength = arena.getInt(entryOffset);
+                byte[] keyBytes = new byte[keyLength];
+                //bulk copy from a duplicate so the arena's position is left alone
+                ByteBuffer keyBuffer = arena.duplicate();
+                keyBuffer.position(entryOffset + KEY_LENGTH_LENGTH);
+                keyBuffer.get(keyBytes);
+                map.put(StatEventKey.fromBytes(keyBytes), buildAggregate(entryOffset, keyLength));
+                entryOffset += KEY_LENGTH_LENGTH + keyLength + VALUES_LENGTH;
+            }
+            aggregates = map;
+        }
+        return aggregates;
+    }
+
+    /**
+     * @return The direct memory allocated to the aggregator plus the heap held by its event IDs
+     */
+    @Override
+    public long getRetainedBytes() {
+        return getAllocatedBytes() + eventIdsBytes;
+    }
+
+    /**
+     * @return The number of bytes of direct memory currently allocated to the aggregator
+     */
+    long getAllocatedBytes() {
+        return index == null ? 0 : (long) index.capacity() + arena.capacity();
+    }
+
+    /**
+     * Frees the direct buffers. Any aggregates already built by {@link #getAggregates()} remain available
+     * but nothing more can be added.
+     */
+    @Override
+    void release() {
+        if (index != null) {
+            LOGGER.trace(() -> String.format("Freeing %s bytes of direct memory", getAllocatedBytes()));
+            DIRECT_BUFFER_FREER.free(index);
+            DIRECT_BUFFER_FREER.free(arena);
+            index = null;
+            arena = null;
+        }
+    }
+
+    private void checkNotReleased() {
+        Preconditions.checkState(index != null, "Aggregator %s has been released", getAggregationInterval());
+    }
+
+    private int appendEntry(final byte[] keyBytes, final StatAggregate statAggregate) {
+        ensureArenaCapacity(KEY_LENGTH_LENGTH + keyBytes.length + VALUES_LENGTH);
+
+        int entryOffset = arena.position();
+        arena.putInt(keyBytes.length);
+        arena.put(keyBytes);
+        switch (statisticType) {
+            case COUNT:
+                arena.putLong(asCountAggregate(statAggregate).getAggregatedCount());
+                arena.putDouble(0);
+                arena.putDouble(0);
+                arena.putDouble(0);
+                break;
+            case VALUE:
+                ValueAggregate valueAggregate = asValueAggregate(statAggregate);
+                arena.putLong(valueAggregate.getCount());
+                arena.putDouble(valueAggregate.getAggregatedValue());
+                arena.putDouble(valueAggregate.getMinValue());
+                arena.putDouble(valueAggregate.getMaxValue());
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected statisticType " + statisticType);
+        }
+
+        List<MultiPartIdentifier> eventIds = statAggregate.getEventIds();
+        if (!eventIds.isEmpty() && maxEventIds > 0) {
+            List<MultiPartIdentifier> eventIdsToAdd = new ArrayList<>(
+                    eventIds.subList(0, Math.min(eventIds.size(), maxEventIds)));
+            entryOffsetToEventIdsMap.put(entryOffset, eventIdsToAdd);
+            eventIdsBytes += estimateEventIdsMapEntryBytes(eventIdsToAdd);
+        }
+        return entryOffset;
+    }
+
+    private void aggregateEntry(final int entryOffset, final int keyLength, final StatAggregate statAggregate) {
+        int valuesOffset = entryOffset + KEY_LENGTH_LENGTH + keyLength;
+        switch (statisticType) {
+            case COUNT:
+                arena.putLong(valuesOffset + COUNT_OFFSET,
+                        arena.getLong(valuesOffset + COUNT_OFFSET) + asCountAggregate(statAggregate).getAggregatedCount());
+                break;
+            case VALUE:
+                ValueAggregate valueAggregate = asValueAggregate(statAggregate);
+                double minValue = arena.getDouble(valuesOffset + MIN_OFFSET);
+                double maxValue = arena.getDouble(valuesOffset + MAX_OFFSET);
+                arena.putLong(valuesOffset + COUNT_OFFSET,
+                        arena.getLong(valuesOffset + COUNT_OFFSET) + valueAggregate.getCount());
+                arena.putDouble(valuesOffset + SUM_OFFSET,
+                        arena.getDouble(valuesOffset + SUM_OFFSET) + valueAggregate.getAggregatedValue());
+                arena.putDouble(valuesOffset + MIN_OFFSET,
+                        valueAggregate.getMinValue() > minValue ? minValue : valueAggregate.getMinValue());
+                arena.putDouble(valuesOffset + MAX_OFFSET,
+                        valueAggregate.getMaxValue() < maxValue ? maxValue : valueAggregate.getMaxValue());
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected statisticType " + statisticType);
+        }
+
+        //limit the number of event Ids we hold to prevent noisy events creating massive aggregates
+        List<MultiPartIdentifier> otherEventIds = statAggregate.getEventIds();
+        if (!otherEventIds.isEmpty() && maxEventIds > 0) {
+            List<MultiPartIdentifier> eventIds = entryOffsetToEventIdsMap.computeIfAbsent(
+                    entryOffset, k -> {
+                        List<MultiPartIdentifier> newEventIds = new ArrayList<>();
+                        eventIdsBytes += estimateEventIdsMapEntryBytes(newEventIds);
+                        return newEventIds;
+                    });
+            int addCount = maxEventIds - eventIds.size();
+            if (addCount > 0) {
+                List<MultiPartIdentifier> eventIdsToAdd = otherEventIds.subList(
+                        0, Math.min(otherEventIds.size(), addCount));
+                eventIds.addAll(eventIdsToAdd);
+                eventIdsBytes += AggregatorMemoryEstimator.estimateEventIdsBytes(eventIdsToAdd);
+            }
+        }
+    }
+
+    private static long estimateEventIdsMapEntryBytes(final List<MultiPartIdentifier> eventIds) {
+        //node plus the boxed entry offset key plus the list
+        return AggregatorMemoryEstimator.HASH_MAP_NODE_BYTES
+                + AggregatorMemoryEstimator.BOXED_INTEGER_BYTES
+                + AggregatorMemoryEstimator.estimateEventIdListBytes(eventIds);
+    }
+
+    private StatAggregate buildAggregate(final int entryOffset, final int keyLength) {
+        int valuesOffset = entryOffset + KEY_LENGTH_LENGTH + keyLength;
+        List<MultiPartIdentifier> eventIds = entryOffsetToEventIdsMap.getOrDefault(entryOffset, Collections.emptyList());
+        switch (statisticType) {
+            case COUNT:
+                return new CountAggregate(
+                        eventIds,
+                        maxEventIds,
+                        arena.getLong(valuesOffset + COUNT_OFFSET));
+            case VALUE:
+                return new ValueAggregate(
+                        eventIds,
+                        maxEventIds,
+                        (int) arena.getLong(valuesOffset + COUNT_OFFSET),
+                        arena.getDouble(valuesOffset + SUM_OFFSET),
+                        arena.getDouble(valuesOffset + MIN_OFFSET),
+                        arena.getDouble(valuesOffset + MAX_OFFSET));
+            default:
+                throw new IllegalArgumentException("Unexpected statisticType " + statisticType);
+        }
+    }
+
+    private boolean keyEquals(final int entryOffset, final byte[] keyBytes) {
+        if (arena.getInt(entryOffset) != keyBytes.length) {
+            return false;
+        }
+        int keyOffset = entryOffset + KEY_LENGTH_LENGTH;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (arena.get(keyOffset + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growIndex() {
+        int newSlotCount = (slotMask + 1) << 1;
+        Preconditions.checkState(newSlotCount > 0 && (long) newSlotCount * SLOT_LENGTH <= Integer.MAX_VALUE,
+                "Unable to grow the index of aggregator %s any further", this);
+
+        LOGGER.trace("Growing index to {} slots", newSlotCount);
+
+        ByteBuffer newIndex = ByteBuffer.allocateDirect(newSlotCount * SLOT_LENGTH);
+        int newSlotMask = newSlotCount - 1;
+
+        for (int slotPosition = 0; slotPosition < index.capacity(); slotPosition += SLOT_LENGTH) {
+            int entryOffsetPlusOne = index.getInt(slotPosition + SLOT_ENTRY_OFFSET);
+            if (entryOffsetPlusOne != 0) {
+                //re-use the stored hash so we don't have to touch the keys
+                int hash = index.getInt(slotPosition + SLOT_HASH_OFFSET);
+                int slot = hash & newSlotMask;
+                while (newIndex.getInt(slot * SLOT_LENGTH + SLOT_ENTRY_OFFSET) != 0) {
+                    slot = (slot + 1) & newSlotMask;
+                }
+                newIndex.putInt(slot * SLOT_LENGTH + SLOT_HASH_OFFSET, hash);
+                newIndex.putInt(slot * SLOT_LENGTH + SLOT_ENTRY_OFFSET, entryOffsetPlusOne);
+            }
+        }
+        DIRECT_BUFFER_FREER.free(index);
+        index = newIndex;
+        slotMask = newSlotMask;
+    }
+
+    private void ensureArenaCapacity(final int requiredBytes) {
+        if (arena.remaining() < requiredBytes) {
+            long newCapacity = Math.max((long) arena.capacity() * 2, (long) arena.position() + requiredBytes);
+            //entry offsets are held as ints (plus one) in the index
+            newCapacity = Math.min(newCapacity, Integer.MAX_VALUE - 1);
+            Preconditions.checkState(newCapacity >= (long) arena.position() + requiredBytes,
+                    "Unable to grow the arena of aggregator %s any further", this);
+
+            LOGGER.trace("Growing arena to {} bytes", newCapacity);
+
+            ByteBuffer newArena = ByteBuffer.allocateDirect((int) newCapacity);
+            arena.flip();
+            newArena.put(arena);
+            DIRECT_BUFFER_FREER.free(arena);
+            arena = newArena;
+        }
+    }
+
+    private static int hash(final byte[] bytes) {
+        int hash = 1;
+        for (byte b : bytes) {
+            hash = 31 * hash + b;
+        }
+        //murmur3 finalizer to spread the bits as only the low order bits are used to pick a slot
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static CountAggregate asCountAggregate(final StatAggregate statAggregate) {
+        try {
+            return (CountAggregate) statAggregate;
+        } catch (ClassCastException e) {
+            throw new RuntimeException(String.format("Supplied StatAggregate %s is not a CountAggregate",
+                    statAggregate.getClass().getName()), e);
+        }
+    }
+
+    private static ValueAggregate asValueAggregate(final StatAggregate statAggregate) {
+        try {
+            return (ValueAggregate) statAggregate;
+        } catch (ClassCastException e) {
+            throw new RuntimeException(String.format("Supplied StatAggregate %s is not a ValueAggregate",
+                    statAggregate.getClass().getName()), e);
+        }
+    }
+
+    /**
+     * There is no public API to free a direct buffer, so this uses Unsafe.invokeCleaner on java 9+ or the
+     * buffer's Cleaner on java 8. If neither is available the buffers are left for the GC.
+     */
+    private static final class DirectBufferFreer {
+
+        private final Object unsafe;
+        private final Method invokeCleanerMethod;
+        private final Method cleanerMethod;
+        private final Method cleanMethod;
+
+        private DirectBufferFreer() {
+            Object unsafe = null;
+            Method invokeCleanerMethod = null;
+            Method cleanerMethod = null;
+            Method cleanMethod = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafeField.setAccessible(true);
+                unsafe = theUnsafeField.get(null);
+            } catch (Exception e) {
+                //not java 9+ so fall back on the cleaner
+                invokeCleanerMethod = null;
+                try {
+                    cleanerMethod = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                } catch (Exception e2) {
+                    LOGGER.warn("Unable to free direct buffers explicitly, they will be freed by the GC, {}",
+                            e2.getMessage());
+                    cleanerMethod = null;
+                    cleanMethod = null;
+                }
+            }
+            this.unsafe = unsafe;
+            this.invokeCleanerMethod = invokeCleanerMethod;
+            this.cleanerMethod = cleanerMethod;
+            this.cleanMethod = cleanMethod;
+        }
+
+        void free(final ByteBuffer buffer) {
+            try {
+                if (invokeCleanerMethod != null) {
+                    invokeCleanerMethod.invoke(unsafe, buffer);
+                } else if (cleanMethod != null) {
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleanMethod.invoke(cleaner);
+                    }
+                }
+            } catch (Exception e) {
+                //not fatal, the GC will free it eventually
+                LOGGER.debug("Unable to free direct buffer {}, {}", buffer, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.streams;
+
+import com.google.common.base.Preconditions;
+import org.apache.kafka.common.TopicPartition;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.StatAggregate;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Holds a separate {@link StatAggregator} for each topic partition that records have been added from, so that
+ * the aggregates from partitions that are no longer assigned to the consumer can be dropped while the others carry
+ * on aggregating. Keys are partitioned by their hash so the same key should never be seen on more than one
+ * partition, but if it is the aggregates are merged when the partitions are combined.
+ * <p>
+ * This is not itself a {@link StatAggregator} as every aggregate must be added with its partition. The size,
+ * input count and retained bytes are the totals across all partitions and the flush threshold is applied to those
+ * totals, so the minSize and timeToLiveMs of the per partition aggregators are not used.
+ */
+@NotThreadSafe
+class PartitionedStatAggregator implements FlushableAggregates {
+
+    private final int minSize;
+    private final Instant expiryTime;
+    private final EventStoreTimeIntervalEnum aggregationInterval;
+    private final Supplier<StatAggregator> partitionAggregatorSupplier;
+    private final Map<TopicPartition, StatAggregator> partitionAggregators = new HashMap<>();
+
+    //built on demand, reset whenever something is added or removed
+    private Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> aggregatesByInterval = null;
+
+    /**
+     * @param minSize                     The minimum number of reduced aggregates across all partitions before it
+     *                                    is deemed ready to be flushed
+     * @param aggregationInterval
+     * @param timeToLiveMs
+     * @param partitionAggregatorSupplier Supplies a new empty {@link StatAggregator} for aggregationInterval
+     *                                    when the first record for a partition is added
+     */
+    PartitionedStatAggregator(final int minSize,
+                              final EventStoreTimeIntervalEnum aggregationInterval,
+                              final long timeToLiveMs,
+                              final Supplier<StatAggregator> partitionAggregatorSupplier) {
+        this.minSize = minSize;
+        this.expiryTime = Instant.now().plusMillis(timeToLiveMs);
+        this.aggregationInterval = Preconditions.checkNotNull(aggregationInterval);
+        this.partitionAggregatorSupplier = Preconditions.checkNotNull(partitionAggregatorSupplier);
+    }
+
+    /**
+     * Add a single key/aggregate pair from the passed partition into the aggregator
+     */
+    public void add(final TopicPartition topicPartition,
+                    final StatEventKey statEventKey,
+                    final StatAggregate statAggregate) {
+        Preconditions.checkNotNull(topicPartition);
+
+        resetAggregates();
+        partitionAggregators.computeIfAbsent(topicPartition, k -> {
+                    StatAggregator statAggregator = partitionAggregatorSupplier.get();
+                    Preconditions.checkArgument(statAggregator.getAggregationInterval().equals(aggregationInterval),
+                            "Partition aggregator interval %s doesn't match %s",
+                            statAggregator.getAggregationInterval(), aggregationInterval);
+                    return statAggregator;
+                })
+                .add(statEventKey, statAggregate);
+    }
+
+    /**
+     * Drop all the aggregates from the passed partitions
+     *
+     * @return The number of input records that were dropped
+     */
+    public int removePartitions(final Collection<TopicPartition> topicPartitions) {
+        int droppedInputCount = 0;
+        for (TopicPartition topicPartition : topicPartitions) {
+            StatAggregator statAggregator = partitionAggregators.remove(topicPartition);
+            if (statAggregator != null) {
+                droppedInputCount += statAggregator.getInputCount();
+                statAggregator.release();
+                resetAggregates();
+            }
+        }
+        return droppedInputCount;
+    }
+
+    /**
+     * Frees any memory held outside of the java heap by the partition aggregators, once they have been
+     * flushed or are being dropped. The aggregator can't be used after this is called.
+     */
+    public void release() {
+        partitionAggregators.values().forEach(StatAggregator::release);
+    }
+
+    public Set<TopicPartition> getPartitions() {
+        return Collections.unmodifiableSet(partitionAggregators.keySet());
+    }
+
+    /**
+     * @return The aggregates of all partitions grouped by the interval of their {@link StatEventKey}s.
+     * The returned maps must not be mutated.
+     */
+    @Override
+    public Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> getAggregatesByInterval() {
+        if (aggregatesByInterval == null) {
+            Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> mapByInterval =
+                    new EnumMap<>(EventStoreTimeIntervalEnum.class);
+            partitionAggregators.values().forEach(statAggregator ->
+                    statAggregator.getAggregatesByInterval().forEach((interval, partitionAggregates) -> {
+                        Map<StatEventKey, StatAggregate> map = mapByInterval.computeIfAbsent(
+                                interval, k -> new HashMap<>());
+                        //the aggregates held by the partition aggregators must not be mutated so
+                        //aggregate any clashes into a copy
+                        partitionAggregates.forEach((statEventKey, statAggregate) ->
+                                map.merge(statEventKey, statAggregate, (existing, other) ->
+                                        StatAggregator.copyOf(existing).aggregate(other)));
+                    }));
+            aggregatesByInterval = mapByInterval;
+        }
+        return aggregatesByInterval;
+    }
+
+    @Override
+    public EventStoreTimeIntervalEnum getAggregationInterval() {
+        return aggregationInterval;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (StatAggregator statAggregator : partitionAggregators.values()) {
+            size += statAggregator.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int getInputCount() {
+        int inputCount = 0;
+        for (StatAggregator statAggregator : partitionAggregators.values()) {
+            inputCount += statAggregator.getInputCount();
+        }
+        return inputCount;
+    }
+
+    @Override
+    public double getAggregationPercentage() {
+        if (isEmpty()) {
+            return 0;
+        } else {
+            //the partition aggregators may be cascading ones whose percentage is not based on their total size
+            double inputCount = 0;
+            double weightedPercentage = 0;
+            for (StatAggregator statAggregator : partitionAggregators.values()) {
+                inputCount += statAggregator.getInputCount();
+                weightedPercentage += statAggregator.getAggregationPercentage() * statAggregator.getInputCount();
+            }
+            return weightedPercentage / inputCount;
+        }
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (StatAggregator statAggregator : partitionAggregators.values()) {
+            bytes += statAggregator.getRetainedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public Instant getExpiryTime() {
+        return expiryTime;
+    }
+
+    /**
+     * @return True if the total number of reduced records across all partitions has reached minSize or
+     * timeToLiveMs has been passed.
+     */
+    public boolean isReadyForFlush() {
+        return (Instant.now().isAfter(expiryTime) || size() > minSize);
+    }
+
+    private void resetAggregates() {
+        aggregatesByInterval = null;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "minSize=" + minSize +
+                ", expiredTime=" + expiryTime +
+                ", aggregationInterval=" + aggregationInterval +
+                ", partitions=" + partitionAggregators.size() +
+                ", current size=" + size() +
+                ", inputCount=" + getInputCount() +
+                ", retainedBytes=" + getRetainedBytes() +
+                '}';
+    }
+}
@@ -22,44 +22,49 @@ package stroom.stats.streams;
 import com.google.common.base.Preconditions;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
 import stroom.stats.streams.aggregation.StatAggregate;
-import stroom.stats.util.logging.LambdaLogger;
 
 import javax.annotation.concurrent.NotThreadSafe;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
 
 /**
- * Essentially a wrapper for a {@link HashMap} of {@link StatEventKey} & {@link StatAggregate} with logic to merge
+ * Base class for a buffer of {@link StatEventKey} & {@link StatAggregate} pairs with logic to merge
  * new {@link StatAggregate} instances in. The aggregator is intended to aggregate lots of kv pairs where the
- * key has been truncated down to a time interval, e.g. truncated down to the hour. When an aggregate is
- * added whose key is already in the {@link StatAggregator} then the two {@link StatAggregate} instances will
- * be merged into the {@link HashMap}. The degree of 'compression' that the aggregator provides depends on
- * the nature of data been fed to it, e.g. for an HOUR interval, if there are lots of events in that hour
- * with all other parts of the key the same then the 'compression' will be high.
+ * key has been truncated down to a time interval, e.g. truncated down to the hour. How the aggregates are
+ * held between flushes is down to the implementation, see {@link BufferType}.
  */
 @NotThreadSafe
-class StatAggregator {
+abstract class StatAggregator implements FlushableAggregates {
 
-    private static final LambdaLogger LOGGER = LambdaLogger.getLogger(StatAggregator.class);
+    /**
+     * The types of buffer available for holding the aggregates between flushes
+     */
+    enum BufferType {
+        /**
+         * Aggregates are held as objects in a {@link java.util.HashMap}, see {@link HashMapStatAggregator}
+         */
+        HEAP,
+        /**
+         * Aggregates are held as raw key bytes and primitive values in direct memory,
+         * see {@link OffHeapStatAggregator}
+         */
+        OFF_HEAP
+    }
 
-    private Map<StatEventKey, StatAggregate> buffer;
     private final int minSize;
     private final Instant expiryTime;
     private final EventStoreTimeIntervalEnum aggregationInterval;
     private int inputCount = 0;
 
-
     /**
      * @param minSize The minimum number of reduced aggregates in the aggregator before it is deemed ready to be flushed
      * @param aggregationInterval
      * @param timeToLiveMs
      */
-    public StatAggregator(final int minSize,
-                          final EventStoreTimeIntervalEnum aggregationInterval,
-                          final long timeToLiveMs) {
-        //initial size to avoid it rehashing. x1.2 to allow for it going a bit over the min value
-        this.buffer = new HashMap<>((int) Math.ceil((minSize * 1.2) / 0.75));
+    StatAggregator(final int minSize,
+                   final EventStoreTimeIntervalEnum aggregationInterval,
+                   final long timeToLiveMs) {
         this.minSize = minSize;
         this.expiryTime = Instant.now().plusMillis(timeToLiveMs);
         this.aggregationInterval = aggregationInterval;
@@ -76,21 +81,50 @@ class StatAggregator {
         Preconditions.checkArgument(statEventKey.getInterval().equals(aggregationInterval),
                 "statEventKey %s doesn't match aggregator interval %s", statEventKey, aggregationInterval);
 
-        LOGGER.trace("Adding statEventKey {} and statAggregate {} to aggregator {}", statEventKey, statAggregate, aggregationInterval);
-
         //The passed StatEventKey will already have its time truncated to the interval of this aggregator
         //so we don't need to do anything to it.
 
         inputCount++;
 
         //aggregate the passed aggregate and key into the existing aggregates
-        buffer.merge(statEventKey, statAggregate, StatAggregate::aggregatePair);
+        merge(statEventKey, statAggregate);
     }
 
-    public int size() {
-        return buffer.size();
+    /**
+     * Merge the passed pair into the buffer, either adding it or aggregating it with
+     * the existing aggregate for the same key
+     */
+    abstract void merge(final StatEventKey statEventKey, final StatAggregate statAggregate);
+
+    /**
+     * @return The number of distinct keys in the aggregator
+     */
+    @Override
+    public abstract int size();
+
+    /**
+     * @return All the aggregates in the aggregator keyed by {@link StatEventKey}. The returned map must not be mutated.
+     */
+    public abstract Map<StatEventKey, StatAggregate> getAggregates();
+
+    /**
+     * @return The aggregates in the aggregator grouped by the interval of their {@link StatEventKey}s. Unless the
+     * aggregator holds multiple intervals, this is just the result of {@link StatAggregator#getAggregates()} keyed
+     * by the aggregator's interval. The returned maps must not be mutated.
+     */
+    @Override
+    public Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> getAggregatesByInterval() {
+        return Collections.singletonMap(aggregationInterval, getAggregates());
     }
 
+    /**
+     * @return The approximate number of bytes of memory (heap and direct) retained by the buffered aggregates,
+     * see {@link AggregatorMemoryEstimator}
+     */
+    @Override
+    public abstract long getRetainedBytes();
+
+    @Override
     public int getInputCount() {
         return inputCount;
     }
@@ -102,16 +136,18 @@ class StatAggregator {
     /**
      * @return The compression savings expressed as a percentage. 0% = no compression, 100% = total compression
      */
+    @Override
     public double getAggregationPercentage() {
-        if (buffer.isEmpty()) {
+        if (isEmpty()) {
             return 0;
         } else {
-            return 100 - ((double) buffer.size() / inputCount * 100);
+            return 100 - ((double) size() / inputCount * 100);
         }
     }
 
+    @Override
     public boolean isEmpty() {
-        return buffer.isEmpty();
+        return size() == 0;
     }
 
     /**
@@ -119,30 +155,43 @@ class StatAggregator {
      * been passed.
      */
     public boolean isReadyForFlush() {
-        return (Instant.now().isAfter(expiryTime) || buffer.size() > minSize);
+        return (Instant.now().isAfter(expiryTime) || size() > minSize);
     }
 
+    @Override
     public EventStoreTimeIntervalEnum getAggregationInterval() {
         return aggregationInterval;
     }
 
+    int getMinSize() {
+        return minSize;
+    }
+
     /**
-     * @return The underlying {@link HashMap} instance used by the Aggregator. This map must not be mutated.
+     * Frees any memory the aggregator holds outside of the java heap. Only to be called once its aggregates are
+     * no longer needed, i.e. once it has been flushed or dropped, as it can't be used after that.
      */
-    public Map<StatEventKey, StatAggregate> getAggregates() {
-        LOGGER.trace(() -> String.format("getAggregates called, return %s events", buffer.size()));
+    void release() {
+        //nothing held off heap
+    }
 
-        return buffer;
+    /**
+     * @return A new {@link StatAggregate} with the same content as the passed one, for use when the same aggregate
+     * needs to be added to more than one buffer, as buffers may mutate the aggregates they hold
+     */
+    static StatAggregate copyOf(final StatAggregate statAggregate) {
+        return statAggregate.copy();
     }
 
     @Override
     public String toString() {
-        return "StatAggregator{" +
+        return getClass().getSimpleName() + "{" +
                 "minSize=" + minSize +
                 ", expiredTime=" + expiryTime +
                 ", aggregationInterval=" + aggregationInterval +
-                ", current size=" + buffer.size() +
-                ", inputCount=" + inputCount +
+                ", current size=" + size() +
+                ", inputCount=" + getInputCount() +
+                ", retainedBytes=" + getRetainedBytes() +
                 '}';
     }
 }
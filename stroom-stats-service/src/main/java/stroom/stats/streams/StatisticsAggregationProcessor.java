@@ -19,14 +19,17 @@
 
 package stroom.stats.streams;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.codahale.metrics.health.HealthCheck;
 import com.google.common.base.Preconditions;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.KafkaProducer;
-import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Metric;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.Serde;
 import stroom.stats.StatisticsProcessor;
@@ -44,15 +47,20 @@ import stroom.stats.util.logging.LambdaLogger;
 import javax.annotation.Nonnull;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
@@ -61,7 +69,6 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -96,6 +103,20 @@ import java.util.stream.StreamSupport;
  * may be re-processed to some extent depending on when the shutdown happened, e.g duplicate events may go to
  * the next topic and/or to the stat service. The size of the StatAggregator is a trade off between in memory aggregation
  * benefits and the risk of more duplicate data in the stat store
+ * <p>
+ * If pipelined flushing is enabled, a StatAggregator that is ready for flushing is handed off to the shared flush
+ * executor and the consumer carries on polling into a new StatAggregator. Only one flush per processor can be in
+ * flight at once so if the next StatAggregator becomes ready before the previous flush has finished the consumer
+ * will wait for it. The offsets of the records in a StatAggregator are only committed once its flush has completed.
+ * <p>
+ * If cascade mode is enabled, each processor aggregates into its own interval and all coarser intervals in a single
+ * pass (see {@link CascadingStatAggregator}) and writes each interval straight to the stat store, so nothing is put
+ * on the next interval's topic. The processors for the coarser intervals are still needed to consume the events
+ * that were sent with a coarser precision.
+ * <p>
+ * Aggregates are buffered separately for each assigned partition (see {@link PartitionedStatAggregator}). When a
+ * rebalance happens, the aggregates for any partitions that are lost are dropped (to be re-consumed by their new
+ * owner) rather than flushing everything, so the retained partitions carry on aggregating.
  */
 public class StatisticsAggregationProcessor implements StatisticsProcessor {
 
@@ -106,9 +127,25 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
     public static final String PROP_KEY_AGGREGATOR_MAX_FLUSH_INTERVAL_MS = "stroom.stats.aggregation.maxFlushIntervalMs";
     public static final String PROP_KEY_AGGREGATOR_POLL_TIMEOUT_MS = "stroom.stats.aggregation.pollTimeoutMs";
     public static final String PROP_KEY_AGGREGATOR_POLL_RECORDS = "stroom.stats.aggregation.pollRecords";
+    public static final String PROP_KEY_AGGREGATOR_BUFFER_TYPE = "stroom.stats.aggregation.bufferType";
+    public static final String PROP_KEY_AGGREGATOR_PIPELINED_FLUSH = "stroom.stats.aggregation.pipelinedFlush";
+    public static final String PROP_KEY_AGGREGATOR_CASCADE_MODE = "stroom.stats.aggregation.cascadeMode";
+    public static final String PROP_KEY_ADAPTIVE_FLUSH_ENABLED = "stroom.stats.aggregation.adaptiveFlush.enabled";
+    public static final String PROP_KEY_ADAPTIVE_FLUSH_MIN_BATCH_SIZE_LOWER_BOUND = "stroom.stats.aggregation.adaptiveFlush.minBatchSizeLowerBound";
+    public static final String PROP_KEY_ADAPTIVE_FLUSH_MIN_BATCH_SIZE_UPPER_BOUND = "stroom.stats.aggregation.adaptiveFlush.minBatchSizeUpperBound";
+    public static final String PROP_KEY_ADAPTIVE_FLUSH_FLUSH_INTERVAL_MS_LOWER_BOUND = "stroom.stats.aggregation.adaptiveFlush.flushIntervalMsLowerBound";
+    public static final String PROP_KEY_ADAPTIVE_FLUSH_TARGET_STORE_LATENCY_MS = "stroom.stats.aggregation.adaptiveFlush.targetStoreLatencyMs";
+    public static final String PROP_KEY_PARTITION_LAG_ENABLED = "stroom.stats.aggregation.partitionLag.enabled";
+    public static final String PROP_KEY_PARTITION_LAG_UPDATE_INTERVAL_MS = "stroom.stats.aggregation.partitionLag.updateIntervalMs";
+
+    //the prefix of the names of all metrics registered by the processors
+    public static final String METRIC_NAME_PREFIX = "stroom.stats.aggregation";
 
     public static final long EXECUTOR_SHUTDOWN_TIMEOUT_SECS = 120;
 
+    //the smallest initial capacity of a partition's buffer, however many partitions are assigned
+    private static final int MIN_PARTITION_BUFFER_SIZE = 1_000;
+
     private final StatisticsService statisticsService;
     private final StroomPropertyService stroomPropertyService;
     private final StatisticType statisticType;
@@ -122,23 +159,52 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
     private final Object startStopMonitor = new Object();
 
     private final ExecutorService executorService;
+    private final ExecutorService flushExecutorService;
+    private final FlushCoordinator flushCoordinator;
+    private final AggregationMemoryBudget memoryBudget;
+    private final AggregationProcessorMetrics metrics;
     private final KafkaProducer<StatEventKey, StatAggregate> kafkaProducer;
     private final String inputTopic;
     private final String groupId;
     private final Optional<EventStoreTimeIntervalEnum> optNextInterval;
     private final Optional<String> optNextIntervalTopic;
+    //fixed for the life of the processor as it determines whether anything goes to the next interval's topic
+    private final boolean isCascadeModeEnabled;
 
-    private StatAggregator statAggregator;
+    private PartitionedStatAggregator statAggregator;
     //    private Future<?> consumerFuture;
     private CompletableFuture<Void> consumerFuture;
 
+    //State for pipelined flushing, only mutated by the consumer thread.
+    //The offsets to commit once the current statAggregator has been flushed, also used to resume
+    //retained partitions after a rebalance
+    private Map<TopicPartition, OffsetAndMetadata> bufferedOffsets = new HashMap<>();
+    //The flush of the previous statAggregator and the offsets to commit when it completes
+    private volatile CompletableFuture<Void> inFlightFlush;
+    private Map<TopicPartition, OffsetAndMetadata> inFlightOffsets;
+    private boolean hasFlushFailed = false;
+
+    //null if adaptive flush sizing is disabled
+    private volatile AdaptiveFlushController adaptiveFlushController;
+    //the consumer's max lag across its partitions, updated by the consumer thread after each poll
+    private volatile double consumerLag = 0;
+    private Metric recordsLagMaxMetric;
+
+    //This processor's share of the global memory budget, only updated by the consumer thread
+    private volatile AggregationMemoryBudget.Account memoryAccount;
+    //bytes retained by the statAggregator being flushed by a pipelined flush
+    private long inFlightBytes = 0;
+
     private Serde<StatEventKey> statKeySerde;
     private Serde<StatAggregate> statAggregateSerde;
 
     //variables to hold state for the health check
 //    private Queue<Integer> assignedPartitions = new ConcurrentLinkedQueue<>();
     private Map<Integer, Long> latestPartitionOffsets = new ConcurrentHashMap<>();
-    private final LongAdder msgCounter = new LongAdder();
+    //the log end offset less the consumer's position for each partition, -1 until it is first looked up
+    //or if partition lag is not enabled
+    private Map<Integer, Long> partitionLags = new ConcurrentHashMap<>();
+    private long lastPartitionLagUpdateMs = 0;
 
     //The following instance/class vars are there for debugging use
     //    private Map<StatEventKey, StatAggregate> putEventsMap = new HashMap<>();
@@ -152,6 +218,10 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
                                           final EventStoreTimeIntervalEnum aggregationInterval,
                                           final KafkaProducer<StatEventKey, StatAggregate> kafkaProducer,
                                           final ExecutorService executorService,
+                                          final ExecutorService flushExecutorService,
+                                          final ExecutorService sinkExecutorService,
+                                          final AggregationMemoryBudget memoryBudget,
+                                          final MetricRegistry metricRegistry,
                                           final int instanceId) {
 
         this.statisticsService = statisticsService;
@@ -161,6 +231,8 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
         this.instanceId = instanceId;
         this.kafkaProducer = kafkaProducer;
         this.executorService = executorService;
+        this.flushExecutorService = flushExecutorService;
+        this.memoryBudget = memoryBudget;
 
         LOGGER.info("Building {} - {} aggregation processor, with instance id {}",
                 statisticType, aggregationInterval, instanceId);
@@ -175,8 +247,28 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
         groupId = stroomPropertyService.getPropertyOrThrow(PROP_KEY_AGGREGATION_PROCESSOR_APP_ID_PREFIX) +
                 "-" + inputTopic;
         optNextInterval = EventStoreTimeIntervalEnum.getNextBiggest(aggregationInterval);
-        optNextIntervalTopic = optNextInterval.map(newInterval ->
-                TopicNameFactory.getIntervalTopicName(topicPrefix, statisticType, newInterval));
+        isCascadeModeEnabled = stroomPropertyService.getBooleanProperty(PROP_KEY_AGGREGATOR_CASCADE_MODE, false);
+        //in cascade mode the coarser intervals are aggregated by this processor so there is no next topic
+        optNextIntervalTopic = isCascadeModeEnabled
+                ? Optional.empty()
+                : optNextInterval.map(newInterval ->
+                        TopicNameFactory.getIntervalTopicName(topicPrefix, statisticType, newInterval));
+
+        flushCoordinator = new FlushCoordinator(
+                statisticsService,
+                statisticType,
+                kafkaProducer,
+                isCascadeModeEnabled ? Optional.empty() : optNextInterval,
+                optNextIntervalTopic,
+                sinkExecutorService);
+
+        metrics = new AggregationProcessorMetrics(
+                metricRegistry,
+                statisticType,
+                aggregationInterval,
+                instanceId,
+                flushCoordinator,
+                () -> consumerLag);
 
         //start a processor for a stat type and aggregationInterval pair
         //This will improve aggregation as it will only handle data for the same stat types and aggregationInterval sizes
@@ -237,61 +329,6 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
     }
 
 
-    /**
-     * Drain the aggregator and pass all aggregated events to the stat service to persist to the event store
-     *
-     * @param statisticType  The type of events being processed
-     * @param statAggregator
-     * @return The list of aggregates events drained from the aggregator and sent to the event store
-     */
-    private Map<StatEventKey, StatAggregate> flushToStatStore(final StatisticType statisticType,
-                                                              final StatAggregator statAggregator) {
-
-        Map<StatEventKey, StatAggregate> aggregatedEvents = statAggregator.getAggregates();
-
-        //as our logger uses a lambda we need to assign this and make it final which is not ideal if
-        //we are not in debug mode
-        final Instant startTime = Instant.now();
-
-        statisticsService.putAggregatedEvents(statisticType, statAggregator.getAggregationInterval(), aggregatedEvents);
-
-        LOGGER.debug(() -> String.format("Flushed %s %s/%s events (from %s input events %.2f %%) to the StatisticsService in %sms",
-                aggregatedEvents.size(), statisticType, statAggregator.getAggregationInterval(),
-                statAggregator.getInputCount(), statAggregator.getAggregationPercentage(),
-                Duration.between(startTime, Instant.now()).toMillis()));
-
-        return aggregatedEvents;
-    }
-
-    private void flushToTopic(final StatAggregator statAggregator,
-                              final String topic,
-                              final EventStoreTimeIntervalEnum newInterval,
-                              final KafkaProducer<StatEventKey, StatAggregate> producer) {
-
-        Preconditions.checkNotNull(statAggregator);
-        Preconditions.checkNotNull(producer);
-
-        //as our logger uses a lambda we need to assign this and make it final which is not ideal if
-        //we are not in debug mode
-        final Instant startTime = Instant.now();
-
-        //Uplift the statkey to the new aggregationInterval and put it on the topic
-        //We will not be trying to uplift the statKey if we are already at the highest aggregationInterval
-        //so the RTE that cloneAndChangeInterval can throw should never happen
-        statAggregator.getAggregates().entrySet().stream()
-                .map(entry -> new ProducerRecord<>(
-                        topic,
-                        entry.getKey().cloneAndChangeInterval(newInterval),
-                        entry.getValue()))
-                .peek(producerRecord -> LOGGER.trace("Putting record {} on topic {}", producerRecord, topic))
-                .forEach(producer::send);
-
-        LOGGER.debug(() -> String.format("Flushed %s records from interval %s with new interval %s to topic %s in %sms",
-                statAggregator.size(), statAggregator.getAggregationInterval(), newInterval, topic, Duration.between(startTime, Instant.now()).toMillis()));
-
-        producer.flush();
-    }
-
     private void startProcessor() {
         runState = RunState.RUNNING;
 
@@ -317,16 +354,23 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
         consumerThreadName.set(Thread.currentThread().getName());
 
         int unCommittedRecCount = 0;
+        final boolean isPipelinedFlushEnabled = isPipelinedFlushEnabled();
+        adaptiveFlushController = buildAdaptiveFlushController().orElse(null);
+        memoryAccount = memoryBudget.openAccount();
 
         try {
             //loop forever unless the thread is processing is stopped from outside
             while (runState.equals(RunState.RUNNING) && !Thread.currentThread().isInterrupted()) {
                 try {
+                    checkForFailedFlush();
                     ConsumerRecords<StatEventKey, StatAggregate> records = kafkaConsumer.poll(getPollTimeoutMs());
+                    //a flush may have failed during a rebalance inside the poll
+                    checkForFailedFlush();
 
                     int recCount = records.count();
-                    //TODO should hook this in as a DropWiz metric
-                    msgCounter.add(recCount);
+                    metrics.markRecordsConsumed(recCount);
+                    updateConsumerLag(kafkaConsumer);
+                    updatePartitionLags(kafkaConsumer);
 
                     unCommittedRecCount += recCount;
                     LOGGER.ifDebugIsEnabled(() -> {
@@ -336,7 +380,9 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
                     if (!records.isEmpty()) {
                         initStatAggregator();
 
-                        for (ConsumerRecord<StatEventKey, StatAggregate> rec : records) {
+                        //add each partition's records to its own buffer within the aggregator
+                        for (TopicPartition topicPartition : records.partitions()) {
+                            for (ConsumerRecord<StatEventKey, StatAggregate> rec : records.records(topicPartition)) {
 //                            LOGGER.ifDebugIsEnabled(() -> {
 //
 //                                putEventsMap.computeIfPresent(rec.key(), (k, v) -> {
@@ -352,17 +398,35 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
 //                                putEventsMap.put(rec.key(), rec.value());
 //                            });
 
-                            statAggregator.add(rec.key(), rec.value());
-                            //record the latest consumed offsets for each partition
-                            latestPartitionOffsets.put(rec.partition(), rec.offset());
+                                statAggregator.add(topicPartition, rec.key(), rec.value());
+                                //record the latest consumed offsets for each partition
+                                latestPartitionOffsets.put(rec.partition(), rec.offset());
+                            }
                         }
 //                        LOGGER.debug("putEventsMap key count: {}", putEventsMap.size());
+                        //recorded in both modes as they are needed to resume the retained partitions after a rebalance
+                        recordBufferedOffsets(records);
+                        updateMemoryAccount();
                     }
 
-                    boolean flushHappened = flushAggregatorIfReady();
-                    if (flushHappened && unCommittedRecCount > 0) {
-                        kafkaConsumer.commitSync();
-                        unCommittedRecCount = 0;
+                    if (isPipelinedFlushEnabled) {
+                        //commit the offsets of the previous flush if it has finished
+                        if (inFlightFlush != null && inFlightFlush.isDone()) {
+                            awaitInFlightFlush(kafkaConsumer);
+                        }
+                        if (isFlushRequired()) {
+                            //only one flush in flight at once so wait for the previous one before handing off
+                            awaitInFlightFlush(kafkaConsumer);
+                            submitFlush();
+                            //the in flight flush now owns these records and will commit their offsets
+                            unCommittedRecCount = 0;
+                        }
+                    } else {
+                        boolean flushHappened = flushAggregatorIfReady();
+                        if (flushHappened && unCommittedRecCount > 0) {
+                            commitSync(kafkaConsumer);
+                            unCommittedRecCount = 0;
+                        }
                     }
                 } catch (Exception e) {
                     runState = RunState.STOPPED;
@@ -374,7 +438,11 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
             //clean up as we are shutting down this processor
             LOGGER.debug("Breaking out of consumer loop, runState {}, interrupted state {} on processor {}",
                     runState, Thread.currentThread().isInterrupted(), this);
-            cleanUp(kafkaConsumer, unCommittedRecCount);
+            try {
+                cleanUp(kafkaConsumer, unCommittedRecCount);
+            } finally {
+                memoryAccount.close();
+            }
         }
     }
 
@@ -416,17 +484,157 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
         }
     }
 
+    private void recordBufferedOffsets(final ConsumerRecords<StatEventKey, StatAggregate> records) {
+        for (TopicPartition topicPartition : records.partitions()) {
+            List<ConsumerRecord<StatEventKey, StatAggregate>> partitionRecords = records.records(topicPartition);
+            long lastOffset = partitionRecords.get(partitionRecords.size() - 1).offset();
+            //the committed offset is the offset of the next record to consume
+            bufferedOffsets.put(topicPartition, new OffsetAndMetadata(lastOffset + 1));
+        }
+    }
+
+    /**
+     * Hand the current statAggregator and its offsets off to the flush executor, leaving the consumer
+     * thread free to start filling a new statAggregator
+     */
+    private void submitFlush() {
+        final PartitionedStatAggregator aggregatorToFlush = statAggregator;
+        inFlightOffsets = bufferedOffsets;
+        statAggregator = null;
+        bufferedOffsets = new HashMap<>();
+        //the handed off buffer still counts against the budget until its flush completes
+        inFlightBytes = aggregatorToFlush.getRetainedBytes();
+
+        LOGGER.trace("Submitting flush of aggregator {} on processor {}", aggregatorToFlush, this);
+        inFlightFlush = CompletableFuture.runAsync(() -> {
+            try {
+                flushAggregator(aggregatorToFlush);
+            } finally {
+                //flushed or failed, either way nothing else will use this buffer
+                aggregatorToFlush.release();
+            }
+        }, flushExecutorService);
+    }
+
+    /**
+     * Block until any in flight flush has completed then commit the offsets for the records it contained.
+     * Must be called on the consumer thread.
+     */
+    private void awaitInFlightFlush(final KafkaConsumer<StatEventKey, StatAggregate> kafkaConsumer) {
+        if (inFlightFlush != null) {
+            final Map<TopicPartition, OffsetAndMetadata> offsetsToCommit = inFlightOffsets;
+            try {
+                inFlightFlush.join();
+            } catch (CompletionException | CancellationException e) {
+                hasFlushFailed = true;
+                throw new RuntimeException(String.format("Error flushing aggregator on processor %s", this), e);
+            } finally {
+                inFlightFlush = null;
+                inFlightOffsets = null;
+                inFlightBytes = 0;
+                updateMemoryAccount();
+            }
+            if (!offsetsToCommit.isEmpty()) {
+                LOGGER.trace("Committing offsets {} on processor {}", offsetsToCommit, this);
+                final Timer.Context context = metrics.getCommitTimer().time();
+                kafkaConsumer.commitSync(offsetsToCommit);
+                context.stop();
+            }
+        }
+    }
+
+    /**
+     * A flush that fails during a rebalance is thrown to the consumer's coordinator, which logs and swallows it.
+     * The consumer has also been positioned past the failed records, so the poll loop must stop before any later
+     * commit moves the committed offsets over them. Stopping without committing means they are consumed again.
+     */
+    private void checkForFailedFlush() {
+        if (hasFlushFailed) {
+            throw new RuntimeException(String.format(
+                    "A flush failed on processor %s, stopping without committing", this));
+        }
+    }
+
     private void initStatAggregator() {
         if (statAggregator == null) {
-            statAggregator = new StatAggregator(
-                    getMinBatchSize(),
+            statAggregator = new PartitionedStatAggregator(
+                    getEffectiveMinBatchSize(),
                     aggregationInterval,
-                    getFlushIntervalMs());
+                    getEffectiveFlushIntervalMs(),
+                    this::buildPartitionStatAggregator);
+        }
+    }
+
+    private StatAggregator buildPartitionStatAggregator() {
+        final int partitionBufferSize = getPartitionBufferSize();
+        if (isCascadeModeEnabled) {
+            //one level for this interval and each coarser interval
+            List<StatAggregator> levels = new ArrayList<>();
+            Optional<EventStoreTimeIntervalEnum> optInterval = Optional.of(aggregationInterval);
+            while (optInterval.isPresent()) {
+                levels.add(buildStatAggregator(optInterval.get(), partitionBufferSize));
+                optInterval = EventStoreTimeIntervalEnum.getNextBiggest(optInterval.get());
+            }
+            return new CascadingStatAggregator(
+                    partitionBufferSize,
+                    getEffectiveFlushIntervalMs(),
+                    levels);
+        } else {
+            return buildStatAggregator(aggregationInterval, partitionBufferSize);
+        }
+    }
+
+    /**
+     * The flush threshold is applied to the total across all partitions by the {@link PartitionedStatAggregator}
+     * so the minSize of each partition's buffer (and each of its cascade levels) only sets its initial capacity.
+     * Sizing them all to the full minBatchSize would pre-allocate (and count against the memory budget)
+     * partitions x levels times more than can ever be buffered, so each gets its share of minBatchSize instead.
+     */
+    private int getPartitionBufferSize() {
+        int partitionCount = Math.max(1, latestPartitionOffsets.size());
+        return Math.max(
+                Math.min(MIN_PARTITION_BUFFER_SIZE, getEffectiveMinBatchSize()),
+                getEffectiveMinBatchSize() / partitionCount);
+    }
+
+    private StatAggregator buildStatAggregator(final EventStoreTimeIntervalEnum interval, final int minSize) {
+        StatAggregator.BufferType bufferType = getBufferType();
+        switch (bufferType) {
+            case HEAP:
+                return new HashMapStatAggregator(
+                        minSize,
+                        interval,
+                        getEffectiveFlushIntervalMs());
+            case OFF_HEAP:
+                return new OffHeapStatAggregator(
+                        statisticType,
+                        minSize,
+                        interval,
+                        getEffectiveFlushIntervalMs(),
+                        getMaxEventIds());
+            default:
+                throw new IllegalArgumentException("Unexpected bufferType " + bufferType);
         }
     }
 
     private void cleanUp(KafkaConsumer<StatEventKey, StatAggregate> kafkaConsumer, int unCommittedRecCount) {
 
+        if (hasFlushFailed) {
+            //committing now would skip over the records in the failed flush so leave them to be re-consumed
+            LOGGER.error("A flush failed on processor {} so nothing will be flushed or committed", this);
+            if (statAggregator != null) {
+                statAggregator.release();
+                statAggregator = null;
+            }
+            if (kafkaConsumer != null) {
+                kafkaConsumer.close();
+            }
+            return;
+        }
+        if (kafkaConsumer != null) {
+            awaitInFlightFlush(kafkaConsumer);
+        }
+
         //force a flush of anything in the aggregator
         if (statAggregator != null) {
             LOGGER.debug("Forcing a flush of aggregator {} on processor {}", statAggregator, this);
@@ -435,7 +643,7 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
         if (kafkaConsumer != null) {
             if (unCommittedRecCount > 0) {
                 LOGGER.debug("Committing kafka offset on processor {}", this);
-                kafkaConsumer.commitSync();
+                commitSync(kafkaConsumer);
             }
             LOGGER.debug("Closing kafka consumer on processor {}", this);
             kafkaConsumer.close();
@@ -444,37 +652,197 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
 
     private boolean flushAggregatorIfReady() {
 
-        if (statAggregator != null && statAggregator.isReadyForFlush()) {
+        if (isFlushRequired()) {
             return flushAggregator();
         } else {
             return false;
         }
     }
 
+    /**
+     * @return True if the statAggregator is ready to flush based on its size/age or it needs to be flushed
+     * early because the global memory budget has been exceeded
+     */
+    private boolean isFlushRequired() {
+        if (statAggregator == null) {
+            return false;
+        } else if (statAggregator.isReadyForFlush()) {
+            return true;
+        } else if (memoryAccount != null && memoryAccount.shouldFlushEarly()) {
+            LOGGER.debug("Flushing early as memory budget {} exceeded, aggregator {} on processor {}",
+                    memoryBudget, statAggregator, this);
+            return true;
+        }
+        return false;
+    }
+
+    private void updateMemoryAccount() {
+        if (memoryAccount != null) {
+            long currentBytes = statAggregator == null ? 0 : statAggregator.getRetainedBytes();
+            memoryAccount.update(currentBytes + inFlightBytes);
+        }
+    }
+
     private boolean flushAggregator() {
+        boolean flushHappened = flushAggregator(statAggregator);
+        if (flushHappened) {
+            statAggregator.release();
+            //null the reference ready for new aggregates
+            statAggregator = null;
+            //the caller will commit all consumed offsets
+            bufferedOffsets.clear();
+            updateMemoryAccount();
+        }
+        return flushHappened;
+    }
+
+    private boolean flushAggregator(final PartitionedStatAggregator statAggregator) {
         //flush all the aggregated stats down to the StatStore and onto the next biggest aggregationInterval topic
         //(if there is one) for coarser aggregation
-        if (statAggregator != null) {
-            if (!statAggregator.isEmpty()) {
-                LOGGER.trace("Flushing aggregator {}", statAggregator);
+        final OptionalLong optStoreNanos = statAggregator == null
+                ? OptionalLong.empty()
+                : flushCoordinator.flush(statAggregator);
+        boolean flushHappened = optStoreNanos.isPresent();
+        if (flushHappened) {
+            metrics.markFlushed(statAggregator);
+        }
 
-                flushToStatStore(statisticType, statAggregator);
+        final AdaptiveFlushController controller = adaptiveFlushController;
+        if (flushHappened && controller != null) {
+            //the latency of this flush's store writes, so the controller reacts to the current flush size
+            double storeLatencyMs = (double) optStoreNanos.getAsLong() / TimeUnit.MILLISECONDS.toNanos(1);
+            controller.observe(statAggregator.getAggregationPercentage(), storeLatencyMs, consumerLag);
+            LOGGER.debug("Adjusted flush sizing to {} on processor {}", controller, this);
+        }
+        return flushHappened;
+    }
 
-                optNextInterval.ifPresent(nextInterval ->
-                        flushToTopic(statAggregator, optNextIntervalTopic.get(), nextInterval, kafkaProducer));
-                //null the reference ready for new aggregates
-                statAggregator = null;
+    private Optional<AdaptiveFlushController> buildAdaptiveFlushController() {
+        if (!stroomPropertyService.getBooleanProperty(PROP_KEY_ADAPTIVE_FLUSH_ENABLED, false)) {
+            return Optional.empty();
+        }
+        //The upper bound of the flush interval is the static value as the consumer's session timeout
+        //is derived from it
+        return Optional.of(new AdaptiveFlushController(
+                stroomPropertyService.getIntProperty(PROP_KEY_ADAPTIVE_FLUSH_MIN_BATCH_SIZE_LOWER_BOUND, 10_000),
+                stroomPropertyService.getIntProperty(PROP_KEY_ADAPTIVE_FLUSH_MIN_BATCH_SIZE_UPPER_BOUND, 2_000_000),
+                Math.min(getFlushIntervalMs(),
+                        stroomPropertyService.getIntProperty(PROP_KEY_ADAPTIVE_FLUSH_FLUSH_INTERVAL_MS_LOWER_BOUND, 2_000)),
+                getFlushIntervalMs(),
+                stroomPropertyService.getIntProperty(PROP_KEY_ADAPTIVE_FLUSH_TARGET_STORE_LATENCY_MS, 5_000),
+                getMinBatchSize(),
+                getFlushIntervalMs()));
+    }
+
+    private void updateConsumerLag(final KafkaConsumer<StatEventKey, StatAggregate> kafkaConsumer) {
+        if (recordsLagMaxMetric == null) {
+            //the consumer level metric (i.e. not the per topic one) for the max lag across all partitions
+            recordsLagMaxMetric = kafkaConsumer.metrics().entrySet().stream()
+                    .filter(entry -> entry.getKey().name().equals("records-lag-max"))
+                    .filter(entry -> !entry.getKey().tags().containsKey("topic"))
+                    .map(Map.Entry::getValue)
+                    .findFirst()
+                    .orElse(null);
+        }
+        if (recordsLagMaxMetric != null) {
+            double lag = recordsLagMaxMetric.value();
+            //the metric has no value until some records have been fetched
+            consumerLag = Double.isFinite(lag) ? lag : 0;
+        }
+    }
+
+    /**
+     * If enabled, periodically work out the lag of each assigned partition. This version of the client has no per
+     * partition lag metric or end offsets lookup, so the log end offsets are found by seeking to the end and the
+     * positions are then restored. Records already fetched for a restored position are still returned by the next
+     * poll. As this costs extra requests to the brokers it is off by default.
+     */
+    private void updatePartitionLags(final KafkaConsumer<StatEventKey, StatAggregate> kafkaConsumer) {
+        if (!stroomPropertyService.getBooleanProperty(PROP_KEY_PARTITION_LAG_ENABLED, false)) {
+            return;
+        }
+        final long nowMs = System.currentTimeMillis();
+        if (nowMs - lastPartitionLagUpdateMs < getPartitionLagUpdateIntervalMs()) {
+            return;
+        }
+        lastPartitionLagUpdateMs = nowMs;
 
-                return true;
+        final Set<TopicPartition> partitions = kafkaConsumer.assignment();
+        if (partitions.isEmpty()) {
+            return;
+        }
+        final Map<TopicPartition, Long> positions = new HashMap<>();
+        for (TopicPartition topicPartition : partitions) {
+            positions.put(topicPartition, kafkaConsumer.position(topicPartition));
+        }
+        try {
+            kafkaConsumer.seekToEnd(partitions);
+            for (TopicPartition topicPartition : partitions) {
+                long lag = kafkaConsumer.position(topicPartition) - positions.get(topicPartition);
+                partitionLags.put(topicPartition.partition(), Math.max(0, lag));
             }
+        } finally {
+            //must always be restored, else we would skip the records between the position and the end
+            positions.forEach(kafkaConsumer::seek);
         }
-        return false;
+        LOGGER.trace("Partition lags {} on processor {}", partitionLags, this);
+    }
+
+    /**
+     * Called by the consumer thread before a rebalance. Any in flight flush is completed and its offsets committed
+     * but the aggregates buffered since then are kept, as we don't know yet which partitions we will be keeping.
+     */
+    void onPartitionsRevoked(final KafkaConsumer<StatEventKey, StatAggregate> kafkaConsumer) {
+        //the offsets of the in flight flush must be committed while we still own its partitions. If it fails
+        //hasFlushFailed is set, and the poll loop will stop once the rebalance is over
+        awaitInFlightFlush(kafkaConsumer);
     }
 
-    void flush(final KafkaConsumer<StatEventKey, StatAggregate> kafkaConsumer) {
+    /**
+     * Called by the consumer thread after a rebalance. The buffered aggregates for any partitions we no longer
+     * own are dropped without being flushed. Their offsets were never committed so the new owner of each partition
+     * will consume and aggregate the same records. The partitions we have kept resume from the end of what is
+     * buffered rather than from their committed offsets.
+     */
+    void onPartitionsAssigned(final KafkaConsumer<StatEventKey, StatAggregate> kafkaConsumer,
+                              final Collection<TopicPartition> assignedPartitions) {
+
+        if (statAggregator != null) {
+            List<TopicPartition> lostPartitions = statAggregator.getPartitions().stream()
+                    .filter(topicPartition -> !assignedPartitions.contains(topicPartition))
+                    .collect(Collectors.toList());
+            int droppedInputCount = statAggregator.removePartitions(lostPartitions);
+            if (droppedInputCount > 0) {
+                LOGGER.info("Dropped {} buffered input records from lost partitions [{}] on processor {}",
+                        droppedInputCount,
+                        StatisticsAggregationRebalanceListener.extractPartitionsString(lostPartitions),
+                        this);
+            }
+            if (statAggregator.isEmpty()) {
+                statAggregator = null;
+            }
+        }
+        bufferedOffsets.keySet().retainAll(assignedPartitions);
+
+        //on rebalance the consumer's position is reset to the committed offset which would mean re-consuming
+        //the records we are already holding for the retained partitions
+        bufferedOffsets.forEach((topicPartition, offsetAndMetadata) -> {
+            LOGGER.debug("Seeking partition {} to buffered offset {} on processor {}",
+                    topicPartition, offsetAndMetadata.offset(), this);
+            kafkaConsumer.seek(topicPartition, offsetAndMetadata.offset());
+        });
+        updateMemoryAccount();
+        setAssignedPartitions(assignedPartitions);
+    }
 
-        flushAggregator();
+    /**
+     * Commit the offsets of all consumed records, timing how long it takes. Must be called on the consumer thread.
+     */
+    private void commitSync(final KafkaConsumer<StatEventKey, StatAggregate> kafkaConsumer) {
+        //only successful commits are timed
+        final Timer.Context context = metrics.getCommitTimer().time();
         kafkaConsumer.commitSync();
+        context.stop();
     }
 
 
@@ -550,9 +918,14 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
 //                .collect(Collectors.toList()));
 
         this.latestPartitionOffsets.clear();
+        this.partitionLags.clear();
         Preconditions.checkNotNull(assignedPartitions).stream()
                 .map(TopicPartition::partition)
-                .forEach(partition -> latestPartitionOffsets.put(partition, -1L));
+                .forEach(partition -> {
+                    latestPartitionOffsets.put(partition, -1L);
+                    partitionLags.put(partition, -1L);
+                });
+        metrics.setAssignedPartitions(latestPartitionOffsets.keySet(), latestPartitionOffsets, partitionLags);
     }
 
     @Override
@@ -618,7 +991,16 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
                 statAggregator == null
                         ? "-"
                         : Integer.toString(latestPartitionOffsets.size()));
-        statusMap.put("messageCounter", String.format("%,d", msgCounter.sum()));
+        statusMap.put("messageCounter", String.format("%,d", metrics.getRecordsConsumedCount()));
+        statusMap.put("cascadeMode", Boolean.toString(isCascadeModeEnabled));
+        statusMap.put("flushInFlight", Boolean.toString(inFlightFlush != null));
+        statusMap.put("retainedBytes",
+                memoryAccount == null
+                        ? "-"
+                        : String.format("%,d", memoryAccount.getBytes()));
+        statusMap.put("memoryBudget", memoryBudget.toString());
+        statusMap.put("flushTimings", flushCoordinator.getTimingsSummary());
+        statusMap.put("adaptiveFlush", adaptiveFlushController == null ? "disabled" : adaptiveFlushController.toString());
 
         String latestPartitionOffsetsString = latestPartitionOffsets.entrySet().stream()
                 .sorted(Comparator.comparing(Map.Entry::getKey))
@@ -633,6 +1015,10 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
         return instanceId;
     }
 
+    private int getPartitionLagUpdateIntervalMs() {
+        return stroomPropertyService.getIntProperty(PROP_KEY_PARTITION_LAG_UPDATE_INTERVAL_MS, 30_000);
+    }
+
     private int getPollTimeoutMs() {
         return stroomPropertyService.getIntProperty(PROP_KEY_AGGREGATOR_POLL_TIMEOUT_MS, 100);
     }
@@ -649,6 +1035,29 @@ public class StatisticsAggregationProcessor implements StatisticsProcessor {
         return stroomPropertyService.getIntProperty(PROP_KEY_AGGREGATOR_MAX_FLUSH_INTERVAL_MS, 60_000);
     }
 
+    private int getEffectiveMinBatchSize() {
+        final AdaptiveFlushController controller = adaptiveFlushController;
+        return controller != null ? controller.getMinBatchSize() : getMinBatchSize();
+    }
+
+    private long getEffectiveFlushIntervalMs() {
+        final AdaptiveFlushController controller = adaptiveFlushController;
+        return controller != null ? controller.getFlushIntervalMs() : getFlushIntervalMs();
+    }
+
+    private int getMaxEventIds() {
+        return stroomPropertyService.getIntProperty(StatAggregate.PROP_KEY_MAX_AGGREGATED_EVENT_IDS, Integer.MAX_VALUE);
+    }
+
+    private StatAggregator.BufferType getBufferType() {
+        return StatAggregator.BufferType.valueOf(stroomPropertyService.getProperty(
+                PROP_KEY_AGGREGATOR_BUFFER_TYPE, StatAggregator.BufferType.HEAP.name()));
+    }
+
+    private boolean isPipelinedFlushEnabled() {
+        return stroomPropertyService.getBooleanProperty(PROP_KEY_AGGREGATOR_PIPELINED_FLUSH, false);
+    }
+
     private String getAutoOffsetReset() {
         return stroomPropertyService.getProperty(StatisticsIngestService.PROP_KEY_KAFKA_AUTO_OFFSET_RESET, "latest");
     }
@@ -48,10 +48,10 @@ public class StatisticsAggregationRebalanceListener implements ConsumerRebalance
         LOGGER.debug(() -> String.format("Partitions being revoked from processor %s, current partitions [%s]",
                 statisticsAggregationProcessor, extractPartitionsString(partitions)));
 
-        //this consume is losing some of its partitions so flush everything we currently have in memory and commit the
-        //offsets.  In reality we only need to flush the partitions that we are losing but as rebalance events will
-        //be fairly infrequent it is simpler just to flush everything
-        statisticsAggregationProcessor.flush(kafkaConsumer);
+        //All partitions are revoked on every rebalance so we don't know yet which ones we are losing. The
+        //buffered aggregates are held on to and those for the lost partitions are dropped once the new
+        //assignment is known.
+        statisticsAggregationProcessor.onPartitionsRevoked(kafkaConsumer);
         //the assigned partitions will be recorded in the onPartitionsAssigned callback
     }
 
@@ -61,9 +61,9 @@ public class StatisticsAggregationRebalanceListener implements ConsumerRebalance
         LOGGER.debug(() -> String.format("Partitions being assigned to processor %s, new partitions [%s]",
                 statisticsAggregationProcessor, extractPartitionsString(partitions)));
 
-        //nothing to do here other than record the new partitions, the new partitions will
-        //just go into the aggregator as normal
-        statisticsAggregationProcessor.setAssignedPartitions(partitions);
+        //drop the aggregates of any partitions we have lost and record the new partitions, the new partitions
+        //will just go into the aggregator as normal
+        statisticsAggregationProcessor.onPartitionsAssigned(kafkaConsumer, partitions);
     }
 
     static String extractPartitionsString(final Collection<TopicPartition> partitions) {
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams.serde;
+
+import stroom.stats.api.MultiPartIdentifier;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.streams.aggregation.ValueAggregate;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact, fixed layout binary encoding of {@link StatAggregate} instances, used in place of
+ * Kryo's reflective serialisation. The layout is:
+ * <pre>
+ * [header: 1 byte][type tag: 1 byte][maxEventIds: varint][aggregate values][eventIds]
+ *
+ * COUNT values: [aggregatedCount: 8 bytes]
+ * VALUE values: [count: 4 bytes][aggregatedValue: 8 bytes][minValue: 8 bytes][maxValue: 8 bytes]
+ * eventIds:     [id count: varint]([part count: varint]([part type: 1 byte][part value])*)*
+ * </pre>
+ * Event ID parts are typically small longs (e.g. stream and event IDs) so Long/Integer parts are written as
+ * zig-zag varints, Strings as a varint length followed by UTF-8 bytes and all other types at their fixed width.
+ * The header byte always has its high bit set with the format version held in the low bits. Kryo's
+ * writeClassAndObject starts with the varint class registration ID, which for the small number of classes
+ * registered in {@link StatAggregateSerde} is always below 0x80, so the first byte is enough to tell the
+ * two formats apart.
+ */
+final class StatAggregateCodec {
+
+    static final byte FORMAT_VERSION = 1;
+
+    private static final int HEADER_FLAG = 0x80;
+    private static final int VERSION_MASK = 0x7F;
+    private static final byte HEADER = (byte) (HEADER_FLAG | FORMAT_VERSION);
+
+    private static final byte TYPE_TAG_COUNT = 1;
+    private static final byte TYPE_TAG_VALUE = 2;
+
+    private static final byte PART_TYPE_STRING = 1;
+    private static final byte PART_TYPE_LONG = 2;
+    private static final byte PART_TYPE_INTEGER = 3;
+    private static final byte PART_TYPE_DOUBLE = 4;
+    private static final byte PART_TYPE_FLOAT = 5;
+    private static final byte PART_TYPE_BIG_DECIMAL = 6;
+
+    private static final int COUNT_VALUES_LENGTH = Long.BYTES;
+    private static final int VALUE_VALUES_LENGTH = Integer.BYTES + (3 * Double.BYTES);
+
+    private StatAggregateCodec() {
+    }
+
+    /**
+     * @return True if bytes were written by this codec, false if they are in the legacy Kryo form
+     */
+    static boolean isCodecFormat(final byte[] bytes) {
+        return bytes.length > 0 && (bytes[0] & HEADER_FLAG) != 0;
+    }
+
+    /**
+     * @return The exact number of bytes {@link StatAggregateCodec#encode} will write for statAggregate
+     */
+    static int encodedLength(final StatAggregate statAggregate) {
+        int len = 2 + varIntLength(statAggregate.getMaxEventIds()) + valuesLength(statAggregate);
+
+        List<MultiPartIdentifier> eventIds = statAggregate.getEventIds();
+        len += varIntLength(eventIds.size());
+        for (MultiPartIdentifier eventId : eventIds) {
+            Object[] parts = eventId.getValue();
+            len += varIntLength(parts.length);
+            for (Object part : parts) {
+                len += 1 + partLength(part);
+            }
+        }
+        return len;
+    }
+
+    static byte[] encode(final StatAggregate statAggregate) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(encodedLength(statAggregate));
+        encode(statAggregate, byteBuffer);
+        return byteBuffer.array();
+    }
+
+    /**
+     * Write statAggregate into byteBuffer starting at its current position, which will be advanced
+     * by {@link StatAggregateCodec#encodedLength} bytes
+     */
+    static void encode(final StatAggregate statAggregate, final ByteBuffer byteBuffer) {
+        byteBuffer.put(HEADER);
+        if (statAggregate instanceof CountAggregate) {
+            byteBuffer.put(TYPE_TAG_COUNT);
+            putVarInt(byteBuffer, statAggregate.getMaxEventIds());
+            byteBuffer.putLong(((CountAggregate) statAggregate).getAggregatedCount());
+        } else if (statAggregate instanceof ValueAggregate) {
+            ValueAggregate valueAggregate = (ValueAggregate) statAggregate;
+            byteBuffer.put(TYPE_TAG_VALUE);
+            putVarInt(byteBuffer, statAggregate.getMaxEventIds());
+            byteBuffer.putInt(valueAggregate.getCount());
+            byteBuffer.putDouble(valueAggregate.getAggregatedValue());
+            byteBuffer.putDouble(valueAggregate.getMinValue());
+            byteBuffer.putDouble(valueAggregate.getMaxValue());
+        } else {
+            throw unsupportedAggregate(statAggregate);
+        }
+
+        List<MultiPartIdentifier> eventIds = statAggregate.getEventIds();
+        putVarInt(byteBuffer, eventIds.size());
+        for (MultiPartIdentifier eventId : eventIds) {
+            Object[] parts = eventId.getValue();
+            putVarInt(byteBuffer, parts.length);
+            for (Object part : parts) {
+                putPart(byteBuffer, part);
+            }
+        }
+    }
+
+    static StatAggregate decode(final byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Read a {@link StatAggregate} from byteBuffer starting at its current position
+     */
+    static StatAggregate decode(final ByteBuffer byteBuffer) {
+        try {
+            byte header = byteBuffer.get();
+            if ((header & HEADER_FLAG) == 0 || (header & VERSION_MASK) != FORMAT_VERSION) {
+                throw new IllegalArgumentException(String.format("Unsupported header byte %s", header));
+            }
+            byte typeTag = byteBuffer.get();
+            int maxEventIds = getVarInt(byteBuffer);
+
+            switch (typeTag) {
+                case TYPE_TAG_COUNT: {
+                    long aggregatedCount = byteBuffer.getLong();
+                    return new CountAggregate(getEventIds(byteBuffer), maxEventIds, aggregatedCount);
+                }
+                case TYPE_TAG_VALUE: {
+                    int count = byteBuffer.getInt();
+                    double aggregatedValue = byteBuffer.getDouble();
+                    double minValue = byteBuffer.getDouble();
+                    double maxValue = byteBuffer.getDouble();
+                    return new ValueAggregate(
+                            getEventIds(byteBuffer), maxEventIds, count, aggregatedValue, minValue, maxValue);
+                }
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown type tag %s", typeTag));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Buffer is too short to hold a StatAggregate", e);
+        }
+    }
+
+    private static int valuesLength(final StatAggregate statAggregate) {
+        if (statAggregate instanceof CountAggregate) {
+            return COUNT_VALUES_LENGTH;
+        } else if (statAggregate instanceof ValueAggregate) {
+            return VALUE_VALUES_LENGTH;
+        } else {
+            throw unsupportedAggregate(statAggregate);
+        }
+    }
+
+    private static List<MultiPartIdentifier> getEventIds(final ByteBuffer byteBuffer) {
+        int idCount = getVarInt(byteBuffer);
+        if (idCount == 0) {
+            return Collections.emptyList();
+        }
+        List<MultiPartIdentifier> eventIds = new ArrayList<>(idCount);
+        for (int i = 0; i < idCount; i++) {
+            Object[] parts = new Object[getVarInt(byteBuffer)];
+            for (int j = 0; j < parts.length; j++) {
+                parts[j] = getPart(byteBuffer);
+            }
+            eventIds.add(new MultiPartIdentifier(parts));
+        }
+        return eventIds;
+    }
+
+    private static int partLength(final Object part) {
+        if (part instanceof String) {
+            //a UTF-8 encoding is at most 3 bytes per char so worth the exact calculation to avoid over-allocating
+            int len = utf8Length((String) part);
+            return varIntLength(len) + len;
+        } else if (part instanceof Long) {
+            return varLongLength(zigZag((Long) part));
+        } else if (part instanceof Integer) {
+            return varIntLength(zigZag((Integer) part));
+        } else if (part instanceof Double) {
+            return Double.BYTES;
+        } else if (part instanceof Float) {
+            return Float.BYTES;
+        } else if (part instanceof BigDecimal) {
+            BigDecimal bigDecimal = (BigDecimal) part;
+            int len = bigDecimal.unscaledValue().bitLength() / 8 + 1;
+            return Integer.BYTES + varIntLength(len) + len;
+        } else {
+            throw unsupportedPart(part);
+        }
+    }
+
+    private static void putPart(final ByteBuffer byteBuffer, final Object part) {
+        if (part instanceof String) {
+            byte[] bytes = ((String) part).getBytes(StandardCharsets.UTF_8);
+            byteBuffer.put(PART_TYPE_STRING);
+            putVarInt(byteBuffer, bytes.length);
+            byteBuffer.put(bytes);
+        } else if (part instanceof Long) {
+            byteBuffer.put(PART_TYPE_LONG);
+            putVarLong(byteBuffer, zigZag((Long) part));
+        } else if (part instanceof Integer) {
+            byteBuffer.put(PART_TYPE_INTEGER);
+            putVarInt(byteBuffer, zigZag((Integer) part));
+        } else if (part instanceof Double) {
+            byteBuffer.put(PART_TYPE_DOUBLE);
+            byteBuffer.putDouble((Double) part);
+        } else if (part instanceof Float) {
+            byteBuffer.put(PART_TYPE_FLOAT);
+            byteBuffer.putFloat((Float) part);
+        } else if (part instanceof BigDecimal) {
+            BigDecimal bigDecimal = (BigDecimal) part;
+            byte[] unscaled = bigDecimal.unscaledValue().toByteArray();
+            byteBuffer.put(PART_TYPE_BIG_DECIMAL);
+            byteBuffer.putInt(bigDecimal.scale());
+            putVarInt(byteBuffer, unscaled.length);
+            byteBuffer.put(unscaled);
+        } else {
+            throw unsupportedPart(part);
+        }
+    }
+
+    private static Object getPart(final ByteBuffer byteBuffer) {
+        byte partType = byteBuffer.get();
+        switch (partType) {
+            case PART_TYPE_STRING: {
+                byte[] bytes = new byte[getVarInt(byteBuffer)];
+                byteBuffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            case PART_TYPE_LONG:
+                return unZigZag(getVarLong(byteBuffer));
+            case PART_TYPE_INTEGER:
+                return unZigZag(getVarInt(byteBuffer));
+            case PART_TYPE_DOUBLE:
+                return byteBuffer.getDouble();
+            case PART_TYPE_FLOAT:
+                return byteBuffer.getFloat();
+            case PART_TYPE_BIG_DECIMAL: {
+                int scale = byteBuffer.getInt();
+                byte[] unscaled = new byte[getVarInt(byteBuffer)];
+                byteBuffer.get(unscaled);
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            }
+            default:
+                throw new IllegalArgumentException(String.format("Unknown event ID part type %s", partType));
+        }
+    }
+
+    private static int utf8Length(final String str) {
+        int len = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < str.length()
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else {
+                //includes unpaired surrogates which the encoder replaces with the single byte '?'
+                len += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return len;
+    }
+
+    static int varIntLength(final int value) {
+        int len = 1;
+        int remaining = value >>> 7;
+        while (remaining != 0) {
+            len++;
+            remaining >>>= 7;
+        }
+        return len;
+    }
+
+    /**
+     * Write value as an unsigned LEB128 varint, 7 bits per byte, least significant group first
+     */
+    static void putVarInt(final ByteBuffer byteBuffer, final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            byteBuffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        byteBuffer.put((byte) remaining);
+    }
+
+    static int getVarInt(final ByteBuffer byteBuffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = byteBuffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint, more than 5 bytes");
+    }
+
+    static int varLongLength(final long value) {
+        int len = 1;
+        long remaining = value >>> 7;
+        while (remaining != 0) {
+            len++;
+            remaining >>>= 7;
+        }
+        return len;
+    }
+
+    static void putVarLong(final ByteBuffer byteBuffer, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            byteBuffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        byteBuffer.put((byte) remaining);
+    }
+
+    static long getVarLong(final ByteBuffer byteBuffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = byteBuffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint, more than 10 bytes");
+    }
+
+    /**
+     * Map signed values onto unsigned ones so small negative values also get a short varint
+     */
+    private static int zigZag(final int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int unZigZag(final int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static IllegalArgumentException unsupportedAggregate(final StatAggregate statAggregate) {
+        return new IllegalArgumentException(String.format("Unsupported StatAggregate type %s",
+                statAggregate.getClass().getName()));
+    }
+
+    private static IllegalArgumentException unsupportedPart(final Object part) {
+        return new IllegalArgumentException(String.format("The type %s for event ID part %s is not supported",
+                part == null ? "null" : part.getClass().getName(), part));
+    }
+}
@@ -40,6 +40,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Serde for {@link StatAggregate} values on the aggregation topics. Values are written using the compact
+ * {@link StatAggregateCodec}. Values written by Kryo (the previous serialisation) may still be sat on the
+ * topics, so these are detected by their first byte and read using Kryo.
+ */
 public class StatAggregateSerde implements Serde<StatAggregate>,
         Serializer<StatAggregate>,
         Deserializer<StatAggregate> {
@@ -101,6 +106,16 @@ public class StatAggregateSerde implements Serde<StatAggregate>,
      */
     @Override
     public byte[] serialize(String topic, StatAggregate statAggregate) {
+        if (statAggregate == null) {
+            return null;
+        }
+        return StatAggregateCodec.encode(statAggregate);
+    }
+
+    /**
+     * Serialize using the legacy Kryo form, only intended for testing and benchmarking backwards compatibility
+     */
+    byte[] serializeLegacy(StatAggregate statAggregate) {
         return pool.run(kryo -> {
             ByteArrayOutputStream stream = new ByteArrayOutputStream();
             Output output = new Output(stream);
@@ -119,6 +134,16 @@ public class StatAggregateSerde implements Serde<StatAggregate>,
      */
     @Override
     public StatAggregate deserialize(String topic, byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        if (StatAggregateCodec.isCodecFormat(bytes)) {
+            return StatAggregateCodec.decode(bytes);
+        }
+        return deserializeLegacy(bytes);
+    }
+
+    private StatAggregate deserializeLegacy(byte[] bytes) {
         return pool.run(kryo -> {
             Input input = new Input(bytes);
             return (StatAggregate) kryo.readClassAndObject(input);
@@ -22,6 +22,10 @@ package stroom.stats.streams.serde;
 import org.apache.kafka.common.serialization.Serde;
 import stroom.stats.streams.StatEventKey;
 
+/**
+ * Serde for {@link StatEventKey}. Neither direction copies the key bytes, the serializer hands over the
+ * backing array of the key and the deserializer wraps the consumer's array, see {@link StatEventKey#fromBytes(byte[])}
+ */
 public class StatEventKeySerde {
 
     private StatEventKeySerde() {
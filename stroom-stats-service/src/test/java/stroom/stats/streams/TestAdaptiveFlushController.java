@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestAdaptiveFlushController {
+
+    private static final int BATCH_LOWER = 1_000;
+    private static final int BATCH_UPPER = 100_000;
+    private static final long INTERVAL_LOWER = 1_000;
+    private static final long INTERVAL_UPPER = 60_000;
+    private static final long TARGET_LATENCY_MS = 500;
+
+    @Test
+    public void observe_highAggregation_grows() {
+        AdaptiveFlushController controller = buildController(10_000, 10_000);
+
+        controller.observe(90, 100, 0);
+
+        assertThat(controller.getMinBatchSize()).isEqualTo(12_500);
+        assertThat(controller.getFlushIntervalMs()).isEqualTo(12_500);
+    }
+
+    @Test
+    public void observe_lowAggregation_shrinks() {
+        AdaptiveFlushController controller = buildController(10_000, 10_000);
+
+        controller.observe(2, 100, 0);
+
+        assertThat(controller.getMinBatchSize()).isEqualTo(8_000);
+        assertThat(controller.getFlushIntervalMs()).isEqualTo(8_000);
+    }
+
+    @Test
+    public void observe_moderateAggregation_unchanged() {
+        AdaptiveFlushController controller = buildController(10_000, 10_000);
+
+        controller.observe(30, 100, 0);
+
+        assertThat(controller.getMinBatchSize()).isEqualTo(10_000);
+        assertThat(controller.getFlushIntervalMs()).isEqualTo(10_000);
+    }
+
+    @Test
+    public void observe_slowStore_shrinksBatchEvenWithHighAggregation() {
+        AdaptiveFlushController controller = buildController(10_000, 10_000);
+
+        controller.observe(90, TARGET_LATENCY_MS + 1, 1_000);
+
+        assertThat(controller.getMinBatchSize()).isEqualTo(8_000);
+        assertThat(controller.getFlushIntervalMs()).isEqualTo(10_000);
+    }
+
+    @Test
+    public void observe_growingLag_growsBatch() {
+        AdaptiveFlushController controller = buildController(10_000, 10_000);
+
+        controller.observe(30, 100, 1_000);
+        assertThat(controller.getMinBatchSize()).isEqualTo(12_500);
+
+        //lag has stopped growing so back to the aggregation rules
+        controller.observe(30, 100, 1_000);
+        assertThat(controller.getMinBatchSize()).isEqualTo(12_500);
+        assertThat(controller.getFlushIntervalMs()).isEqualTo(10_000);
+    }
+
+    @Test
+    public void observe_growingLag_lowAggregation_shrinks() {
+        AdaptiveFlushController controller = buildController(10_000, 10_000);
+
+        //no point buffering more if it doesn't reduce anything
+        controller.observe(2, 100, 1_000);
+
+        assertThat(controller.getMinBatchSize()).isEqualTo(8_000);
+    }
+
+    @Test
+    public void observe_clampedToBounds() {
+        AdaptiveFlushController controller = buildController(10_000, 10_000);
+
+        for (int i = 0; i < 100; i++) {
+            controller.observe(99, 100, 0);
+        }
+        assertThat(controller.getMinBatchSize()).isEqualTo(BATCH_UPPER);
+        assertThat(controller.getFlushIntervalMs()).isEqualTo(INTERVAL_UPPER);
+
+        for (int i = 0; i < 100; i++) {
+            controller.observe(0, 100, 0);
+        }
+        assertThat(controller.getMinBatchSize()).isEqualTo(BATCH_LOWER);
+        assertThat(controller.getFlushIntervalMs()).isEqualTo(INTERVAL_LOWER);
+    }
+
+    @Test
+    public void initialValues_clamped() {
+        AdaptiveFlushController controller = buildController(1, 1_000_000);
+
+        assertThat(controller.getMinBatchSize()).isEqualTo(BATCH_LOWER);
+        assertThat(controller.getFlushIntervalMs()).isEqualTo(INTERVAL_UPPER);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBounds() {
+        new AdaptiveFlushController(100, 10, INTERVAL_LOWER, INTERVAL_UPPER, TARGET_LATENCY_MS, 50, 5_000);
+    }
+
+    private AdaptiveFlushController buildController(final int initialBatchSize, final long initialFlushIntervalMs) {
+        return new AdaptiveFlushController(
+                BATCH_LOWER,
+                BATCH_UPPER,
+                INTERVAL_LOWER,
+                INTERVAL_UPPER,
+                TARGET_LATENCY_MS,
+                initialBatchSize,
+                initialFlushIntervalMs);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestAggregationMemoryBudget {
+
+    @Test
+    public void update_tracksTotal() {
+        AggregationMemoryBudget budget = new AggregationMemoryBudget(1_000);
+        AggregationMemoryBudget.Account account1 = budget.openAccount();
+        AggregationMemoryBudget.Account account2 = budget.openAccount();
+
+        account1.update(300);
+        account2.update(200);
+        assertThat(budget.getUsedBytes()).isEqualTo(500);
+
+        account1.update(100);
+        assertThat(budget.getUsedBytes()).isEqualTo(300);
+        assertThat(budget.isOverBudget()).isFalse();
+    }
+
+    @Test
+    public void shouldFlushEarly_onlyAboveFairShare() {
+        AggregationMemoryBudget budget = new AggregationMemoryBudget(1_000);
+        AggregationMemoryBudget.Account bigAccount = budget.openAccount();
+        AggregationMemoryBudget.Account smallAccount = budget.openAccount();
+        AggregationMemoryBudget.Account emptyAccount = budget.openAccount();
+
+        bigAccount.update(900);
+        smallAccount.update(50);
+        assertThat(bigAccount.shouldFlushEarly()).isFalse();
+
+        smallAccount.update(200);
+        assertThat(budget.isOverBudget()).isTrue();
+        //fair share is 1100/3
+        assertThat(bigAccount.shouldFlushEarly()).isTrue();
+        assertThat(smallAccount.shouldFlushEarly()).isFalse();
+        assertThat(emptyAccount.shouldFlushEarly()).isFalse();
+
+        //big account flushes so we are back under budget
+        bigAccount.update(0);
+        assertThat(budget.isOverBudget()).isFalse();
+        assertThat(smallAccount.shouldFlushEarly()).isFalse();
+    }
+
+    @Test
+    public void close_releasesBytes() {
+        AggregationMemoryBudget budget = new AggregationMemoryBudget(1_000);
+        AggregationMemoryBudget.Account account1 = budget.openAccount();
+        AggregationMemoryBudget.Account account2 = budget.openAccount();
+
+        account1.update(1_500);
+        account2.update(100);
+
+        account1.close();
+        account1.close();
+
+        assertThat(budget.getUsedBytes()).isEqualTo(100);
+        assertThat(budget.isOverBudget()).isFalse();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void update_closedAccount() {
+        AggregationMemoryBudget.Account account = new AggregationMemoryBudget(1_000).openAccount();
+        account.close();
+        account.update(10);
+    }
+}
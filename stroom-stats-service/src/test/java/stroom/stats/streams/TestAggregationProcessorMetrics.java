@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.junit.Test;
+import org.mockito.Mockito;
+import stroom.stats.api.StatisticType;
+import stroom.stats.api.StatisticsService;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.serde.StatAggregateSerde;
+import stroom.stats.streams.serde.StatEventKeySerde;
+import stroom.stats.test.StatEventKeyHelper;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestAggregationProcessorMetrics {
+
+    private static final String PREFIX = "stroom.stats.aggregation.COUNT.MINUTE.instance-1.";
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    @Test
+    public void register() {
+        buildMetrics();
+
+        assertThat(metricRegistry.getNames()).contains(
+                PREFIX + "recordsConsumed",
+                PREFIX + "aggregationRatio",
+                PREFIX + "bufferSizeAtFlush",
+                PREFIX + "commit",
+                PREFIX + "consumerLagMax",
+                PREFIX + "flush",
+                PREFIX + "flush.statStore",
+                PREFIX + "flush.topic");
+        assertThat(metricRegistry.getGauges().get(PREFIX + "consumerLagMax").getValue()).isEqualTo(123.0);
+    }
+
+    @Test
+    public void register_replacesExisting() {
+        buildMetrics().markRecordsConsumed(10);
+
+        AggregationProcessorMetrics metrics = buildMetrics();
+
+        assertThat(metrics.getRecordsConsumedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void markFlushed() {
+        AggregationProcessorMetrics metrics = buildMetrics();
+        StatAggregator statAggregator = new HashMapStatAggregator(10, EventStoreTimeIntervalEnum.MINUTE, 10_000);
+        LocalDateTime time = LocalDateTime.of(2017, 2, 27, 10, 0);
+        for (int i = 0; i < 4; i++) {
+            //4 inputs into 2 aggregates
+            statAggregator.add(
+                    StatEventKeyHelper.buildStatKey(time.plusMinutes(i % 2), EventStoreTimeIntervalEnum.MINUTE),
+                    new CountAggregate(1L));
+        }
+
+        metrics.markFlushed(statAggregator);
+
+        assertThat(metricRegistry.getGauges().get(PREFIX + "aggregationRatio").getValue()).isEqualTo(2.0);
+        assertThat(metricRegistry.getHistograms().get(PREFIX + "bufferSizeAtFlush").getSnapshot().getMax())
+                .isEqualTo(2);
+        assertThat(metricRegistry.getMeters().get(PREFIX + "recordsFlushed").getCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void setAssignedPartitions() {
+        AggregationProcessorMetrics metrics = buildMetrics();
+        Map<Integer, Long> latestPartitionOffsets = new HashMap<>();
+        latestPartitionOffsets.put(0, 10L);
+        Map<Integer, Long> partitionLags = new HashMap<>();
+        partitionLags.put(0, 5L);
+
+        metrics.setAssignedPartitions(Arrays.asList(0, 1), latestPartitionOffsets, partitionLags);
+
+        Gauge<?> gauge = metricRegistry.getGauges().get(PREFIX + "partition-0.latestConsumedOffset");
+        assertThat(gauge.getValue()).isEqualTo(10L);
+        latestPartitionOffsets.put(0, 20L);
+        assertThat(gauge.getValue()).isEqualTo(20L);
+        assertThat(metricRegistry.getGauges().get(PREFIX + "partition-1.latestConsumedOffset").getValue())
+                .isEqualTo(-1L);
+
+        Gauge<?> lagGauge = metricRegistry.getGauges().get(PREFIX + "partition-0.lag");
+        assertThat(lagGauge.getValue()).isEqualTo(5L);
+        partitionLags.put(0, 2L);
+        assertThat(lagGauge.getValue()).isEqualTo(2L);
+        assertThat(metricRegistry.getGauges().get(PREFIX + "partition-1.lag").getValue()).isEqualTo(-1L);
+
+        metrics.setAssignedPartitions(Collections.singletonList(1), latestPartitionOffsets, partitionLags);
+
+        assertThat(metricRegistry.getGauges()).doesNotContainKey(PREFIX + "partition-0.latestConsumedOffset");
+        assertThat(metricRegistry.getGauges()).doesNotContainKey(PREFIX + "partition-0.lag");
+        assertThat(metricRegistry.getGauges()).containsKey(PREFIX + "partition-1.latestConsumedOffset");
+        assertThat(metricRegistry.getGauges()).containsKey(PREFIX + "partition-1.lag");
+    }
+
+    @Test
+    public void remove() {
+        buildMetrics().remove();
+
+        assertThat(metricRegistry.getNames()).isEmpty();
+    }
+
+    private AggregationProcessorMetrics buildMetrics() {
+        FlushCoordinator flushCoordinator = new FlushCoordinator(
+                Mockito.mock(StatisticsService.class),
+                StatisticType.COUNT,
+                new MockProducer<>(
+                        true, StatEventKeySerde.instance().serializer(), StatAggregateSerde.instance().serializer()),
+                Optional.empty(),
+                Optional.empty(),
+                Runnable::run);
+        return new AggregationProcessorMetrics(
+                metricRegistry,
+                StatisticType.COUNT,
+                EventStoreTimeIntervalEnum.MINUTE,
+                1,
+                flushCoordinator,
+                () -> 123.0);
+    }
+}
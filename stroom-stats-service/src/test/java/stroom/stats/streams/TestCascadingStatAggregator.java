@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import org.junit.Test;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.streams.aggregation.ValueAggregate;
+import stroom.stats.test.StatEventKeyHelper;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestCascadingStatAggregator {
+
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2017, 2, 27, 10, 2, 0);
+
+    @Test
+    public void add_count() {
+        CascadingStatAggregator statAggregator = buildAggregator();
+
+        //10 minutes within the same hour
+        IntStream.range(0, 10).forEach(i -> statAggregator.add(
+                StatEventKeyHelper.buildStatKey(BASE_TIME.plusMinutes(i), EventStoreTimeIntervalEnum.MINUTE),
+                new CountAggregate(5L)));
+
+        Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> aggregatesByInterval =
+                statAggregator.getAggregatesByInterval();
+
+        assertThat(aggregatesByInterval).containsOnlyKeys(
+                EventStoreTimeIntervalEnum.MINUTE,
+                EventStoreTimeIntervalEnum.HOUR,
+                EventStoreTimeIntervalEnum.DAY,
+                EventStoreTimeIntervalEnum.FOREVER);
+        assertThat(aggregatesByInterval.get(EventStoreTimeIntervalEnum.MINUTE)).hasSize(10);
+        assertThat(aggregatesByInterval.get(EventStoreTimeIntervalEnum.MINUTE).values())
+                .allSatisfy(aggregate -> assertThat(((CountAggregate) aggregate).getAggregatedCount()).isEqualTo(5L));
+
+        Arrays.asList(EventStoreTimeIntervalEnum.HOUR, EventStoreTimeIntervalEnum.DAY, EventStoreTimeIntervalEnum.FOREVER)
+                .forEach(interval -> {
+                    Map<StatEventKey, StatAggregate> aggregates = aggregatesByInterval.get(interval);
+                    assertThat(aggregates).hasSize(1);
+                    StatEventKey statEventKey = aggregates.keySet().iterator().next();
+                    assertThat(statEventKey.getInterval()).isEqualTo(interval);
+                    assertThat(statEventKey.getTimeMs()).isEqualTo(interval.truncateTimeToColumnInterval(
+                            StatEventKeyHelper.buildStatKey(BASE_TIME, EventStoreTimeIntervalEnum.MINUTE).getTimeMs()));
+                    assertThat(((CountAggregate) aggregates.get(statEventKey)).getAggregatedCount()).isEqualTo(50L);
+                });
+
+        assertThat(statAggregator.size()).isEqualTo(13);
+        assertThat(statAggregator.getAggregates()).hasSize(13);
+        assertThat(statAggregator.getInputCount()).isEqualTo(10);
+        assertThat(statAggregator.getAggregationPercentage()).isEqualTo(0);
+    }
+
+    @Test
+    public void add_value() {
+        CascadingStatAggregator statAggregator = buildAggregator();
+
+        StatEventKey statEventKey = StatEventKeyHelper.buildStatKey(BASE_TIME, EventStoreTimeIntervalEnum.MINUTE);
+        statAggregator.add(statEventKey, new ValueAggregate(Collections.emptyList(), 10, 2.0));
+        statAggregator.add(statEventKey, new ValueAggregate(Collections.emptyList(), 10, 4.0));
+
+        //the same aggregate instance must not be aggregated by more than one level
+        statAggregator.getAggregatesByInterval().forEach((interval, aggregates) -> {
+            assertThat(aggregates).hasSize(1);
+            ValueAggregate valueAggregate = (ValueAggregate) aggregates.values().iterator().next();
+            assertThat(valueAggregate.getCount()).isEqualTo(2);
+            assertThat(valueAggregate.getAggregatedValue()).isEqualTo(6.0);
+            assertThat(valueAggregate.getMinValue()).isEqualTo(2.0);
+            assertThat(valueAggregate.getMaxValue()).isEqualTo(4.0);
+        });
+        assertThat(statAggregator.getAggregationPercentage()).isEqualTo(50);
+    }
+
+    @Test
+    public void getAggregates_resetByAdd() {
+        CascadingStatAggregator statAggregator = buildAggregator();
+        statAggregator.add(
+                StatEventKeyHelper.buildStatKey(BASE_TIME, EventStoreTimeIntervalEnum.MINUTE),
+                new CountAggregate(1L));
+        assertThat(statAggregator.getAggregates()).hasSize(4);
+
+        statAggregator.add(
+                StatEventKeyHelper.buildStatKey(BASE_TIME.plusDays(1), EventStoreTimeIntervalEnum.MINUTE),
+                new CountAggregate(1L));
+        //new minute, hour and day but the same forever
+        assertThat(statAggregator.getAggregates()).hasSize(7);
+    }
+
+    @Test
+    public void isReadyForFlush_usesTotalSize() {
+        CascadingStatAggregator statAggregator = buildAggregator();
+        statAggregator.add(
+                StatEventKeyHelper.buildStatKey(BASE_TIME, EventStoreTimeIntervalEnum.MINUTE),
+                new CountAggregate(1L));
+        assertThat(statAggregator.isReadyForFlush()).isFalse();
+
+        statAggregator.add(
+                StatEventKeyHelper.buildStatKey(BASE_TIME.plusMinutes(1), EventStoreTimeIntervalEnum.MINUTE),
+                new CountAggregate(1L));
+        assertThat(statAggregator.isReadyForFlush()).isTrue();
+    }
+
+    @Test
+    public void getRetainedBytes() {
+        CascadingStatAggregator statAggregator = buildAggregator();
+        long emptyBytes = statAggregator.getRetainedBytes();
+        statAggregator.add(
+                StatEventKeyHelper.buildStatKey(BASE_TIME, EventStoreTimeIntervalEnum.MINUTE),
+                new CountAggregate(1L));
+        assertThat(statAggregator.getRetainedBytes()).isGreaterThan(emptyBytes);
+    }
+
+    @Test
+    public void constructor_gapInLevels() {
+        assertThatThrownBy(() -> new CascadingStatAggregator(4, 10_000, Arrays.asList(
+                new HashMapStatAggregator(4, EventStoreTimeIntervalEnum.MINUTE, 10_000),
+                new HashMapStatAggregator(4, EventStoreTimeIntervalEnum.DAY, 10_000))))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private CascadingStatAggregator buildAggregator() {
+        return new CascadingStatAggregator(4, 10_000, Arrays.asList(
+                new HashMapStatAggregator(4, EventStoreTimeIntervalEnum.MINUTE, 10_000),
+                new HashMapStatAggregator(4, EventStoreTimeIntervalEnum.HOUR, 10_000),
+                new HashMapStatAggregator(4, EventStoreTimeIntervalEnum.DAY, 10_000),
+                new HashMapStatAggregator(4, EventStoreTimeIntervalEnum.FOREVER, 10_000)));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import stroom.stats.api.StatisticType;
+import stroom.stats.api.StatisticsService;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.streams.serde.StatAggregateSerde;
+import stroom.stats.streams.serde.StatEventKeySerde;
+import stroom.stats.test.StatEventKeyHelper;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestFlushCoordinator {
+
+    private static final EventStoreTimeIntervalEnum INTERVAL = EventStoreTimeIntervalEnum.MINUTE;
+    private static final String NEXT_TOPIC = "nextTopic";
+
+    private final StatisticsService mockStatisticsService = Mockito.mock(StatisticsService.class);
+    private final MockProducer<StatEventKey, StatAggregate> mockProducer = new MockProducer<>(
+            true, StatEventKeySerde.instance().serializer(), StatAggregateSerde.instance().serializer());
+    private final ExecutorService sinkExecutor = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setup() {
+        //the mock would otherwise return a null future, so use the default implementation which delegates to
+        //the blocking putAggregatedEvents that the tests stub and verify
+        Mockito.when(mockStatisticsService.putAggregatedEventsAsync(Mockito.any(), Mockito.any(), Mockito.anyMap()))
+                .thenCallRealMethod();
+    }
+
+    @After
+    public void tearDown() {
+        sinkExecutor.shutdownNow();
+    }
+
+    @Test
+    public void flush_bothSinks() {
+        FlushCoordinator flushCoordinator = buildCoordinator(Optional.of(EventStoreTimeIntervalEnum.HOUR));
+        StatAggregator statAggregator = buildAggregator(3);
+
+        OptionalLong optStoreNanos = flushCoordinator.flush(statAggregator);
+
+        assertThat(optStoreNanos.isPresent()).isTrue();
+        Mockito.verify(mockStatisticsService).putAggregatedEvents(
+                StatisticType.COUNT, INTERVAL, statAggregator.getAggregates());
+
+        List<ProducerRecord<StatEventKey, StatAggregate>> records = mockProducer.history();
+        assertThat(records).hasSize(3);
+        assertThat(records).allSatisfy(record -> {
+            assertThat(record.topic()).isEqualTo(NEXT_TOPIC);
+            assertThat(record.key().getInterval()).isEqualTo(EventStoreTimeIntervalEnum.HOUR);
+        });
+
+        assertThat(flushCoordinator.getFlushTimer().getCount()).isEqualTo(1);
+        assertThat(flushCoordinator.getStatStoreTimer().getCount()).isEqualTo(1);
+        assertThat(flushCoordinator.getTopicTimer().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void flush_noNextInterval() {
+        FlushCoordinator flushCoordinator = buildCoordinator(Optional.empty());
+
+        flushCoordinator.flush(buildAggregator(2));
+
+        Mockito.verify(mockStatisticsService).putAggregatedEvents(
+                Mockito.eq(StatisticType.COUNT), Mockito.eq(INTERVAL), Mockito.anyMap());
+        assertThat(mockProducer.history()).isEmpty();
+        assertThat(flushCoordinator.getTopicTimer().getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void flush_cascade() {
+        FlushCoordinator flushCoordinator = buildCoordinator(Optional.empty());
+        StatAggregator statAggregator = new CascadingStatAggregator(100, 10_000, Arrays.asList(
+                new HashMapStatAggregator(100, INTERVAL, 10_000),
+                new HashMapStatAggregator(100, EventStoreTimeIntervalEnum.HOUR, 10_000),
+                new HashMapStatAggregator(100, EventStoreTimeIntervalEnum.DAY, 10_000),
+                new HashMapStatAggregator(100, EventStoreTimeIntervalEnum.FOREVER, 10_000)));
+        statAggregator.add(
+                StatEventKeyHelper.buildStatKey(LocalDateTime.of(2017, 2, 27, 10, 0), INTERVAL),
+                new CountAggregate(1L));
+
+        flushCoordinator.flush(statAggregator);
+
+        statAggregator.getAggregatesByInterval().forEach((interval, aggregates) ->
+                Mockito.verify(mockStatisticsService).putAggregatedEvents(StatisticType.COUNT, interval, aggregates));
+        Mockito.verify(mockStatisticsService, Mockito.times(4)).putAggregatedEventsAsync(
+                Mockito.any(), Mockito.any(), Mockito.anyMap());
+        Mockito.verifyNoMoreInteractions(mockStatisticsService);
+        assertThat(flushCoordinator.getStatStoreTimer().getCount()).isEqualTo(4);
+        assertThat(mockProducer.history()).isEmpty();
+    }
+
+    @Test
+    public void flush_returnsStoreTime() {
+        Mockito.doAnswer(invocation -> {
+            Thread.sleep(50);
+            return null;
+        }).when(mockStatisticsService).putAggregatedEvents(Mockito.any(), Mockito.any(), Mockito.anyMap());
+        FlushCoordinator flushCoordinator = buildCoordinator(Optional.empty());
+
+        OptionalLong optStoreNanos = flushCoordinator.flush(buildAggregator(2));
+
+        //the time of this flush's store write rather than anything derived from the timer
+        assertThat(optStoreNanos.getAsLong()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void flush_empty() {
+        FlushCoordinator flushCoordinator = buildCoordinator(Optional.of(EventStoreTimeIntervalEnum.HOUR));
+
+        assertThat(flushCoordinator.flush(buildAggregator(0)).isPresent()).isFalse();
+
+        Mockito.verifyZeroInteractions(mockStatisticsService);
+        assertThat(mockProducer.history()).isEmpty();
+    }
+
+    @Test
+    public void flush_sinksRunConcurrently() throws Exception {
+        //the stat store write blocks until the topic sink has started sending, which would never
+        //happen if the sinks were run one after the other
+        CountDownLatch topicStartedLatch = new CountDownLatch(1);
+        MockProducer<StatEventKey, StatAggregate> latchingProducer = new MockProducer<StatEventKey, StatAggregate>(
+                true, StatEventKeySerde.instance().serializer(), StatAggregateSerde.instance().serializer()) {
+            @Override
+            public synchronized Future<RecordMetadata> send(
+                    final ProducerRecord<StatEventKey, StatAggregate> record) {
+                topicStartedLatch.countDown();
+                return super.send(record);
+            }
+        };
+        Mockito.doAnswer(invocation -> {
+            assertThat(topicStartedLatch.await(5, TimeUnit.SECONDS)).isTrue();
+            return null;
+        }).when(mockStatisticsService).putAggregatedEvents(Mockito.any(), Mockito.any(), Mockito.anyMap());
+
+        FlushCoordinator flushCoordinator = new FlushCoordinator(
+                mockStatisticsService,
+                StatisticType.COUNT,
+                latchingProducer,
+                Optional.of(EventStoreTimeIntervalEnum.HOUR),
+                Optional.of(NEXT_TOPIC),
+                sinkExecutor);
+
+        flushCoordinator.flush(buildAggregator(1));
+
+        assertThat(latchingProducer.history()).hasSize(1);
+    }
+
+    @Test
+    public void flush_statStoreFails() {
+        Mockito.doThrow(new RuntimeException("HBase down"))
+                .when(mockStatisticsService).putAggregatedEvents(Mockito.any(), Mockito.any(), Mockito.anyMap());
+        FlushCoordinator flushCoordinator = buildCoordinator(Optional.of(EventStoreTimeIntervalEnum.HOUR));
+
+        assertThatThrownBy(() -> flushCoordinator.flush(buildAggregator(2)))
+                .hasMessageContaining("HBase down");
+        assertThat(flushCoordinator.getFlushTimer().getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void flush_cascadeStatStoresWrittenConcurrently() throws Exception {
+        //none of the stat store writes complete until all of them have been started
+        List<CompletableFuture<Void>> writeFutures = new CopyOnWriteArrayList<>();
+        Mockito.doAnswer(invocation -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            writeFutures.add(future);
+            if (writeFutures.size() == 4) {
+                writeFutures.forEach(writeFuture -> writeFuture.complete(null));
+            }
+            return future;
+        }).when(mockStatisticsService).putAggregatedEventsAsync(Mockito.any(), Mockito.any(), Mockito.anyMap());
+        FlushCoordinator flushCoordinator = buildCoordinator(Optional.empty());
+        StatAggregator statAggregator = new CascadingStatAggregator(100, 10_000, Arrays.asList(
+                new HashMapStatAggregator(100, INTERVAL, 10_000),
+                new HashMapStatAggregator(100, EventStoreTimeIntervalEnum.HOUR, 10_000),
+                new HashMapStatAggregator(100, EventStoreTimeIntervalEnum.DAY, 10_000),
+                new HashMapStatAggregator(100, EventStoreTimeIntervalEnum.FOREVER, 10_000)));
+        statAggregator.add(
+                StatEventKeyHelper.buildStatKey(LocalDateTime.of(2017, 2, 27, 10, 0), INTERVAL),
+                new CountAggregate(1L));
+
+        assertThat(flushCoordinator.flush(statAggregator).isPresent()).isTrue();
+
+        assertThat(writeFutures).hasSize(4);
+        assertThat(flushCoordinator.getStatStoreTimer().getCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void flush_asyncStatStoreFails() {
+        CompletableFuture<Void> failedWrite = new CompletableFuture<>();
+        failedWrite.completeExceptionally(new RuntimeException("Region server down"));
+        Mockito.doReturn(failedWrite)
+                .when(mockStatisticsService).putAggregatedEventsAsync(Mockito.any(), Mockito.any(), Mockito.anyMap());
+        FlushCoordinator flushCoordinator = buildCoordinator(Optional.of(EventStoreTimeIntervalEnum.HOUR));
+
+        assertThatThrownBy(() -> flushCoordinator.flush(buildAggregator(2)))
+                .hasMessageContaining("Region server down");
+        assertThat(flushCoordinator.getFlushTimer().getCount()).isEqualTo(0);
+        assertThat(flushCoordinator.getStatStoreTimer().getCount()).isEqualTo(0);
+    }
+
+    private FlushCoordinator buildCoordinator(final Optional<EventStoreTimeIntervalEnum> optNextInterval) {
+        return new FlushCoordinator(
+                mockStatisticsService,
+                StatisticType.COUNT,
+                mockProducer,
+                optNextInterval,
+                optNextInterval.map(interval -> NEXT_TOPIC),
+                sinkExecutor);
+    }
+
+    private StatAggregator buildAggregator(final int keyCount) {
+        StatAggregator statAggregator = new HashMapStatAggregator(100, INTERVAL, 10_000);
+        LocalDateTime baseTime = LocalDateTime.of(2017, 2, 27, 10, 0);
+        for (int i = 0; i < keyCount; i++) {
+            statAggregator.add(
+                    StatEventKeyHelper.buildStatKey(baseTime.plusMinutes(i), INTERVAL),
+                    new CountAggregate(1L));
+        }
+        return statAggregator;
+    }
+}
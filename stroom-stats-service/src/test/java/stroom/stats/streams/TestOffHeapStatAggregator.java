@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import stroom.stats.api.MultiPartIdentifier;
+import stroom.stats.api.StatisticType;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.streams.aggregation.ValueAggregate;
+import stroom.stats.test.StatEventKeyHelper;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+public class TestOffHeapStatAggregator {
+
+    private static final EventStoreTimeIntervalEnum AGGREGATION_INTERVAL = EventStoreTimeIntervalEnum.MINUTE;
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2016, 2, 15, 10, 2, 0);
+
+    @Test
+    public void add_count_singleOutputAggregate() throws Exception {
+        StatAggregator statAggregator = new OffHeapStatAggregator(
+                StatisticType.COUNT, 10, AGGREGATION_INTERVAL, 10_000, 10);
+        long statValue = 10L;
+        int loopSize = 10;
+        IntStream.rangeClosed(1, loopSize).forEach(i -> {
+            StatEventKey statEventKey = StatEventKeyHelper.buildStatKey(BASE_TIME.plusSeconds(i), AGGREGATION_INTERVAL);
+            statAggregator.add(statEventKey, new CountAggregate(statValue));
+        });
+
+        Assertions.assertThat(statAggregator.size()).isEqualTo(1);
+        Assertions.assertThat(statAggregator.getInputCount()).isEqualTo(loopSize);
+
+        Map<StatEventKey, StatAggregate> aggregatedEvents = statAggregator.getAggregates();
+
+        Assertions.assertThat(aggregatedEvents).hasSize(1);
+        Assertions.assertThat(aggregatedEvents.keySet().iterator().next())
+                .isEqualTo(StatEventKeyHelper.buildStatKey(BASE_TIME, AGGREGATION_INTERVAL));
+        CountAggregate countAggregate = (CountAggregate) aggregatedEvents.values().iterator().next();
+        Assertions.assertThat(countAggregate.getAggregatedCount()).isEqualTo(loopSize * statValue);
+    }
+
+    @Test
+    public void add_value_singleOutputAggregate() throws Exception {
+        StatAggregator statAggregator = new OffHeapStatAggregator(
+                StatisticType.VALUE, 10, AGGREGATION_INTERVAL, 10_000, 10);
+        int loopSize = 10;
+        IntStream.rangeClosed(1, loopSize).forEach(i -> {
+            StatEventKey statEventKey = StatEventKeyHelper.buildStatKey(BASE_TIME.plusSeconds(i), AGGREGATION_INTERVAL);
+            statAggregator.add(statEventKey, new ValueAggregate(i * 1.5));
+        });
+
+        Map<StatEventKey, StatAggregate> aggregatedEvents = statAggregator.getAggregates();
+
+        Assertions.assertThat(aggregatedEvents).hasSize(1);
+        ValueAggregate valueAggregate = (ValueAggregate) aggregatedEvents.values().iterator().next();
+        Assertions.assertThat(valueAggregate.getCount()).isEqualTo(loopSize);
+        Assertions.assertThat(valueAggregate.getAggregatedValue()).isEqualTo(82.5);
+        Assertions.assertThat(valueAggregate.getMinValue()).isEqualTo(1.5);
+        Assertions.assertThat(valueAggregate.getMaxValue()).isEqualTo(15.0);
+    }
+
+    @Test
+    public void add_manyKeys_matchesHashMapAggregator() throws Exception {
+        //more keys than the initial table size to force the index and arena to grow
+        int keyCount = 100_000;
+        StatAggregator offHeapAggregator = new OffHeapStatAggregator(
+                StatisticType.COUNT, 10, AGGREGATION_INTERVAL, 10_000, 10);
+        StatAggregator heapAggregator = new HashMapStatAggregator(10, AGGREGATION_INTERVAL, 10_000);
+
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < keyCount; i++) {
+                StatEventKey statEventKey = StatEventKeyHelper.buildStatKey(BASE_TIME.plusMinutes(i), AGGREGATION_INTERVAL);
+                offHeapAggregator.add(statEventKey, new CountAggregate(i));
+                heapAggregator.add(statEventKey, new CountAggregate(i));
+            }
+        }
+
+        Assertions.assertThat(offHeapAggregator.size()).isEqualTo(keyCount);
+        Assertions.assertThat(offHeapAggregator.getAggregationPercentage())
+                .isEqualTo(heapAggregator.getAggregationPercentage());
+        Assertions.assertThat(offHeapAggregator.getAggregates()).isEqualTo(heapAggregator.getAggregates());
+    }
+
+    @Test
+    public void add_eventIds_limitedToMax() throws Exception {
+        int maxEventIds = 3;
+        StatAggregator statAggregator = new OffHeapStatAggregator(
+                StatisticType.COUNT, 10, AGGREGATION_INTERVAL, 10_000, maxEventIds);
+        StatEventKey statEventKey = StatEventKeyHelper.buildStatKey(BASE_TIME, AGGREGATION_INTERVAL);
+
+        statAggregator.add(statEventKey, new CountAggregate(Collections.emptyList(), maxEventIds, 1));
+        statAggregator.add(statEventKey, new CountAggregate(
+                Arrays.asList(new MultiPartIdentifier(1L), new MultiPartIdentifier(2L)), maxEventIds, 1));
+        statAggregator.add(statEventKey, new CountAggregate(
+                Arrays.asList(new MultiPartIdentifier(3L), new MultiPartIdentifier(4L)), maxEventIds, 1));
+
+        StatAggregate statAggregate = statAggregator.getAggregates().get(statEventKey);
+
+        Assertions.assertThat(((CountAggregate) statAggregate).getAggregatedCount()).isEqualTo(3);
+        Assertions.assertThat(statAggregate.getEventIds()).containsExactly(
+                new MultiPartIdentifier(1L), new MultiPartIdentifier(2L), new MultiPartIdentifier(3L));
+    }
+
+    @Test
+    public void getRetainedBytes() throws Exception {
+        StatAggregator statAggregator = new OffHeapStatAggregator(
+                StatisticType.COUNT, 10, AGGREGATION_INTERVAL, 10_000, 10);
+        StatEventKey statEventKey = StatEventKeyHelper.buildStatKey(BASE_TIME, AGGREGATION_INTERVAL);
+
+        //the direct buffers are allocated up front
+        long initialBytes = statAggregator.getRetainedBytes();
+        Assertions.assertThat(initialBytes).isGreaterThan(0);
+
+        statAggregator.add(statEventKey, new CountAggregate(1L));
+        Assertions.assertThat(statAggregator.getRetainedBytes()).isEqualTo(initialBytes);
+
+        statAggregator.add(statEventKey, new CountAggregate(
+                Arrays.asList(new MultiPartIdentifier(1L), new MultiPartIdentifier(2L)), 10, 1));
+        long bytesAfterEventIds = statAggregator.getRetainedBytes();
+        Assertions.assertThat(bytesAfterEventIds).isGreaterThan(initialBytes);
+
+        statAggregator.add(statEventKey, new CountAggregate(
+                Collections.singletonList(new MultiPartIdentifier("abc")), 10, 1));
+        Assertions.assertThat(statAggregator.getRetainedBytes()).isGreaterThan(bytesAfterEventIds);
+    }
+
+    @Test
+    public void release() throws Exception {
+        StatAggregator statAggregator = new OffHeapStatAggregator(
+                StatisticType.COUNT, 10, AGGREGATION_INTERVAL, 10_000, 10);
+        StatEventKey statEventKey = StatEventKeyHelper.buildStatKey(BASE_TIME, AGGREGATION_INTERVAL);
+        statAggregator.add(statEventKey, new CountAggregate(1L));
+        Map<StatEventKey, StatAggregate> aggregates = statAggregator.getAggregates();
+
+        statAggregator.release();
+        //safe to call again
+        statAggregator.release();
+
+        Assertions.assertThat(statAggregator.getRetainedBytes()).isEqualTo(0);
+        //the aggregates built before the release are still available
+        Assertions.assertThat(statAggregator.getAggregates()).isSameAs(aggregates);
+        Assertions.assertThatThrownBy(() -> statAggregator.add(statEventKey, new CountAggregate(1L)))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void add_wrongAggregateType() throws Exception {
+        StatAggregator statAggregator = new OffHeapStatAggregator(
+                StatisticType.COUNT, 10, AGGREGATION_INTERVAL, 10_000, 10);
+
+        statAggregator.add(StatEventKeyHelper.buildStatKey(BASE_TIME, AGGREGATION_INTERVAL), new ValueAggregate(1.0));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.streams;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import stroom.stats.shared.EventStoreTimeIntervalEnum;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.test.StatEventKeyHelper;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.offset;
+
+public class TestPartitionedStatAggregator {
+
+    private static final EventStoreTimeIntervalEnum INTERVAL = EventStoreTimeIntervalEnum.MINUTE;
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2017, 2, 27, 10, 2, 0);
+    private static final TopicPartition PARTITION_0 = new TopicPartition("topic", 0);
+    private static final TopicPartition PARTITION_1 = new TopicPartition("topic", 1);
+
+    @Test
+    public void add() {
+        PartitionedStatAggregator statAggregator = buildAggregator();
+
+        statAggregator.add(PARTITION_0, buildKey(0), new CountAggregate(1L));
+        statAggregator.add(PARTITION_0, buildKey(0), new CountAggregate(1L));
+        statAggregator.add(PARTITION_1, buildKey(1), new CountAggregate(1L));
+
+        assertThat(statAggregator.getPartitions()).containsOnly(PARTITION_0, PARTITION_1);
+        assertThat(statAggregator.size()).isEqualTo(2);
+        assertThat(statAggregator.getInputCount()).isEqualTo(3);
+        assertThat(statAggregator.getAggregationPercentage()).isCloseTo(100 - (2 / 3.0 * 100), offset(0.0001));
+        assertThat(statAggregator.getAggregatesByInterval()).containsOnlyKeys(INTERVAL);
+        assertThat(getAggregates(statAggregator)).hasSize(2);
+        assertThat(((CountAggregate) getAggregates(statAggregator).get(buildKey(0))).getAggregatedCount())
+                .isEqualTo(2L);
+    }
+
+    @Test
+    public void add_wrongInterval() {
+        PartitionedStatAggregator statAggregator = new PartitionedStatAggregator(2, INTERVAL, 10_000, () ->
+                new HashMapStatAggregator(2, EventStoreTimeIntervalEnum.HOUR, 10_000));
+
+        assertThatThrownBy(() -> statAggregator.add(PARTITION_0, buildKey(0), new CountAggregate(1L)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void getAggregates_sameKeyOnTwoPartitions() {
+        PartitionedStatAggregator statAggregator = buildAggregator();
+        statAggregator.add(PARTITION_0, buildKey(0), new CountAggregate(1L));
+        statAggregator.add(PARTITION_1, buildKey(0), new CountAggregate(2L));
+
+        Map<StatEventKey, StatAggregate> aggregates = getAggregates(statAggregator);
+
+        assertThat(aggregates).hasSize(1);
+        assertThat(((CountAggregate) aggregates.get(buildKey(0))).getAggregatedCount()).isEqualTo(3L);
+
+        //the partition aggregates must not have been mutated so a rebuild gives the same answer
+        statAggregator.add(PARTITION_1, buildKey(1), new CountAggregate(1L));
+        assertThat(((CountAggregate) getAggregates(statAggregator).get(buildKey(0))).getAggregatedCount())
+                .isEqualTo(3L);
+    }
+
+    @Test
+    public void removePartitions() {
+        PartitionedStatAggregator statAggregator = buildAggregator();
+        statAggregator.add(PARTITION_0, buildKey(0), new CountAggregate(1L));
+        statAggregator.add(PARTITION_0, buildKey(1), new CountAggregate(1L));
+        statAggregator.add(PARTITION_1, buildKey(2), new CountAggregate(1L));
+        assertThat(getAggregates(statAggregator)).hasSize(3);
+        long retainedBytes = statAggregator.getRetainedBytes();
+
+        int droppedInputCount = statAggregator.removePartitions(
+                Arrays.asList(PARTITION_0, new TopicPartition("topic", 99)));
+
+        assertThat(droppedInputCount).isEqualTo(2);
+        assertThat(statAggregator.getPartitions()).containsOnly(PARTITION_1);
+        assertThat(getAggregates(statAggregator)).containsOnlyKeys(buildKey(2));
+        assertThat(statAggregator.getInputCount()).isEqualTo(1);
+        assertThat(statAggregator.getRetainedBytes()).isLessThan(retainedBytes);
+
+        statAggregator.removePartitions(Collections.singletonList(PARTITION_1));
+        assertThat(statAggregator.isEmpty()).isTrue();
+        assertThat(statAggregator.getAggregationPercentage()).isEqualTo(0);
+    }
+
+    @Test
+    public void isReadyForFlush_usesTotalSize() {
+        PartitionedStatAggregator statAggregator = buildAggregator();
+        statAggregator.add(PARTITION_0, buildKey(0), new CountAggregate(1L));
+        statAggregator.add(PARTITION_1, buildKey(1), new CountAggregate(1L));
+        assertThat(statAggregator.isReadyForFlush()).isFalse();
+
+        statAggregator.add(PARTITION_1, buildKey(2), new CountAggregate(1L));
+        assertThat(statAggregator.isReadyForFlush()).isTrue();
+    }
+
+    @Test
+    public void cascadingPartitions() {
+        PartitionedStatAggregator statAggregator = new PartitionedStatAggregator(100, INTERVAL, 10_000, () ->
+                new CascadingStatAggregator(100, 10_000, Arrays.asList(
+                        new HashMapStatAggregator(100, INTERVAL, 10_000),
+                        new HashMapStatAggregator(100, EventStoreTimeIntervalEnum.HOUR, 10_000))));
+        statAggregator.add(PARTITION_0, buildKey(0), new CountAggregate(1L));
+        statAggregator.add(PARTITION_1, buildKey(1), new CountAggregate(1L));
+
+        Map<EventStoreTimeIntervalEnum, Map<StatEventKey, StatAggregate>> aggregatesByInterval =
+                statAggregator.getAggregatesByInterval();
+
+        assertThat(aggregatesByInterval.get(INTERVAL)).hasSize(2);
+        //both minutes are in the same hour
+        assertThat(aggregatesByInterval.get(EventStoreTimeIntervalEnum.HOUR)).hasSize(1);
+        assertThat(((CountAggregate) aggregatesByInterval.get(EventStoreTimeIntervalEnum.HOUR).values()
+                .iterator().next()).getAggregatedCount()).isEqualTo(2L);
+    }
+
+    private PartitionedStatAggregator buildAggregator() {
+        //the partition buffers are sized to a share of the total, which is what the flush threshold applies to
+        return new PartitionedStatAggregator(2, INTERVAL, 10_000, () ->
+                new HashMapStatAggregator(1, INTERVAL, 10_000));
+    }
+
+    private static Map<StatEventKey, StatAggregate> getAggregates(final PartitionedStatAggregator statAggregator) {
+        return statAggregator.getAggregatesByInterval().getOrDefault(INTERVAL, Collections.emptyMap());
+    }
+
+    private static StatEventKey buildKey(final int minuteOffset) {
+        return StatEventKeyHelper.buildStatKey(BASE_TIME.plusMinutes(minuteOffset), INTERVAL);
+    }
+}
@@ -22,6 +22,7 @@ package stroom.stats.streams;
 import javaslang.Tuple2;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
+import stroom.stats.api.MultiPartIdentifier;
 import stroom.stats.shared.EventStoreTimeIntervalEnum;
 import stroom.stats.streams.aggregation.CountAggregate;
 import stroom.stats.streams.aggregation.StatAggregate;
@@ -29,6 +30,7 @@ import stroom.stats.test.StatEventKeyHelper;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -41,7 +43,7 @@ public class TestStatAggregator {
 
         LocalDateTime baseTime = LocalDateTime.of(2016, 2, 15, 10, 2, 0);
         EventStoreTimeIntervalEnum aggregationInterval = EventStoreTimeIntervalEnum.MINUTE;
-                StatAggregator statAggregator = new StatAggregator(10, aggregationInterval, 10_000);
+                StatAggregator statAggregator = new HashMapStatAggregator(10, aggregationInterval, 10_000);
         long statValue = 10L;
         int loopSize = 10;
         IntStream.rangeClosed(1,loopSize).forEach(i -> {
@@ -70,7 +72,7 @@ public class TestStatAggregator {
         LocalDateTime baseTime1 = LocalDateTime.of(2016, 2, 15, 10, 2, 0);
         LocalDateTime baseTime2 = baseTime1.plusMinutes(1);
         EventStoreTimeIntervalEnum aggregationInterval = EventStoreTimeIntervalEnum.MINUTE;
-        StatAggregator statAggregator = new StatAggregator(10, aggregationInterval, 10_000);
+        StatAggregator statAggregator = new HashMapStatAggregator(10, aggregationInterval, 10_000);
         long statValue1 = 10L;
         long statValue2 = 20L;
         int loopSize = 10;
@@ -107,4 +109,38 @@ public class TestStatAggregator {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void getRetainedBytes() throws Exception {
+        LocalDateTime baseTime = LocalDateTime.of(2016, 2, 15, 10, 2, 0);
+        EventStoreTimeIntervalEnum aggregationInterval = EventStoreTimeIntervalEnum.MINUTE;
+        StatAggregator statAggregator = new HashMapStatAggregator(10, aggregationInterval, 10_000);
+        StatEventKey statEventKey = StatEventKeyHelper.buildStatKey(baseTime, aggregationInterval);
+
+        Assertions.assertThat(statAggregator.getRetainedBytes()).isEqualTo(0);
+
+        statAggregator.add(statEventKey, new CountAggregate(1L));
+        long bytesAfterFirstKey = statAggregator.getRetainedBytes();
+        Assertions.assertThat(bytesAfterFirstKey).isGreaterThan(0);
+
+        //same key with no event IDs so nothing more retained
+        statAggregator.add(statEventKey, new CountAggregate(1L));
+        Assertions.assertThat(statAggregator.getRetainedBytes()).isEqualTo(bytesAfterFirstKey);
+
+        //event IDs are retained
+        statAggregator.add(statEventKey, new CountAggregate(
+                Arrays.asList(new MultiPartIdentifier(1L, 2L), new MultiPartIdentifier(3L, 4L)), 10, 1));
+        long bytesAfterEventIds = statAggregator.getRetainedBytes();
+        Assertions.assertThat(bytesAfterEventIds).isGreaterThan(bytesAfterFirstKey);
+
+        //more event IDs on the same key
+        statAggregator.add(statEventKey, new CountAggregate(
+                Arrays.asList(new MultiPartIdentifier(5L, 6L)), 10, 1));
+        long bytesAfterThirdEventId = statAggregator.getRetainedBytes();
+        Assertions.assertThat(bytesAfterThirdEventId).isGreaterThan(bytesAfterEventIds);
+
+        //a new key
+        statAggregator.add(StatEventKeyHelper.buildStatKey(baseTime.plusMinutes(1), aggregationInterval),
+                new CountAggregate(1L));
+        Assertions.assertThat(statAggregator.getRetainedBytes()).isGreaterThan(bytesAfterThirdEventId);
+    }
+}
@@ -221,4 +221,50 @@ public class TestStatEventKey {
         Assertions.assertThat(statEventKey.equalsIntervalPart(interval2)).isFalse();
     }
 
+    @Test
+    public void fromBytes_wrapsWithoutCopying() throws Exception {
+
+        StatEventKey statEventKey = buildStatKey();
+        byte[] bytesCopy = Arrays.copyOf(statEventKey.getBytes(), statEventKey.getBytes().length);
+
+        StatEventKey statEventKey2 = StatEventKey.fromBytes(bytesCopy);
+
+        Assertions.assertThat(statEventKey2.getBytes()).isSameAs(bytesCopy);
+        Assertions.assertThat(statEventKey2).isEqualTo(statEventKey);
+        Assertions.assertThat(statEventKey2.hashCode()).isEqualTo(statEventKey.hashCode());
+        Assertions.assertThat(statEventKey2.compareTo(statEventKey)).isEqualTo(0);
+        Assertions.assertThat(statEventKey2.getTagValues()).isEqualTo(statEventKey.getTagValues());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromBytes_invalidLength() throws Exception {
+
+        byte[] bytes = buildStatKey().getBytes();
+
+        StatEventKey.fromBytes(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test
+    public void cloneAndChangeInterval_originalUnchanged() throws Exception {
+
+        StatEventKey statEventKey = StatEventKey.fromBytes(buildStatKey().getBytes().clone());
+        byte[] originalBytes = statEventKey.getBytes().clone();
+
+        StatEventKey statEventKey2 = statEventKey.cloneAndChangeInterval(EventStoreTimeIntervalEnum.HOUR);
+
+        Assertions.assertThat(statEventKey.getBytes()).isEqualTo(originalBytes);
+        Assertions.assertThat(statEventKey2.getBytes()).hasSameSizeAs(originalBytes);
+        Assertions.assertThat(statEventKey2).isNotEqualTo(statEventKey);
+
+        //the same as building the key from its parts
+        StatEventKey expectedStatEventKey = new StatEventKey(
+                statEventKey.getStatUuid(),
+                statEventKey.getRollupMask(),
+                EventStoreTimeIntervalEnum.HOUR,
+                statEventKey.getTimeMs(),
+                statEventKey.getTagValues());
+        Assertions.assertThat(statEventKey2).isEqualTo(expectedStatEventKey);
+        Assertions.assertThat(statEventKey2.hashCode()).isEqualTo(expectedStatEventKey.hashCode());
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package stroom.stats.streams.serde;
+
+import org.junit.Test;
+import stroom.stats.api.MultiPartIdentifier;
+import stroom.stats.streams.aggregation.CountAggregate;
+import stroom.stats.streams.aggregation.StatAggregate;
+import stroom.stats.streams.aggregation.ValueAggregate;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestStatAggregateCodec {
+
+    @Test
+    public void encodeDecode_count() {
+        CountAggregate countAggregate = new CountAggregate(
+                Arrays.asList(new MultiPartIdentifier("id1", 1L), new MultiPartIdentifier("id2", 2L)),
+                5,
+                Long.MAX_VALUE);
+
+        StatAggregate decoded = encodeDecode(countAggregate);
+
+        assertThat(decoded).isEqualTo(countAggregate);
+        assertThat(((CountAggregate) decoded).getAggregatedCount()).isEqualTo(Long.MAX_VALUE);
+        assertThat(decoded.getMaxEventIds()).isEqualTo(5);
+    }
+
+    @Test
+    public void encodeDecode_value() {
+        ValueAggregate valueAggregate = new ValueAggregate(Collections.emptyList(), 100, 7, 70.5, -1.25, 30.0);
+
+        ValueAggregate decoded = (ValueAggregate) encodeDecode(valueAggregate);
+
+        assertThat(decoded).isEqualTo(valueAggregate);
+        assertThat(decoded.getCount()).isEqualTo(7);
+        assertThat(decoded.getAggregatedValue()).isEqualTo(70.5);
+        assertThat(decoded.getMinValue()).isEqualTo(-1.25);
+        assertThat(decoded.getMaxValue()).isEqualTo(30.0);
+        assertThat(decoded.getMaxEventIds()).isEqualTo(100);
+    }
+
+    @Test
+    public void encodeDecode_allPartTypes() {
+        List<MultiPartIdentifier> eventIds = new ArrayList<>();
+        eventIds.add(new MultiPartIdentifier("ascii", "café € 😀", ""));
+        eventIds.add(new MultiPartIdentifier(Long.MIN_VALUE, Long.MAX_VALUE, -1L, Integer.MIN_VALUE, 3, -1.5D, 2.5F));
+        eventIds.add(new MultiPartIdentifier(new BigDecimal("-12345678901234567890.123"), BigDecimal.ZERO));
+        CountAggregate countAggregate = new CountAggregate(eventIds, Integer.MAX_VALUE, 1);
+
+        assertThat(encodeDecode(countAggregate)).isEqualTo(countAggregate);
+    }
+
+    @Test
+    public void encodedLength_matchesBytesWritten() {
+        List<MultiPartIdentifier> eventIds = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            eventIds.add(new MultiPartIdentifier("idé" + i, (long) i));
+        }
+        ValueAggregate valueAggregate = new ValueAggregate(eventIds, 1000, 1.0);
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(StatAggregateCodec.encodedLength(valueAggregate) + 10);
+        StatAggregateCodec.encode(valueAggregate, byteBuffer);
+
+        assertThat(byteBuffer.position()).isEqualTo(StatAggregateCodec.encodedLength(valueAggregate));
+    }
+
+    @Test
+    public void encode_fixedLayout() {
+        byte[] bytes = StatAggregateCodec.encode(new CountAggregate(Collections.emptyList(), 10, 3));
+
+        //header, type tag, maxEventIds varint, long count, eventId count varint
+        assertThat(bytes).hasSize(1 + 1 + 1 + 8 + 1);
+        assertThat(StatAggregateCodec.isCodecFormat(bytes)).isTrue();
+        assertThat(bytes[0] & 0x7F).isEqualTo(StatAggregateCodec.FORMAT_VERSION);
+    }
+
+    @Test
+    public void varInt_roundTrip() {
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1};
+        for (int value : values) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(5);
+            StatAggregateCodec.putVarInt(byteBuffer, value);
+            assertThat(byteBuffer.position()).isEqualTo(StatAggregateCodec.varIntLength(value));
+            byteBuffer.flip();
+            assertThat(StatAggregateCodec.getVarInt(byteBuffer)).isEqualTo(value);
+        }
+    }
+
+    @Test
+    public void varLong_roundTrip() {
+        long[] values = {0, 1, 127, 128, Integer.MAX_VALUE + 1L, Long.MAX_VALUE, -1};
+        for (long value : values) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(10);
+            StatAggregateCodec.putVarLong(byteBuffer, value);
+            assertThat(byteBuffer.position()).isEqualTo(StatAggregateCodec.varLongLength(value));
+            byteBuffer.flip();
+            assertThat(StatAggregateCodec.getVarLong(byteBuffer)).isEqualTo(value);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_unknownVersion() {
+        byte[] bytes = StatAggregateCodec.encode(new CountAggregate(1));
+        bytes[0] = (byte) (0x80 | (StatAggregateCodec.FORMAT_VERSION + 1));
+        StatAggregateCodec.decode(bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_truncated() {
+        byte[] bytes = StatAggregateCodec.encode(new CountAggregate(1));
+        StatAggregateCodec.decode(Arrays.copyOf(bytes, bytes.length - 3));
+    }
+
+    private StatAggregate encodeDecode(final StatAggregate statAggregate) {
+        byte[] bytes = StatAggregateCodec.encode(statAggregate);
+        assertThat(bytes).hasSize(StatAggregateCodec.encodedLength(statAggregate));
+        return StatAggregateCodec.decode(bytes);
+    }
+}
@@ -30,6 +30,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 public class TestStatAggregateSerde {
 
     /**
@@ -87,4 +89,54 @@ public class TestStatAggregateSerde {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void deserialize_legacyKryoCount() throws Exception {
+        StatAggregateSerde statAggregateSerde = StatAggregateSerde.instance();
+
+        List<MultiPartIdentifier> identifiers = new ArrayList<>();
+        identifiers.add(new MultiPartIdentifier("StringId1", 123L));
+        CountAggregate countAggregate = new CountAggregate(identifiers, 10, 42);
+
+        byte[] legacyBytes = statAggregateSerde.serializeLegacy(countAggregate);
+        assertThat(StatAggregateCodec.isCodecFormat(legacyBytes)).isFalse();
+
+        StatAggregate statAggregate = statAggregateSerde.deserialize("topic", legacyBytes);
+        assertThat(statAggregate).isEqualTo(countAggregate);
+        assertThat(statAggregate.getMaxEventIds()).isEqualTo(10);
+    }
+
+    @Test
+    public void deserialize_legacyKryoValue() throws Exception {
+        StatAggregateSerde statAggregateSerde = StatAggregateSerde.instance();
+
+        ValueAggregate valueAggregate = new ValueAggregate(Collections.emptyList(), 10, 42.5);
+        valueAggregate.aggregate(new ValueAggregate(1.5));
+
+        byte[] legacyBytes = statAggregateSerde.serializeLegacy(valueAggregate);
+        assertThat(StatAggregateCodec.isCodecFormat(legacyBytes)).isFalse();
+
+        assertThat(statAggregateSerde.deserialize("topic", legacyBytes)).isEqualTo(valueAggregate);
+    }
+
+    @Test
+    public void serialize_smallerThanLegacy() throws Exception {
+        StatAggregateSerde statAggregateSerde = StatAggregateSerde.instance();
+
+        List<MultiPartIdentifier> identifiers = new ArrayList<>();
+        identifiers.add(new MultiPartIdentifier("StringId1", 123L));
+        identifiers.add(new MultiPartIdentifier("StringId2", 456L));
+        ValueAggregate valueAggregate = new ValueAggregate(identifiers, 10, 42.5);
+
+        byte[] bytes = statAggregateSerde.serialize("topic", valueAggregate);
+        assertThat(StatAggregateCodec.isCodecFormat(bytes)).isTrue();
+        assertThat(bytes.length).isLessThan(statAggregateSerde.serializeLegacy(valueAggregate).length);
+    }
+
+    @Test
+    public void serializeDeserialize_null() throws Exception {
+        StatAggregateSerde statAggregateSerde = StatAggregateSerde.instance();
+
+        assertThat(statAggregateSerde.serialize("topic", null)).isNull();
+        assertThat(statAggregateSerde.deserialize("topic", null)).isNull();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.structure;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A partial aggregate of any number of event store cells, i.e. the count of the values along with their sum,
+ * minimum and maximum. Partials for the same group can be merged in any order, so each region server can
+ * reduce the cells it holds to partials and the client only has to merge the partials of each region,
+ * see {@link PartialAggregator}.
+ *
+ * For COUNT statistics the count and sum both hold the total of the counts and the min/max are not used.
+ *
+ * Partials are sent between the region server and the client as a fixed length byte[] of the form
+ * <count as a long><sum as a double><min as a double><max as a double>
+ */
+public class AggregatePartial {
+
+    public static final int BYTE_ARRAY_LENGTH = Long.BYTES + (Double.BYTES * 3);
+
+    private long count = 0;
+    private double sum = 0;
+    //NaN until a min/max has been seen
+    private double minValue = Double.NaN;
+    private double maxValue = Double.NaN;
+
+    public AggregatePartial() {
+    }
+
+    private AggregatePartial(final long count, final double sum, final double minValue, final double maxValue) {
+        this.count = count;
+        this.sum = sum;
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+    }
+
+    public static AggregatePartial fromBytes(final byte[] bytes, final int offset, final int length) {
+        if (length != BYTE_ARRAY_LENGTH) {
+            throw new IllegalArgumentException("Aggregate partial is not a valid format.  Expecting "
+                    + BYTE_ARRAY_LENGTH + " bytes, got " + length);
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        return new AggregatePartial(buffer.getLong(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+    }
+
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(BYTE_ARRAY_LENGTH)
+                .putLong(count)
+                .putDouble(sum)
+                .putDouble(minValue)
+                .putDouble(maxValue)
+                .array();
+    }
+
+    public AggregatePartial add(final long count, final double sum) {
+        this.count += count;
+        this.sum += sum;
+        return this;
+    }
+
+    public AggregatePartial addMin(final double value) {
+        if (Double.isNaN(minValue) || value < minValue) {
+            minValue = value;
+        }
+        return this;
+    }
+
+    public AggregatePartial addMax(final double value) {
+        if (Double.isNaN(maxValue) || value > maxValue) {
+            maxValue = value;
+        }
+        return this;
+    }
+
+    public AggregatePartial merge(final AggregatePartial other) {
+        add(other.count, other.sum);
+        if (!Double.isNaN(other.minValue)) {
+            addMin(other.minValue);
+        }
+        if (!Double.isNaN(other.maxValue)) {
+            addMax(other.maxValue);
+        }
+        return this;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getAverageValue() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @return The minimum value, or the average if no minimum has been seen, e.g. when reading between the
+     * count/sum increment and the min/max update of an INCREMENT layout write
+     */
+    public double getMinValue() {
+        return Double.isNaN(minValue) ? getAverageValue() : minValue;
+    }
+
+    /**
+     * @return The maximum value, or the average if no maximum has been seen
+     */
+    public double getMaxValue() {
+        return Double.isNaN(maxValue) ? getAverageValue() : maxValue;
+    }
+
+    @Override
+    public String toString() {
+        return "AggregatePartial{" +
+                "count=" + count +
+                ", sum=" + sum +
+                ", minValue=" + minValue +
+                ", maxValue=" + maxValue +
+                '}';
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.structure;
+
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Describes how the cells returned by a scan of an event store are to be reduced to {@link AggregatePartial}s
+ * by a {@link PartialAggregator}, i.e. where to find the time and tags in the row key, which tags to group by,
+ * the time bucket to group into and the period to include. The spec travels to the region servers as an
+ * attribute of the {@link Scan} it applies to.
+ *
+ * Kept tags are identified by their UIDs rather than their position in the row key, as a row only holds the
+ * tags it was written with.
+ */
+public class AggregationSpec {
+
+    static final String SCAN_ATTRIBUTE_NAME = "stroom.stats.aggregationSpec";
+
+    private static final int TAG_UID_LENGTH = 4;
+    private static final int FIXED_LENGTH = (Integer.BYTES * 2) + (Long.BYTES * 5) + 1;
+
+    private final int timeOffset;
+    private final int tagsOffset;
+    private final long rowKeyIntervalMs;
+    private final long columnIntervalMs;
+    private final long bucketMs;
+    private final long periodFromMs;
+    private final long periodToMs;
+    private final boolean isValueStatistic;
+    private final byte[] keptTagUids;
+
+    /**
+     * @param timeOffset       The offset of the partial timestamp in the row key, allowing for any salt
+     * @param tagsOffset       The offset of the first tag/value pair in the row key, allowing for any salt
+     * @param bucketMs         The size of the time buckets to group by, a multiple of columnIntervalMs
+     * @param periodFromMs     Cells before this time are ignored
+     * @param periodToMs       Cells at or after this time are ignored
+     * @param isValueStatistic True if the cells are those of a VALUE statistic, false for COUNT
+     * @param keptTagUids      The concatenated UIDs of the tags to group by
+     */
+    public AggregationSpec(final int timeOffset,
+                           final int tagsOffset,
+                           final long rowKeyIntervalMs,
+                           final long columnIntervalMs,
+                           final long bucketMs,
+                           final long periodFromMs,
+                           final long periodToMs,
+                           final boolean isValueStatistic,
+                           final byte[] keptTagUids) {
+        if (columnIntervalMs <= 0 || bucketMs < columnIntervalMs || bucketMs % columnIntervalMs != 0) {
+            throw new IllegalArgumentException(String.format(
+                    "bucketMs %s must be a multiple of columnIntervalMs %s", bucketMs, columnIntervalMs));
+        }
+        if (keptTagUids.length % TAG_UID_LENGTH != 0) {
+            throw new IllegalArgumentException("Invalid length for keptTagUids " + keptTagUids.length);
+        }
+        this.timeOffset = timeOffset;
+        this.tagsOffset = tagsOffset;
+        this.rowKeyIntervalMs = rowKeyIntervalMs;
+        this.columnIntervalMs = columnIntervalMs;
+        this.bucketMs = bucketMs;
+        this.periodFromMs = periodFromMs;
+        this.periodToMs = periodToMs;
+        this.isValueStatistic = isValueStatistic;
+        this.keptTagUids = keptTagUids;
+    }
+
+    /**
+     * @return The spec held on the scan, or null if the scan doesn't have one
+     */
+    public static AggregationSpec fromScan(final Scan scan) {
+        final byte[] bytes = scan.getAttribute(SCAN_ATTRIBUTE_NAME);
+        if (bytes == null) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int timeOffset = buffer.getInt();
+        final int tagsOffset = buffer.getInt();
+        final long rowKeyIntervalMs = buffer.getLong();
+        final long columnIntervalMs = buffer.getLong();
+        final long bucketMs = buffer.getLong();
+        final long periodFromMs = buffer.getLong();
+        final long periodToMs = buffer.getLong();
+        final boolean isValueStatistic = buffer.get() != 0;
+        final byte[] keptTagUids = Arrays.copyOfRange(bytes, FIXED_LENGTH, bytes.length);
+        return new AggregationSpec(timeOffset, tagsOffset, rowKeyIntervalMs, columnIntervalMs, bucketMs,
+                periodFromMs, periodToMs, isValueStatistic, keptTagUids);
+    }
+
+    public Scan applyTo(final Scan scan) {
+        final byte[] bytes = ByteBuffer.allocate(FIXED_LENGTH + keptTagUids.length)
+                .putInt(timeOffset)
+                .putInt(tagsOffset)
+                .putLong(rowKeyIntervalMs)
+                .putLong(columnIntervalMs)
+                .putLong(bucketMs)
+                .putLong(periodFromMs)
+                .putLong(periodToMs)
+                .put((byte) (isValueStatistic ? 1 : 0))
+                .put(keptTagUids)
+                .array();
+        scan.setAttribute(SCAN_ATTRIBUTE_NAME, bytes);
+        return scan;
+    }
+
+    public int getTimeOffset() {
+        return timeOffset;
+    }
+
+    public int getTagsOffset() {
+        return tagsOffset;
+    }
+
+    public long getRowKeyIntervalMs() {
+        return rowKeyIntervalMs;
+    }
+
+    public long getColumnIntervalMs() {
+        return columnIntervalMs;
+    }
+
+    public long getBucketMs() {
+        return bucketMs;
+    }
+
+    public long getPeriodFromMs() {
+        return periodFromMs;
+    }
+
+    public long getPeriodToMs() {
+        return periodToMs;
+    }
+
+    public boolean isValueStatistic() {
+        return isValueStatistic;
+    }
+
+    /**
+     * @return True if the tag UID starting at the offset in the passed array is one of the kept tags
+     */
+    public boolean isKeptTag(final byte[] bytes, final int offset) {
+        for (int i = 0; i < keptTagUids.length; i += TAG_UID_LENGTH) {
+            if (Bytes.equals(keptTagUids, i, TAG_UID_LENGTH, bytes, offset, TAG_UID_LENGTH)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "AggregationSpec{" +
+                "timeOffset=" + timeOffset +
+                ", tagsOffset=" + tagsOffset +
+                ", rowKeyIntervalMs=" + rowKeyIntervalMs +
+                ", columnIntervalMs=" + columnIntervalMs +
+                ", bucketMs=" + bucketMs +
+                ", periodFromMs=" + periodFromMs +
+                ", periodToMs=" + periodToMs +
+                ", isValueStatistic=" + isValueStatistic +
+                ", keptTagCount=" + (keptTagUids.length / TAG_UID_LENGTH) +
+                '}';
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Crown Copyright
+ *
+ * This file is part of Stroom-Stats.
+ *
+ * Stroom-Stats is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Stroom-Stats is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Stroom-Stats.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stroom.stats.hbase.structure;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import stroom.stats.hbase.util.bytes.ByteArrayWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces the cells of event store rows to one {@link AggregatePartial} per group, as described by an
+ * {@link AggregationSpec}. A group is a time bucket plus the values of the kept tags, so cells that only differ
+ * by the tags not kept or by their time within the bucket are aggregated together.
+ *
+ * The group key is of the form <bucket start time as a long><kept tag/value UID pairs>, the pairs being in the
+ * same order as in the row key.
+ *
+ * This runs on the region servers, so only depends on HBase and the stroom-stats-util module.
+ * Not thread safe.
+ */
+public class PartialAggregator {
+
+    public static final int GROUP_KEY_TAGS_OFFSET = Long.BYTES;
+
+    private static final int TAG_AND_VALUE_LENGTH = 8;
+
+    // the INCREMENT layout value cell part ids and column qualifier length, as written by
+    // stroom.stats.hbase.structure.ValueCellParts in stroom-stats-hbase-client
+    private static final int COLUMN_QUALIFIER_LENGTH = Integer.BYTES;
+    private static final byte COUNT_PART = 'c';
+    private static final byte SUM_PART = 's';
+    private static final byte MIN_PART = 'n';
+    private static final byte MAX_PART = 'x';
+
+    private final AggregationSpec spec;
+    private final Map<ByteArrayWrapper, AggregatePartial> partials = new HashMap<>();
+
+    public PartialAggregator(final AggregationSpec spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * Aggregates the cells of a single row into the partials for their groups
+     */
+    public void addRow(final List<Cell> cells) {
+        if (cells.isEmpty()) {
+            return;
+        }
+        final Cell firstCell = cells.get(0);
+        final byte[] rowArray = firstCell.getRowArray();
+        final int rowOffset = firstCell.getRowOffset();
+        final int rowLength = firstCell.getRowLength();
+
+        final long rowTimeMs = Bytes.toInt(rowArray, rowOffset + spec.getTimeOffset()) * spec.getRowKeyIntervalMs();
+        final byte[] keptTagValues = getKeptTagValues(rowArray, rowOffset, rowLength);
+
+        for (final Cell cell : cells) {
+            final int columnIntervalNo = Bytes.toInt(cell.getQualifierArray(), cell.getQualifierOffset());
+            final long timeMs = rowTimeMs + (columnIntervalNo * spec.getColumnIntervalMs());
+
+            //the first and last rows of a scan can hold times outside the period
+            if (timeMs >= spec.getPeriodFromMs() && timeMs < spec.getPeriodToMs()) {
+                final long bucketTimeMs = timeMs - (timeMs % spec.getBucketMs());
+                final ByteArrayWrapper groupKey = ByteArrayWrapper.of(buildGroupKey(bucketTimeMs, keptTagValues));
+
+                addCell(partials.computeIfAbsent(groupKey, key -> new AggregatePartial()), cell);
+            }
+        }
+    }
+
+    private void addCell(final AggregatePartial partial, final Cell cell) {
+        final byte[] valueArray = cell.getValueArray();
+        final int valueOffset = cell.getValueOffset();
+        final int valueLength = cell.getValueLength();
+
+        if (!spec.isValueStatistic()) {
+            final long count = valueLength == 0 ? 0 : Bytes.toLong(valueArray, valueOffset, valueLength);
+            partial.add(count, count);
+
+        } else if (cell.getQualifierLength() == COLUMN_QUALIFIER_LENGTH) {
+            //COMPOUND layout
+            final ValueCellValue valueCellValue = new ValueCellValue(valueArray, valueOffset, valueLength);
+            if (valueCellValue.getCount() > 0) {
+                partial.add(valueCellValue.getCount(), valueCellValue.getAggregatedValue())
+                        .addMin(valueCellValue.getMinValue())
+                        .addMax(valueCellValue.getMaxValue());
+            }
+        } else {
+            //INCREMENT layout
+            final byte[] qualifierArray = cell.getQualifierArray();
+            final int partOffset = cell.getQualifierOffset() + COLUMN_QUALIFIER_LENGTH;
+            final byte part = qualifierArray[partOffset];
+            switch (part) {
+                case COUNT_PART:
+                    partial.add(Bytes.toLong(valueArray, valueOffset, valueLength), 0);
+                    break;
+                case SUM_PART:
+                    final int scale = qualifierArray[partOffset + 1];
+                    partial.add(0, Bytes.toLong(valueArray, valueOffset, valueLength) / Math.pow(10, scale));
+                    break;
+                case MIN_PART:
+                    partial.addMin(Bytes.toDouble(valueArray, valueOffset));
+                    break;
+                case MAX_PART:
+                    partial.addMax(Bytes.toDouble(valueArray, valueOffset));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected value cell part " + (char) part);
+            }
+        }
+    }
+
+    private byte[] getKeptTagValues(final byte[] rowArray, final int rowOffset, final int rowLength) {
+        final ByteArrayOutputStream keptTagValues = new ByteArrayOutputStream();
+        for (int pos = rowOffset + spec.getTagsOffset(); pos < rowOffset + rowLength; pos += TAG_AND_VALUE_LENGTH) {
+            if (spec.isKeptTag(rowArray, pos)) {
+                keptTagValues.write(rowArray, pos, TAG_AND_VALUE_LENGTH);
+            }
+        }
+        return keptTagValues.toByteArray();
+    }
+
+    private static byte[] buildGroupKey(final long bucketTimeMs, final byte[] keptTagValues) {
+        final byte[] groupKey = new byte[GROUP_KEY_TAGS_OFFSET + keptTagValues.length];
+        Bytes.putLong(groupKey, 0, bucketTimeMs);
+        System.arraycopy(keptTagValues, 0, groupKey, GROUP_KEY_TAGS_OFFSET, keptTagValues.length);
+        return groupKey;
+    }
+
+    public Map<ByteArrayWrapper, AggregatePartial> getPartials() {
+        return partials;
+    }
+
+    /**
+     * @return The partials as cells for returning to the client, the row being the group key and the value
+     * the partial's bytes
+     */
+    public List<Cell> toCells(final byte[] family) {
+        final List<Cell> cells = new ArrayList<>(partials.size());
+        partials.forEach((groupKey, partial) ->
+                cells.add(new KeyValue(groupKey.getBytes(), family, HConstants.EMPTY_BYTE_ARRAY, partial.toBytes())));
+        return cells;
+    }
+
+    /**
+     * Merges the partial held in a cell built by {@link PartialAggregator#toCells(byte[])} into the passed map
+     */
+    public static void mergeCell(final Map<ByteArrayWrapper, AggregatePartial> partials, final Cell cell) {
+        final ByteArrayWrapper groupKey = ByteArrayWrapper.of(
+                Bytes.copy(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength()));
+        final AggregatePartial partial = AggregatePartial.fromBytes(
+                cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+
+        partials.merge(groupKey, partial, AggregatePartial::merge);
+    }
+
+    public static long getBucketTimeMs(final byte[] groupKey) {
+        return Bytes.toLong(groupKey, 0);
+    }
+}